@@ -414,6 +414,7 @@ public class MoleculeViewerApplet extends Applet implements Runnable{
 	//System.out.println("MoleculeViewerApplet.destroy()");
 
 	if(moleculeViewer != null){
+	    moleculeViewer.dispose();
 	    //moleculeViewer.finalize();
 	    //moleculeViewer.getMoleculeRenderer().moleculeViewer = null;
 	    moleculeViewer = null;
@@ -430,6 +431,11 @@ public class MoleculeViewerApplet extends Applet implements Runnable{
 	super.stop();
 	System.out.println("MoleculeViewerApplet.stop()");
         removeAll();
+
+	if(moleculeViewer != null){
+	    moleculeViewer.dispose();
+	}
+
         moleculeViewer = null;
     }
 
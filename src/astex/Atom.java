@@ -56,6 +56,19 @@ public class Atom extends Point3d implements Selectable, GenericInterface {
     /** An integer for storing various attributes. */
     public int attributes = 0;
 
+    /**
+     * Note that the atom has changed, so that the packed copy
+     * in its molecule's AtomStore is reloaded. The set methods
+     * call this, code that writes the fields directly must too.
+     */
+    public void changed(){
+	Molecule molecule = getMolecule();
+
+	if(molecule != null){
+	    molecule.atomChanged();
+	}
+    }
+
     /** The radius of the atom. */
     public float radius = -1.0f;
 
@@ -401,6 +414,7 @@ public class Atom extends Point3d implements Selectable, GenericInterface {
     /** Set the element of this atom. */
     public void setElement(int newElement){
 	element = newElement;
+	changed();
     }
 
     /** Get the element type of this atom. */
@@ -992,6 +1006,103 @@ public class Atom extends Point3d implements Selectable, GenericInterface {
 	return ballRadius;
     }
 
+    /* The point methods that move the atom. */
+
+    public void set(double xx, double yy, double zz){
+	super.set(xx, yy, zz);
+	changed();
+    }
+
+    public void set(double xx){
+	super.set(xx);
+	changed();
+    }
+
+    public void set(Point3d p){
+	super.set(p);
+	changed();
+    }
+
+    public void set(int i, double v){
+	super.set(i, v);
+	changed();
+    }
+
+    public void zero(){
+	super.zero();
+	changed();
+    }
+
+    public void setX(double xx){
+	super.setX(xx);
+	changed();
+    }
+
+    public void setY(double yy){
+	super.setY(yy);
+	changed();
+    }
+
+    public void setZ(double zz){
+	super.setZ(zz);
+	changed();
+    }
+
+    public void add(Point3d p){
+	super.add(p);
+	changed();
+    }
+
+    public void subtract(Point3d p){
+	super.subtract(p);
+	changed();
+    }
+
+    public void translate(double xtrans, double ytrans){
+	super.translate(xtrans, ytrans);
+	changed();
+    }
+
+    public void translate(double xtrans, double ytrans, double ztrans){
+	super.translate(xtrans, ytrans, ztrans);
+	changed();
+    }
+
+    public void negate(){
+	super.negate();
+	changed();
+    }
+
+    public void min(Point3d p){
+	super.min(p);
+	changed();
+    }
+
+    public void max(Point3d p){
+	super.max(p);
+	changed();
+    }
+
+    public void normalise(){
+	super.normalise();
+	changed();
+    }
+
+    public void scale(double len){
+	super.scale(len);
+	changed();
+    }
+
+    public void divide(double s){
+	super.divide(s);
+	changed();
+    }
+
+    public void transform(Matrix m){
+	super.transform(m);
+	changed();
+    }
+
     /** Transform this atom to screen coordinates. */
     public void transformToScreen(Matrix m){
 	// add 0.5 to make it the nearest integer
@@ -1129,6 +1240,8 @@ public class Atom extends Point3d implements Selectable, GenericInterface {
 	}else{
 	    attributes &= ~attribute;
 	}
+
+	changed();
     }
 
     /** Set whether the atom is solvent. */
@@ -1419,8 +1532,12 @@ public class Atom extends Point3d implements Selectable, GenericInterface {
             }else{
                 properties.put(key, value);
             }
+
+            return null;
         }
 
+        changed();
+
         return null;
     }
     
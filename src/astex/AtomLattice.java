@@ -0,0 +1,265 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+/**
+ * Lattice of all of the atoms in a MoleculeRenderer.
+ *
+ * The atoms are numbered in the same order as selection masks.
+ * MoleculeRenderer.getAtomLattice() keeps one of these and only
+ * rebuilds it when a molecule is added or removed, or one of
+ * the AtomStore versions shows that atoms have been added,
+ * removed or moved.
+ *
+ * The neighbour searches only read the lattice, so they can be
+ * shared out between threads.
+ */
+public class AtomLattice implements Runnable {
+    /** Default number of threads used for neighbour searches. */
+    public static int defaultThreads =
+	Settings.getInteger("config", "select.threads", 1);
+
+    /** Searches from fewer atoms than this use one thread. */
+    private static final int MinimumThreadedAtoms = 256;
+
+    /** Edge length of the lattice cells. */
+    private static final double CellSize = 4.0;
+
+    /** The lattice. */
+    private Lattice lattice = null;
+
+    /** The atoms in selection mask order. */
+    Object atoms[] = null;
+
+    /** The coordinates of the atoms. */
+    double x[] = null;
+    double y[] = null;
+    double z[] = null;
+
+    /** The number of atoms. */
+    int atomCount = 0;
+
+    /** The molecules and AtomStore versions the lattice was built from. */
+    private Object molecules[] = null;
+    private int versions[] = null;
+
+    /** The search a worker does. */
+    private double sx[] = null;
+    private double sy[] = null;
+    private double sz[] = null;
+    private double sr[] = null;
+    private double rad = 0.0;
+    private double maxRadius = 0.0;
+    private boolean contact = false;
+    private SelectionMask hits = null;
+    private int firstSeed = 0;
+    private int lastSeed = 0;
+
+    /** Working space for the neighbour search. */
+    private IntArray neighbours = new IntArray();
+
+    /** Is the lattice up to date with the molecules. */
+    boolean isValid(Molecule mols[], int stores[]){
+	if(molecules == null || molecules.length != mols.length){
+	    return false;
+	}
+
+	for(int m = 0; m < mols.length; m++){
+	    if(molecules[m] != mols[m] || versions[m] != stores[m]){
+		return false;
+	    }
+	}
+
+	return true;
+    }
+
+    /** Build the lattice from the molecules. */
+    void build(Molecule mols[], AtomStore stores[]){
+	int total = 0;
+
+	for(int m = 0; m < mols.length; m++){
+	    total += stores[m].atomCount;
+	}
+
+	atoms = new Object[total];
+	x = new double[total];
+	y = new double[total];
+	z = new double[total];
+	atomCount = total;
+
+	lattice = new Lattice(CellSize);
+	molecules = new Object[mols.length];
+	versions = new int[mols.length];
+
+	int count = 0;
+
+	for(int m = 0; m < mols.length; m++){
+	    AtomStore store = stores[m];
+	    int n = store.atomCount;
+
+	    System.arraycopy(store.atomArray, 0, atoms, count, n);
+	    System.arraycopy(store.x, 0, x, count, n);
+	    System.arraycopy(store.y, 0, y, count, n);
+	    System.arraycopy(store.z, 0, z, count, n);
+
+	    for(int a = 0; a < n; a++){
+		lattice.add(count, x[count], y[count], z[count]);
+		count++;
+	    }
+
+	    molecules[m] = mols[m];
+	    versions[m] = store.version;
+	}
+    }
+
+    /**
+     * Return the index of the atom in selection mask order,
+     * or -1 if it isn't in the lattice.
+     */
+    public int getIndex(Atom atom){
+	neighbours.removeAllElements();
+
+	lattice.getPossibleNeighbours(atom.x, atom.y, atom.z, 0.0, neighbours);
+
+	int n[] = neighbours.getArray();
+	int neighbourCount = neighbours.size();
+
+	for(int i = 0; i < neighbourCount; i++){
+	    if(atoms[n[i]] == atom){
+		return n[i];
+	    }
+	}
+
+	return -1;
+    }
+
+    /**
+     * Set the bit in hits for every atom that is closer than rad to
+     * one of the spheres. If contact is true rad is increased
+     * by the vdw radius of each atom, as well as by the sphere
+     * radii in sr.
+     */
+    public void markNeighbours(double sx[], double sy[], double sz[],
+			       double sr[], int seedCount,
+			       double rad, boolean contact,
+			       SelectionMask hits){
+	double maxRadius = 0.0;
+
+	if(contact){
+	    for(int a = 0; a < atomCount; a++){
+		double r = ((Atom)atoms[a]).getVDWRadius();
+
+		if(r > maxRadius){
+		    maxRadius = r;
+		}
+	    }
+	}
+
+	int threads = defaultThreads;
+
+	if(seedCount < MinimumThreadedAtoms || threads < 1){
+	    threads = 1;
+	}
+
+	AtomLattice searches[] = new AtomLattice[threads];
+	Thread searchThreads[] = new Thread[threads];
+	int seedsPerThread = (seedCount + threads - 1) / threads;
+
+	for(int i = 0; i < threads; i++){
+	    AtomLattice s = new AtomLattice();
+	    s.lattice = lattice;
+	    s.atoms = atoms;
+	    s.x = x;
+	    s.y = y;
+	    s.z = z;
+	    s.sx = sx;
+	    s.sy = sy;
+	    s.sz = sz;
+	    s.sr = sr;
+	    s.rad = rad;
+	    s.maxRadius = maxRadius;
+	    s.contact = contact;
+	    // the other threads mark their own masks as
+	    // bits that share a word can't be set at once
+	    s.hits = (i == 0) ? hits : new SelectionMask(atomCount);
+	    s.firstSeed = Math.min(i * seedsPerThread, seedCount);
+	    s.lastSeed = Math.min((i + 1) * seedsPerThread, seedCount);
+	    searches[i] = s;
+	}
+
+	// this thread does the first share itself
+	for(int i = 1; i < threads; i++){
+	    searchThreads[i] = new Thread(searches[i]);
+	    searchThreads[i].start();
+	}
+
+	searches[0].run();
+
+	for(int i = 1; i < threads; i++){
+	    try {
+		searchThreads[i].join();
+	    }catch(InterruptedException e){
+		Log.error("interrupted waiting for neighbour search " + i);
+	    }
+
+	    hits.or(searches[i].hits);
+	}
+    }
+
+    /** Mark the neighbours of our range of spheres. */
+    public void run(){
+	double lx[] = x, ly[] = y, lz[] = z;
+	SelectionMask lhits = hits;
+
+	for(int i = firstSeed; i < lastSeed; i++){
+	    double cx = sx[i], cy = sy[i], cz = sz[i];
+
+	    neighbours.removeAllElements();
+
+	    lattice.getPossibleNeighbours(cx, cy, cz,
+					  rad + sr[i] + maxRadius,
+					  neighbours);
+
+	    int n[] = neighbours.getArray();
+	    int neighbourCount = neighbours.size();
+
+	    for(int j = 0; j < neighbourCount; j++){
+		int a = n[j];
+
+		if(!lhits.get(a)){
+		    double arad = rad;
+
+		    if(contact){
+			arad += ((Atom)atoms[a]).getVDWRadius();
+		    }
+
+		    double radSq = arad + sr[i];
+		    radSq *= radSq;
+
+		    double dx = cx - lx[a];
+		    double dy = cy - ly[a];
+		    double dz = cz - lz[a];
+
+		    if(dx*dx + dy*dy + dz*dz < radSq){
+			lhits.set(a);
+		    }
+		}
+	    }
+	}
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+/**
+ * Packed copy of the atoms of a molecule.
+ *
+ * The coordinates, screen coordinates, attributes and elements
+ * of the atoms are kept in primitive arrays in the same order as
+ * the molecule's atom list (and so the same order as selection
+ * masks), so that the per frame and per selection loops can run
+ * straight down the arrays instead of following references from
+ * chains to residues to atoms.
+ *
+ * The atoms are still the master copy. Molecule.getAtomStore()
+ * reloads the arrays from them, but only when an atom has been
+ * changed since the last load, and the screen coordinates are
+ * written back when they have been calculated.
+ *
+ * This is a mirror, not a replacement. Atom still holds its own
+ * coordinates and attributes, so the store costs memory rather
+ * than saving it; making Atom a lightweight view onto these
+ * arrays has not been done.
+ */
+public class AtomStore {
+    /** The atoms, in molecule order. */
+    public Object atomArray[] = null;
+
+    /** The number of atoms. */
+    public int atomCount = 0;
+
+    /** The coordinates. */
+    public double x[] = null;
+    public double y[] = null;
+    public double z[] = null;
+
+    /** The screen coordinates. */
+    public int xs[] = null;
+    public int ys[] = null;
+    public int zs[] = null;
+
+    /** The atom attributes. */
+    public int attributes[] = null;
+
+    /** The atom elements. */
+    public int elements[] = null;
+
+    /** Does the store need rebuilding. */
+    boolean invalid = true;
+
+    /** The molecule's atom change count when the store was last loaded. */
+    private int atomChanges = 0;
+
+    /**
+     * Changes whenever a reload finds the atoms, their bonds,
+     * elements or coordinates have changed, so that things
+     * built from the store can tell when they are out of date.
+     */
+    public int version = 0;
+
+    /** Make sure the arrays are big enough for the molecule. */
+    private void ensureCapacity(int n){
+	if(x == null || x.length < n){
+	    // leave some room for atoms that get added
+	    int size = n + n / 8 + 16;
+
+	    x = new double[size];
+	    y = new double[size];
+	    z = new double[size];
+	    xs = new int[size];
+	    ys = new int[size];
+	    zs = new int[size];
+	    attributes = new int[size];
+	    elements = new int[size];
+	}
+    }
+
+    /**
+     * Reload the store from the atoms of the molecule,
+     * if they have changed since the last time.
+     */
+    void load(Molecule mol){
+	int changes = mol.getAtomChanges();
+
+	if(!invalid && changes == atomChanges){
+	    return;
+	}
+
+	// read the count first, so changes made
+	// while we copy get picked up next time
+	atomChanges = changes;
+
+	boolean changed = invalid;
+
+	if(invalid){
+	    atomCount = mol.getAtomCount();
+	    atomArray = mol.getAtomArray();
+	    ensureCapacity(atomCount);
+	    invalid = false;
+	}
+
+	Object localAtomArray[] = atomArray;
+	double lx[] = x, ly[] = y, lz[] = z;
+	int la[] = attributes, le[] = elements;
+
+	for(int i = 0; i < atomCount; i++){
+	    Atom atom = (Atom)localAtomArray[i];
+
+	    if(lx[i] != atom.x || ly[i] != atom.y || lz[i] != atom.z){
+		lx[i] = atom.x;
+		ly[i] = atom.y;
+		lz[i] = atom.z;
+		changed = true;
+	    }
+
+	    if(le[i] != atom.getElement()){
+		le[i] = atom.getElement();
+		changed = true;
+	    }
+
+	    la[i] = atom.attributes;
+	}
+
+	if(changed){
+	    version++;
+	}
+    }
+
+    /**
+     * Transform the atoms to screen coordinates.
+     * Hydrogens are skipped unless allAtoms is true.
+     */
+    public void transformToScreen(Matrix m, boolean allAtoms){
+	Object localAtomArray[] = atomArray;
+	double lx[] = x, ly[] = y, lz[] = z;
+	int lxs[] = xs, lys[] = ys, lzs[] = zs;
+	int le[] = elements;
+	int n = atomCount;
+
+	double x00 = m.x00, x10 = m.x10, x20 = m.x20, x30 = m.x30;
+	double x01 = m.x01, x11 = m.x11, x21 = m.x21, x31 = m.x31;
+	double x02 = m.x02, x12 = m.x12, x22 = m.x22, x32 = m.x32;
+	double zscale = (double)(1 << (Renderer.FixedBits+8));
+
+	// same arithmetic as Atom.transformToScreen()
+	for(int i = 0; i < n; i++){
+	    if(allAtoms || le[i] != PeriodicTable.HYDROGEN){
+		double ax = lx[i], ay = ly[i], az = lz[i];
+		double xx = ax*x00 + ay*x10 + az*x20 + x30 + 0.5;
+		double yy = ax*x01 + ay*x11 + az*x21 + x31 + 0.5;
+		double zz = ax*x02 + ay*x12 + az*x22 + x32;
+
+		lxs[i] = (int)(xx) << Renderer.FixedBits;
+		lys[i] = (int)(yy) << Renderer.FixedBits;
+		lzs[i] = (int)(zz * zscale);
+	    }
+	}
+
+	// the drawing code still reads the atoms
+	for(int i = 0; i < n; i++){
+	    if(allAtoms || le[i] != PeriodicTable.HYDROGEN){
+		Atom atom = (Atom)localAtomArray[i];
+		atom.xs = lxs[i];
+		atom.ys = lys[i];
+		atom.zs = lzs[i];
+	    }
+	}
+    }
+}
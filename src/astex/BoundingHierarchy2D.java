@@ -0,0 +1,246 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+/**
+ * Bounding volume hierarchy of discs in a plane.
+ *
+ * Unlike NeighbourGrid2D the cost of a search doesn't depend on
+ * the size of the biggest object, so a few large objects don't
+ * slow down the search for all the small ones.
+ *
+ * Once build() has been called the hierarchy is only read, so
+ * any number of threads can search it at the same time.
+ */
+public class BoundingHierarchy2D {
+    /** Largest number of objects in a leaf. */
+    private static final int LeafSize = 4;
+
+    /** The disc centres and radii. */
+    private DoubleArray discx = new DoubleArray();
+    private DoubleArray discy = new DoubleArray();
+    private DoubleArray discr = new DoubleArray();
+
+    /** Local references to the disc arrays. */
+    private double dx[] = null;
+    private double dy[] = null;
+    private double dr[] = null;
+
+    /** The object ids in leaf order. */
+    private int order[] = null;
+
+    /** The bounding boxes of the nodes. */
+    private double nodexmin[] = null;
+    private double nodeymin[] = null;
+    private double nodexmax[] = null;
+    private double nodeymax[] = null;
+
+    /**
+     * The first object of a leaf, or the first
+     * of the pair of children of an inner node.
+     */
+    private int nodeFirst[] = null;
+
+    /** The number of objects in a leaf, 0 for an inner node. */
+    private int nodeCount[] = null;
+
+    /** The number of nodes in use. */
+    private int nodes = 0;
+
+    /** Remove all of the objects. */
+    public void reset(){
+	discx.removeAllElements();
+	discy.removeAllElements();
+	discr.removeAllElements();
+	nodes = 0;
+    }
+
+    /** Add a disc, the id is the order the discs are added in. */
+    public void add(double x, double y, double r){
+	discx.add(x);
+	discy.add(y);
+	discr.add(r);
+    }
+
+    /** Return the number of discs. */
+    public int getObjectCount(){
+	return discx.size();
+    }
+
+    /** Build the hierarchy once all of the discs are added. */
+    public void build(){
+	int n = discx.size();
+
+	dx = discx.getArray();
+	dy = discy.getArray();
+	dr = discr.getArray();
+
+	if(order == null || order.length < n){
+	    order = new int[n];
+	}
+
+	for(int i = 0; i < n; i++){
+	    order[i] = i;
+	}
+
+	// a binary tree with leaves of one or more
+	// objects never has more than 2n nodes
+	int maxNodes = 2 * n + 1;
+
+	if(nodeFirst == null || nodeFirst.length < maxNodes){
+	    nodexmin = new double[maxNodes];
+	    nodeymin = new double[maxNodes];
+	    nodexmax = new double[maxNodes];
+	    nodeymax = new double[maxNodes];
+	    nodeFirst = new int[maxNodes];
+	    nodeCount = new int[maxNodes];
+	}
+
+	nodes = 0;
+
+	if(n > 0){
+	    nodes = 1;
+	    buildNode(0, 0, n);
+	}
+    }
+
+    /** Build the node for objects from first up to last. */
+    private void buildNode(int node, int first, int last){
+	double xmin =  1.e30, ymin =  1.e30;
+	double xmax = -1.e30, ymax = -1.e30;
+	double cxmin =  1.e30, cymin =  1.e30;
+	double cxmax = -1.e30, cymax = -1.e30;
+
+	for(int i = first; i < last; i++){
+	    int o = order[i];
+	    double x = dx[o], y = dy[o], r = dr[o];
+
+	    if(x - r < xmin) xmin = x - r;
+	    if(y - r < ymin) ymin = y - r;
+	    if(x + r > xmax) xmax = x + r;
+	    if(y + r > ymax) ymax = y + r;
+
+	    if(x < cxmin) cxmin = x;
+	    if(y < cymin) cymin = y;
+	    if(x > cxmax) cxmax = x;
+	    if(y > cymax) cymax = y;
+	}
+
+	nodexmin[node] = xmin;
+	nodeymin[node] = ymin;
+	nodexmax[node] = xmax;
+	nodeymax[node] = ymax;
+
+	if(last - first <= LeafSize){
+	    nodeFirst[node] = first;
+	    nodeCount[node] = last - first;
+	    return;
+	}
+
+	// split the centres at the median of the longest side
+	boolean splitx = (cxmax - cxmin) >= (cymax - cymin);
+	int mid = (first + last) / 2;
+
+	select(splitx ? dx : dy, first, last - 1, mid);
+
+	int child = nodes;
+	nodes += 2;
+
+	nodeFirst[node] = child;
+	nodeCount[node] = 0;
+
+	buildNode(child, first, mid);
+	buildNode(child + 1, mid, last);
+    }
+
+    /**
+     * Partially sort order[left..right] so that element k is
+     * in its sorted position with nothing bigger before it and
+     * nothing smaller after it.
+     */
+    private void select(double key[], int left, int right, int k){
+	while(right > left){
+	    double pivot = key[order[(left + right) / 2]];
+	    int i = left;
+	    int j = right;
+
+	    do {
+		while(key[order[i]] < pivot) i++;
+		while(key[order[j]] > pivot) j--;
+
+		if(i <= j){
+		    int tmp = order[i];
+		    order[i] = order[j];
+		    order[j] = tmp;
+		    i++;
+		    j--;
+		}
+	    } while(i <= j);
+
+	    if(k <= j){
+		right = j;
+	    }else if(k >= i){
+		left = i;
+	    }else{
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Add the ids of the discs that come within d of the point
+     * to the neighbours list. Some further discs may be returned
+     * too, so the caller still needs to make the exact test.
+     */
+    public int getPossibleNeighbours(double x, double y, double d,
+				     IntArray neighbours){
+	if(nodes > 0){
+	    search(0, x - d, y - d, x + d, y + d, neighbours);
+	}
+
+	return neighbours.size();
+    }
+
+    /** Search a node for discs that overlap the box. */
+    private void search(int node,
+			double xmin, double ymin, double xmax, double ymax,
+			IntArray neighbours){
+	if(nodexmin[node] > xmax || nodexmax[node] < xmin ||
+	   nodeymin[node] > ymax || nodeymax[node] < ymin){
+	    return;
+	}
+
+	int first = nodeFirst[node];
+	int count = nodeCount[node];
+
+	if(count == 0){
+	    search(first, xmin, ymin, xmax, ymax, neighbours);
+	    search(first + 1, xmin, ymin, xmax, ymax, neighbours);
+	}else{
+	    for(int i = first; i < first + count; i++){
+		int o = order[i];
+		double r = dr[o];
+
+		if(dx[o] - r <= xmax && dx[o] + r >= xmin &&
+		   dy[o] - r <= ymax && dy[o] + r >= ymin){
+		    neighbours.add(o);
+		}
+	    }
+	}
+    }
+}
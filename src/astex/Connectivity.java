@@ -0,0 +1,239 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+/**
+ * Distance based bond perception.
+ *
+ * The atoms are hashed into a Lattice whose cells are as big as
+ * the longest possible bond, so each atom is only compared with
+ * the atoms in the cells around it and the cost is linear in the
+ * number of atoms, whatever order they come in.
+ *
+ * For big molecules the search is shared out between threads in
+ * runs of whole chains. Each thread only collects the bonded
+ * pairs; the bonds are added by the calling thread in atom order
+ * so the molecule always ends up with the same bonds in the same
+ * order.
+ */
+public class Connectivity implements Runnable {
+    /** Default number of threads used to find bonds. */
+    public static int defaultThreads =
+	Settings.getInteger("config", "connect.threads", 1);
+
+    /** Molecules smaller than this are always done in one thread. */
+    private static final int MinimumThreadedAtoms = 10000;
+
+    /** Bonding radius of each atom. */
+    private double bondingRadii[] = null;
+
+    /** The packed atom coordinates. */
+    private double x[] = null;
+    private double y[] = null;
+    private double z[] = null;
+
+    /** The lattice of atoms. */
+    private Lattice lattice = null;
+
+    /** The range of atoms searched by this object. */
+    private int firstAtom = 0;
+    private int lastAtom = 0;
+
+    /** The bonded pairs that were found. */
+    private IntArray pairs = new IntArray();
+
+    /** Working space for the neighbour search. */
+    private IntArray neighbours = new IntArray();
+
+    /** Connect the atoms in the molecule. */
+    public static void connect(Molecule mol){
+	connect(mol, defaultThreads);
+    }
+
+    /** Connect the atoms in the molecule using this many threads. */
+    public static void connect(Molecule mol, int threads){
+	long then = System.currentTimeMillis();
+
+	int atomCount = mol.getAtomCount();
+
+	if(atomCount == 0){
+	    return;
+	}
+
+	AtomStore store = mol.getAtomStore();
+	Object atomArray[] = store.atomArray;
+	double x[] = store.x, y[] = store.y, z[] = store.z;
+	double bondingRadii[] = new double[atomCount];
+	double maxRadius = 0.0;
+
+	for(int a = 0; a < atomCount; a++){
+	    Atom atom = (Atom)atomArray[a];
+	    bondingRadii[a] = atom.getBondingRadius();
+
+	    if(bondingRadii[a] > maxRadius){
+		maxRadius = bondingRadii[a];
+	    }
+	}
+
+	if(maxRadius <= 0.0){
+	    return;
+	}
+
+	// no bond can be longer than the cell edge
+	Lattice lattice = new Lattice(2.0 * maxRadius + 0.01);
+
+	for(int a = 0; a < atomCount; a++){
+	    lattice.add(a, x[a], y[a], z[a]);
+	}
+
+	if(atomCount < MinimumThreadedAtoms || threads < 1){
+	    threads = 1;
+	}
+
+	int starts[] = chainRuns(atomArray, atomCount, threads);
+	int runCount = starts.length - 1;
+
+	Connectivity searches[] = new Connectivity[runCount];
+	Thread searchThreads[] = new Thread[runCount];
+
+	for(int i = 0; i < runCount; i++){
+	    Connectivity c = new Connectivity();
+	    c.bondingRadii = bondingRadii;
+	    c.x = x;
+	    c.y = y;
+	    c.z = z;
+	    c.lattice = lattice;
+	    c.firstAtom = starts[i];
+	    c.lastAtom = starts[i + 1];
+	    searches[i] = c;
+	}
+
+	// this thread does the first run itself
+	for(int i = 1; i < runCount; i++){
+	    searchThreads[i] = new Thread(searches[i]);
+	    searchThreads[i].start();
+	}
+
+	searches[0].run();
+
+	for(int i = 1; i < runCount; i++){
+	    try {
+		searchThreads[i].join();
+	    }catch(InterruptedException e){
+		Log.error("interrupted waiting for bond search " + i);
+	    }
+	}
+
+	int bondCount = mol.getBondCount();
+
+	for(int i = 0; i < runCount; i++){
+	    int p[] = searches[i].pairs.getArray();
+	    int pairCount = searches[i].pairs.size();
+
+	    for(int j = 0; j < pairCount; j += 2){
+		Atom a1 = (Atom)atomArray[p[j]];
+		Atom a2 = (Atom)atomArray[p[j+1]];
+
+		// don't duplicate bonds that are already there
+		if(a1.getBondCount() == 0 || a2.getBondCount() == 0 ||
+		   a1.getBond(a2) == null){
+		    mol.addBond(a1, a2, Bond.SingleBond, false);
+		}
+	    }
+	}
+
+	long now = System.currentTimeMillis();
+
+	Log.info(mol.getName() + ": " + atomCount + " atoms, " +
+		 (mol.getBondCount() - bondCount) + " bonds in " +
+		 (now - then) + "ms (" + runCount + " threads)");
+    }
+
+    /**
+     * Split the atoms into no more than runCount runs of whole
+     * chains with roughly the same number of atoms in each.
+     * Returns the first atom of each run followed by atomCount.
+     */
+    private static int[] chainRuns(Object atomArray[], int atomCount,
+				   int runCount){
+	IntArray starts = new IntArray();
+	int runSize = (atomCount + runCount - 1) / runCount;
+	Chain lastChain = null;
+
+	starts.add(0);
+
+	for(int a = 0; a < atomCount; a++){
+	    Atom atom = (Atom)atomArray[a];
+	    Residue res = atom.getResidue();
+	    Chain chain = (res != null) ? res.getParent() : null;
+
+	    if(chain != lastChain){
+		// start a new run at the chain boundary once
+		// the current one has its share of the atoms
+		if(a - starts.get(starts.size() - 1) >= runSize &&
+		   starts.size() < runCount){
+		    starts.add(a);
+		}
+
+		lastChain = chain;
+	    }
+	}
+
+	starts.add(atomCount);
+
+	int s[] = new int[starts.size()];
+
+	System.arraycopy(starts.getArray(), 0, s, 0, s.length);
+
+	return s;
+    }
+
+    /** Find the bonded pairs for our range of atoms. */
+    public void run(){
+	double lx[] = x, ly[] = y, lz[] = z;
+
+	for(int i = firstAtom; i < lastAtom; i++){
+	    double x1 = lx[i], y1 = ly[i], z1 = lz[i];
+	    double r1 = bondingRadii[i];
+
+	    neighbours.removeAllElements();
+
+	    // only gives us neighbours with higher ids
+	    lattice.getPossibleNeighbours(i, x1, y1, z1,
+					  neighbours, false);
+
+	    int n[] = neighbours.getArray();
+	    int neighbourCount = neighbours.size();
+
+	    for(int j = 0; j < neighbourCount; j++){
+		int i2 = n[j];
+		double d2 = r1 + bondingRadii[i2];
+		d2 *= d2;
+
+		double dx = lx[i2] - x1;
+		double dy = ly[i2] - y1;
+		double dz = lz[i2] - z1;
+
+		if(dx*dx + dy*dy + dz*dz < d2){
+		    pairs.add(i);
+		    pairs.add(i2);
+		}
+	    }
+	}
+    }
+}
@@ -20,6 +20,10 @@ package astex;
 /* Copyright Astex Technology Ltd. 1999 */
 
 /*
+ * 18-10-26
+ *	add readBytes() for reading the input in big blocks and
+ *	setLine() so that lines split out of those blocks can be
+ *	picked apart with the usual column methods.
  * 08-08-03 mjh
  *	add in the sprint functionality for formatting and returning
  *	numbers internally as a string.
@@ -1405,6 +1409,62 @@ public class FILE extends InputStream {
 	}
     }
 
+    /**
+     * Read up to length bytes into the array, starting with any
+     * that are already in the input buffer. Returns the number of
+     * bytes read or EOF at the end of the input.
+     */
+    public int readBytes(byte b[], int offset, int length){
+	int buffered = charactersInBuffer - nextCharacter;
+
+	if(buffered > 0){
+	    if(buffered > length){
+		buffered = length;
+	    }
+
+	    System.arraycopy(buffer, nextCharacter, b, offset, buffered);
+	    nextCharacter += buffered;
+
+	    return buffered;
+	}
+
+	try {
+	    int bytesRead = 0;
+
+	    do {
+		bytesRead = inputStream.read(b, offset, length);
+	    } while(bytesRead == 0);
+
+	    return bytesRead < 0 ? EOF : bytesRead;
+	}catch(Exception e){
+	    setException(e);
+	}
+
+	return EOF;
+    }
+
+    /**
+     * Make the bytes the current line, treating them in the same
+     * way as nextLine() does. The bytes must not contain the end
+     * of line characters.
+     */
+    public void setLine(byte b[], int offset, int length){
+	fieldsDetermined = false;
+
+	lineLength = 0;
+
+	int end = offset + length;
+
+	for(int i = offset; i < end && lineLength < lineBufferSize; i++){
+	    int ch = b[i] & 255;
+
+	    // nextLine() drops the other control characters
+	    if(ch > '\r' || ch == '\t'){
+		lineBuffer[lineLength++] = (byte)ch;
+	    }
+	}
+    }
+
     /**
      * Return the current line as a String.
      */
@@ -0,0 +1,83 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+/**
+ * The fragments of transparent surfaces for the Renderer.
+ *
+ * Each fragment links to the next one at the same pixel, the
+ * renderer keeps the first fragment of each pixel. The buffer is
+ * kept from frame to frame so that it only grows until it is big
+ * enough for the scene.
+ */
+class FragmentBuffer {
+    /** The depth of each fragment. */
+    int z[] = null;
+
+    /** The shaded color of each fragment. */
+    int color[] = null;
+
+    /** The specular highlight of each fragment. */
+    int specular[] = null;
+
+    /** The transparency and depth cue of each fragment. */
+    int shade[] = null;
+
+    /** The next fragment at the same pixel, or -1. */
+    int next[] = null;
+
+    /** The pixels that have fragments. */
+    IntArray pixels = new IntArray();
+
+    /** The number of fragments in use. */
+    int count = 0;
+
+    /** Working space for sorting the fragments of a pixel. */
+    int sort[] = new int[8];
+
+    /** Make room for n fragments, keeping the ones we have. */
+    void allocate(int n){
+	int newZ[] = new int[n];
+	int newColor[] = new int[n];
+	int newSpecular[] = new int[n];
+	int newShade[] = new int[n];
+	int newNext[] = new int[n];
+
+	if(count > 0){
+	    System.arraycopy(z, 0, newZ, 0, count);
+	    System.arraycopy(color, 0, newColor, 0, count);
+	    System.arraycopy(specular, 0, newSpecular, 0, count);
+	    System.arraycopy(shade, 0, newShade, 0, count);
+	    System.arraycopy(next, 0, newNext, 0, count);
+	}
+
+	z = newZ;
+	color = newColor;
+	specular = newSpecular;
+	shade = newShade;
+	next = newNext;
+    }
+
+    /** Let go of the storage. */
+    void release(){
+	z = color = specular = shade = next = null;
+	pixels = new IntArray();
+	count = 0;
+	sort = new int[8];
+    }
+}
@@ -24,37 +24,49 @@ package astex;
  * Which is available under LGPL license
  */
 public class Geometry {
-	private static double kU[] = new double[3];
-	private static double kV[] = new double[3];
-	private static double kW[] = new double[3];
-	private static double kD[] = new double[3];
-	private static double kDiff[] = new double[3];
-	private static double kP[] = new double[3];
+	/** Capsule state used by the static entry points. */
+	private static Geometry capsule = new Geometry();
 
-	private static double capDir[] = new double[3];
-	private static double rayDir[] = new double[3];
-	private static double nOrigin[] = new double[3];
+	private double kU[] = new double[3];
+	private double kV[] = new double[3];
+	private double kW[] = new double[3];
+	private double kD[] = new double[3];
+	private double kDiff[] = new double[3];
+	private double kP[] = new double[3];
 
-	private static double cap0[] = new double[3];
-	private static double cap1[] = new double[3];
+	private double capDir[] = new double[3];
+	private double rayDir[] = new double[3];
+	private double nOrigin[] = new double[3];
 
-	private static double fTmpStore[] = new double[2];
+	private double cap0[] = new double[3];
+	private double cap1[] = new double[3];
 
-	private static double afT[] = new double[3];
+	private double fTmpStore[] = new double[2];
 
-	private static double fWLength = 0.0;
+	private double afT[] = new double[3];
 
-	private static double fDLength = 0.0;
+	private double fWLength = 0.0;
 
-	private static double fInvDLength = 0.0;
+	private double fDLength = 0.0;
 
-	private static double capRadius = 0.0;
+	private double fInvDLength = 0.0;
 
-	private static double fRadiusSqr = 0.0;
+	private double capRadius = 0.0;
+
+	private double fRadiusSqr = 0.0;
 
 	/** Initialise cylinder calculations. */
 	public static void rayCapsuleIntInit(double c0[], double c1[],
 			double cr, double zrange){
+		capsule.capsuleIntInit(c0, c1, cr, zrange);
+	}
+
+	/**
+	 * Initialise cylinder calculations in this object.
+	 * Each thread that draws cylinders needs its own Geometry.
+	 */
+	public void capsuleIntInit(double c0[], double c1[],
+			double cr, double zrange){
 		for(int i = 0; i < 3; i++){
 			cap0[i] = c0[i];
 			cap1[i] = c1[i];
@@ -122,6 +134,12 @@ public class Geometry {
 	/** Peform ray-cylinder intersection and normal generation. */
 	public static int rayCapsuleInt(double ray0[], double ray1[],
 			double pint[], double nint[], boolean top){
+		return capsule.capsuleInt(ray0, ray1, pint, nint, top);
+	}
+
+	/** Ray-cylinder intersection against the capsule in this object. */
+	public int capsuleInt(double ray0[], double ray1[],
+			double pint[], double nint[], boolean top){
 		kDiff[0] = ray0[0] - cap0[0];
 		kDiff[1] = ray0[1] - cap0[1];
 		kDiff[2] = ray0[2] - cap0[2];
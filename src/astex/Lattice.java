@@ -233,6 +233,58 @@ public class Lattice {
 	return neighbours.size();
     }
 
+    /**
+     * Return the objects in the cells that come within d
+     * of the point. d can be bigger than the cell size.
+     */
+    public int getPossibleNeighbours(double x, double y, double z,
+				     double d, IntArray neighbours){
+	int imin = BOX(x - d), imax = BOX(x + d);
+	int jmin = BOX(y - d), jmax = BOX(y + d);
+	int kmin = BOX(z - d), kmax = BOX(z + d);
+
+	int h[] = head.getArray();
+	int l[] = list.getArray();
+	int idsArray[] = ids.getArray();
+	int cellCount = celli.size();
+
+	double boxCells =
+	    (double)(imax - imin + 1) * (jmax - jmin + 1) * (kmax - kmin + 1);
+
+	if(boxCells > cellCount){
+	    // quicker to check every cell that has something in it
+	    int ci[] = celli.getArray();
+	    int cj[] = cellj.getArray();
+	    int ck[] = cellk.getArray();
+
+	    for(int c = 0; c < cellCount; c++){
+		if(ci[c] >= imin && ci[c] <= imax &&
+		   cj[c] >= jmin && cj[c] <= jmax &&
+		   ck[c] >= kmin && ck[c] <= kmax){
+		    for(int iobj = h[c]; iobj >= 0; iobj = l[iobj]){
+			neighbours.add(idsArray[iobj]);
+		    }
+		}
+	    }
+	}else{
+	    for(int i = imin; i <= imax; i++){
+		for(int j = jmin; j <= jmax; j++){
+		    for(int k = kmin; k <= kmax; k++){
+			int c = findcell(i, j, k);
+
+			if(c != -1){
+			    for(int iobj = h[c]; iobj >= 0; iobj = l[iobj]){
+				neighbours.add(idsArray[iobj]);
+			    }
+			}
+		    }
+		}
+	    }
+	}
+
+	return neighbours.size();
+    }
+
     /** Working space for cell objects gathers. */
     private IntArray cell1 = new IntArray();
     private IntArray cell2 = new IntArray();
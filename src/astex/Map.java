@@ -203,6 +203,15 @@ public class Map extends Symmetry {
 	this.mapType = v;
     }
 
+    /** Random access to a local CCP4 map, kept open across recentres. */
+    private RandomAccessFile regionFile = null;
+
+    /** Byte offset of the first map value in the region file. */
+    private long dataOffset = 0;
+
+    /** Buffer for one row of the region. */
+    private byte rowBuffer[] = null;
+
     /** Read a map from the specified file object. */
     public void read(){
 	if(file != null){
@@ -608,6 +617,129 @@ public class Map extends Symmetry {
 	//System.out.println("done unit cell");
 		
 	printHeader(System.out);
+
+	openRegionFile();
+    }
+
+    /**
+     * Open the map for random access if it is a plain local file.
+     * After this readRegion() only reads the rows it needs and
+     * the header is not read again when we recenter.
+     */
+    private void openRegionFile(){
+	closeRegionFile();
+
+	// only floating point maps, gzipped maps and urls are streamed
+	if(mode != 2 || filename == null || filename.endsWith(".gz")){
+	    return;
+	}
+
+	File f = new File(filename);
+
+	if(!f.isFile()){
+	    return;
+	}
+
+	long offset = 1024 + ihdr3[1];
+	long mapBytes = 4L * grid[0] * grid[1] * grid[2];
+
+	if(f.length() < offset + mapBytes){
+	    System.out.println("map file is truncated " + filename);
+	    return;
+	}
+
+	try {
+	    regionFile = new RandomAccessFile(f, "r");
+	    dataOffset = offset;
+	    headerInitialised = true;
+	}catch(IOException e){
+	    System.out.println("couldn't open map for random access " + e);
+	    regionFile = null;
+	}
+    }
+
+    /** Close the random access file. */
+    private void closeRegionFile(){
+	if(regionFile != null){
+	    try {
+		regionFile.close();
+	    }catch(IOException e){
+	    }
+
+	    regionFile = null;
+	    headerInitialised = false;
+	}
+    }
+
+    /** Release the files that the map holds open. */
+    public void close(){
+	if(file != null){
+	    file.close();
+	    file = null;
+	}
+
+	closeRegionFile();
+    }
+
+    /**
+     * Read the region from the random access file.
+     * Only the rows of the region are read, so the
+     * time taken depends on the region size rather
+     * than the size of the map.
+     */
+    private boolean readRegionRows(){
+	int grid0 = grid[0];
+	int grid1 = grid[1];
+	int min0 = minimumGrid[0];
+	int min1 = minimumGrid[1];
+	int min2 = minimumGrid[2];
+	int max1 = maximumGrid[1];
+	int max2 = maximumGrid[2];
+	int rowBytes = 4 * (maximumGrid[0] - min0);
+	int point = 0;
+
+	if(rowBytes <= 0){
+	    return true;
+	}
+
+	if(rowBuffer == null || rowBuffer.length < rowBytes){
+	    rowBuffer = new byte[rowBytes];
+	}
+
+	byte b[] = rowBuffer;
+
+	try {
+	    for(int s = min2; s < max2; s++){
+		for(int r = min1; r < max1; r++){
+		    long row = ((long)s * grid1 + r) * grid0 + min0;
+		    regionFile.seek(dataOffset + 4 * row);
+		    regionFile.readFully(b, 0, rowBytes);
+
+		    for(int i = 0; i < rowBytes; i += 4){
+			int ch1 = b[i]   & 0xff;
+			int ch2 = b[i+1] & 0xff;
+			int ch3 = b[i+2] & 0xff;
+			int ch4 = b[i+3] & 0xff;
+			int word;
+
+			// same byte order as readInteger()
+			if(littleEndian){
+			    word = (ch1 << 24) + (ch2 << 16) + (ch3 << 8) + ch4;
+			}else{
+			    word = (ch4 << 24) + (ch3 << 16) + (ch2 << 8) + ch1;
+			}
+
+			data[point++] = Float.intBitsToFloat(word);
+		    }
+		}
+	    }
+	}catch(IOException e){
+	    System.out.println("error reading map region " + e);
+	    closeRegionFile();
+	    return false;
+	}
+
+	return true;
     }
 
     /** Print the header for the map. */
@@ -707,6 +839,8 @@ public class Map extends Symmetry {
     public void setFile(String file){
         print.f("file |"+file+"|");
 
+	closeRegionFile();
+
 	filename = file;
 	if(file.indexOf(".grd") != -1){
 	    mapType = INSIGHT_ASCII;
@@ -735,16 +869,20 @@ public class Map extends Symmetry {
 	}
     }
 
-    /** Read the determined region from the map. */
-    public void readRegion(){
+    /**
+     * Read the determined region from the map.
+     * Returns false if the region couldn't be read, in which
+     * case the region is left empty so that nothing is contoured.
+     */
+    public boolean readRegion(){
 	//System.out.println("readRegion");
 
 	if(mapType != CCP4_BINARY && mapType != O_BINARY){
-	    return;
+	    return true;
 	}
 
 	if((mapType == CCP4_BINARY && mode != 0 && mode != 2)){
-	    return;
+	    return true;
 	}
 
 	// does this need to be +1?
@@ -783,7 +921,15 @@ public class Map extends Symmetry {
 	int min1 = minimumGrid[1];
 	int min2 = minimumGrid[2];
 
-	if(mapType == CCP4_BINARY){
+	if(mapType == CCP4_BINARY && regionFile != null){
+	    if(!readRegionRows()){
+		for(int i = 0; i < 3; i++){
+		    maximumGrid[i] = minimumGrid[i];
+		}
+
+		return false;
+	    }
+	}else if(mapType == CCP4_BINARY){
 	    for(int s = 0; s < grid2; s++){
 		if(s >= maximumGrid[2]){
 		    // we got the region we were interested in
@@ -848,6 +994,8 @@ public class Map extends Symmetry {
 	    file.close();
 	    file = null;
 	}
+
+	return true;
     }
 
     /** Convert grid coordiantes to cartesian. */
@@ -25,28 +25,28 @@ import java.lang.*;
  * A class for (hopefully) implementing marching 
  * cubes algorithm for isosurfaces.
  */
-public class March {
+public class March implements Runnable {
 
     /** Number of edges per layer. */
-    private static int nLayerEdges = 0;
+    private int nLayerEdges = 0;
     
     /** Indexing tags for edges of each layer. */    
-    private static int layerEdges[] = null; 
+    private int layerEdges[] = null; 
 
     /** Layer dimensions. */
-    private static int iDim = 0;
-    private static int jDim = 0;
-    private static int kDim = 0;
+    private int iDim = 0;
+    private int jDim = 0;
+    private int kDim = 0;
     
-    private static int iDim1 = 0;
-    private static int jDim1 = 0;
-    private static int kDim1 = 0;
+    private int iDim1 = 0;
+    private int jDim1 = 0;
+    private int kDim1 = 0;
 
-    private static int iDim2 = 0;
-    private static int jDim2 = 0;
-    private static int kDim2 = 0;
+    private int iDim2 = 0;
+    private int jDim2 = 0;
+    private int kDim2 = 0;
 
-    private static int ijDim = 0;
+    private int ijDim = 0;
 
     /** Debugging? */
     private static boolean debug = false;
@@ -58,15 +58,16 @@ public class March {
     private static final float epsilon = 0.000001f;
 
     /** tmesh object so that we can output triangles. */
-    public static Tmesh tmesh = null;
+    private Tmesh tmesh = null;
 
     /** Looukp hoojami. */
-    private static int nedge01 = 0;
-    private static int ngrid01 = 0;
+    private int nedge01 = 0;
+    private int ngrid01 = 0;
 
-    private static int count = 0;
+    private int count = 0;
 
-    public static boolean generateTriangles = true;
+    /** Generate triangles (true) or contour lines (false). */
+    public boolean generateTriangles = true;
 
     /** Vertex masks. */
     private static final int V0 =   1;
@@ -86,19 +87,203 @@ public class March {
     private static final int Face1265 = V1|V2|V6|V5;
     private static final int Face2376 = V2|V3|V7|V6;
 
+    /** Smallest number of layers worth giving to a thread. */
+    private static final int MinimumSlabLayers = 8;
+
+    /** Default number of threads used to contour a grid. */
+    public static int defaultThreads =
+	Settings.getInteger("config", "march.threads", 1);
+
+    /** Number of threads used to contour a grid. */
+    private int threads = defaultThreads;
+
+    /** Set the number of threads used to contour a grid. */
+    public void setThreads(int n){
+	threads = n;
+    }
+
+    /** Get the number of threads used to contour a grid. */
+    public int getThreads(){
+	return threads;
+    }
+
+    /** The first and last (exclusive) layer of this slab. */
+    private int firstLayer = 0;
+    private int lastLayer = 0;
+
+    /** The grid and level that this slab contours. */
+    private float slabData[] = null;
+    private float slabThreshold = 0.0f;
+
+    /**
+     * Vertices this slab made on the bottom face of its first layer,
+     * paired with the edge offset of the same vertex in the top
+     * face of the previous slab.
+     */
+    private IntArray sharedVertices = null;
+
+    /** Bottom face edge to the same edge in the top face of the layer below. */
+    private static final int bottomToTop[] = {
+	2, -1, -1, -1, 6, -1, -1, -1, 11, 10, -1, -1
+    };
+
     /** Constructor. */
-    public static synchronized
-	Tmesh surface(float data[], int nx, int ny, int nz,
-		      float threshold, boolean invert, Tmesh tm){
-	
-	int i, j, k, e;
-	int off1, off2;
+    public March(){
+    }
+
+    /** Constructor. */
+    public March(boolean triangles){
+	generateTriangles = triangles;
+    }
+
+    /**
+     * Contour the grid at the threshold level into tm.
+     *
+     * If more than one thread is allowed the grid is split into
+     * slabs along z which are contoured at the same time and then
+     * joined, reusing the vertices on the faces shared between
+     * slabs. The result is the same as contouring in one go.
+     */
+    public Tmesh surface(float data[], int nx, int ny, int nz,
+			 float threshold, boolean invert, Tmesh tm){
 
 	//long then = System.currentTimeMillis();
 
-	tmesh = tm;
+	int layerCount = nz - 1;
+	int slabCount = threads;
+
+	if(slabCount > layerCount / MinimumSlabLayers){
+	    slabCount = layerCount / MinimumSlabLayers;
+	}
+
+	if(slabCount < 2){
+	    setDimensions(nx, ny, nz);
+	    tmesh = tm;
+	    marchSlab(data, 0, layerCount, threshold);
+	}else{
+	    March slabs[] = new March[slabCount];
+	    Thread slabThreads[] = new Thread[slabCount];
+
+	    for(int s = 0; s < slabCount; s++){
+		March slab = new March(generateTriangles);
+		slab.setDimensions(nx, ny, nz);
+		slab.tmesh = new Tmesh();
+		slab.slabData = data;
+		slab.slabThreshold = threshold;
+		slab.firstLayer = (s * layerCount) / slabCount;
+		slab.lastLayer = ((s + 1) * layerCount) / slabCount;
+		if(s > 0){
+		    slab.sharedVertices = new IntArray();
+		}
+		slabs[s] = slab;
+	    }
+
+	    // this thread does the first slab itself
+	    for(int s = 1; s < slabCount; s++){
+		slabThreads[s] = new Thread(slabs[s]);
+		slabThreads[s].start();
+	    }
+
+	    slabs[0].run();
+
+	    for(int s = 1; s < slabCount; s++){
+		try {
+		    slabThreads[s].join();
+		}catch(InterruptedException e){
+		    Log.error("interrupted waiting for slab " + s);
+		}
+	    }
+
+	    tmesh = tm;
+
+	    int previousRemap[] = null;
+
+	    for(int s = 0; s < slabCount; s++){
+		previousRemap = joinSlab(slabs[s], s > 0 ? slabs[s-1] : null,
+					 previousRemap);
+	    }
+	}
+
+	if(debug){
+	    System.out.println("Count " + count);
+	    System.out.println("Finished marching cubes algorithm");
+	}
+
+	if(invert){
+	    for(int iv = 0; iv < tmesh.np; iv++){
+		tmesh.nx[iv] = -tmesh.nx[iv];
+		tmesh.ny[iv] = -tmesh.ny[iv];
+		tmesh.nz[iv] = -tmesh.nz[iv];
+	    }
+	}
+
+	//long now = System.currentTimeMillis();
+
+	//System.out.println("time " + (now -then ) + "ms");
+
+	//System.out.println("points " + tmesh.np + " lines " + tmesh.nt);
+
+	Tmesh result = tmesh;
+
+	// don't hang on to the caller's objects
+	tmesh = null;
 
-	/* Sort out layer dimensions. */
+	return result;
+    }
+
+    /** Contour the slab this object was set up with. */
+    public void run(){
+	marchSlab(slabData, firstLayer, lastLayer, slabThreshold);
+
+	slabData = null;
+    }
+
+    /**
+     * Append a slab's points and triangles to our tmesh.
+     * Returns the slab's map from its vertices to ours.
+     */
+    private int[] joinSlab(March slab, March previous, int previousRemap[]){
+	Tmesh sm = slab.tmesh;
+	int remap[] = new int[sm.np];
+
+	for(int i = 0; i < sm.np; i++){
+	    remap[i] = emptyEdge;
+	}
+
+	if(slab.sharedVertices != null){
+	    int shared[] = slab.sharedVertices.getArray();
+	    int sharedCount = slab.sharedVertices.size();
+
+	    for(int i = 0; i < sharedCount; i += 2){
+		int topVertex = previous.layerEdges[shared[i+1]];
+		remap[shared[i]] = previousRemap[topVertex];
+	    }
+	}
+
+	for(int i = 0; i < sm.np; i++){
+	    if(remap[i] == emptyEdge){
+		remap[i] = tmesh.addPoint(sm.x[i], sm.y[i], sm.z[i],
+					  sm.nx[i], sm.ny[i], sm.nz[i],
+					  sm.u[i], sm.v[i]);
+	    }
+	}
+
+	for(int i = 0; i < sm.nt; i++){
+	    if(sm.t2[i] == -1){
+		tmesh.addLine(remap[sm.t0[i]], remap[sm.t1[i]], sm.tcolor[i]);
+	    }else{
+		tmesh.addTriangle(remap[sm.t0[i]], remap[sm.t1[i]],
+				  remap[sm.t2[i]], sm.tcolor[i]);
+	    }
+	}
+
+	count += slab.count;
+
+	return remap;
+    }
+
+    /** Sort out layer dimensions. */
+    private void setDimensions(int nx, int ny, int nz){
 	iDim = nx;
 	jDim = ny;
 	kDim = nz;
@@ -110,8 +295,18 @@ public class March {
 	kDim2 = kDim - 2;
 	ijDim = iDim * jDim;
 
-	/* Create Tmesh object */
-	//tmesh = new Tmesh();
+	/* Sort out lookup varible. */
+	nedge01 = 12 * (iDim1);
+	ngrid01 = iDim * jDim;
+    }
+
+    /** March the layers from first up to (not including) last. */
+    private void marchSlab(float data[], int first, int last,
+			   float threshold){
+	int i, j, k;
+	int off1;
+
+	firstLayer = first;
 
 	/* Allocate enough space for the indexing tags
 	   for the edges and set to empty. */
@@ -121,20 +316,18 @@ public class March {
 	    layerEdges[i] = emptyEdge;
 	}
 
-	/* Sort out lookup varible. */
-	nedge01 = 12 * (iDim1);
-	ngrid01 = iDim * jDim;
-
 	if(debug){
 	    System.out.println("Beginning marching cubes algorithm");
 	    System.out.println("Dimensions: x " + iDim +
 			       " y " + jDim + " z " + kDim);
 	}
 
-	marchLayer(data, nx, ny, nz, 0, layerEdges, threshold);
+	if(first < last){
+	    marchLayer(data, iDim, jDim, kDim, first, layerEdges, threshold);
+	}
 
 	/* Now do the remaining layers. */
-	for (k = 1; k < kDim1; k++) {
+	for (k = first + 1; k < last; k++) {
 	    
 	    off1 = getEdgeOffset(0, 0, 0);
 	
@@ -163,40 +356,19 @@ public class March {
 		}
 	    }
 
-	    marchLayer(data, nx, ny, nz, k, layerEdges, threshold);
+	    marchLayer(data, iDim, jDim, kDim, k, layerEdges, threshold);
 	   
 	}
-
-	if(debug){
-	    System.out.println("Count " + count);
-	    System.out.println("Finished marching cubes algorithm");
-	}
-
-	if(invert){
-	    for(int iv = 0; iv < tmesh.np; iv++){
-		tmesh.nx[iv] = -tmesh.nx[iv];
-		tmesh.ny[iv] = -tmesh.ny[iv];
-		tmesh.nz[iv] = -tmesh.nz[iv];
-	    }
-	}
-
-	//long now = System.currentTimeMillis();
-
-	//System.out.println("time " + (now -then ) + "ms");
-
-	//System.out.println("points " + tmesh.np + " lines " + tmesh.nt);
-
-	return tmesh;
     }
 
     /* Grid values at each cell position. */
-    private static float cell[]      = new float[8];
+    private float cell[]      = new float[8];
 
     /* Reference to vertices at the 12 edges of a cell  */
-    private static int cellVerts[] = new int[12]; 
+    private int cellVerts[] = new int[12]; 
 
     /** This is the main marching cubes algorithm function. */
-    private static void marchLayer(float data[], int nx, int ny, int nz,
+    private void marchLayer(float data[], int nx, int ny, int nz,
 				   int layer, int layerEdges[],
 				   float threshold){
 	
@@ -355,7 +527,7 @@ public class March {
     }
 
     /** Add edges for one face. */
-    private static void contourFace(int cellIndex, float level,
+    private void contourFace(int cellIndex, float level,
 				    int v0, int v1, int v2, int v3,
 				    int e0, int e1, int e2, int e3){
 	// build mask for this face.
@@ -405,12 +577,12 @@ public class March {
     }
 
     /** Retrieve offset as if a 3D array. */
-    private static int getOffset(int i, int j, int k){
+    private int getOffset(int i, int j, int k){
         return(i + iDim * j + ngrid01 * k); 
     }
 
     /** Adds a vertex to the list. */
-    private static void addVertex(float data[], int edgeNum, int i, int j,
+    private void addVertex(float data[], int edgeNum, int i, int j,
 				  float threshold, 
 				  int cellVerts[], int layer){
 	
@@ -419,26 +591,33 @@ public class March {
 
 	if(layerEdges[edgeOffset] == emptyEdge){
 	    cellVerts[edgeNum] = makeVertex(data, edgeNum, i, j, layer, threshold);
+
+	    // the previous slab made this one too
+	    if(sharedVertices != null && layer == firstLayer &&
+	       bottomToTop[edgeNum] != -1){
+		sharedVertices.add(cellVerts[edgeNum]);
+		sharedVertices.add(getEdgeOffset(bottomToTop[edgeNum], i, j));
+	    }
 	} else {
 	    cellVerts[edgeNum] = layerEdges[edgeOffset];
 	}
     }
 
     /** Returns the offset for edge lookup */
-    private static int getEdgeOffset(int edgeNum, int i, int j){
+    private int getEdgeOffset(int edgeNum, int i, int j){
 	int off = edgeNum + (12 * i) + nedge01 * j;
 	return (off);
     }
 
-    private static int   from[]     = new int[3];
-    private static int   to[]       = new int[3];
-    private static float normFrom[] = new float[3];
-    private static float normTo[]   = new float[3];
-    private static float v[]        = new float[3];
-    private static float n[]        = new float[3];
+    private int   from[]     = new int[3];
+    private int   to[]       = new int[3];
+    private float normFrom[] = new float[3];
+    private float normTo[]   = new float[3];
+    private float v[]        = new float[3];
+    private float n[]        = new float[3];
 
     /** Creates a vertex */
-    private static int makeVertex(float data[], int edgeNum,
+    private int makeVertex(float data[], int edgeNum,
 				  int i, int j, int k, float threshold){
 	
 	float d;
@@ -630,7 +809,7 @@ public class March {
 	return (tmesh.getnPoints() - 1);
     }
 
-    private static float length(float x[]){
+    private float length(float x[]){
 	return (float)Math.sqrt(x[0]*x[0] + x[1]*x[1] + x[2]*x[2]);
     }
 
@@ -206,6 +206,10 @@ public class Matrix {
 	p.x = x*x00 + y*x10 + z*x20 + x30;
 	p.y = x*x01 + y*x11 + z*x21 + x31;
 	p.z = x*x02 + y*x12 + z*x22 + x32;
+
+	if(p instanceof Atom){
+	    ((Atom)p).changed();
+	}
     }
 
     /** Transform a point by the inverse matrix (assumes rotation matrix) */
@@ -215,6 +219,10 @@ public class Matrix {
 	p.x = x*x00 + y*x01 + z*x02;
 	p.y = x*x10 + y*x11 + z*x12;
 	p.z = x*x20 + y*x21 + z*x22;
+
+	if(p instanceof Atom){
+	    ((Atom)p).changed();
+	}
     }
     
     /** Rotate around a line. */
@@ -20,6 +20,13 @@ package astex;
 /* Copyright Astex Technology Ltd. 1999 */
 
 /*
+ * 18-10-26
+ *	add getAtomStore() which returns a packed copy of the
+ *	atom coordinates for the per frame and selection loops.
+ *	connect() and connect2() both use Connectivity, which
+ *	hashes the atoms into a Lattice and can share the
+ *	search between threads for big structures.
+ *	atom changes are counted per molecule by atomChanged().
  * 07-07-04 mjh
  *	add ability to handle CONECT record bonds
  *	don't connect atoms if they both had bonds
@@ -75,6 +82,16 @@ public class Molecule extends Generic implements Selectable {
     /** Dynamic array of bonds. */
     public DynamicArray bonds = null;
 
+    /** Packed copy of the atoms. */
+    private AtomStore atomStore = null;
+
+    /**
+     * Counts the changes to the coordinates, attributes and
+     * elements of this molecule's atoms, so that the store is
+     * only reloaded when one of them has changed.
+     */
+    private volatile int atomChanges = 0;
+
     /** Dynamic array of angles. */
     private DynamicArray angles = null;
 
@@ -189,6 +206,7 @@ public class Molecule extends Generic implements Selectable {
     /** Initialise the molecule. */
     public void initialise(){
 	atoms.removeAllElements();
+	invalidateAtomStore();
 	bonds.removeAllElements();
 	angles.removeAllElements();
 	impropers.removeAllElements();
@@ -418,6 +436,40 @@ public class Molecule extends Generic implements Selectable {
 	return atoms.getArray();
     }
 
+    /**
+     * Return the packed copy of the atoms, reloaded with their
+     * current coordinates and attributes if any atom has changed.
+     */
+    public synchronized AtomStore getAtomStore(){
+	if(atomStore == null){
+	    atomStore = new AtomStore();
+	}
+
+	atomStore.load(this);
+
+	return atomStore;
+    }
+
+    /**
+     * The atom list or bonds have changed so the store must be
+     * rebuilt, which makes selections that use the bonds stale.
+     */
+    private void invalidateAtomStore(){
+	if(atomStore != null){
+	    atomStore.invalid = true;
+	}
+    }
+
+    /** One of the atoms has changed. */
+    public void atomChanged(){
+	atomChanges++;
+    }
+
+    /** Return the count of changes to the atoms. */
+    int getAtomChanges(){
+	return atomChanges;
+    }
+
     /** Return the bond array. */
     public Object[] getBondArray(){
 	return bonds.getArray();
@@ -548,6 +600,7 @@ public class Molecule extends Generic implements Selectable {
 	Atom newAtom = Atom.create();
 
 	atoms.add(newAtom);
+	invalidateAtomStore();
 
 	Chain chain = getCurrentChain();
 
@@ -565,6 +618,7 @@ public class Molecule extends Generic implements Selectable {
 	Atom atom = Atom.create();
 	atom.setParent(res);
 	atoms.add(atom);
+	invalidateAtomStore();
 
 	res.addAtom(atom);
 
@@ -582,6 +636,7 @@ public class Molecule extends Generic implements Selectable {
 	//Log.info("initial atomCount %5d", atomCount);
 
 	atoms.removeAllElements();
+	invalidateAtomStore();
 
 	int chainCount = getChainCount();
 	for(int c = 0; c < chainCount; c++){
@@ -653,6 +708,8 @@ public class Molecule extends Generic implements Selectable {
 		// and add the bond to the atoms
 		firstAtom.addBond(newBond);
 		secondAtom.addBond(newBond);
+
+		invalidateAtomStore();
 	    }
 	}
 
@@ -696,11 +753,13 @@ public class Molecule extends Generic implements Selectable {
         Residue residue = a.getResidue();
         residue.removeAtom(a);
 	atoms.remove(a);
+	invalidateAtomStore();
     }
 
     /** Remove a bond from the molecule. */
     public void removeBond(Bond b){
 	bonds.remove(b);
+	invalidateAtomStore();
     }
 
     /** Does this atom need treating specially for bonding. */
@@ -714,341 +773,17 @@ public class Molecule extends Generic implements Selectable {
 	}
     }
 
-    /* Linked cell connectivity calculation. */
-
     /** Is debugging on. */
     public boolean debug = false;
 
-    /** The atom ids in a cell. */
-    private int cell1[] = null;
-
-    /** The atom ids in a cell. */
-    private int cell2[] = null;
-
-    /** The number of atoms in cell1. */
-    private int nc1 = 0;
-
-    /** The number of atoms in cell2. */
-    private int nc2 = 0;
-
-    /** Cache of the bonding radii used for a molecule. */
-    private double bondingRadii[] = null;
-
-    /** The list of cell positions for atoms. */
-    private int list[] = null;
-
-    /** The head pointers for each cell. */
-    private int head[] = null;
-
-    /** Direct array reference to the atoms. */
-    Object atomArray[] = null;
-
-    /** Generate a cell index for the given grid. */
-    private int cellIndex(int ix, int iy, int iz,
-			  int nx, int ny, int nz){
-	return ix + iy * nx + iz * nx * ny;
-    }
-
-    /**
-     * The cell offsets for the half space that generates
-     * icell2 > icell1.
-     */
-    private int offsets[][] = {
-	{-1,-1,-1},
-	{ 0,-1,-1},
-	{ 1,-1,-1},
-	{-1, 0,-1},
-	{ 0, 0,-1},
-	{ 1, 0,-1},
-	{-1, 1,-1},
-	{ 0, 1,-1},
-	{ 1, 1,-1},
-	{-1,-1, 0},
-	{ 0,-1, 0},
-	{ 1,-1, 0},
-	{-1, 0, 0},
-    };
-
     /** Connect the atoms using a neighbour grid. */
     public void connect2(){
-	double xmin = 1.e10, xmax = -1.e10;
-	double ymin = 1.e10, ymax = -1.e10;
-	double zmin = 1.e10, zmax = -1.e10;
-
-	int atomCount = getAtomCount();
-	atomArray = atoms.getArray();
-
-	//System.out.println("atomCount "+ atomCount);
-
-	bondingRadii = new double[atomCount];
-
-	for(int a1 = 0; a1 < atomCount; a1++){
-	    Atom atom = getAtom(a1);
-	    bondingRadii[a1] = atom.getBondingRadius();
-	}
-
-	// Find the bounding box of the molecule
-	for(int a = 0; a < atomCount; a++){
-	    Atom atom = getAtom(a);
-
-	    if(atom.x < xmin) xmin = atom.x;
-	    if(atom.y < ymin) ymin = atom.y;
-	    if(atom.z < zmin) zmin = atom.z;
-	    if(atom.x > xmax) xmax = atom.x;
-	    if(atom.y > ymax) ymax = atom.y;
-	    if(atom.z > zmax) zmax = atom.z;
-	}
-
-	// Increase bounding box for comfort
-	xmin -= 0.1; ymin -= 0.1; zmin -= 0.1;
-	xmax += 0.1; ymax += 0.1; zmax += 0.1;
-
-	if(debug){
-	    System.out.println("xmin " + xmin);
-	    System.out.println("ymin " + ymin);
-	    System.out.println("zmin " + zmin);
-	    System.out.println("xmax " + xmax);
-	    System.out.println("ymax " + ymax);
-	    System.out.println("zmax " + zmax);
-	}
-
-	// use fixed spacing and calculate the grid dimensions
-	// alogorithm is reasonably invariant to grid size
-	// even for really big structures.
-	double spacing = 5.0;
-
-	int nx = 1 + (int)((xmax - xmin) / spacing);
-	int ny = 1 + (int)((ymax - ymin) / spacing);
-	int nz = 1 + (int)((zmax - zmin) / spacing);
-
-	int ncell = nx * ny * nz;
-
-	// allocate space for working...
-	// do it here so that mol files don't
-	// allocate this memory (as they don't need it)
-	cell1 = new int[1024];
-	cell2 = new int[1024];
-
-	if(debug){
-	    System.out.println("nx " + nx + " ny " + ny + " nz " + nz);
-	}
-
-	head = new int[ncell];
-	list = new int[atomCount];
-
-	// initialise cell head pointers
-	// -1 shows that the cell is empty
-	for(int i = 0; i < ncell; i++){
-	    head[i] = -1;
-	}
-
-	// put the atoms into the linked cell structure
-	for(int a = 0; a < atomCount; a++){
-	    Atom atom = getAtom(a);
-	    int ix = (int)((atom.x - xmin)/spacing);
-	    int iy = (int)((atom.y - ymin)/spacing);
-	    int iz = (int)((atom.z - zmin)/spacing);
-	    int icell = cellIndex(ix, iy, iz, nx, ny, nz);
-
-	    if(icell < 0 || icell >= ncell){
-		System.out.println("invalid cell " + icell);
-	    }
-
-	    list[a] = head[icell];
-	    head[icell] = a;
-	}
-
-	int icell = 0;
-	int offsetlen = offsets.length;
-
-	int occupiedCells = 0;
-
-	for(int iz = 0; iz < nz; iz++){
-	    for(int iy = 0; iy < ny; iy++){
-		for(int ix = 0; ix < nx; ix++){
-		    if(head[icell] != -1){
-			occupiedCells++;
-			connectCell(icell);
-
-			for(int ioff = 0; ioff < offsetlen; ioff++){
-			    int ix2 = ix - offsets[ioff][0];
-			    int iy2 = iy - offsets[ioff][1];
-			    int iz2 = iz - offsets[ioff][2];
-			
-			    if(ix2 >= 0 && ix2 < nx &&
-			       iy2 >= 0 && iy2 < ny &&
-			       iz2 >= 0 && iz2 < nz){
-				int icell2 = cellIndex(ix2, iy2, iz2,
-						       nx, ny, nz);
-				connectTwoCells(icell2);
-			    }
-			}
-		    }
-		    icell++;
-		}
-	    }
-	}
-
-	if(debug){
-	    double percentOccupied =
-		100.0 * (double)(occupiedCells)/(double)(ncell);
-	    double atomsPerCell = (double)(atomCount)/(double)(occupiedCells);
-	    System.out.println("total cells in grid    " + ncell);
-	    System.out.println("occupied cells in grid " + occupiedCells);
-	    System.out.println("% cells occupied       " + percentOccupied);
-	    System.out.println("average atoms per cell " + atomsPerCell);
-	}
-
-	// try and release the memory we allocated
-	// no guarantee that this will garbage collect it
-	// but at least it will be available when gc() runs
-	bondingRadii = null;
-	list = null;
-	head = null;
-	cell1 = null;
-	cell2 = null;
-
-	System.gc();
-
-	//System.out.println(toString());
-    }
-
-    /** Get the contents of the cell. */
-    private int getCellContents(int icell, int c[]){
-	int nc = 0;
-	int j = head[icell];
-
-	if(j == -1){
-	    return 0;
-	}
-
-	while(j >= 0){
-	    c[nc++] = j;
-	    j = list[j];
-	}
-
-	return nc;
-    }
-
-    /**
-     * Connect the contents of two cells.
-     * Assumes that the target cell has been correctly
-     * connected and the cell contents are in cell1
-     */
-    private void connectTwoCells(int icell2){
-	// only need to get the contents of cell2
-	nc2 = getCellContents(icell2, cell2);
-	Object localAtomArray[] = atomArray;
-
-	//System.out.println("number in cell 1 " + nc1);
-	//System.out.println("number in cell 2 " + nc2);
-
-	// don't forget to look up the atom ids
-	// in the cell array.
-	for(int i = 0; i < nc1; i++){
-	    int i1 = cell1[i];
-	    Atom a1 = (Atom)localAtomArray[i1];
-	    double r1 = bondingRadii[i1];
-
-	    for(int j = 0; j < nc2; j++){
-		int i2 = cell2[j];
-		Atom a2 = (Atom)localAtomArray[i2];
-		double r2 = bondingRadii[i2];
-		double d2 = r1 + r2;
-		d2 *= d2;
-
-		if(a1.distanceSq(a2) < d2){
-		    addBond(a1, a2, Bond.SingleBond, false);
-		}
-	    }
-	}
-    }
-
-    /** Connect the contents of one cell up. */
-    private void connectCell(int icell){
-	nc1 = getCellContents(icell, cell1);
-
-	// don't forget to look up the atom ids
-	// in the cell array.
-	for(int i = 0; i < nc1; i++){
-	    int i1 = cell1[i];
-	    Atom a1 = (Atom)atomArray[i1];
-	    double r1 = bondingRadii[i1];
-	    for(int j = i + 1; j < nc1; j++){
-		int i2 = cell1[j];
-		Atom a2 = (Atom)atomArray[i2];
-		double r2 = bondingRadii[i2];
-		double d2 = r1 + r2;
-		d2 *= d2;
-
-		if(a1.distanceSq(a2) < d2){
-		    addBond(a1, a2, Bond.SingleBond, false);
-		}
-	    }
-	}
+	Connectivity.connect(this);
     }
 
     /** Connect the atoms in a molecule using standard bonding radii. */
     public void connect(){
-	int atomCount = getAtomCount();
-	Object atomArray[] = atoms.getArray();
-
-	// store all of the bonding radii so we don't have to
-	// keep looking them up.
-	double bondingRadii[] = new double[atomCount];
-
-	for(int a1 = 0; a1 < atomCount; a1++){
-	    Atom atom = getAtom(a1);
-	    bondingRadii[a1] = atom.getBondingRadius();
-	}
-
-	// now check each atom.
-	for(int a1 = 0; a1 < atomCount; a1++){
-	    //Atom firstAtom = getAtom(a1);
-	    Atom firstAtom = (Atom)atomArray[a1];
-	    double firstRadius = bondingRadii[a1];
-	    double firstx = firstAtom.x;
-	    int startAtom = 0;
-	    int endAtom = atomCount;
-
-	    boolean specialAtom = isSpecialAtom(firstAtom);
-
-	    if(specialAtom){
-		// its a special atom so we need to check all others
-		startAtom = 0;
-		endAtom = atomCount;
-	    }else{
-		// its a regular atom so we only need to check in the next 50
-		startAtom = a1 + 1;
-		endAtom = a1 + 50;
-		if(endAtom > atomCount){
-		    endAtom = atomCount;
-		}
-	    }
-
-	    for(int a2 = startAtom; a2 < endAtom; a2++){
-		if(a2 != a1){
-		    //Atom secondAtom = getAtom(a2);
-		    Atom secondAtom = (Atom)atomArray[a2];
-		    double secondRadius = bondingRadii[a2];
-		    double dSquare = firstRadius + secondRadius;
-
-		    dSquare *= dSquare;
-
-		    if(firstAtom.distanceSq(secondAtom) < dSquare){
-			if(specialAtom){
-			    Bond bond = firstAtom.getBond(secondAtom);
-						
-			    if(bond == null){
-				addBond(firstAtom, secondAtom, Bond.SingleBond, false);
-			    }
-			}else{
-			    addBond(firstAtom, secondAtom, Bond.SingleBond, false);
-			}
-		    }
-		}
-	    }
-	}
+	Connectivity.connect(this);
     }
 
     /** Connect all of the atoms in a single residue. */
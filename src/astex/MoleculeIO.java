@@ -20,6 +20,10 @@ package astex;
 /* Copyright Astex Technology Ltd. 1999 */
 
 /*
+ * 18-10-26
+ *	readPDB() reads the file in blocks with PDBReader, which
+ *	parses the columns of the atom records in parallel. The
+ *	line at a time reader is still there as readPDBByLine().
  * 07-07-04 mjh
  *	add ability to handle CONECT record bonds
  *	don't connect atoms if they both had bonds
@@ -874,6 +878,45 @@ public class MoleculeIO {
      * Read a PDB file from the input.
      */
     public static Molecule readPDB(FILE file){
+	return readPDB(file, PDBReader.defaultThreads);
+    }
+
+    /**
+     * Read a PDB file from the input in blocks, parsing
+     * the atom records with this many threads.
+     */
+    public static Molecule readPDB(FILE file, int threads){
+	Molecule molecule = new Molecule();
+	PDBReader reader = new PDBReader(file, threads);
+
+	// initialise all of the reader variables.
+	initialiseReader();
+
+	while(reader.readBlock()){
+	    int lineCount = reader.getLineCount();
+
+	    for(int l = 0; l < lineCount; l++){
+		int a = reader.setLine(l);
+
+		// its an atom before any ENDMDL.
+		if(a != -1){
+		    readPDBResidue(file, molecule);
+		    readPDBAtom(file, molecule, reader, a);
+		}else{
+		    readPDBRecord(file, molecule);
+		}
+	    }
+	}
+
+	finishPDB(molecule);
+
+	return molecule;
+    }
+
+    /**
+     * Read a PDB file from the input a line at a time.
+     */
+    public static Molecule readPDBByLine(FILE file){
 	Molecule molecule = new Molecule();
         boolean seenENDMDL = false;
 
@@ -902,109 +945,138 @@ public class MoleculeIO {
 	    if(seenENDMDL == false &&
                ((c0 == 'A' && c1 == 'T' && c2 == 'O' && c3 == 'M') ||
                 (c0 == 'H' && c1 == 'E' && c2 == 'T' && c3 == 'A'))){
+		readPDBResidue(file, molecule);
+		readPDBAtom(file, molecule);
+	    }else{
+		readPDBRecord(file, molecule);
+	    }
+	}
 
-		int residueId = file.readInteger(22, 4);
-				// where is the insertion code exactly???
-		char insertionCode = file.getChar(26);
-		char chainId = file.getChar(21);
-		char xplorChainId1 = file.getChar(72);
-		char xplorChainId2 = file.getChar(73);
-		char xplorChainId3 = file.getChar(74);
-		char xplorChainId4 = file.getChar(75);
-		char ca = file.getChar(17);
-		char cb = file.getChar(18);
-		char cc = file.getChar(19);
-
-		if(needNewChain(chainId,
-				xplorChainId1, xplorChainId2,
-				xplorChainId3, xplorChainId4)){
-		    Chain chain = molecule.addChain();
-		    //if(chainId != ' '){
-		    //		    if(chainId != ' ' ||
-		    //   (xplorChainId1 == ' ' || xplorChainId1 == FILE.EOF) &&
-		    //   (xplorChainId2 == ' ' || xplorChainId2 == FILE.EOF) &&
-		    //  (xplorChainId3 == ' ' || xplorChainId3 == FILE.EOF) &&
-		    //   (xplorChainId4 == ' ' || xplorChainId4 == FILE.EOF)){
-
-			chain.setName(file.getSubstring(21, 1));
-
-			//}else{
-			//chain.setName(file.getSubstring(72, 4));
-			//}						
-		}
+	finishPDB(molecule);
 
-		if(needNewResidue(residueId, insertionCode, ca, cb, cc)){
-		    Residue residue = molecule.addResidue();
-		    //String residueName = file.getSubstring(17, 3);
-		    String residueName = getResidueName(ca, cb, cc);
-		    residue.setNumber(residueId);
-		    residue.setInsertionCode(insertionCode);
-		    residue.setName(residueName);
-		}
+	return molecule;
+    }
 
-		readPDBAtom(file, molecule);
-	    }else if(c0 == 'C' && c1 == 'O' && c2 == 'N' && c3 == 'E'){
-		// its a connect record.
-		int firstId = file.readInteger(6, 5);
-		Atom firstAtom = null;
+    /** Start a new chain or residue if the current atom needs one. */
+    private static void readPDBResidue(FILE file, Molecule molecule){
+	int residueId = file.readInteger(22, 4);
+			// where is the insertion code exactly???
+	char insertionCode = file.getChar(26);
+	char chainId = file.getChar(21);
+	char xplorChainId1 = file.getChar(72);
+	char xplorChainId2 = file.getChar(73);
+	char xplorChainId3 = file.getChar(74);
+	char xplorChainId4 = file.getChar(75);
+	char ca = file.getChar(17);
+	char cb = file.getChar(18);
+	char cc = file.getChar(19);
+
+	if(needNewChain(chainId,
+			xplorChainId1, xplorChainId2,
+			xplorChainId3, xplorChainId4)){
+	    Chain chain = molecule.addChain();
+	    //if(chainId != ' '){
+	    //              if(chainId != ' ' ||
+	    //   (xplorChainId1 == ' ' || xplorChainId1 == FILE.EOF) &&
+	    //   (xplorChainId2 == ' ' || xplorChainId2 == FILE.EOF) &&
+	    //  (xplorChainId3 == ' ' || xplorChainId3 == FILE.EOF) &&
+	    //   (xplorChainId4 == ' ' || xplorChainId4 == FILE.EOF)){
+
+		chain.setName(file.getSubstring(21, 1));
+
+		//}else{
+		//chain.setName(file.getSubstring(72, 4));
+		//}                                             
+	}
+
+	if(needNewResidue(residueId, insertionCode, ca, cb, cc)){
+	    Residue residue = molecule.addResidue();
+	    //String residueName = file.getSubstring(17, 3);
+	    String residueName = getResidueName(ca, cb, cc);
+	    residue.setNumber(residueId);
+	    residue.setInsertionCode(insertionCode);
+	    residue.setName(residueName);
+	}
+    }
+
+    /** Read a record other than an atom from the current line. */
+    private static void readPDBRecord(FILE file, Molecule molecule){
+	char c0 = file.getChar(0);
+	char c1 = file.getChar(1);
+	char c2 = file.getChar(2);
+	char c3 = file.getChar(3);
+
+	if(c0 == 'C' && c1 == 'O' && c2 == 'N' && c3 == 'E'){
+	    // its a connect record.
+	    int firstId = file.readInteger(6, 5);
+	    Atom firstAtom = null;
 		
-		//if(firstAtom == null){
-		//    System.out.println("first atom in conect is null");
-		//}
+	    //if(firstAtom == null){
+	    //    System.out.println("first atom in conect is null");
+	    //}
 
-		//firstAtom.attributes |= Atom.ConectRecords;
+	    //firstAtom.attributes |= Atom.ConectRecords;
 
-		int lineLength = file.getLineLength();
+	    int lineLength = file.getLineLength();
 
-		for(int i = 0; i < 6; i++){
-		    int start = 11 + i * 5;
-		    int secondId = file.readInteger(11 + i * 5, 5);
+	    for(int i = 0; i < 6; i++){
+		int start = 11 + i * 5;
+		int secondId = file.readInteger(11 + i * 5, 5);
 
-		    if(secondId == 0){
-			break;
-		    }
+		if(secondId == 0){
+		    break;
+		}
 
-                    // only pay attention when new atom has id more than first atom
-                    if(secondId > firstId){
+		// only pay attention when new atom has id more than first atom
+		if(secondId > firstId){
 
-                        if(firstAtom == null){
-                            firstAtom = molecule.getAtomWithId(firstId);
+		    if(firstAtom == null){
+			firstAtom = molecule.getAtomWithId(firstId);
 
-                            // we may not have this atom as
-                            // we could have skipped its model
-                            if(firstAtom == null){
-                                break;
-                            }
-                        }
-                        Atom secondAtom = molecule.getAtomWithId(secondId);
+			// we may not have this atom as
+			// we could have skipped its model
+			if(firstAtom == null){
+			    break;
+			}
+		    }
+		    Atom secondAtom = molecule.getAtomWithId(secondId);
 
-                        if(secondAtom != null){
+		    if(secondAtom != null){
 
-                            //secondAtom.attributes |= Atom.ConectRecords;
+			//secondAtom.attributes |= Atom.ConectRecords;
                             
-                            Bond bond = firstAtom.getBond(secondAtom);
+			Bond bond = firstAtom.getBond(secondAtom);
                             
-			    //System.out.println("addBond " + firstId + " " + secondId);
+			//System.out.println("addBond " + firstId + " " + secondId);
 			
-			    if(bond != null){
-				bond.setBondOrder(bond.getBondOrder()+ 1);
-			    }else{
-				bond = molecule.addBond(firstAtom, secondAtom, Bond.SingleBond);
-			    }
+			if(bond != null){
+			    bond.setBondOrder(bond.getBondOrder()+ 1);
+			}else{
+			    bond = molecule.addBond(firstAtom, secondAtom, Bond.SingleBond);
 			}
 		    }
 		}
-	    }else if(c0 == 'C' && c1 == 'R' && c2 == 'Y' && c3 == 'S'){
-		readUnitCell(molecule, file);
-
-		//System.out.println("finished in unit cell");
-	    }else if(c0 == 'R' && c1 == 'E' && c2 == 'M' ){
-		//readCNXUnitCell(molecule, file);
-	    }else if(c0 == 'S' && c1 == 'C' && c2 == 'A' && c3 == 'L'){
-		readScaleRecord(molecule, file);
 	    }
+	}else if(c0 == 'C' && c1 == 'R' && c2 == 'Y' && c3 == 'S'){
+	    readUnitCell(molecule, file);
+
+	    //System.out.println("finished in unit cell");
+	}else if(c0 == 'R' && c1 == 'E' && c2 == 'M' ){
+	    //readCNXUnitCell(molecule, file);
+	}else if(c0 == 'S' && c1 == 'C' && c2 == 'A' && c3 == 'L'){
+	    readScaleRecord(molecule, file);
 	}
+    }
 
+    /**
+     * Should pdb files have their bonds worked out.
+     * The PDBReader benchmark turns this off to time
+     * the reading by itself.
+     */
+    static boolean connectPDB = true;
+
+    /** Set up the symmetry and bonds once the file is read. */
+    private static void finishPDB(Molecule molecule){
 	Symmetry symmetry = molecule.getSymmetry();
 
 	if(symmetry != null){
@@ -1016,10 +1088,10 @@ public class MoleculeIO {
 	// pdb files don't usually have explicit connectivity
 
 	//molecule.connect();
-	molecule.connect2();
+	if(connectPDB){
+	    molecule.connect2();
+	}
 	//System.out.println("finished connect");
-
-	return molecule;
     }
 
     /** Read a scale record from the input file. */
@@ -1197,6 +1269,39 @@ public class MoleculeIO {
 	return atom;
     }
 
+    /**
+     * Add the pdb atom on the current record using the
+     * columns that the PDBReader has already parsed.
+     */
+    private static Atom readPDBAtom(FILE file, Molecule molecule,
+				    PDBReader reader, int a){
+	Atom atom = molecule.addAtom();
+
+	atom.setAtomLabel(reader.atomNames[a]);
+
+	// record if the atom had a left justified name...
+	if(file.getChar(12) != ' '){
+	    atom.attributes |= Atom.NameLeftJustified;
+	}
+
+	if(isSolventAtom()){
+	    atom.setSolvent(true);
+	}
+
+	if(file.getChar(0) == 'H'){
+	    atom.setHeteroAtom(true);
+	}
+
+	atom.setId(reader.ids[a]);
+	atom.setInsertionCode(file.getChar(16));
+	atom.set(reader.x[a], reader.y[a], reader.z[a]);
+	atom.setOccupancy(reader.occupancy[a]);
+	atom.setBFactor(reader.bFactor[a]);
+	atom.setElement(reader.elements[a]);
+
+	return atom;
+    }
+
     /** Is the atom label a solvent label. */
     public static boolean isSolventAtom(){
 	if((lastResidueA == 'H' &&
@@ -1352,16 +1352,74 @@ public class MoleculeRenderer {
 
     public void removeGraphicalObjectsBeginningWith(String prefix){
 	renderer.removeGraphicalObjectsBeginningWith(prefix);
+	removeSurfaces();
     }
 
     public void removeGraphicalObjects(String prefix){
 	renderer.removeGraphicalObjects(prefix);
+	removeSurfaces();
     }
 
     public void addGraphicalObject(Tmesh object){
 	renderer.addGraphicalObject(object);
     }
 
+    /** The grid surfaces that can be updated, by object name. */
+    private Hashtable surfaces = new Hashtable();
+
+    /**
+     * Remember the Surface that made the named object,
+     * so that it can be updated when its atoms move.
+     */
+    public void addSurface(String name, Surface surface){
+	surfaces.put(name, surface);
+    }
+
+    /**
+     * Forget the surfaces whose objects have been removed or
+     * replaced, so that their grids and atoms can be collected.
+     */
+    private void removeSurfaces(){
+	Vector removed = new Vector();
+	Enumeration names = surfaces.keys();
+
+	while(names.hasMoreElements()){
+	    String name = (String)names.nextElement();
+	    Surface surface = (Surface)surfaces.get(name);
+
+	    if(surface.getSurface() == null ||
+	       renderer.getGraphicalObject(name) != surface.getSurface()){
+		removed.addElement(name);
+	    }
+	}
+
+	for(int i = 0; i < removed.size(); i++){
+	    surfaces.remove(removed.elementAt(i));
+	}
+    }
+
+    /**
+     * Update the surfaces whose atoms have moved.
+     * Returns true if any of the surfaces changed.
+     */
+    public boolean updateSurfaces(){
+	boolean changed = false;
+
+	removeSurfaces();
+
+	Enumeration e = surfaces.elements();
+
+	while(e.hasMoreElements()){
+	    Surface surface = (Surface)e.nextElement();
+
+	    if(surface.update()){
+		changed = true;
+	    }
+	}
+
+	return changed;
+    }
+
     /** Setup the contour levels from the passed string. */
     public void setupContourLevels(String contourLevels){
 	resetContourLevels();
@@ -1719,6 +1777,7 @@ public class MoleculeRenderer {
 	    if(match.matches(pattern, mapName)){
 		String mapPrefix = mapName;
 		maps.remove(map);
+		map.close();
 		removeGraphicalObjectsBeginningWith(mapPrefix);
 		//System.out.println("matched " + mapName);
 
@@ -1734,6 +1793,7 @@ public class MoleculeRenderer {
 	    String name = map.getName();
 	    removeGraphicalObjectsBeginningWith(name);
 	    maps.remove(map);
+	    map.close();
 	}
     }
 
@@ -2975,41 +3035,127 @@ public class MoleculeRenderer {
 	return selectedAtoms;
     }
 
+    /** Lattice of all of the atoms for neighbour searches. */
+    private AtomLattice atomLattice = null;
+
+    /** Idle selection masks that Selection hands out again. */
+    DynamicArray selectionMaskPool = new DynamicArray();
+
+    /** Remembered selection results, by SelectionPlan text. */
+    private Hashtable selectionCache = new Hashtable();
+
+    /** The molecules the selection cache was filled from. */
+    private Object selectionMolecules[] = null;
+    private String selectionNames[] = null;
+    private int selectionVersions[] = null;
+
+    /**
+     * Return the remembered selection results, emptied first
+     * if a molecule has been added, removed, renamed or moved
+     * since they were remembered.
+     */
+    synchronized Hashtable getSelectionCache(){
+	int moleculeCount = getMoleculeCount();
+	Object mols[] = new Object[moleculeCount];
+	String names[] = new String[moleculeCount];
+	int versions[] = new int[moleculeCount];
+	boolean valid = selectionMolecules != null &&
+	    selectionMolecules.length == moleculeCount;
+
+	for(int m = 0; m < moleculeCount; m++){
+	    Molecule mol = getMolecule(m);
+	    mols[m] = mol;
+	    names[m] = mol.getName();
+	    versions[m] = mol.getAtomStore().version;
+
+	    if(valid &&
+	       (selectionMolecules[m] != mols[m] ||
+		selectionVersions[m] != versions[m] ||
+		(names[m] == null ? selectionNames[m] != null :
+		 !names[m].equals(selectionNames[m])))){
+		valid = false;
+	    }
+	}
+
+	if(!valid){
+	    synchronized(selectionCache){
+		selectionCache.clear();
+	    }
+
+	    selectionMolecules = mols;
+	    selectionNames = names;
+	    selectionVersions = versions;
+	}
+
+	return selectionCache;
+    }
+
+    /**
+     * Return the lattice of all of the atoms. It is only rebuilt
+     * when molecules have come or gone or atoms have moved.
+     */
+    public synchronized AtomLattice getAtomLattice(){
+	int moleculeCount = getMoleculeCount();
+	Molecule mols[] = new Molecule[moleculeCount];
+	AtomStore stores[] = new AtomStore[moleculeCount];
+	int versions[] = new int[moleculeCount];
+
+	for(int m = 0; m < moleculeCount; m++){
+	    mols[m] = getMolecule(m);
+	    stores[m] = mols[m].getAtomStore();
+	    versions[m] = stores[m].version;
+	}
+
+	if(atomLattice == null || !atomLattice.isValid(mols, versions)){
+	    atomLattice = new AtomLattice();
+	    atomLattice.build(mols, stores);
+	}
+
+	return atomLattice;
+    }
+
     /** Return atoms in a shell around the specified selection. */
     public DynamicArray getAtomsAroundSelection(DynamicArray selection,
 						double radius,
 						boolean include){
 	DynamicArray newSelection = new DynamicArray();
+	int selectionCount = selection.size();
 
-	Point3d selectionCenter = getCenter(selection);
-
-	if(selectionCenter != null){
-	    double selectionRadius = getRadius(selection, selectionCenter);
-
-	    DynamicArray sphereSelection =
-		getAtomsInSphere(selectionCenter, selectionRadius + radius);
+	if(selectionCount > 0){
+	    AtomLattice lattice = getAtomLattice();
+	    double sx[] = new double[selectionCount];
+	    double sy[] = new double[selectionCount];
+	    double sz[] = new double[selectionCount];
+	    double sr[] = new double[selectionCount];
 
-	    int sphereSelectionCount = sphereSelection.size();
-	    int selectionCount = selection.size();
-	    Object selectionArray[] = selection.getArray();
-	    double radiusSq = radius * radius;
+	    for(int a = 0; a < selectionCount; a++){
+		Atom selectedAtom = (Atom)selection.get(a);
+		sx[a] = selectedAtom.x;
+		sy[a] = selectedAtom.y;
+		sz[a] = selectedAtom.z;
+	    }
 
+	    SelectionMask hits = new SelectionMask(lattice.atomCount);
 
-	    for(int i = 0; i < sphereSelectionCount; i++){
-		Atom atom = (Atom)sphereSelection.get(i);
+	    lattice.markNeighbours(sx, sy, sz, sr, selectionCount,
+				   radius, false, hits);
 
-		if(include == false ||
-		   selection.contains(atom) == false){
-		    for(int a = 0; a < selectionCount; a++){
-			Atom selectedAtom = (Atom)selectionArray[a];
+	    if(include){
+		// leave out the selection itself
+		for(int a = 0; a < selectionCount; a++){
+		    int index = lattice.getIndex((Atom)selection.get(a));
 
-			if(atom.distanceSq(selectedAtom) < radiusSq){
-			    newSelection.add(atom);
-			    break;
-			}
+		    if(index != -1){
+			hits.clear(index);
 		    }
 		}
 	    }
+
+	    Object atoms[] = lattice.atoms;
+
+	    for(int a = hits.nextSetBit(0); a != -1; a = hits.nextSetBit(a + 1)){
+		newSelection.add(atoms[a]);
+	    }
 	}
 
 	return newSelection;
@@ -3287,6 +3433,11 @@ public class MoleculeRenderer {
     /** Remove the maps rather than the contour levels. */
     public void removeMaps(){
 	removeGraphicalObjectsBeginningWith("Map");
+
+	for(int i = 0; i < maps.size(); i++){
+	    getMap(i).close();
+	}
+
 	maps.removeAllElements();
     }
 
@@ -3517,11 +3668,72 @@ public class MoleculeRenderer {
 	// blow away the old maps
 	//removeContourLevels();
 
+	int levelCount = 0;
+
+	// read the maps before contouring the levels, which share the data
 	for(int i = 0; i < getMapCount(); i++){
 	    Map map = getMap(i);
 
 	    for(int j = 0; j < Map.MaximumContourLevels; j++){
-		contourMap(map, j);
+		if(map.getContourDisplayed(j)){
+		    if(map.needsReading()){
+			determineRegion(map);
+			map.setNeedsReading(false);
+		    }
+
+		    levelCount++;
+		}
+	    }
+	}
+
+	if(levelCount < 2 || March.defaultThreads < 2){
+	    for(int i = 0; i < getMapCount(); i++){
+		Map map = getMap(i);
+
+		for(int j = 0; j < Map.MaximumContourLevels; j++){
+		    contourMap(map, j);
+		}
+	    }
+
+	    return;
+	}
+
+	// contour every displayed level at the same time and
+	// share the threads out between them
+	int slabThreads = March.defaultThreads / levelCount;
+
+	if(slabThreads < 1){
+	    slabThreads = 1;
+	}
+
+	Thread threads[] = new Thread[levelCount];
+	int threadCount = 0;
+
+	for(int i = 0; i < getMapCount(); i++){
+	    final Map map = getMap(i);
+
+	    for(int j = 0; j < Map.MaximumContourLevels; j++){
+		if(map.getContourDisplayed(j)){
+		    final int contour = j;
+		    final int marchThreads = slabThreads;
+
+		    threads[threadCount] = new Thread(){
+			    public void run(){
+				contourMap(map, contour, marchThreads);
+			    }
+			};
+		    threads[threadCount++].start();
+		}else{
+		    contourMap(map, j);
+		}
+	    }
+	}
+
+	for(int i = 0; i < threadCount; i++){
+	    try {
+		threads[i].join();
+	    }catch(InterruptedException e){
+		Log.error("interrupted waiting for contour thread " + i);
 	    }
 	}
     }
@@ -3542,6 +3754,11 @@ public class MoleculeRenderer {
 
     /** Generate one specific contour level for the map. */
     public void contourMap(Map map, int contour){
+	contourMap(map, contour, March.defaultThreads);
+    }
+
+    /** Generate one contour level using this many threads. */
+    public void contourMap(Map map, int contour, int threads){
 	String contourName = getContourGraphicalObjectName(map, contour);
 
 	//System.out.println("contour map " + map + " contour " + contour);
@@ -3561,7 +3778,7 @@ public class MoleculeRenderer {
 	    int style = map.getContourStyle(contour);
 
 	    Tmesh contourObject =
-		contourRegion(map, contour, style);
+		contourRegion(map, contour, style, threads);
 
 	    contourObject.setColor(map.getContourColor(contour));
 
@@ -3637,12 +3854,20 @@ public class MoleculeRenderer {
 	    }
 
 	    // now read the region that we identified.
-	    map.readRegion();
+	    if(!map.readRegion()){
+		Log.error("couldn't read map region from " + map.getFile());
+	    }
 	}
     }
 
     /** Contour the data that is in stored in the map. */
     public Tmesh contourRegion(Map map, int contourNumber, int style){
+	return contourRegion(map, contourNumber, style, March.defaultThreads);
+    }
+
+    /** Contour the map data using this many threads. */
+    public Tmesh contourRegion(Map map, int contourNumber, int style,
+			       int threads){
 	int nx =0, ny=0, nz=0;
 	int mapType = map.getMapType();
 	//Tmesh contour = new Tmesh();
@@ -3681,16 +3906,19 @@ public class MoleculeRenderer {
 	// off edge of grid
 	if(nx > 0 && ny > 0 && nz > 0){
 
+	    March march = new March();
+	    march.setThreads(threads);
+
 	    if(style == Map.Lines){
 		//System.out.println("about to contour nx "+nx+" ny "+ ny + " nz " + nz);
-		March.generateTriangles = false;
-		March.surface(map.data, nx, ny, nz, (float)rmsLevel, false, contour);
+		march.generateTriangles = false;
+		march.surface(map.data, nx, ny, nz, (float)rmsLevel, false, contour);
 		//Contour.contour(map.data, nx, ny, nz, rmsLevel, contour);
 	    }else if(style == Map.Surface){
 		boolean invert = (rmsLevel < 0.0)?true:false;
 
-		March.generateTriangles = true;
-		March.surface(map.data, nx, ny, nz, (float)rmsLevel, invert, contour);
+		march.generateTriangles = true;
+		march.surface(map.data, nx, ny, nz, (float)rmsLevel, invert, contour);
 	    }
 	}
 
@@ -4213,6 +4441,9 @@ public class MoleculeRenderer {
     public void transformMolecule(){
 	renderer.buildOverallMatrix();
 
+	// the screen positions are about to change
+	pickGridValid = false;
+
 	int crossPixels = (int)(crossLength * renderer.getOverallScale());
 
 	//renderer.center.print("center");
@@ -4233,97 +4464,91 @@ public class MoleculeRenderer {
 	    if(molecule.getDisplayed()){
 		int style = molecule.getDisplayStyle();
 		boolean normal = (style & Molecule.Normal) > 0;
-		//int atomCount = molecule.getAtomCount();
-		//Object atomArray[] = molecule.getAtomArray();
-
-		int chainCount = molecule.getChainCount();
-		for(int c = 0; c < chainCount; c++){
-		    Chain chain = molecule.getChain(c);
-		    int residueCount = chain.getResidueCount();
-		    for(int r = 0; r < residueCount; r++){
-			Residue res = chain.getResidue(r);
-			int atomCount = res.getAtomCount();
-			for(int a = 0; a < atomCount; a++){
-			    Atom atom = res.getAtom(a);
 
-			    if(displayHydrogens ||
-			       atom.getElement() != PeriodicTable.HYDROGEN){
+		AtomStore store = molecule.getAtomStore();
+		Object atomArray[] = store.atomArray;
+		int attributes[] = store.attributes;
+		int elements[] = store.elements;
+		int atomCount = store.atomCount;
 
-				//for(int a = 0; a < atomCount; a++){
-				//Atom atom = (Atom)atomArray[a];
+		store.transformToScreen(renderer.overallMatrix,
+					displayHydrogens);
 
-				atom.transformToScreen(renderer.overallMatrix);
+		for(int a = 0; a < atomCount; a++){
+		    // atoms with no attributes draw nothing here
+		    if(attributes[a] != 0 &&
+		       (displayHydrogens ||
+			elements[a] != PeriodicTable.HYDROGEN)){
+			Atom atom = (Atom)atomArray[a];
+
+			if((attributes[a] & Atom.VDWSphere) != 0){
+			    sphereAtoms.add(atom);
+			}
 
-				if((atom.attributes & Atom.VDWSphere) != 0){
-				    sphereAtoms.add(atom);
-				}
+			if((attributes[a] & Atom.BallAndStick) != 0){
+			    renderer.drawSphere(atom.x, atom.y, atom.z,
+						atom.getBallRadius(),
+						atom.getSelectedColor());
+			}
 
-				if((atom.attributes & Atom.BallAndStick) != 0){
-				    renderer.drawSphere(atom.x, atom.y, atom.z,
+			if((attributes[a] & Atom.Cylinder) != 0 &&
+			   atom.getBondCount() == 0){
+			    renderer.drawAccurateSphere(atom.x, atom.y, atom.z,
 							atom.getBallRadius(),
-							atom.getSelectedColor());
-				}
+							atom.getSelectedColor(), 255);
+			}
 
-				if((atom.attributes & Atom.Cylinder) != 0 &&
-				   atom.getBondCount() == 0){
-				    renderer.drawAccurateSphere(atom.x, atom.y, atom.z,
-								atom.getBallRadius(),
-								atom.getSelectedColor(), 255);
-				}
+			if(atom.isSimpleDisplayed()){
+			    if(normal && atom.getBondCount() == 0){
+				drawAtom(atom, crossPixels);
+			    }
 
-				if(atom.isSimpleDisplayed()){
-				    if(normal && atom.getBondCount() == 0){
-					drawAtom(atom, crossPixels);
-				    }
+			    if(atom.hasAttributes()){
+				if(atom.isLabelled() && displayAtomLabel){
+				    int color = Color32.white;
 
-				    if(atom.hasAttributes()){
-					if(atom.isLabelled() && displayAtomLabel){
-					    int color = Color32.white;
+				    if(renderer.getBackgroundColor() ==
+				       Color32.white){
+					color = Color32.black;
+				    }
 
-					    if(renderer.getBackgroundColor() ==
-					       Color32.white){
-						color = Color32.black;
-					    }
+				    String label = generateAtomLabel(atom);
+				    double zoff = atom.getBiggestDisplayedRadius();
 
-					    String label = generateAtomLabel(atom);
-					    double zoff = atom.getBiggestDisplayedRadius();
-
-					    if(false){
-						label = label.substring(label.indexOf(">")+1);
-						int pix[] = GoogleFont.makeFontImage(label, 0x000000, 0xffffff, size);
-						renderer.drawPixels(atom.x, atom.y, atom.z, size[0], size[1], pix, 0);
-					    }else{
-						renderer.drawString(atom.x, atom.y, atom.z,
-								    zoff,
-								    color, label);
-					    }
-					}
+				    if(false){
+					label = label.substring(label.indexOf(">")+1);
+					int pix[] = GoogleFont.makeFontImage(label, 0x000000, 0xffffff, size);
+					renderer.drawPixels(atom.x, atom.y, atom.z, size[0], size[1], pix, 0);
+				    }else{
+					renderer.drawString(atom.x, atom.y, atom.z,
+							    zoff,
+							    color, label);
+				    }
+				}
 
-					String format = atom.getCustomLabel();
+				String format = atom.getCustomLabel();
 
-					if(format != null){
-					    int color = Color32.white;
+				if(format != null){
+				    int color = Color32.white;
 
-					    if(renderer.getBackgroundColor() ==
-					       Color32.white){
-						color = Color32.black;
-					    }
+				    if(renderer.getBackgroundColor() ==
+				       Color32.white){
+					color = Color32.black;
+				    }
 
-					    String customLabel = atom.generateLabel(format);
-					    double zoff = atom.getBiggestDisplayedRadius();
+				    String customLabel = atom.generateLabel(format);
+				    double zoff = atom.getBiggestDisplayedRadius();
 
-					    renderer.drawString(atom.x, atom.y, atom.z,
-								zoff,
-								color,
-								customLabel);
-					}
+				    renderer.drawString(atom.x, atom.y, atom.z,
+							zoff,
+							color,
+							customLabel);
+				}
 
-					if(atom.isSelected()){
-					    //Log.info("atom selected " + atom);
-					    renderer.drawBox(atom.xs, atom.ys, atom.zs,
-							     boxPixels, Color32.yellow);
-					}
-				    }
+				if(atom.isSelected()){
+				    //Log.info("atom selected " + atom);
+				    renderer.drawBox(atom.xs, atom.ys, atom.zs,
+						     boxPixels, Color32.yellow);
 				}
 			    }
 			}
@@ -5439,51 +5664,132 @@ public class MoleculeRenderer {
 		 stickColor, stickColor, w);
     }
 
-    /** Find atom with screen coordinates nearest to the specified point. */
-    public Atom getNearestAtom(int x, int y){
-	Atom nearestAtom = null;
-	int nearest = Integer.MAX_VALUE;
+    /** Furthest distance in pixels that we pick atoms from. */
+    private static final int PickDistance = 8;
+
+    /** The atoms that can be picked, in molecule order. */
+    private DynamicArray pickAtoms = new DynamicArray();
+
+    /** Screen space grid of the atoms that can be picked. */
+    private NeighbourGrid2D pickGrid = new NeighbourGrid2D();
+
+    /** Is the pick grid up to date with the screen coordinates. */
+    private boolean pickGridValid = false;
+
+    /** Working space for searching the pick grid. */
+    private IntArray pickNeighbours = new IntArray();
+
+    /**
+     * Put the atoms that can be picked into a grid of their
+     * screen coordinates. The grid is rebuilt the first time
+     * it is needed after the molecules have been transformed.
+     */
+    private void buildPickGrid(){
+	pickAtoms.removeAllElements();
+
+	int width = renderer.pixelWidth;
+	int height = renderer.pixelHeight;
+
+	double xmin =  1.e10, ymin =  1.e10;
+	double xmax = -1.e10, ymax = -1.e10;
 
 	for(int m = 0; m < getMoleculeCount(); m++){
 	    Molecule molecule = getMolecule(m);
-	    int atomCount = molecule.getAtomCount();
 	    int style = molecule.getDisplayStyle();
+	    boolean normal = (style & Molecule.Normal) == Molecule.Normal;
+	    boolean trace = (style & Molecule.Trace) == Molecule.Trace;
 
-	    if((style & Molecule.Normal) == Molecule.Normal &&
-	       molecule.getDisplayed()){
+	    if(!molecule.getDisplayed() || (!normal && !trace)){
+		continue;
+	    }
 
-		for(int a = 0; a < atomCount; a++){
-		    Atom atom = molecule.getAtom(a);
-		    int az = atom.zs;
-		    if(atom.isDisplayed() &&
-		       az >= renderer.backClip && az <= renderer.frontClip){
-			int ax = atom.xs >> Renderer.FixedBits;
-			int ay = atom.ys >> Renderer.FixedBits;
-			int dSquare = (ax - x)*(ax - x) + (ay - y)*(ay - y);
-			if(dSquare < nearest && dSquare < 64){
-			    nearest = dSquare;
-			    nearestAtom = atom;
-			}
-		    }
+	    int atomCount = molecule.getAtomCount();
+
+	    for(int a = 0; a < atomCount; a++){
+		Atom atom = molecule.getAtom(a);
+		int ax = atom.xs >> Renderer.FixedBits;
+		int ay = atom.ys >> Renderer.FixedBits;
+
+		// nothing off screen can be picked
+		if(ax < -PickDistance || ax > width + PickDistance ||
+		   ay < -PickDistance || ay > height + PickDistance){
+		    continue;
 		}
-	    }else if((style & Molecule.Trace) == Molecule.Trace &&
-		     molecule.getDisplayed()){
-		for(int a = 0; a < atomCount; a++){
-		    Atom atom = molecule.getAtom(a);
-		    int az = atom.zs;
-		    if(atom.isDisplayed() &&
-		       atom.getAtomLabel().equals("CA") &&
-		       az >= renderer.backClip && az <= renderer.frontClip){
-			int ax = atom.xs >> Renderer.FixedBits;
-			int ay = atom.ys >> Renderer.FixedBits;
-			int dSquare = (ax - x)*(ax - x) + (ay - y)*(ay - y);
-			if(dSquare < nearest && dSquare < 64){
-			    nearest = dSquare;
-			    nearestAtom = atom;
-			}
-		    }
+
+		if(normal || atom.getAtomLabel().equals("CA")){
+		    pickAtoms.add(atom);
+
+		    if(ax < xmin) xmin = ax;
+		    if(ay < ymin) ymin = ay;
+		    if(ax > xmax) xmax = ax;
+		    if(ay > ymax) ymax = ay;
 		}
+	    }
+	}
+
+	int pickCount = pickAtoms.size();
+
+	if(pickCount > 0){
+	    pickGrid.reset(xmin - 1, ymin - 1, xmax + 1, ymax + 1,
+			   PickDistance);
+
+	    for(int i = 0; i < pickCount; i++){
+		Atom atom = (Atom)pickAtoms.get(i);
+		pickGrid.add(i, atom.xs >> Renderer.FixedBits,
+			     atom.ys >> Renderer.FixedBits);
+	    }
+	}
+
+	pickGridValid = true;
+    }
+
+    /** Find atom with screen coordinates nearest to the specified point. */
+    public Atom getNearestAtom(int x, int y){
+	if(!pickGridValid){
+	    buildPickGrid();
+	}
 
+	if(pickAtoms.size() == 0){
+	    return null;
+	}
+
+	pickNeighbours.removeAllElements();
+
+	// the grid rounds the search to whole cells, so make
+	// sure it looks at the cells on either side of ours
+	double searchDistance = pickGrid.getSpacing();
+
+	if(searchDistance < PickDistance){
+	    searchDistance = PickDistance;
+	}
+
+	pickGrid.getPossibleNeighbours(-1, x, y, searchDistance,
+				       pickNeighbours, true);
+
+	Atom nearestAtom = null;
+	int nearest = Integer.MAX_VALUE;
+	int nearestIndex = Integer.MAX_VALUE;
+	int neighbourCount = pickNeighbours.size();
+	int neighbours[] = pickNeighbours.getArray();
+
+	for(int n = 0; n < neighbourCount; n++){
+	    int i = neighbours[n];
+	    Atom atom = (Atom)pickAtoms.get(i);
+	    int az = atom.zs;
+	    if(atom.isDisplayed() &&
+	       az >= renderer.backClip && az <= renderer.frontClip){
+		int ax = atom.xs >> Renderer.FixedBits;
+		int ay = atom.ys >> Renderer.FixedBits;
+		int dSquare = (ax - x)*(ax - x) + (ay - y)*(ay - y);
+
+		// ties go to the first atom in molecule order
+		if(dSquare < PickDistance * PickDistance &&
+		   (dSquare < nearest ||
+		    (dSquare == nearest && i < nearestIndex))){
+		    nearest = dSquare;
+		    nearestIndex = i;
+		    nearestAtom = atom;
+		}
 	    }
 	}
 
@@ -443,6 +443,14 @@ public class MoleculeViewer extends Canvas implements MouseListener,
 
     public void dispose(){
  //System.out.println("##### MoleculeViewer.dispose()");
+
+ // the next paint makes the image and buffers again
+ awtImage = null;
+ memoryImageSource = null;
+
+ if(moleculeRenderer != null && moleculeRenderer.renderer != null){
+     moleculeRenderer.renderer.releaseBuffers();
+ }
     }
 
     /** Get the molecule renderer that we contain. */
@@ -1032,6 +1040,11 @@ public class MoleculeViewer extends Canvas implements MouseListener,
 
      if(manipulator != null && pickedAtom != null){
   manipulator.release(e, this, pickedAtom);
+
+  // bring surfaces round moved atoms up to date
+  if(moleculeRenderer.updateSurfaces()){
+      dirtyRepaint();
+  }
      }
 
      return;
@@ -1421,6 +1434,7 @@ public class MoleculeViewer extends Canvas implements MouseListener,
   }else{
       atom.attributes &= ~Atom.VDWSphere;
   }
+  atom.changed();
      }
 
  }else if(c == '5'){
@@ -0,0 +1,413 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+/**
+ * Block reader for the records of a PDB file.
+ *
+ * The input is read in big blocks and split into lines. The
+ * ATOM and HETATM records before the first ENDMDL have their
+ * fixed columns parsed into primitive arrays, shared out between
+ * threads for big blocks. MoleculeIO.readPDB() then walks the
+ * lines of the block in order to build the chains, residues and
+ * atoms, so the molecule is the same as the one built line by
+ * line.
+ */
+public class PDBReader implements Runnable {
+    /** Default number of threads used to parse atom records. */
+    public static int defaultThreads =
+	Settings.getInteger("config", "pdb.threads", 1);
+
+    /** Blocks with fewer atoms than this are parsed in one thread. */
+    private static final int MinimumThreadedAtoms = 4096;
+
+    /** Initial size of the block of input. */
+    private static final int BlockSize = 1024 * 1024;
+
+    /** The file we are reading from. */
+    private FILE file = null;
+
+    /** The number of threads used to parse the atoms. */
+    private int threads = 1;
+
+    /** The block of input. */
+    private byte data[] = null;
+
+    /** The number of bytes in the block. */
+    private int dataCount = 0;
+
+    /** The start of the first incomplete line in the block. */
+    private int dataEnd = 0;
+
+    /** Have we seen the end of the input. */
+    private boolean eof = false;
+
+    /** Have we seen an ENDMDL record. */
+    private boolean seenENDMDL = false;
+
+    /** The lines of the block. */
+    private IntArray lineStart = new IntArray();
+    private IntArray lineLength = new IntArray();
+
+    /** The atom parsed from each line, or -1. */
+    private IntArray lineAtom = new IntArray();
+
+    /** The lines of the atom records. */
+    private IntArray atomStart = new IntArray();
+    private IntArray atomLength = new IntArray();
+
+    /** The number of atoms in the block. */
+    private int atomCount = 0;
+
+    /** The parsed atom records. */
+    String atomNames[] = null;
+    int ids[] = null;
+    int elements[] = null;
+    double x[] = null;
+    double y[] = null;
+    double z[] = null;
+    double occupancy[] = null;
+    double bFactor[] = null;
+
+    /** The range of atoms parsed by a worker. */
+    private int firstAtom = 0;
+    private int lastAtom = 0;
+
+    /** The line that a worker parses the columns from. */
+    private FILE line = null;
+
+    /** Create a reader for the file. */
+    public PDBReader(FILE f, int t){
+	file = f;
+	threads = t;
+    }
+
+    /** Private constructor for the workers. */
+    private PDBReader(){
+    }
+
+    /**
+     * Read the next block of lines and parse its atoms.
+     * Returns false when there are no more lines.
+     */
+    public boolean readBlock(){
+	if(data == null){
+	    data = new byte[BlockSize];
+	}
+
+	// keep the incomplete line from the last block
+	dataCount -= dataEnd;
+	System.arraycopy(data, dataEnd, data, 0, dataCount);
+	dataEnd = 0;
+
+	while(true){
+	    while(!eof && dataCount < data.length){
+		int bytesRead =
+		    file.readBytes(data, dataCount, data.length - dataCount);
+
+		if(bytesRead == FILE.EOF){
+		    eof = true;
+		}else{
+		    dataCount += bytesRead;
+		}
+	    }
+
+	    splitLines();
+
+	    if(lineStart.size() > 0 || eof){
+		break;
+	    }
+
+	    // a line longer than the whole block
+	    byte newData[] = new byte[data.length * 2];
+	    System.arraycopy(data, 0, newData, 0, dataCount);
+	    data = newData;
+	}
+
+	parseAtoms();
+
+	return lineStart.size() > 0;
+    }
+
+    /** Return the number of lines in the block. */
+    public int getLineCount(){
+	return lineStart.size();
+    }
+
+    /**
+     * Make line l the current line of the file.
+     * Returns the index of its parsed atom or -1.
+     */
+    public int setLine(int l){
+	file.setLine(data, lineStart.get(l), lineLength.get(l));
+
+	return lineAtom.get(l);
+    }
+
+    /** Split the block into lines the way FILE.nextLine() does. */
+    private void splitLines(){
+	lineStart.removeAllElements();
+	lineLength.removeAllElements();
+	lineAtom.removeAllElements();
+	atomStart.removeAllElements();
+	atomLength.removeAllElements();
+	atomCount = 0;
+
+	byte d[] = data;
+	int start = 0;
+
+	for(int i = 0; i < dataCount; i++){
+	    byte b = d[i];
+
+	    if(b == '\n'){
+		addLine(start, i - start);
+		start = i + 1;
+	    }else if(b == '\r'){
+		if(i + 1 < dataCount){
+		    addLine(start, i - start);
+		    if(d[i + 1] == '\n'){
+			i++;
+		    }
+		    start = i + 1;
+		}else if(eof){
+		    addLine(start, i - start);
+		    start = i + 1;
+		}else{
+		    // might be \r\n split across blocks
+		    break;
+		}
+	    }
+	}
+
+	if(eof && start < dataCount){
+	    addLine(start, dataCount - start);
+	    start = dataCount;
+	}
+
+	dataEnd = start;
+    }
+
+    /** Add a line and note whether it is an atom we want. */
+    private void addLine(int start, int length){
+	// the first four characters that nextLine() would keep
+	char c[] = {(char)FILE.EOF, (char)FILE.EOF,
+		    (char)FILE.EOF, (char)FILE.EOF};
+	int n = 0;
+
+	for(int i = start; i < start + length && n < 4; i++){
+	    int ch = data[i] & 255;
+
+	    if(ch > '\r' || ch == '\t'){
+		c[n++] = (char)data[i];
+	    }
+	}
+
+	if(c[0] == 'E' && c[1] == 'N' && c[2] == 'D' && c[3] == 'M'){
+	    seenENDMDL = true;
+	}
+
+	lineStart.add(start);
+	lineLength.add(length);
+
+	if(seenENDMDL == false &&
+	   ((c[0] == 'A' && c[1] == 'T' && c[2] == 'O' && c[3] == 'M') ||
+	    (c[0] == 'H' && c[1] == 'E' && c[2] == 'T' && c[3] == 'A'))){
+	    lineAtom.add(atomCount++);
+	    atomStart.add(start);
+	    atomLength.add(length);
+	}else{
+	    lineAtom.add(-1);
+	}
+    }
+
+    /** Make sure the atom arrays are big enough. */
+    private void ensureCapacity(int n){
+	if(ids == null || ids.length < n){
+	    atomNames = new String[n];
+	    ids = new int[n];
+	    elements = new int[n];
+	    x = new double[n];
+	    y = new double[n];
+	    z = new double[n];
+	    occupancy = new double[n];
+	    bFactor = new double[n];
+	}
+    }
+
+    /** Parse the atom records of the block. */
+    private void parseAtoms(){
+	if(atomCount == 0){
+	    return;
+	}
+
+	ensureCapacity(atomCount);
+
+	int workerCount = threads;
+
+	if(atomCount < MinimumThreadedAtoms || workerCount < 1){
+	    workerCount = 1;
+	}
+
+	PDBReader workers[] = new PDBReader[workerCount];
+	Thread workerThreads[] = new Thread[workerCount];
+	int atomsPerWorker = (atomCount + workerCount - 1) / workerCount;
+
+	for(int i = 0; i < workerCount; i++){
+	    PDBReader w = new PDBReader();
+	    w.data = data;
+	    w.atomStart = atomStart;
+	    w.atomLength = atomLength;
+	    w.atomNames = atomNames;
+	    w.ids = ids;
+	    w.elements = elements;
+	    w.x = x;
+	    w.y = y;
+	    w.z = z;
+	    w.occupancy = occupancy;
+	    w.bFactor = bFactor;
+	    w.firstAtom = Math.min(i * atomsPerWorker, atomCount);
+	    w.lastAtom = Math.min((i + 1) * atomsPerWorker, atomCount);
+	    w.line = new FILE((java.io.InputStream)null);
+	    workers[i] = w;
+	}
+
+	// this thread parses the first share itself
+	for(int i = 1; i < workerCount; i++){
+	    workerThreads[i] = new Thread(workers[i]);
+	    workerThreads[i].start();
+	}
+
+	workers[0].run();
+
+	for(int i = 1; i < workerCount; i++){
+	    try {
+		workerThreads[i].join();
+	    }catch(InterruptedException e){
+		Log.error("interrupted waiting for pdb parser " + i);
+	    }
+	}
+    }
+
+    /** Parse the columns of our range of atom records. */
+    public void run(){
+	FILE f = line;
+	byte d[] = data;
+	int starts[] = atomStart.getArray();
+	int lengths[] = atomLength.getArray();
+
+	for(int a = firstAtom; a < lastAtom; a++){
+	    f.setLine(d, starts[a], lengths[a]);
+
+	    // same columns as MoleculeIO.readPDBAtom()
+	    char c12 = f.getChar(12);
+	    char c13 = f.getChar(13);
+	    char c14 = f.getChar(14);
+	    char c15 = f.getChar(15);
+
+	    atomNames[a] = MoleculeIO.getAtomName(c12, c13, c14, c15);
+	    ids[a] = f.readInteger(6, 5);
+	    x[a] = f.readDouble(30, 8);
+	    y[a] = f.readDouble(38, 8);
+	    z[a] = f.readDouble(46, 8);
+	    occupancy[a] = f.readDouble(56, 4);
+	    bFactor[a] = f.readDouble(60, 6);
+
+	    int element = PeriodicTable.UNKNOWN;
+
+	    if(f.getLineLength() >= 78){
+		element = PeriodicTable.getElementFromSymbol(f.getChar(76),
+							     f.getChar(77));
+	    }
+
+	    if(element == PeriodicTable.UNKNOWN){
+		element = MoleculeIO.getElementFromPDBAtomLabel(c12, c13);
+	    }
+
+	    elements[a] = element;
+	}
+    }
+
+    /**
+     * Benchmark the block reader against the line reader.
+     *
+     * java astex.PDBReader file.pdb [repeats]
+     */
+    public static void main(String args[]){
+	if(args.length == 0){
+	    System.out.println("usage: java astex.PDBReader file.pdb [repeats]");
+	    return;
+	}
+
+	int repeats = args.length > 1 ? FILE.readInteger(args[1]) : 5;
+	int maxThreads = defaultThreads > 1 ? defaultThreads : 4;
+
+	// just time the records, not working out the bonds
+	MoleculeIO.connectPDB = false;
+
+	for(int pass = 0; pass < 2; pass++){
+	    // the first pass warms up the vm
+	    boolean report = pass == 1;
+
+	    benchmark(args[0], 0, repeats, report);
+
+	    for(int t = 1; t <= maxThreads; t *= 2){
+		benchmark(args[0], t, repeats, report);
+	    }
+	}
+    }
+
+    /** Time reading the file, threads of 0 uses the line reader. */
+    private static void benchmark(String filename, int t,
+				  int repeats, boolean report){
+	int atomCount = 0;
+	long then = System.currentTimeMillis();
+
+	for(int r = 0; r < repeats; r++){
+	    FILE f = FILE.open(filename);
+
+	    if(f == null){
+		System.err.println("error opening " + filename);
+		return;
+	    }
+
+	    Molecule mol = null;
+
+	    if(t == 0){
+		mol = MoleculeIO.readPDBByLine(f);
+	    }else{
+		mol = MoleculeIO.readPDB(f, t);
+	    }
+
+	    f.close();
+
+	    atomCount += mol.getAtomCount();
+	}
+
+	long ms = System.currentTimeMillis() - then;
+
+	if(report){
+	    String name = (t == 0) ? "line reader   " : "block reader " + t;
+	    long rate = ms > 0 ? (atomCount * 1000L) / ms : 0;
+
+	    FILE.out.print("%s", name);
+	    FILE.out.print(" %8d atoms", atomCount / repeats);
+	    FILE.out.print(" %7dms", ms / repeats);
+	    FILE.out.print(" %10d atoms/s\n", rate);
+	}
+    }
+}
@@ -0,0 +1,728 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Reader for ascii and binary PLY files.
+ *
+ * The header is read line by line to find the elements and
+ * their properties. Binary input is then read in big blocks and
+ * the values decoded from the block in either byte order. Each
+ * value is decoded once and stored straight into the arrays of
+ * the Tmesh, which are allocated at the size given in the
+ * header.
+ *
+ * Vertices can have x, y, z, nx, ny, nz, u, v (or s, t) and red,
+ * green, blue properties. Faces are fanned into triangles.
+ * Other properties and elements are skipped.
+ */
+public class PLYReader {
+    /** The formats of PLY file. */
+    public static final int Ascii = 0;
+    public static final int BinaryLittleEndian = 1;
+    public static final int BinaryBigEndian = 2;
+
+    /** The names of the PLY formats. */
+    private static final String FormatNames[] = {
+	"ascii", "binary_little_endian", "binary_big_endian"
+    };
+
+    /** The property types. */
+    private static final int CharType = 0;
+    private static final int UCharType = 1;
+    private static final int ShortType = 2;
+    private static final int UShortType = 3;
+    private static final int IntType = 4;
+    private static final int UIntType = 5;
+    private static final int FloatType = 6;
+    private static final int DoubleType = 7;
+
+    /** The names of the property types, the old and new names. */
+    private static final String TypeNames[] = {
+	"char", "uchar", "short", "ushort", "int", "uint", "float", "double",
+	"int8", "uint8", "int16", "uint16", "int32", "uint32",
+	"float32", "float64"
+    };
+
+    /** The sizes of the property types. */
+    private static final int TypeSizes[] = { 1, 1, 2, 2, 4, 4, 4, 8 };
+
+    /** The vertex properties that we use. */
+    private static final int X = 0;
+    private static final int Y = 1;
+    private static final int Z = 2;
+    private static final int NX = 3;
+    private static final int NY = 4;
+    private static final int NZ = 5;
+    private static final int U = 6;
+    private static final int V = 7;
+    private static final int Red = 8;
+    private static final int Green = 9;
+    private static final int Blue = 10;
+
+    /** The names of the vertex properties, in the order above. */
+    private static final String VertexNames[][] = {
+	{ "x" }, { "y" }, { "z" }, { "nx" }, { "ny" }, { "nz" },
+	{ "u", "s", "texture_u" }, { "v", "t", "texture_v" },
+	{ "red" }, { "green" }, { "blue" }
+    };
+
+    /** The size of the block of binary input. */
+    private static final int BlockSize = 65536;
+
+    /** The most items of an element that we allocate for. */
+    private static final int MaximumCount = 1 << 24;
+
+    /** The most vertices in one face. */
+    private static final int MaximumFaceVertices = 1024;
+
+    /** The file we are reading from. */
+    private FILE f = null;
+
+    /** The format of the file. */
+    private int format = Ascii;
+
+    /** The names of the elements. */
+    private Vector elementNames = new Vector();
+
+    /** The number of each element. */
+    private IntArray elementCounts = new IntArray();
+
+    /** The first property of each element. */
+    private IntArray elementProperties = new IntArray();
+
+    /** The names of the properties. */
+    private Vector propertyNames = new Vector();
+
+    /** The types of the properties, or of the list items. */
+    private IntArray propertyTypes = new IntArray();
+
+    /** The type of the count of list properties, -1 if not a list. */
+    private IntArray propertyListTypes = new IntArray();
+
+    /** The block of binary input. */
+    private byte block[] = new byte[BlockSize];
+
+    /** The next byte to decode in the block. */
+    private int position = 0;
+
+    /** The number of bytes in the block. */
+    private int available = 0;
+
+    /** The next field of an ascii line. */
+    private int field = 0;
+
+    /** Did we run out of input. */
+    private boolean truncated = false;
+
+    /** Did we find a face that we can't use. */
+    private boolean badFace = false;
+
+    /** Does the file have vertex normals. */
+    private boolean normals = false;
+
+    /** Create a reader for the file. */
+    public PLYReader(FILE f){
+	this.f = f;
+    }
+
+    /** Read the mesh, or return null if the file is bad. */
+    public Tmesh read(){
+	if(!readHeader()){
+	    return null;
+	}
+
+	Tmesh tmesh = new Tmesh();
+	int elementCount = elementNames.size();
+
+	for(int e = 0; e < elementCount && !truncated && !badFace; e++){
+	    String name = (String)elementNames.elementAt(e);
+
+	    if(name.equals("vertex")){
+		readVertices(tmesh, e);
+	    }else if(name.equals("face")){
+		readFaces(tmesh, e);
+	    }else{
+		skipElement(e);
+	    }
+	}
+
+	if(truncated){
+	    System.out.println("ply file is truncated");
+	    return null;
+	}
+
+	if(badFace){
+	    return null;
+	}
+
+	if(!normals){
+	    tmesh.calculateNormals();
+	}
+
+	return tmesh;
+    }
+
+    /** Read the header, returning false if it is bad. */
+    private boolean readHeader(){
+	while(f.nextLine()){
+	    int fieldCount = f.getFieldCount();
+
+	    if(fieldCount == 0){
+		continue;
+	    }
+
+	    String keyword = f.getField(0);
+
+	    if(keyword.equals("format") && fieldCount >= 2){
+		String name = f.getField(1);
+
+		format = -1;
+
+		for(int i = 0; i < FormatNames.length; i++){
+		    if(FormatNames[i].equals(name)){
+			format = i;
+		    }
+		}
+
+		if(format == -1){
+		    System.out.println("unknown ply format " + name);
+		    return false;
+		}
+	    }else if(keyword.equals("element") && fieldCount == 3){
+		int count = f.getInteger(2);
+
+		if(count < 0 || count > MaximumCount){
+		    System.out.println("bad ply element count " + count);
+		    return false;
+		}
+
+		elementNames.addElement(f.getField(1));
+		elementCounts.add(count);
+		elementProperties.add(propertyNames.size());
+	    }else if(keyword.equals("property") && fieldCount >= 3){
+		int type = -1;
+		int listType = -1;
+
+		if(f.getField(1).equals("list") && fieldCount == 5){
+		    listType = getType(f.getField(2));
+		    type = getType(f.getField(3));
+
+		    if(listType == -1){
+			return false;
+		    }
+		}else{
+		    type = getType(f.getField(1));
+		}
+
+		if(type == -1){
+		    return false;
+		}
+
+		propertyNames.addElement(f.getField(fieldCount - 1));
+		propertyTypes.add(type);
+		propertyListTypes.add(listType);
+	    }else if(keyword.equals("end_header")){
+		// so that the last element has an end
+		elementProperties.add(propertyNames.size());
+
+		return true;
+	    }
+	}
+
+	System.out.println("no end_header in ply file");
+
+	return false;
+    }
+
+    /** Return the type with this name, or -1 if there isn't one. */
+    private static int getType(String name){
+	for(int i = 0; i < TypeNames.length; i++){
+	    if(TypeNames[i].equals(name)){
+		return i % TypeSizes.length;
+	    }
+	}
+
+	System.out.println("unknown ply property type " + name);
+
+	return -1;
+    }
+
+    /** Read the vertices into the points of the tmesh. */
+    private void readVertices(Tmesh tmesh, int e){
+	int count = elementCounts.get(e);
+	int first = elementProperties.get(e);
+	int last = elementProperties.get(e + 1);
+	int slots[] = new int[last - first];
+	boolean seen[] = new boolean[VertexNames.length];
+
+	System.out.println("vertex count " + count);
+
+	for(int p = first; p < last; p++){
+	    String name = (String)propertyNames.elementAt(p);
+
+	    slots[p - first] = -1;
+
+	    if(propertyListTypes.get(p) == -1){
+		for(int s = 0; s < VertexNames.length; s++){
+		    for(int n = 0; n < VertexNames[s].length; n++){
+			if(VertexNames[s][n].equals(name)){
+			    slots[p - first] = s;
+			    seen[s] = true;
+			}
+		    }
+		}
+	    }
+	}
+
+	// the old ascii files had the texture
+	// coordinate as the fifth value
+	if(!seen[U] && !seen[V] && last - first == 5 && slots[4] == -1){
+	    slots[4] = U;
+	    seen[U] = true;
+	}
+
+	normals = seen[NX] && seen[NY] && seen[NZ];
+
+	boolean colors = seen[Red] || seen[Green] || seen[Blue];
+
+	tmesh.setPointCapacity(count);
+
+	float x[] = tmesh.x, y[] = tmesh.y, z[] = tmesh.z;
+	float nx[] = tmesh.nx, ny[] = tmesh.ny, nz[] = tmesh.nz;
+	float u[] = tmesh.u, v[] = tmesh.v;
+
+	for(int i = 0; i < count; i++){
+	    if(!nextItem()){
+		return;
+	    }
+
+	    int r = 0, g = 0, b = 0;
+
+	    for(int p = first; p < last; p++){
+		int type = propertyTypes.get(p);
+		int listType = propertyListTypes.get(p);
+
+		if(listType != -1){
+		    skipList(listType, type);
+		    continue;
+		}
+
+		double value = nextValue(type);
+
+		switch(slots[p - first]){
+		case X: x[i] = (float)value; break;
+		case Y: y[i] = (float)value; break;
+		case Z: z[i] = (float)value; break;
+		case NX: nx[i] = (float)value; break;
+		case NY: ny[i] = (float)value; break;
+		case NZ: nz[i] = (float)value; break;
+		case U:
+		    u[i] = (float)value;
+		    // a single texture coordinate does for both
+		    if(!seen[V]){
+			v[i] = (float)value;
+		    }
+		    break;
+		case V: v[i] = (float)value; break;
+		case Red: r = getColorComponent(type, value); break;
+		case Green: g = getColorComponent(type, value); break;
+		case Blue: b = getColorComponent(type, value); break;
+		}
+	    }
+
+	    if(colors){
+		tmesh.vcolor[i] = Color32.pack(r, g, b);
+	    }
+	}
+
+	tmesh.np = count;
+
+	if(colors){
+	    tmesh.setColorStyle(Tmesh.VertexColor);
+	}
+    }
+
+    /** Colours are 0-255 as integers, or 0-1 as floats. */
+    private static int getColorComponent(int type, double value){
+	if(type == FloatType || type == DoubleType){
+	    value *= 255.0;
+	}
+
+	return value < 0.0 ? 0 : value > 255.0 ? 255 : (int)value;
+    }
+
+    /** Read the faces into the triangles of the tmesh. */
+    private void readFaces(Tmesh tmesh, int e){
+	int count = elementCounts.get(e);
+	int first = elementProperties.get(e);
+	int last = elementProperties.get(e + 1);
+	int vertices[] = new int[16];
+
+	System.out.println("face count " + count);
+
+	tmesh.setTriangleCapacity(count);
+
+	for(int i = 0; i < count; i++){
+	    if(!nextItem()){
+		return;
+	    }
+
+	    for(int p = first; p < last; p++){
+		int type = propertyTypes.get(p);
+		int listType = propertyListTypes.get(p);
+		String name = (String)propertyNames.elementAt(p);
+
+		if(listType == -1){
+		    nextValue(type);
+		}else if(name.equals("vertex_indices") ||
+			 name.equals("vertex_index")){
+		    int n = (int)nextValue(listType);
+
+		    if(truncated){
+			return;
+		    }
+
+		    if(n < 0 || n > MaximumFaceVertices){
+			System.out.println("ply face " + i + " has " + n +
+					   " vertices");
+			badFace = true;
+			return;
+		    }
+
+		    if(n > vertices.length){
+			vertices = new int[n];
+		    }
+
+		    for(int j = 0; j < n; j++){
+			int vertex = (int)nextValue(type);
+
+			if(truncated){
+			    return;
+			}
+
+			if(vertex < 0 || vertex >= tmesh.np){
+			    System.out.println("ply face " + i +
+					       " has a bad vertex " + vertex);
+			    badFace = true;
+			    return;
+			}
+
+			vertices[j] = vertex;
+		    }
+
+		    // fan polygons out from the first vertex
+		    for(int j = 1; j < n - 1; j++){
+			tmesh.addTriangle(vertices[0],
+					  vertices[j], vertices[j + 1]);
+		    }
+		}else{
+		    skipList(listType, type);
+		}
+	    }
+	}
+    }
+
+    /** Skip over all of the items of an element. */
+    private void skipElement(int e){
+	int count = elementCounts.get(e);
+	int first = elementProperties.get(e);
+	int last = elementProperties.get(e + 1);
+
+	for(int i = 0; i < count; i++){
+	    if(!nextItem()){
+		return;
+	    }
+
+	    for(int p = first; p < last; p++){
+		int type = propertyTypes.get(p);
+		int listType = propertyListTypes.get(p);
+
+		if(listType == -1){
+		    nextValue(type);
+		}else{
+		    skipList(listType, type);
+		}
+	    }
+	}
+    }
+
+    /** Skip over a list property. */
+    private void skipList(int listType, int type){
+	int n = (int)nextValue(listType);
+
+	for(int j = 0; j < n && !truncated; j++){
+	    nextValue(type);
+	}
+    }
+
+    /** Move on to the next item, which is a line in ascii files. */
+    private boolean nextItem(){
+	if(format == Ascii){
+	    field = 0;
+
+	    if(!f.nextLine()){
+		truncated = true;
+	    }
+	}
+
+	return !truncated;
+    }
+
+    /** Return the next value. */
+    private double nextValue(int type){
+	if(format == Ascii){
+	    if(field >= f.getFieldCount()){
+		truncated = true;
+		return 0.0;
+	    }
+
+	    return f.getDouble(field++);
+	}
+
+	int size = TypeSizes[type];
+
+	if(available - position < size && !fill(size)){
+	    truncated = true;
+	    return 0.0;
+	}
+
+	byte b[] = block;
+	int p = position;
+	boolean littleEndian = (format == BinaryLittleEndian);
+	double value = 0.0;
+
+	position += size;
+
+	switch(type){
+	case CharType: value = b[p]; break;
+	case UCharType: value = b[p] & 0xff; break;
+	case ShortType: value = (short)getShort(b, p, littleEndian); break;
+	case UShortType: value = getShort(b, p, littleEndian); break;
+	case IntType: value = Tmesh.getInt(b, p, littleEndian); break;
+	case UIntType:
+	    value = Tmesh.getInt(b, p, littleEndian) & 0xffffffffL;
+	    break;
+	case FloatType:
+	    value = Float.intBitsToFloat(Tmesh.getInt(b, p, littleEndian));
+	    break;
+	case DoubleType:
+	    long high = Tmesh.getInt(b, littleEndian ? p + 4 : p, littleEndian);
+	    long low = Tmesh.getInt(b, littleEndian ? p : p + 4, littleEndian);
+	    value = Double.longBitsToDouble((high << 32) | (low & 0xffffffffL));
+	    break;
+	}
+
+	return value;
+    }
+
+    /** Decode the unsigned 2 byte integer at offset p. */
+    private static int getShort(byte b[], int p, boolean littleEndian){
+	if(littleEndian){
+	    return (b[p] & 0xff) | ((b[p+1] & 0xff) << 8);
+	}else{
+	    return ((b[p] & 0xff) << 8) | (b[p+1] & 0xff);
+	}
+    }
+
+    /**
+     * Make sure that there are at least n bytes left in the block,
+     * reading as much of the input as will fit.
+     */
+    private boolean fill(int n){
+	int remaining = available - position;
+
+	System.arraycopy(block, position, block, 0, remaining);
+
+	position = 0;
+	available = remaining;
+
+	while(available < n){
+	    int bytesRead = f.readBytes(block, available,
+					block.length - available);
+
+	    if(bytesRead == FILE.EOF){
+		return false;
+	    }
+
+	    available += bytesRead;
+	}
+
+	return true;
+    }
+
+    /**
+     * Time reading a mesh as an ascii and as binary PLY files.
+     *
+     * usage: java astex.PLYReader file [repeats]
+     */
+    public static void main(String args[]){
+	if(args.length == 0){
+	    System.out.println("usage: java astex.PLYReader file [repeats]");
+	    return;
+	}
+
+	int repeats = args.length > 1 ? FILE.readInteger(args[1]) : 5;
+
+	Tmesh tmesh = Tmesh.read(args[0]);
+
+	if(tmesh == null){
+	    return;
+	}
+
+	for(int format = Ascii; format <= BinaryBigEndian; format++){
+	    String filename = "benchmark_" + FormatNames[format] + ".ply";
+
+	    if(!write(tmesh, filename, format)){
+		return;
+	    }
+
+	    for(int pass = 0; pass < 2; pass++){
+		// the first pass warms up the vm
+		benchmark(filename, FormatNames[format], repeats, pass == 1);
+	    }
+
+	    new File(filename).delete();
+	}
+    }
+
+    /** Time reading the file. */
+    private static void benchmark(String filename, String name,
+				  int repeats, boolean report){
+	int vertexCount = 0;
+	long then = System.currentTimeMillis();
+
+	for(int r = 0; r < repeats; r++){
+	    FILE f = FILE.open(filename);
+
+	    if(f == null){
+		System.err.println("error opening " + filename);
+		return;
+	    }
+
+	    Tmesh tmesh = new PLYReader(f).read();
+
+	    f.close();
+
+	    vertexCount += tmesh.np;
+	}
+
+	long ms = System.currentTimeMillis() - then;
+
+	if(report){
+	    long rate = ms > 0 ? (vertexCount * 1000L) / ms : 0;
+
+	    FILE.out.print("%-20s", name);
+	    FILE.out.print(" %8d vertices", vertexCount / repeats);
+	    FILE.out.print(" %7dms", ms / repeats);
+	    FILE.out.print(" %10d vertices/s\n", rate);
+	}
+    }
+
+    /** Write the points, normals and triangles as a PLY file. */
+    private static boolean write(Tmesh tmesh, String filename, int format){
+	OutputStream output = null;
+
+	try {
+	    output = new BufferedOutputStream(new FileOutputStream(filename));
+
+	    String header =
+		"ply\n" +
+		"format " + FormatNames[format] + " 1.0\n" +
+		"element vertex " + tmesh.np + "\n" +
+		"property float x\n" +
+		"property float y\n" +
+		"property float z\n" +
+		"property float nx\n" +
+		"property float ny\n" +
+		"property float nz\n" +
+		"element face " + tmesh.nt + "\n" +
+		"property list uchar int vertex_indices\n" +
+		"end_header\n";
+
+	    output.write(header.getBytes());
+
+	    boolean littleEndian = (format == BinaryLittleEndian);
+	    float values[] = new float[6];
+	    byte b[] = new byte[24];
+
+	    for(int i = 0; i < tmesh.np; i++){
+		values[0] = tmesh.x[i];
+		values[1] = tmesh.y[i];
+		values[2] = tmesh.z[i];
+		values[3] = tmesh.nx[i];
+		values[4] = tmesh.ny[i];
+		values[5] = tmesh.nz[i];
+
+		if(format == Ascii){
+		    String line = values[0] + " " + values[1] + " " +
+			values[2] + " " + values[3] + " " +
+			values[4] + " " + values[5] + "\n";
+		    output.write(line.getBytes());
+		}else{
+		    for(int j = 0; j < 6; j++){
+			putInt(b, 4 * j, Float.floatToIntBits(values[j]),
+			       littleEndian);
+		    }
+		    output.write(b, 0, 24);
+		}
+	    }
+
+	    for(int i = 0; i < tmesh.nt; i++){
+		if(format == Ascii){
+		    String line = "3 " + tmesh.t0[i] + " " +
+			tmesh.t1[i] + " " + tmesh.t2[i] + "\n";
+		    output.write(line.getBytes());
+		}else{
+		    b[0] = 3;
+		    putInt(b, 1, tmesh.t0[i], littleEndian);
+		    putInt(b, 5, tmesh.t1[i], littleEndian);
+		    putInt(b, 9, tmesh.t2[i], littleEndian);
+		    output.write(b, 0, 13);
+		}
+	    }
+
+	    output.close();
+
+	    return true;
+	}catch(IOException e){
+	    System.err.println("error writing " + filename + " " + e);
+
+	    return false;
+	}
+    }
+
+    /** Encode a 4 byte integer at offset i. */
+    private static void putInt(byte b[], int i, int value,
+			       boolean littleEndian){
+	if(littleEndian){
+	    b[i]   = (byte)value;
+	    b[i+1] = (byte)(value >> 8);
+	    b[i+2] = (byte)(value >> 16);
+	    b[i+3] = (byte)(value >> 24);
+	}else{
+	    b[i]   = (byte)(value >> 24);
+	    b[i+1] = (byte)(value >> 16);
+	    b[i+2] = (byte)(value >> 8);
+	    b[i+3] = (byte)value;
+	}
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+/**
+ * Pool of pixel and depth buffers shared by all renderers.
+ *
+ * Buffers are handed out in size classes of an eighth of a power
+ * of two, so images of slightly different sizes share the same
+ * buffers and resizing the window, changing the antialiasing or
+ * drawing many images of different sizes doesn't keep making new
+ * multi megabyte arrays for the garbage collector.
+ *
+ * A buffer that comes from the pool can be bigger than was asked
+ * for and still holds whatever was last drawn in it. The renderers
+ * only ever use the first pixelCount entries and clear them at the
+ * start of each frame.
+ */
+public class PixelBufferPool {
+    /** Most pixels kept in the pool, idle buffers beyond this are dropped. */
+    public static int maximumPooledPixels =
+	Settings.getInteger("config", "render.pool.pixels", 16 * 1024 * 1024);
+
+    /** Buffers smaller than this aren't worth pooling. */
+    private static final int MinimumPooledPixels = 4096;
+
+    /** The idle buffers. */
+    private static DynamicArray buffers = new DynamicArray();
+
+    /** The number of pixels in the idle buffers. */
+    private static int pooledPixels = 0;
+
+    /** Round the pixel count up to its size class. */
+    public static int getSizeClass(int pixelCount){
+	if(pixelCount <= MinimumPooledPixels){
+	    return pixelCount;
+	}
+
+	int step = 1;
+
+	while(step * 16 <= pixelCount){
+	    step *= 2;
+	}
+
+	return ((pixelCount + step - 1) / step) * step;
+    }
+
+    /** Get a buffer with at least pixelCount entries. */
+    public static synchronized int[] acquire(int pixelCount){
+	int size = getSizeClass(pixelCount);
+	int bufferCount = buffers.size();
+
+	for(int i = 0; i < bufferCount; i++){
+	    int buffer[] = (int[])buffers.get(i);
+
+	    if(buffer.length == size){
+		buffers.removeElement(i);
+		pooledPixels -= size;
+		return buffer;
+	    }
+	}
+
+	return new int[size];
+    }
+
+    /** Give a buffer back to the pool. */
+    public static synchronized void release(int buffer[]){
+	if(buffer == null || buffer.length <= MinimumPooledPixels){
+	    return;
+	}
+
+	// the pool never holds the same buffer twice
+	if(buffers.contains(buffer)){
+	    return;
+	}
+
+	// drop the oldest buffers to make room
+	while(buffers.size() > 0 &&
+	      pooledPixels + buffer.length > maximumPooledPixels){
+	    int oldest[] = (int[])buffers.get(0);
+	    pooledPixels -= oldest.length;
+	    buffers.removeElement(0);
+	}
+
+	if(buffer.length <= maximumPooledPixels){
+	    buffers.add(buffer);
+	    pooledPixels += buffer.length;
+	}
+    }
+
+    /** Drop all of the idle buffers. */
+    public static synchronized void clear(){
+	buffers.removeAllElements();
+	pooledPixels = 0;
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+/**
+ * Tiled rasterization for the Renderer.
+ *
+ * While a frame is being drawn the renderer records its primitives
+ * in a display list instead of rasterizing them. The screen is cut
+ * into square tiles. Once the frame is recorded its objects are
+ * transformed and every primitive is put in the bin of each tile
+ * that its screen bounds touch, triangles one by one. A number of
+ * workers, each a copy of the renderer, then take tiles until there
+ * are none left and draw the primitives in the tile's bin straight
+ * into the main pixel and z-buffers, clipped to the tile.
+ *
+ * Every pixel still sees the same primitives in the same order, so
+ * the image is the same as the one drawn by the serial renderer.
+ */
+class RenderTiles {
+    /** Display list operations. */
+    static final int DrawSphere         = 1;
+    static final int DrawAccurateSphere = 2;
+    static final int DrawCylinder       = 3;
+    static final int DrawLine           = 4;
+    static final int DrawString         = 5;
+    static final int DrawDirectString   = 6;
+    static final int DrawBox            = 7;
+    static final int DrawPixels         = 8;
+    static final int DrawDot            = 9;
+    static final int DrawZPixel         = 10;
+    static final int DrawPixel          = 11;
+    static final int DrawObject         = 12;
+    static final int DrawTransparentSpheres = 13;
+    static final int ResolveFragments   = 14;
+
+    /** Number of integer arguments of each operation. */
+    private static final int intArgs[] =
+	{ 0, 1, 2, 2, 9, 1, 3, 5, 3, 4, 4, 3, 0, 0, 0 };
+
+    /** Number of floating point arguments of each operation. */
+    private static final int doubleArgs[] =
+	{ 0, 4, 4, 7, 0, 4, 0, 0, 3, 0, 0, 0, 0, 0, 0 };
+
+    /** Number of object arguments of each operation. */
+    private static final int objectArgs[] =
+	{ 0, 0, 0, 0, 0, 1, 1, 0, 1, 0, 0, 0, 1, 1, 0 };
+
+    /** The operations in the display list. */
+    IntArray ops = new IntArray(1024);
+
+    /** Integer arguments of the operations. */
+    IntArray iargs = new IntArray(1024);
+
+    /** Floating point arguments of the operations. */
+    DoubleArray dargs = new DoubleArray(1024);
+
+    /** Object arguments of the operations. */
+    DynamicArray oargs = new DynamicArray(64);
+
+    /** Where the arguments of each operation start. */
+    IntArray intOffsets = new IntArray(1024);
+    IntArray doubleOffsets = new IntArray(1024);
+    IntArray objectOffsets = new IntArray(1024);
+
+    /**
+     * The operations that touch each tile. A DrawObject is
+     * followed by the number of its triangles in the tile and
+     * the triangles, or -1 if all of the object is drawn.
+     */
+    IntArray bins[] = null;
+
+    /** The transformed objects, kept from frame to frame. */
+    private DynamicArray objects = new DynamicArray(16);
+
+    /** The fragment buffers of the workers, kept from frame to frame. */
+    private FragmentBuffer workerFragments[] = null;
+
+    /** Edge length of a tile in pixels. */
+    int tileSize = 64;
+
+    /** Number of tile columns. */
+    int tileColumns = 0;
+
+    /** Number of tile rows. */
+    int tileRows = 0;
+
+    /** Number of workers. */
+    int workerCount = 0;
+
+    /** The next tile that a worker can take. */
+    private int nextTile = 0;
+
+    /** Screen size of the current frame. */
+    private int width = 0;
+    private int height = 0;
+
+    /** Start recording a frame of the given size. */
+    void begin(int threads, int size, int w, int h){
+	ops.removeAllElements();
+	iargs.removeAllElements();
+	dargs.removeAllElements();
+	oargs.removeAllElements();
+
+	if(size < 8){
+	    size = 8;
+	}
+
+	tileSize = size;
+	width = w;
+	height = h;
+	tileColumns = (w + size - 1) / size;
+	tileRows = (h + size - 1) / size;
+
+	int tileCount = tileColumns * tileRows;
+
+	workerCount = threads;
+
+	if(workerCount > tileCount){
+	    workerCount = tileCount;
+	}
+
+	if(workerCount < 1){
+	    workerCount = 1;
+	}
+
+	if(bins == null || bins.length < tileCount){
+	    IntArray oldBins[] = bins;
+
+	    bins = new IntArray[tileCount];
+
+	    if(oldBins != null){
+		System.arraycopy(oldBins, 0, bins, 0, oldBins.length);
+	    }
+
+	    for(int i = 0; i < tileCount; i++){
+		if(bins[i] == null){
+		    bins[i] = new IntArray(64);
+		}
+	    }
+	}
+    }
+
+    /** Drop the transformed objects, the bins and the fragments. */
+    void release(){
+	workerFragments = null;
+	objects.removeAllElements();
+	oargs.removeAllElements();
+	bins = null;
+    }
+
+    /** Hand out the next tile, or -1 once they are all taken. */
+    synchronized int nextTile(){
+	if(nextTile < tileColumns * tileRows){
+	    return nextTile++;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Put the operations in the bins of the tiles they touch.
+     * The objects are transformed here, once for all the workers.
+     */
+    private void bin(Renderer main){
+	int tileCount = tileColumns * tileRows;
+
+	for(int t = 0; t < tileCount; t++){
+	    bins[t].removeAllElements();
+	}
+
+	intOffsets.removeAllElements();
+	doubleOffsets.removeAllElements();
+	objectOffsets.removeAllElements();
+
+	int opCount = ops.size();
+	int op[] = ops.getArray();
+	int ia[] = iargs.getArray();
+	double da[] = dargs.getArray();
+	Object oa[] = oargs.getArray();
+	int ii = 0, di = 0, oi = 0, objectCount = 0;
+	Matrix m = main.overallMatrix;
+	double scale = main.getOverallScale();
+	int fb = Renderer.FixedBits;
+
+	for(int i = 0; i < opCount; i++){
+	    intOffsets.add(ii);
+	    doubleOffsets.add(di);
+	    objectOffsets.add(oi);
+
+	    switch(op[i]){
+	    case DrawSphere:
+	    case DrawAccurateSphere:
+		double r = scale * da[di+3] + 4;
+		double x = screenX(m, da, di);
+		double y = screenY(m, da, di);
+		add(i, (int)(x - r), (int)(y - r), (int)(x + r), (int)(y + r));
+		break;
+	    case DrawCylinder:
+		double cr = scale * da[di+6] + 4;
+		double x1 = screenX(m, da, di);
+		double y1 = screenY(m, da, di);
+		double x2 = screenX(m, da, di + 3);
+		double y2 = screenY(m, da, di + 3);
+		add(i,
+		    (int)(Math.min(x1, x2) - cr), (int)(Math.min(y1, y2) - cr),
+		    (int)(Math.max(x1, x2) + cr), (int)(Math.max(y1, y2) + cr));
+		break;
+	    case DrawLine:
+		int margin = 2 * Math.max(ia[ii+8], 1) + 2;
+		int lx1 = ia[ii] >> fb, ly1 = ia[ii+1] >> fb;
+		int lx2 = ia[ii+3] >> fb, ly2 = ia[ii+4] >> fb;
+		add(i,
+		    Math.min(lx1, lx2) - margin, Math.min(ly1, ly2) - margin,
+		    Math.max(lx1, lx2) + margin, Math.max(ly1, ly2) + margin);
+		break;
+	    case DrawBox:
+		int half = ia[ii+3] + 2;
+		int bx = ia[ii] >> fb, by = ia[ii+1] >> fb;
+		add(i, bx - half, by - half, bx + half, by + half);
+		break;
+	    case DrawDot:
+		int dx = ia[ii] >> fb, dy = ia[ii+1] >> fb;
+		add(i, dx, dy, dx + 1, dy + 1);
+		break;
+	    case DrawZPixel:
+	    case DrawPixel:
+		add(i, ia[ii], ia[ii+1], ia[ii], ia[ii+1]);
+		break;
+	    case DrawObject:
+		TileObject o = null;
+
+		if(objectCount < objects.size()){
+		    o = (TileObject)objects.get(objectCount);
+		}else{
+		    o = new TileObject();
+		    objects.add(o);
+		}
+
+		objectCount++;
+
+		o.tmesh = (Tmesh)oa[oi];
+		oargs.set(oi, o);
+
+		if(o.tmesh.transparency != 0){
+		    main.transformTileObject(o);
+		    addObject(i, o);
+		}
+		break;
+	    default:
+		// strings, images, transparent spheres and
+		// fragment resolution go in every tile
+		for(int t = 0; t < tileCount; t++){
+		    bins[t].add(i);
+		}
+	    }
+
+	    ii += intArgs[op[i]];
+	    di += doubleArgs[op[i]];
+	    oi += objectArgs[op[i]];
+	}
+    }
+
+    /** Screen x-coordinate of a point in the floating point arguments. */
+    private static double screenX(Matrix m, double da[], int i){
+	return da[i]*m.x00 + da[i+1]*m.x10 + da[i+2]*m.x20 + m.x30;
+    }
+
+    /** Screen y-coordinate of a point in the floating point arguments. */
+    private static double screenY(Matrix m, double da[], int i){
+	return da[i]*m.x01 + da[i+1]*m.x11 + da[i+2]*m.x21 + m.x31;
+    }
+
+    /** Add an operation to the tiles that a screen rectangle touches. */
+    private void add(int op, int xmin, int ymin, int xmax, int ymax){
+	if(xmax < 0 || ymax < 0 || xmin >= width || ymin >= height){
+	    return;
+	}
+
+	int size = tileSize;
+	int i0 = xmin < 0 ? 0 : xmin / size;
+	int j0 = ymin < 0 ? 0 : ymin / size;
+	int i1 = xmax >= width ? tileColumns - 1 : xmax / size;
+	int j1 = ymax >= height ? tileRows - 1 : ymax / size;
+
+	for(int j = j0; j <= j1; j++){
+	    for(int i = i0; i <= i1; i++){
+		bins[i + j * tileColumns].add(op);
+	    }
+	}
+    }
+
+    /** Where the triangle count of an object is in each bin. */
+    private int countEntry[] = null;
+
+    /** Add a transformed object to the bins. */
+    private void addObject(int op, TileObject o){
+	Tmesh tmesh = o.tmesh;
+	int tileCount = tileColumns * tileRows;
+
+	// objects that aren't triangles are few and their
+	// primitives are quick to reject, so they go everywhere
+	if(tmesh.style != Tmesh.TRIANGLES){
+	    for(int t = 0; t < tileCount; t++){
+		bins[t].add(op);
+		bins[t].add(-1);
+	    }
+
+	    return;
+	}
+
+	if(countEntry == null || countEntry.length < tileCount){
+	    countEntry = new int[tileCount];
+	}
+
+	boolean everywhere =
+	    (tmesh.spheres != null || tmesh.cylinders != null);
+
+	for(int t = 0; t < tileCount; t++){
+	    countEntry[t] = -1;
+
+	    if(everywhere){
+		startObject(op, t);
+	    }
+	}
+
+	int xt[] = o.xt;
+	int yt[] = o.yt;
+	char clipped[] = o.clipped;
+	int tri0[] = tmesh.t0;
+	int tri1[] = tmesh.t1;
+	int tri2[] = tmesh.t2;
+	int fb = Renderer.FixedBits;
+	int size = tileSize;
+
+	// the workers draw these backwards, like the serial renderer
+	for(int tri = 0; tri < tmesh.nt; tri++){
+	    int v0 = tri0[tri];
+	    int v1 = tri1[tri];
+	    int v2 = tri2[tri];
+
+	    if((clipped[v0] & clipped[v1] & clipped[v2]) != 0){
+		continue;
+	    }
+
+	    int xmin = xt[v0], xmax = xt[v0];
+	    int ymin = yt[v0], ymax = yt[v0];
+	    if(xt[v1] < xmin) xmin = xt[v1]; else if(xt[v1] > xmax) xmax = xt[v1];
+	    if(xt[v2] < xmin) xmin = xt[v2]; else if(xt[v2] > xmax) xmax = xt[v2];
+	    if(yt[v1] < ymin) ymin = yt[v1]; else if(yt[v1] > ymax) ymax = yt[v1];
+	    if(yt[v2] < ymin) ymin = yt[v2]; else if(yt[v2] > ymax) ymax = yt[v2];
+
+	    xmin = (xmin >> fb) - 1;
+	    ymin = (ymin >> fb) - 1;
+	    xmax = (xmax >> fb) + 1;
+	    ymax = (ymax >> fb) + 1;
+
+	    if(xmax < 0 || ymax < 0 || xmin >= width || ymin >= height){
+		continue;
+	    }
+
+	    int i0 = xmin < 0 ? 0 : xmin / size;
+	    int j0 = ymin < 0 ? 0 : ymin / size;
+	    int i1 = xmax >= width ? tileColumns - 1 : xmax / size;
+	    int j1 = ymax >= height ? tileRows - 1 : ymax / size;
+
+	    for(int j = j0; j <= j1; j++){
+		for(int i = i0; i <= i1; i++){
+		    int t = i + j * tileColumns;
+
+		    if(countEntry[t] == -1){
+			startObject(op, t);
+		    }
+
+		    IntArray bin = bins[t];
+		    bin.add(tri);
+		    bin.set(countEntry[t], bin.get(countEntry[t]) + 1);
+		}
+	    }
+	}
+    }
+
+    /** Start an object's entry in a bin, with no triangles yet. */
+    private void startObject(int op, int t){
+	bins[t].add(op);
+	countEntry[t] = bins[t].add(0);
+    }
+
+    /** Rasterize the recorded frame into the main renderer's buffers. */
+    void rasterize(Renderer main){
+	bin(main);
+
+	nextTile = 0;
+
+	Renderer workers[] = new Renderer[workerCount];
+	TileWorker threads[] = new TileWorker[workerCount];
+
+	if(workerFragments == null || workerFragments.length < workerCount){
+	    FragmentBuffer oldFragments[] = workerFragments;
+
+	    workerFragments = new FragmentBuffer[workerCount];
+
+	    if(oldFragments != null){
+		System.arraycopy(oldFragments, 0, workerFragments, 0,
+				 oldFragments.length);
+	    }
+	}
+
+	for(int i = 0; i < workerCount; i++){
+	    if(workerFragments[i] == null){
+		workerFragments[i] = new FragmentBuffer();
+	    }
+
+	    workers[i] = main.createTileWorker(i, workerFragments[i]);
+	}
+
+	// the calling thread is the first worker
+	for(int i = 1; i < workerCount; i++){
+	    threads[i] = new TileWorker(workers[i]);
+	    threads[i].start();
+	}
+
+	workers[0].replayTiles();
+
+	for(int i = 1; i < workerCount; i++){
+	    try {
+		threads[i].join();
+	    }catch(InterruptedException e){
+		Log.error("interrupted waiting for tile worker " + i);
+	    }
+	}
+
+	for(int i = 0; i < workerCount; i++){
+	    main.finishTileWorker(workers[i], i == 0);
+	}
+
+	// don't hang on to the frame's objects
+	oargs.removeAllElements();
+
+	for(int i = 0; i < objects.size(); i++){
+	    ((TileObject)objects.get(i)).tmesh = null;
+	}
+    }
+}
+
+/** An object of the frame and the screen coordinates it transformed to. */
+class TileObject {
+    Tmesh tmesh = null;
+    int xt[] = null;
+    int yt[] = null;
+    int zt[] = null;
+    int nxt[] = null;
+    int nyt[] = null;
+    int nzt[] = null;
+    int ut[] = null;
+    int vt[] = null;
+    char clipped[] = null;
+}
+
+/** Thread that draws tiles for the tiled rasterizer. */
+class TileWorker extends Thread {
+    /** The renderer that draws the tiles. */
+    private Renderer renderer = null;
+
+    /** Create a tile worker. */
+    public TileWorker(Renderer r){
+	renderer = r;
+    }
+
+    /** Draw the tiles. */
+    public void run(){
+	renderer.replayTiles();
+    }
+}
@@ -36,13 +36,16 @@ package astex;
 import java.io.*;
 import java.util.*;
 import java.util.zip.*;
-public class Renderer {
+public class Renderer implements Cloneable {
     /** Should we draw the image logo. */
     private boolean drawImageLogo = false;
 
     /** Shadow mode for the renderer. */
     public int shadowMode = ShadowsOff;
 
+    /** The objects that cast shadows. */
+    private ShadowCache shadowCache = new ShadowCache();
+
     /** Defines for the shadowing states. */
     public static final int ShadowsOff = 0;
     public static final int ShadowsAccumulate = 1;
@@ -239,6 +242,57 @@ public class Renderer {
     /** Did antialiasing mode change? */
     private boolean antialiasModeChanged = false;
 
+    /** Number of threads used to rasterize tiles (0 for serial). */
+    private int tileThreads = 0;
+
+    /** Edge length of the rasterization tiles. */
+    private int tileSize = 64;
+
+    /** The tiled rasterizer. */
+    private RenderTiles tileRenderer = null;
+
+    /** Are we recording primitives for the tiled rasterizer. */
+    private boolean recordingTiles = false;
+
+    /** The tile worker that this renderer is (-1 for none). */
+    private int tileWorker = -1;
+
+    /** The pixels we may draw, the screen or a tile worker's tile. */
+    private int clipLeft   = 0;
+    private int clipTop    = 0;
+    private int clipRight  = 0;
+    private int clipBottom = 0;
+
+    /** The triangles of the current object that touch the tile. */
+    private int tileTriangles[] = null;
+    private int tileTriangleFirst = 0;
+    private int tileTriangleCount = 0;
+
+    /** Set the number of threads that rasterize tiles. */
+    public void setTileThreads(int n){
+ tileThreads = n;
+
+ if(tileThreads <= 0 && tileRenderer != null){
+     tileRenderer.release();
+     tileRenderer = null;
+ }
+    }
+
+    /** Get the number of threads that rasterize tiles. */
+    public int getTileThreads(){
+ return tileThreads;
+    }
+
+    /** Set the edge length of the rasterization tiles. */
+    public void setTileSize(int s){
+ tileSize = s;
+    }
+
+    /** Get the edge length of the rasterization tiles. */
+    public int getTileSize(){
+ return tileSize;
+    }
+
     /** Return the current antialiasing setting. */
     public boolean getAntiAlias(){
  return antialias;
@@ -855,6 +909,7 @@ public class Renderer {
  stransrgb.removeAllElements();
  stransp.removeAllElements();
  stransid.removeAllElements();
+ sphereLattice = null;
     }
 
     /** Fancy clear buffers. */
@@ -911,6 +966,11 @@ public class Renderer {
     /** Post process the buffers. */
     public void postProcess(){
 
+ if(recordingTiles){
+     recordingTiles = false;
+     rasterizeTiles();
+ }
+
  drawObjects(PostRenderPass);
 
  if(depthcue){
@@ -1207,6 +1267,8 @@ public class Renderer {
      }
  }
 
+ resolveFragments();
+
         renderTransparentSpheres();
 
 
@@ -1224,18 +1286,158 @@ public class Renderer {
   }
      }
  }
+
+ resolveFragments();
+    }
+
+    /*
+     * Transparent objects are drawn into an A-buffer. Each pixel
+     * has a list of fragments, one for every transparent surface
+     * that covers it. Once all the transparent objects are done the
+     * fragments of each pixel that aren't hidden by an opaque pixel
+     * are sorted and blended from the back to the front, so the
+     * triangles never need sorting.
+     */
+
+    /** The fragments of the transparent objects. */
+    private FragmentBuffer fragments = new FragmentBuffer();
+
+    /** The first fragment at each pixel, or -1. */
+    private int fragmentHead[] = null;
+
+    /** Make sure there is a fragment list for every pixel. */
+    private void ensureFragmentBuffer(){
+ int pixelCount = zbuffer.length;
+
+ if(fragmentHead == null || fragmentHead.length < pixelCount){
+     fragmentHead = new int[pixelCount];
+
+     for(int i = 0; i < pixelCount; i++){
+  fragmentHead[i] = -1;
+     }
+ }
+
+ if(fragments.z == null){
+     fragments.allocate(1024);
+ }
+    }
+
+    /** Add a fragment of the current transparent object to pixel i. */
+    private void addFragment(int i, int z, int c, int s, int shade){
+ FragmentBuffer fb = fragments;
+ int f = fragmentHead[i];
+
+ if(fb.count == fb.z.length){
+     fb.allocate(2 * fb.count);
+ }
+
+ if(f == -1){
+     fb.pixels.add(i);
+ }
+
+ int n = fb.count++;
+
+ fb.z[n] = z;
+ fb.color[n] = c;
+ fb.specular[n] = s;
+ fb.shade[n] = shade;
+ fb.next[n] = f;
+ fragmentHead[i] = n;
+    }
+
+    /**
+     * Blend the fragments of each pixel into the image, furthest
+     * first, and leave the nearest one in the z-buffer. Opaque
+     * objects can be drawn after the transparent ones in the same
+     * pass, so fragments behind the z-buffer are dropped.
+     */
+    private void resolveFragments(){
+ if(recordingTiles){
+     // each tile worker resolves the fragments of its tiles
+     tileRenderer.ops.add(RenderTiles.ResolveFragments);
+     return;
+ }
+
+ FragmentBuffer fb = fragments;
+ int pixelCount = fb.pixels.size();
+ int pixels[] = fb.pixels.getArray();
+ int fragmentZ[] = fb.z;
+ int fragmentNext[] = fb.next;
+ int pixelFragments[] = fb.sort;
+
+ for(int p = 0; p < pixelCount; p++){
+     int i = pixels[p];
+     int zopaque = zbuffer[i];
+     int n = 0;
+
+     for(int f = fragmentHead[i]; f != -1; f = fragmentNext[f]){
+  if(fragmentZ[f] <= zopaque){
+      continue;
+  }
+
+  if(n == pixelFragments.length){
+      int newFragments[] = new int[2 * n];
+      System.arraycopy(pixelFragments, 0, newFragments, 0, n);
+      pixelFragments = newFragments;
+      fb.sort = newFragments;
+  }
+
+  pixelFragments[n++] = f;
+     }
+
+     // insertion sort as there are only a few, far to near
+     for(int a = 1; a < n; a++){
+  int f = pixelFragments[a];
+  int z = fragmentZ[f];
+  int b = a - 1;
+
+  while(b >= 0 && fragmentZ[pixelFragments[b]] > z){
+      pixelFragments[b + 1] = pixelFragments[b];
+      b--;
+  }
+
+  pixelFragments[b + 1] = f;
+     }
+
+     fragmentHead[i] = -1;
+
+     if(n == 0){
+  continue;
+     }
+
+     int c = pbuffer[i];
+
+     for(int a = 0; a < n; a++){
+  int f = pixelFragments[a];
+  int shade = fb.shade[f];
+
+  // highlights get done after transparency
+  // so that the highlight doesn't fade
+  c = Color32.blend(fb.color[f], c, shade >> 8);
+  c = Color32.add(c, fb.specular[f]);
+  c = Color32.blend(c, background, shade & 0xff);
+     }
+
+     pbuffer[i] = c;
+     zbuffer[i] = fragmentZ[pixelFragments[n - 1]];
+ }
+
+ fb.pixels.removeAllElements();
+ fb.count = 0;
     }
 
     /** List of spheres that overlap current transparent sphere. */
     private IntArray sphereOverlaps = new IntArray();
 
+    /** Spheres that are close enough that they might overlap. */
+    private IntArray sphereCandidates = new IntArray();
+
+    /** Lattice of the transparent spheres for the overlap search. */
+    private Lattice sphereLattice = null;
+
     /** Render the spheres that are in the transparent list. */
     private void renderTransparentSpheres(){
  int sphereCount = stransx.size();
- double stx[] = stransx.getArray();
- double sty[] = stransy.getArray();
- double stz[] = stransz.getArray();
- double str[] = stransr.getArray();
 
  // second pass, draw transparent spheres
  if(sphereCount > 0){
@@ -1243,6 +1445,56 @@ public class Renderer {
      int ids[] = stransid.getArray();
      indexSort(sz, ids, 0, sphereCount - 1);
 
+     // the tile workers share this
+     buildSphereLattice(sphereCount);
+
+     if(recordingTiles){
+  // the tile workers draw them in this order
+  int order[] = new int[sphereCount];
+  System.arraycopy(ids, 0, order, 0, sphereCount);
+  tileRenderer.ops.add(RenderTiles.DrawTransparentSpheres);
+  tileRenderer.oargs.add(order);
+  return;
+     }
+
+     drawTransparentSpheres(ids, sphereCount);
+ }
+    }
+
+    /**
+     * Put the transparent spheres in a lattice whose cells are
+     * as big as the largest possible overlap, so that finding the
+     * spheres that overlap one of them only needs to look at the
+     * neighbouring cells.
+     */
+    private void buildSphereLattice(int sphereCount){
+ double stx[] = stransx.getArray();
+ double sty[] = stransy.getArray();
+ double stz[] = stransz.getArray();
+ double str[] = stransr.getArray();
+ double maxRadius = 0.0;
+
+ for(int i = 0; i < sphereCount; i++){
+     if(str[i] > maxRadius){
+  maxRadius = str[i];
+     }
+ }
+
+ sphereLattice = new Lattice(2.0 * maxRadius + 0.01);
+
+ for(int i = 0; i < sphereCount; i++){
+     sphereLattice.add(i, stx[i], sty[i], stz[i]);
+ }
+    }
+
+    /** Draw the first sphereCount transparent spheres in this order. */
+    private void drawTransparentSpheres(int ids[], int sphereCount){
+ double stx[] = stransx.getArray();
+ double sty[] = stransy.getArray();
+ double stz[] = stransz.getArray();
+ double str[] = stransr.getArray();
+
+ if(sphereCount > 0){
      for(int pass = 0; pass < 2; pass++){
 
   //for(int id = 0; id < sphereCount; id++){
@@ -1250,17 +1502,37 @@ public class Renderer {
       int i = ids[id];
       if(pass == 0 && stransp.get(i) > 200 ||
          pass == 1 && stransp.get(i) <= 200){
-   sphereOverlaps.removeAllElements();
+   if(tileWorker != -1){
+       double sx = stransxt.get(i);
+       double sy = stransyt.get(i);
+       double sr = stransrt.get(i);
+       if((int)(sx + sr + 3) < clipLeft ||
+          (int)(sy + sr + 3) < clipTop ||
+          (int)(sx - sr - 3) >= clipRight ||
+          (int)(sy - sr - 3) >= clipBottom){
+    continue;
+       }
+   }
 
-   for(int j = 0; j < sphereCount; j++){
-       if(i != j){
-    double dx = stx[i] - stx[j];
-    double dy = sty[i] - sty[j];
-    double dz = stz[i] - stz[j];
-    double rr = str[i] + str[j];
-    if(dx*dx + dy*dy + dz*dz < rr*rr){
-        sphereOverlaps.add(j);
-    }
+   sphereOverlaps.removeAllElements();
+   sphereCandidates.removeAllElements();
+
+   sphereLattice.getPossibleNeighbours(i,
+           stx[i], sty[i], stz[i],
+           sphereCandidates,
+           true);
+
+   int candidateCount = sphereCandidates.size();
+   int candidates[] = sphereCandidates.getArray();
+
+   for(int c = 0; c < candidateCount; c++){
+       int j = candidates[c];
+       double dx = stx[i] - stx[j];
+       double dy = sty[i] - sty[j];
+       double dz = stz[i] - stz[j];
+       double rr = str[i] + str[j];
+       if(dx*dx + dy*dy + dz*dz < rr*rr){
+    sphereOverlaps.add(j);
        }
    }
 
@@ -1633,6 +1905,9 @@ public class Renderer {
  // only ca
  if(tmesh instanceof GraphicalObject){
      tmesh.render();
+ }else if(recordingTiles){
+     tileRenderer.ops.add(RenderTiles.DrawObject);
+     tileRenderer.oargs.add(tmesh);
  }else{
      renderTmeshObject(tmesh);
  }
@@ -1653,6 +1928,8 @@ public class Renderer {
 
  if(transparency != 0xff){
      renderMode |= ModeTransparent;
+
+     ensureFragmentBuffer();
  }
 
  // install the objects texture map if it has one
@@ -1681,7 +1958,10 @@ public class Renderer {
      phong = true;
  }
 
- transformObject(tmesh);
+ // the tile workers draw the transform made when binning
+ if(tileWorker == -1){
+     transformObject(tmesh);
+ }
 
  if(tmesh.style == Tmesh.SPHERES){
      renderSphereObject(tmesh);
@@ -1702,46 +1982,6 @@ public class Renderer {
  }
     }
 
-    /** Depth sort the triangles. */
-    private void depthSortTriangles(Tmesh tm){
- int tri[] = displayOrder;
-
- if(tm.nt == 0) return;
-
- depthSort(tri, tm, 0, tm.nt - 1);
-    }
-
-    private int triangleDepth(Tmesh tm, int t){
- int v0 = tm.t0[t];
- int v1 = tm.t1[t];
- int v2 = tm.t2[t];
-
- return -(zt[v0] + zt[v1] + zt[v2]);
-    }
-
-    private void depthSort(int tri[], Tmesh tm, int L, int R) {
- int m=(triangleDepth(tm, tri[L])+triangleDepth(tm, tri[R]))/2;
- int i=L;
- int j=R;
- int temp;
-
- do {
-     while (triangleDepth(tm, tri[i])>m) i++;
-     while (triangleDepth(tm, tri[j])<m) j--;
-
-     if (i<=j) {
-  temp=tri[i];
-  tri[i]=tri[j];
-  tri[j]=temp;
-  i++;
-  j--;
-     }
- } while (j>=i);
-
- if (L<j) depthSort(tri, tm, L,j);
- if (R>i) depthSort(tri, tm, i,R);
-    }
-
     /** Global display order. */
     private int displayOrder[] = null;
 
@@ -1772,10 +2012,18 @@ public class Renderer {
  //double shadowZscale = getOverallScale();
  int i;
 
- ensureDisplayList(tmesh);
+ // transparent triangles go in the fragment
+ // buffer so they can be drawn in any order
+ int order[] = tileTriangles;
+ int first = tileTriangleFirst;
+ int last = tileTriangleFirst + tileTriangleCount - 1;
 
- if((renderMode & ModeTransparent) != 0){
-     depthSortTriangles(tmesh);
+ // a tile worker only draws the triangles in its tile
+ if(order == null){
+     ensureDisplayList(tmesh);
+     order = displayOrder;
+     first = 0;
+     last = triangles - 1;
  }
 
  if(!lightMapCalculated){
@@ -1818,9 +2066,9 @@ public class Renderer {
 
         int trianglesRendered = 0;
 
-        for(int ii = triangles - 1; ii >= 0; ii--){
+        for(int ii = last; ii >= first; ii--){
      //for(int ii = 0; ii < triangles; ii++){
-     i = displayOrder[ii];
+     i = order[ii];
      v0 = tri0[i];
      v1 = tri1[i];
      v2 = tri2[i];
@@ -1828,7 +2076,8 @@ public class Renderer {
 
      trianglesRendered++;
 
-     if(shadowMode == ShadowsOn && triangles > 100000){
+     if(shadowMode == ShadowsOn && triangles > 100000 &&
+        tileWorker == -1){
   if((trianglesRendered % 10000) == 0){
       FILE.out.print("%7d/", trianglesRendered);
       FILE.out.print("%d\n", triangles);
@@ -1907,7 +2156,7 @@ public class Renderer {
       applyTransform(tmesh.x[v1], tmesh.y[v1], tmesh.z[v1], cx1);
       applyTransform(tmesh.x[v2], tmesh.y[v2], tmesh.z[v2], cx2);
 
-      ShadowCache.prepareTriangleCacheList(cx0[0], cx0[1], cx0[2] * getOverallScale(),
+      shadowCache.prepareTriangleCacheList(cx0[0], cx0[1], cx0[2] * getOverallScale(),
             cx1[0], cx1[1], cx1[2] * getOverallScale(),
             cx2[0], cx2[1], cx2[2] * getOverallScale(),
         transparent);
@@ -1931,7 +2180,7 @@ public class Renderer {
       cx1[2] *= getOverallScale();
       cx2[2] *= getOverallScale();
 
-      ShadowCache.addTriangleToCacheList(cx0[0], cx0[1], cx0[2],
+      shadowCache.addTriangleToCacheList(cx0[0], cx0[1], cx0[2],
              cx1[0], cx1[1], cx1[2],
              cx2[0], cx2[1], cx2[2],
              transparency);
@@ -1982,10 +2231,10 @@ public class Renderer {
  if(cx1[1] > pymax) pymax = (int)cx1[1];
  if(cx2[1] > pymax) pymax = (int)cx2[1];
 
- if(pxmin < 0) pxmin = 0;
- if(pymin < 0) pymin = 0;
- if(pxmax >= pixelWidth) pxmax = pixelWidth - 1;
- if(pymax >= pixelHeight) pymax = pixelHeight - 1;
+ if(pxmin < clipLeft) pxmin = clipLeft;
+ if(pymin < clipTop) pymin = clipTop;
+ if(pxmax >= clipRight) pxmax = clipRight - 1;
+ if(pymax >= clipBottom) pymax = clipBottom - 1;
 
  eyedir[0] = 0.0;
  eyedir[1] = 0.0;
@@ -2004,7 +2253,7 @@ public class Renderer {
      for(int x = pxmin; x <= pxmax; x++){
   eye[0] = x;
   triangleRaysCast++;
-  if(ShadowCache.intersect_triangle(eye, eyedir, cx0, cx1, cx2, tuv) == 1){
+  if(shadowCache.intersect_triangle(eye, eyedir, cx0, cx1, cx2, tuv) == 1){
       if(tuv[0] >= 0.0){
    int i = INDEX(x, y);
    double z = eye[2] + tuv[0] * eyedir[2];
@@ -2109,7 +2358,10 @@ public class Renderer {
  }
 
  // ok we have to draw the pixel, update the z-buffer
- zbuffer[ipix] = iz;
+ // transparent pixels update it when they are blended
+ if((renderMode & ModeTransparent) == 0){
+     zbuffer[ipix] = iz;
+ }
 
  // ambient
  //int c = Color32.add(pcolor, ambient);
@@ -2130,39 +2382,36 @@ public class Renderer {
  boolean shadowed = false;
 
  if(shadowMode == ShadowsOn &&
-    (ShadowCache.selfShadowed(nx, ny, nz, cosWrapAngle) ||
-     ShadowCache.pointShadowed(x, y, z * getOverallScale()))){
+    (shadowCache.selfShadowed(nx, ny, nz, cosWrapAngle) ||
+     shadowCache.pointShadowed(x, y, z * getOverallScale()))){
      shadowed = true;
  }
 
+ // shadowed points get no specular highlight
+ int s = 0;
+
  if(shadowed == false){
      c = Color32.multiply(c, diffuseMap[lutID]);
      //c = Color32.multiply(c, rp_drgb[0], rp_drgb[1], rp_drgb[2]);
-     int s = highlightMap[lutID];
-     // if we need transparency put it in here
-     // assume that render order is ok
-     if((renderMode & ModeTransparent) != 0){
-  //System.out.println("transparency " + transparency);
-  c = Color32.blend(c, pbuffer[ipix], transparency);
-     }
-
-     c = Color32.add(c, s);
+     s = highlightMap[lutID];
      //c = Color32.add(c, Color32.pack(rp_srgb[0], rp_srgb[1], rp_srgb[2]));
  } else{
      c = Color32.multiply(c, shadowMap[lutID]);
-     // if we need transparency put it in here
-     // assume that render order is ok
-     if((renderMode & ModeTransparent) != 0){
-     //System.out.println("transparency " + transparency);
-  c = Color32.blend(c, pbuffer[ipix], transparency);
-     }
-
      //c = Color32.multiply(c, rp_shadowrgb[0], rp_shadowrgb[1], rp_shadowrgb[2]);
  }
 
  // apply fogging.
  int zscale = (iz - backClip)/zRange;
  int shade = depthScale[zscale];
+
+ // transparent pixels get blended in depth order
+ // after all of the objects are drawn
+ if((renderMode & ModeTransparent) != 0){
+     addFragment(ipix, iz, c, s, (transparency << 8) | shade);
+     return;
+ }
+
+ c = Color32.add(c, s);
  c = Color32.blend(c, background, shade);
 
  // store the color
@@ -2332,7 +2581,7 @@ public class Renderer {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -2347,9 +2596,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -2406,7 +2657,8 @@ int dgR = (vD.g - vB.g) / dy;
 int dbR = (vD.b - vB.b) / dy;
 
 
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -2432,7 +2684,7 @@ if (ymin < 0) {
     gR -= dgR * ymin;
     bR -= dbR * ymin;
 
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -2479,7 +2731,8 @@ for (int y = ymin ; y < ymax ; y++) {
 
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
@@ -2494,11 +2747,11 @@ for (int y = ymin ; y < ymax ; y++) {
  g -= dg * ixL;
  b -= db * ixL;
 
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -2518,16 +2771,18 @@ for (int y = ymin ; y < ymax ; y++) {
  //Oops no defintion for those settings!
  c = 0xff00ff;
 
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
 
 
 
 
 
 
+
+ // store the z-coordinate
+ zb[i] = z;
+
  // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
  int s = smap[lookup];
  c = Color32.add(c, s);
 
@@ -2536,6 +2791,7 @@ for (int y = ymin ; y < ymax ; y++) {
  int shade = depthScale[zscale];
 
  px[i] = Color32.blend(c, background, shade);
+
       }
 
       /* Increment z and normals across scan line. */
@@ -2599,7 +2855,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -2614,9 +2870,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -2673,7 +2931,8 @@ int dgR = (vD.g - vB.g) / dy;
 int dbR = (vD.b - vB.b) / dy;
 
 
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -2699,7 +2958,7 @@ if (ymin < 0) {
     gR -= dgR * ymin;
     bR -= dbR * ymin;
 
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -2746,7 +3005,8 @@ for (int y = ymin ; y < ymax ; y++) {
 
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
@@ -2761,11 +3021,11 @@ for (int y = ymin ; y < ymax ; y++) {
  g -= dg * ixL;
  b -= db * ixL;
 
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -2785,16 +3045,18 @@ for (int y = ymin ; y < ymax ; y++) {
  //Oops no defintion for those settings!
  c = 0xff00ff;
 
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
 
 
 
 
 
 
+ // store the z-coordinate
+ zb[i] = z;
+
  // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
  int s = smap[lookup];
  c = Color32.add(c, s);
 
@@ -2803,6 +3065,7 @@ for (int y = ymin ; y < ymax ; y++) {
  int shade = depthScale[zscale];
 
  px[i] = Color32.blend(c, background, shade);
+
       }
 
       /* Increment z and normals across scan line. */
@@ -2867,7 +3130,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -2882,9 +3145,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -2925,7 +3190,8 @@ int dgR = (vD.g - vB.g) / dy;
 int dbR = (vD.b - vB.b) / dy;
 
 
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -2943,7 +3209,7 @@ if (ymin < 0) {
     gR -= dgR * ymin;
     bR -= dbR * ymin;
 
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -2990,7 +3256,8 @@ for (int y = ymin ; y < ymax ; y++) {
 
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
@@ -3005,11 +3272,11 @@ for (int y = ymin ; y < ymax ; y++) {
  g -= dg * ixL;
  b -= db * ixL;
 
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -3033,16 +3300,18 @@ for (int y = ymin ; y < ymax ; y++) {
 
 
 
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
 
 
 
 
 
 
+ // store the z-coordinate
+ zb[i] = z;
+
  // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
  int s = smap[lookup];
  c = Color32.add(c, s);
 
@@ -3051,6 +3320,7 @@ for (int y = ymin ; y < ymax ; y++) {
  int shade = depthScale[zscale];
 
  px[i] = Color32.blend(c, background, shade);
+
       }
 
       /* Increment z and normals across scan line. */
@@ -3107,7 +3377,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -3122,9 +3392,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -3149,7 +3421,8 @@ int dnxL = (vC.nx - vA.nx) / dy;
 int dnyL = (vC.ny - vA.ny) / dy;
 int dnxR = (vD.nx - vB.nx) / dy;
 int dnyR = (vD.ny - vB.ny) / dy;
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -3160,7 +3433,7 @@ if (ymin < 0) {
     nyL -= dnyL * ymin;
     nxR -= dnxR * ymin;
     nyR -= dnyR * ymin;
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -3186,16 +3459,17 @@ for (int y = ymin ; y < ymax ; y++) {
  dny = (nyR - nyL) / dx;
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
  ny -= dny * ixL;
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -3214,16 +3488,18 @@ for (int y = ymin ; y < ymax ; y++) {
  // we are rendering the object in
  c = triangleColor;
  c = Color32.multiply(c, dmap[lookup]);
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
 
 
 
 
 
 
+
+ // store the z-coordinate
+ zb[i] = z;
+
  // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
  int s = smap[lookup];
  c = Color32.add(c, s);
 
@@ -3232,6 +3508,7 @@ for (int y = ymin ; y < ymax ; y++) {
  int shade = depthScale[zscale];
 
  px[i] = Color32.blend(c, background, shade);
+
       }
 
       /* Increment z and normals across scan line. */
@@ -3272,7 +3549,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -3287,9 +3564,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -3314,7 +3593,8 @@ int dnxL = (vC.nx - vA.nx) / dy;
 int dnyL = (vC.ny - vA.ny) / dy;
 int dnxR = (vD.nx - vB.nx) / dy;
 int dnyR = (vD.ny - vB.ny) / dy;
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -3325,7 +3605,7 @@ if (ymin < 0) {
     nyL -= dnyL * ymin;
     nxR -= dnxR * ymin;
     nyR -= dnyR * ymin;
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -3351,16 +3631,17 @@ for (int y = ymin ; y < ymax ; y++) {
  dny = (nyR - nyL) / dx;
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
  ny -= dny * ixL;
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -3379,16 +3660,18 @@ for (int y = ymin ; y < ymax ; y++) {
  // we are rendering the object in
  c = triangleColor;
  c = Color32.multiply(c, dmap[lookup]);
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
 
 
 
 
 
 
+ // store the z-coordinate
+ zb[i] = z;
+
  // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
  int s = smap[lookup];
  c = Color32.add(c, s);
 
@@ -3397,6 +3680,7 @@ for (int y = ymin ; y < ymax ; y++) {
  int shade = depthScale[zscale];
 
  px[i] = Color32.blend(c, background, shade);
+
       }
 
       /* Increment z and normals across scan line. */
@@ -3438,7 +3722,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -3453,9 +3737,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -3496,7 +3782,8 @@ int dgR = (vD.g - vB.g) / dy;
 int dbR = (vD.b - vB.b) / dy;
 
 
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -3514,7 +3801,7 @@ if (ymin < 0) {
     gR -= dgR * ymin;
     bR -= dbR * ymin;
 
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -3561,7 +3848,8 @@ for (int y = ymin ; y < ymax ; y++) {
 
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
@@ -3576,11 +3864,11 @@ for (int y = ymin ; y < ymax ; y++) {
  g -= dg * ixL;
  b -= db * ixL;
 
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -3604,16 +3892,18 @@ for (int y = ymin ; y < ymax ; y++) {
 
 
 
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
 
 
 
 
 
 
+
+ // store the z-coordinate
+ zb[i] = z;
+
  // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
  int s = smap[lookup];
  c = Color32.add(c, s);
 
@@ -3622,6 +3912,7 @@ for (int y = ymin ; y < ymax ; y++) {
  int shade = depthScale[zscale];
 
  px[i] = Color32.blend(c, background, shade);
+
       }
 
       /* Increment z and normals across scan line. */
@@ -3680,7 +3971,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -3695,9 +3986,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -3722,7 +4015,8 @@ int dnxL = (vC.nx - vA.nx) / dy;
 int dnyL = (vC.ny - vA.ny) / dy;
 int dnxR = (vD.nx - vB.nx) / dy;
 int dnyR = (vD.ny - vB.ny) / dy;
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -3733,7 +4027,7 @@ if (ymin < 0) {
     nyL -= dnyL * ymin;
     nxR -= dnxR * ymin;
     nyR -= dnyR * ymin;
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -3759,16 +4053,17 @@ for (int y = ymin ; y < ymax ; y++) {
  dny = (nyR - nyL) / dx;
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
  ny -= dny * ixL;
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -3787,24 +4082,27 @@ for (int y = ymin ; y < ymax ; y++) {
  // we are rendering the object in
  c = triangleColor;
  c = Color32.multiply(c, dmap[lookup]);
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
+ // keep it as a fragment, the fragments of all the
+ // transparent objects are blended in depth order
+ // once they have all been drawn
+ addFragment(i, z, c, smap[lookup],
+      (transparency << 8) | depthScale[(z - backClip)/zRange]);
+
+
+
+
+
+
+
+
+
 
 
- // do the transparency
- // according to what is already in the buffer
- c = Color32.blend(c, px[i], transparency);
 
- // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
- int s = smap[lookup];
- c = Color32.add(c, s);
 
- // depth cue according to distance in the scene
- int zscale = (z - backClip)/zRange;
- int shade = depthScale[zscale];
 
- px[i] = Color32.blend(c, background, shade);
       }
 
       /* Increment z and normals across scan line. */
@@ -3846,7 +4144,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -3861,9 +4159,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -3904,7 +4204,8 @@ int dgR = (vD.g - vB.g) / dy;
 int dbR = (vD.b - vB.b) / dy;
 
 
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -3922,7 +4223,7 @@ if (ymin < 0) {
     gR -= dgR * ymin;
     bR -= dbR * ymin;
 
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -3969,7 +4270,8 @@ for (int y = ymin ; y < ymax ; y++) {
 
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
@@ -3984,11 +4286,11 @@ for (int y = ymin ; y < ymax ; y++) {
  g -= dg * ixL;
  b -= db * ixL;
 
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -4012,24 +4314,27 @@ for (int y = ymin ; y < ymax ; y++) {
 
 
 
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
+ // keep it as a fragment, the fragments of all the
+ // transparent objects are blended in depth order
+ // once they have all been drawn
+ addFragment(i, z, c, smap[lookup],
+      (transparency << 8) | depthScale[(z - backClip)/zRange]);
+
+
+
+
+
+
+
+
+
 
 
- // do the transparency
- // according to what is already in the buffer
- c = Color32.blend(c, px[i], transparency);
 
- // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
- int s = smap[lookup];
- c = Color32.add(c, s);
 
- // depth cue according to distance in the scene
- int zscale = (z - backClip)/zRange;
- int shade = depthScale[zscale];
 
- px[i] = Color32.blend(c, background, shade);
       }
 
       /* Increment z and normals across scan line. */
@@ -4089,7 +4394,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -4104,9 +4409,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -4131,7 +4438,8 @@ int dnxL = (vC.nx - vA.nx) / dy;
 int dnyL = (vC.ny - vA.ny) / dy;
 int dnxR = (vD.nx - vB.nx) / dy;
 int dnyR = (vD.ny - vB.ny) / dy;
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -4142,7 +4450,7 @@ if (ymin < 0) {
     nyL -= dnyL * ymin;
     nxR -= dnxR * ymin;
     nyR -= dnyR * ymin;
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -4168,16 +4476,17 @@ for (int y = ymin ; y < ymax ; y++) {
  dny = (nyR - nyL) / dx;
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
  ny -= dny * ixL;
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -4196,24 +4505,27 @@ for (int y = ymin ; y < ymax ; y++) {
  // we are rendering the object in
  c = triangleColor;
  c = Color32.multiply(c, dmap[lookup]);
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
+ // keep it as a fragment, the fragments of all the
+ // transparent objects are blended in depth order
+ // once they have all been drawn
+ addFragment(i, z, c, smap[lookup],
+      (transparency << 8) | depthScale[(z - backClip)/zRange]);
+
+
+
+
+
+
+
+
+
 
 
- // do the transparency
- // according to what is already in the buffer
- c = Color32.blend(c, px[i], transparency);
 
- // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
- int s = smap[lookup];
- c = Color32.add(c, s);
 
- // depth cue according to distance in the scene
- int zscale = (z - backClip)/zRange;
- int shade = depthScale[zscale];
 
- px[i] = Color32.blend(c, background, shade);
       }
 
       /* Increment z and normals across scan line. */
@@ -4257,7 +4569,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -4272,9 +4584,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -4315,7 +4629,8 @@ int dgR = (vD.g - vB.g) / dy;
 int dbR = (vD.b - vB.b) / dy;
 
 
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -4333,7 +4648,7 @@ if (ymin < 0) {
     gR -= dgR * ymin;
     bR -= dbR * ymin;
 
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -4380,7 +4695,8 @@ for (int y = ymin ; y < ymax ; y++) {
 
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
@@ -4395,11 +4711,11 @@ for (int y = ymin ; y < ymax ; y++) {
  g -= dg * ixL;
  b -= db * ixL;
 
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -4423,24 +4739,27 @@ for (int y = ymin ; y < ymax ; y++) {
 
 
 
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
+ // keep it as a fragment, the fragments of all the
+ // transparent objects are blended in depth order
+ // once they have all been drawn
+ addFragment(i, z, c, smap[lookup],
+      (transparency << 8) | depthScale[(z - backClip)/zRange]);
+
+
+
+
+
+
+
+
+
 
 
- // do the transparency
- // according to what is already in the buffer
- c = Color32.blend(c, px[i], transparency);
 
- // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
- int s = smap[lookup];
- c = Color32.add(c, s);
 
- // depth cue according to distance in the scene
- int zscale = (z - backClip)/zRange;
- int shade = depthScale[zscale];
 
- px[i] = Color32.blend(c, background, shade);
       }
 
       /* Increment z and normals across scan line. */
@@ -4498,7 +4817,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -4513,9 +4832,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -4540,7 +4861,8 @@ int dnxL = (vC.nx - vA.nx) / dy;
 int dnyL = (vC.ny - vA.ny) / dy;
 int dnxR = (vD.nx - vB.nx) / dy;
 int dnyR = (vD.ny - vB.ny) / dy;
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -4551,7 +4873,7 @@ if (ymin < 0) {
     nyL -= dnyL * ymin;
     nxR -= dnxR * ymin;
     nyR -= dnyR * ymin;
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -4577,16 +4899,17 @@ for (int y = ymin ; y < ymax ; y++) {
  dny = (nyR - nyL) / dx;
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
  ny -= dny * ixL;
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -4608,16 +4931,18 @@ for (int y = ymin ; y < ymax ; y++) {
 
 
 
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
+
 
 
 
 
 
+ // store the z-coordinate
+ zb[i] = z;
 
  // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
  int s = smap[lookup];
  c = Color32.add(c, s);
 
@@ -4626,6 +4951,7 @@ for (int y = ymin ; y < ymax ; y++) {
  int shade = depthScale[zscale];
 
  px[i] = Color32.blend(c, background, shade);
+
       }
 
       /* Increment z and normals across scan line. */
@@ -4665,7 +4991,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -4690,9 +5016,11 @@ if(texture != null){
 }
 
 
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -4729,7 +5057,8 @@ int duL = (vC.u - vA.u) / dy;
 int dvL = (vC.v - vA.v) / dy;
 int duR = (vD.u - vB.u) / dy;
 int dvR = (vD.v - vB.v) / dy;
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -4746,7 +5075,7 @@ if (ymin < 0) {
     vL -= dvL * ymin;
     uR -= duR * ymin;
     vR -= dvR * ymin;
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -4793,7 +5122,8 @@ for (int y = ymin ; y < ymax ; y++) {
 
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
@@ -4808,11 +5138,11 @@ for (int y = ymin ; y < ymax ; y++) {
 
 
 
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -4846,24 +5176,27 @@ for (int y = ymin ; y < ymax ; y++) {
  if((c & 0xffffff) == 0) continue;
 
  c = Color32.multiply(c, dmap[lookup]);
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
+ // keep it as a fragment, the fragments of all the
+ // transparent objects are blended in depth order
+ // once they have all been drawn
+ addFragment(i, z, c, smap[lookup],
+      (transparency << 8) | depthScale[(z - backClip)/zRange]);
+
+
+
+
+
+
+
+
+
 
 
- // do the transparency
- // according to what is already in the buffer
- c = Color32.blend(c, px[i], transparency);
 
- // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
- int s = smap[lookup];
- c = Color32.add(c, s);
 
- // depth cue according to distance in the scene
- int zscale = (z - backClip)/zRange;
- int shade = depthScale[zscale];
 
- px[i] = Color32.blend(c, background, shade);
       }
 
       /* Increment z and normals across scan line. */
@@ -4920,7 +5253,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -4935,9 +5268,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -4962,7 +5297,8 @@ int dnxL = (vC.nx - vA.nx) / dy;
 int dnyL = (vC.ny - vA.ny) / dy;
 int dnxR = (vD.nx - vB.nx) / dy;
 int dnyR = (vD.ny - vB.ny) / dy;
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -4973,7 +5309,7 @@ if (ymin < 0) {
     nyL -= dnyL * ymin;
     nxR -= dnxR * ymin;
     nyR -= dnyR * ymin;
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -4999,16 +5335,17 @@ for (int y = ymin ; y < ymax ; y++) {
  dny = (nyR - nyL) / dx;
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
  ny -= dny * ixL;
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -5030,24 +5367,27 @@ for (int y = ymin ; y < ymax ; y++) {
 
 
 
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
+ // keep it as a fragment, the fragments of all the
+ // transparent objects are blended in depth order
+ // once they have all been drawn
+ addFragment(i, z, c, smap[lookup],
+      (transparency << 8) | depthScale[(z - backClip)/zRange]);
+
+
+
+
+
+
+
+
+
 
 
- // do the transparency
- // according to what is already in the buffer
- c = Color32.blend(c, px[i], transparency);
 
- // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
- int s = smap[lookup];
- c = Color32.add(c, s);
 
- // depth cue according to distance in the scene
- int zscale = (z - backClip)/zRange;
- int shade = depthScale[zscale];
 
- px[i] = Color32.blend(c, background, shade);
       }
 
       /* Increment z and normals across scan line. */
@@ -5088,7 +5428,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -5103,9 +5443,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -5130,7 +5472,8 @@ int dnxL = (vC.nx - vA.nx) / dy;
 int dnyL = (vC.ny - vA.ny) / dy;
 int dnxR = (vD.nx - vB.nx) / dy;
 int dnyR = (vD.ny - vB.ny) / dy;
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -5141,7 +5484,7 @@ if (ymin < 0) {
     nyL -= dnyL * ymin;
     nxR -= dnxR * ymin;
     nyR -= dnyR * ymin;
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -5167,16 +5510,17 @@ for (int y = ymin ; y < ymax ; y++) {
  dny = (nyR - nyL) / dx;
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
  ny -= dny * ixL;
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -5198,24 +5542,27 @@ for (int y = ymin ; y < ymax ; y++) {
 
 
 
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
+ // keep it as a fragment, the fragments of all the
+ // transparent objects are blended in depth order
+ // once they have all been drawn
+ addFragment(i, z, c, smap[lookup],
+      (transparency << 8) | depthScale[(z - backClip)/zRange]);
+
+
+
+
+
+
+
+
+
 
 
- // do the transparency
- // according to what is already in the buffer
- c = Color32.blend(c, px[i], transparency);
 
- // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
- int s = smap[lookup];
- c = Color32.add(c, s);
 
- // depth cue according to distance in the scene
- int zscale = (z - backClip)/zRange;
- int shade = depthScale[zscale];
 
- px[i] = Color32.blend(c, background, shade);
       }
 
       /* Increment z and normals across scan line. */
@@ -5258,7 +5605,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -5283,9 +5630,11 @@ if(texture != null){
 }
 
 
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -5322,7 +5671,8 @@ int duL = (vC.u - vA.u) / dy;
 int dvL = (vC.v - vA.v) / dy;
 int duR = (vD.u - vB.u) / dy;
 int dvR = (vD.v - vB.v) / dy;
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -5339,7 +5689,7 @@ if (ymin < 0) {
     vL -= dvL * ymin;
     uR -= duR * ymin;
     vR -= dvR * ymin;
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -5386,7 +5736,8 @@ for (int y = ymin ; y < ymax ; y++) {
 
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
@@ -5401,11 +5752,11 @@ for (int y = ymin ; y < ymax ; y++) {
 
 
 
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -5439,24 +5790,27 @@ for (int y = ymin ; y < ymax ; y++) {
  if((c & 0xffffff) == 0) continue;
 
  c = Color32.multiply(c, dmap[lookup]);
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
+ // keep it as a fragment, the fragments of all the
+ // transparent objects are blended in depth order
+ // once they have all been drawn
+ addFragment(i, z, c, smap[lookup],
+      (transparency << 8) | depthScale[(z - backClip)/zRange]);
+
+
+
+
+
+
+
+
+
 
 
- // do the transparency
- // according to what is already in the buffer
- c = Color32.blend(c, px[i], transparency);
 
- // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
- int s = smap[lookup];
- c = Color32.add(c, s);
 
- // depth cue according to distance in the scene
- int zscale = (z - backClip)/zRange;
- int shade = depthScale[zscale];
 
- px[i] = Color32.blend(c, background, shade);
       }
 
       /* Increment z and normals across scan line. */
@@ -5514,7 +5868,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -5529,9 +5883,11 @@ int zb[] = zbuffer, px[] = pbuffer;
 
 /* Local references to the diffuse and specular lookup tables. */
 int smap[] = highlightMap, dmap[] = diffuseMap, imap[] = intensityMap;
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -5556,7 +5912,8 @@ int dnxL = (vC.nx - vA.nx) / dy;
 int dnyL = (vC.ny - vA.ny) / dy;
 int dnxR = (vD.nx - vB.nx) / dy;
 int dnyR = (vD.ny - vB.ny) / dy;
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -5567,7 +5924,7 @@ if (ymin < 0) {
     nyL -= dnyL * ymin;
     nxR -= dnxR * ymin;
     nyR -= dnyR * ymin;
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -5593,16 +5950,17 @@ for (int y = ymin ; y < ymax ; y++) {
  dny = (nyR - nyL) / dx;
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
  ny -= dny * ixL;
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -5624,16 +5982,18 @@ for (int y = ymin ; y < ymax ; y++) {
 
 
 
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
 
 
 
 
 
 
+ // store the z-coordinate
+ zb[i] = z;
+
  // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
  int s = smap[lookup];
  c = Color32.add(c, s);
 
@@ -5642,6 +6002,7 @@ for (int y = ymin ; y < ymax ; y++) {
  int shade = depthScale[zscale];
 
  px[i] = Color32.blend(c, background, shade);
+
       }
 
       /* Increment z and normals across scan line. */
@@ -5681,7 +6042,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -5706,9 +6067,11 @@ if(texture != null){
 }
 
 
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -5745,7 +6108,8 @@ int duL = (vC.u - vA.u) / dy;
 int dvL = (vC.v - vA.v) / dy;
 int duR = (vD.u - vB.u) / dy;
 int dvR = (vD.v - vB.v) / dy;
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -5762,7 +6126,7 @@ if (ymin < 0) {
     vL -= dvL * ymin;
     uR -= duR * ymin;
     vR -= dvR * ymin;
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -5809,7 +6173,8 @@ for (int y = ymin ; y < ymax ; y++) {
 
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
@@ -5824,11 +6189,11 @@ for (int y = ymin ; y < ymax ; y++) {
 
 
 
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -5862,16 +6227,18 @@ for (int y = ymin ; y < ymax ; y++) {
  if((c & 0xffffff) == 0) continue;
 
  c = Color32.multiply(c, dmap[lookup]);
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
+
 
 
 
 
 
+ // store the z-coordinate
+ zb[i] = z;
 
  // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
  int s = smap[lookup];
  c = Color32.add(c, s);
 
@@ -5880,6 +6247,7 @@ for (int y = ymin ; y < ymax ; y++) {
  int shade = depthScale[zscale];
 
  px[i] = Color32.blend(c, background, shade);
+
       }
 
       /* Increment z and normals across scan line. */
@@ -5936,7 +6304,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -5961,9 +6329,11 @@ if(texture != null){
 }
 
 
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -6000,7 +6370,8 @@ int duL = (vC.u - vA.u) / dy;
 int dvL = (vC.v - vA.v) / dy;
 int duR = (vD.u - vB.u) / dy;
 int dvR = (vD.v - vB.v) / dy;
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -6017,7 +6388,7 @@ if (ymin < 0) {
     vL -= dvL * ymin;
     uR -= duR * ymin;
     vR -= dvR * ymin;
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -6064,7 +6435,8 @@ for (int y = ymin ; y < ymax ; y++) {
 
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
@@ -6079,11 +6451,11 @@ for (int y = ymin ; y < ymax ; y++) {
 
 
 
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -6117,16 +6489,18 @@ for (int y = ymin ; y < ymax ; y++) {
  if((c & 0xffffff) == 0) continue;
 
  c = Color32.multiply(c, dmap[lookup]);
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
+
 
 
 
 
 
 
+ // store the z-coordinate
+ zb[i] = z;
+
  // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
  int s = smap[lookup];
  c = Color32.add(c, s);
 
@@ -6135,6 +6509,7 @@ for (int y = ymin ; y < ymax ; y++) {
  int shade = depthScale[zscale];
 
  px[i] = Color32.blend(c, background, shade);
+
       }
 
       /* Increment z and normals across scan line. */
@@ -6192,7 +6567,7 @@ for (int y = ymin ; y < ymax ; y++) {
 int ymin = ((vA.y+(1<<(FixedBits-1)))>>FixedBits);
 int ymax = ((vC.y+(1<<(FixedBits-1)))>>FixedBits);
 
-if (ymax < 0 || ymin >= pixelHeight){
+if (ymax < clipTop || ymin >= clipBottom){
     return;
 }
 
@@ -6217,9 +6592,11 @@ if(texture != null){
 }
 
 
-// local references to the renderer size
+// local references to the renderer size and clipping
 int lw = pixelWidth;
-int lh = pixelHeight;
+int lh = clipBottom;
+int cleft = clipLeft;
+int cright = clipRight;
 /* The color map. */
 int cmap[] = colorMap;
 
@@ -6256,7 +6633,8 @@ int duL = (vC.u - vA.u) / dy;
 int dvL = (vC.v - vA.v) / dy;
 int duR = (vD.u - vB.u) / dy;
 int dvR = (vD.v - vB.v) / dy;
-if (ymin < 0) {
+if (ymin < clipTop) {
+    ymin -= clipTop;
     xL -= dxL * ymin;
     zL -= dzL * ymin;
     xR -= dxR * ymin;
@@ -6273,7 +6651,7 @@ if (ymin < 0) {
     vL -= dvL * ymin;
     uR -= duR * ymin;
     vR -= dvR * ymin;
-    ymin = 0;
+    ymin = clipTop;
 }
 
 if(lh < ymax){
@@ -6320,7 +6698,8 @@ for (int y = ymin ; y < ymax ; y++) {
 
     }
 
-    if (ixL < 0) {
+    if (ixL < cleft) {
+ ixL -= cleft;
  z -= dz * ixL;
 
  nx -= dnx * ixL;
@@ -6335,11 +6714,11 @@ for (int y = ymin ; y < ymax ; y++) {
 
 
 
- ixL = 0;
+ ixL = cleft;
     }
 
-    if(ixR > lw){
- ixR = lw;
+    if(ixR > cright){
+ ixR = cright;
     }
 
     // index of first pixel on scanline
@@ -6373,16 +6752,18 @@ for (int y = ymin ; y < ymax ; y++) {
  if((c & 0xffffff) == 0) continue;
 
  c = Color32.multiply(c, dmap[lookup]);
- // ok, the pixel survived, store the z-coordinate
- zb[i] = z;
+ // ok, the pixel survived
 
 
 
 
 
 
+
+ // store the z-coordinate
+ zb[i] = z;
+
  // finally add in specular highlights
- // highlights get done after transparency so that the highlight doesn't fade
  int s = smap[lookup];
  c = Color32.add(c, s);
 
@@ -6391,6 +6772,7 @@ for (int y = ymin ; y < ymax ; y++) {
  int shade = depthScale[zscale];
 
  px[i] = Color32.blend(c, background, shade);
+
       }
 
       /* Increment z and normals across scan line. */
@@ -6459,10 +6841,24 @@ for (int y = ymin ; y < ymax ; y++) {
     private double cylPoint[] = new double[3];
     private double cylNormal[] = new double[3];
 
+    /** Capsule intersection state. */
+    private Geometry capsule = new Geometry();
+
     /** Draw a cylinder. */
     public void drawCylinder(double x1, double y1, double z1,
         double x2, double y2, double z2,
         int rgb1, int rgb2, double r){
+ if(recordingTiles){
+     DoubleArray d = tileRenderer.dargs;
+     tileRenderer.ops.add(RenderTiles.DrawCylinder);
+     d.add(x1); d.add(y1); d.add(z1);
+     d.add(x2); d.add(y2); d.add(z2);
+     d.add(r);
+     tileRenderer.iargs.add(rgb1);
+     tileRenderer.iargs.add(rgb2);
+     return;
+ }
+
  if(rgb1 != rgb2){
      double xm = 0.5 *(x1 + x2);
      double ym = 0.5 *(y1 + y2);
@@ -6515,7 +6911,7 @@ for (int y = ymin ; y < ymax ; y++) {
  //System.out.println("cx1[2] " + cx1[2]);
  //System.out.println("cx2[2] " + cx2[2]);
 
- Geometry.rayCapsuleIntInit(cx1, cx2, rt, front - back);
+ capsule.capsuleIntInit(cx1, cx2, rt, front - back);
 
  // XXX
  // don't move this from here, it causes a problem with
@@ -6524,11 +6920,11 @@ for (int y = ymin ; y < ymax ; y++) {
  // we have to draw it...
  if(shadowMode == ShadowsOn){
      // form bounding sphere
-     ShadowCache.prepareCylinderCacheList(cx1[0], cx1[1], cx1[2],
+     shadowCache.prepareCylinderCacheList(cx1[0], cx1[1], cx1[2],
        cx2[0], cx2[1], cx2[2],
        rt);
  }else if(shadowMode == ShadowsAccumulate){
-     ShadowCache.addCylinderToCacheList(cx1[0], cx1[1], cx1[2] ,
+     shadowCache.addCylinderToCacheList(cx1[0], cx1[1], cx1[2] ,
             cx2[0], cx2[1], cx2[2],
             rt);
      return;
@@ -6551,14 +6947,15 @@ for (int y = ymin ; y < ymax ; y++) {
  int pymax = (int)(cx1[1]); if(cx2[1] > pymax) pymax = (int)cx2[1];
  pymax += rt + 3;
 
- if(pxmin > pixelWidth || pymin > pixelHeight || pxmax < 0 || pymax < 0){
+ if(pxmin > clipRight || pymin > clipBottom ||
+    pxmax < clipLeft || pymax < clipTop){
      return;
  }
 
- if(pxmin < 0) pxmin = 0;
- if(pymin < 0) pymin = 0;
- if(pxmax > pixelWidth) pxmax = pixelWidth;
- if(pymax > pixelHeight) pymax = pixelHeight;
+ if(pxmin < clipLeft) pxmin = clipLeft;
+ if(pymin < clipTop) pymin = clipTop;
+ if(pxmax > clipRight) pxmax = clipRight;
+ if(pymax > clipBottom) pymax = clipBottom;
 
  ray1[2] = back;
  ray2[2] = front;
@@ -6580,7 +6977,7 @@ for (int y = ymin ; y < ymax ; y++) {
   ray1[0] = ray2[0] = i;
 
   int intCount =
-      Geometry.rayCapsuleInt(ray1, ray2, cylPoint, cylNormal, top);
+      capsule.capsuleInt(ray1, ray2, cylPoint, cylNormal, top);
 
   if(intCount > 0){
       double zpos = cylPoint[2]*overallScale1;
@@ -6597,7 +6994,7 @@ for (int y = ymin ; y < ymax ; y++) {
    int lutID = inx + (iny<<NormalBits);
 
    if(shadowMode == ShadowsOn){
-       if(ShadowCache.pointShadowed(i, j, zpos*overallScale )){
+       if(shadowCache.pointShadowed(i, j, zpos*overallScale )){
        //c = (c >> 1) & 0x7f7f7f;
     c = Color32.multiply(rgb1shade, shadowMap[lutID]);
        }else{
@@ -6642,15 +7039,24 @@ for (int y = ymin ; y < ymax ; y++) {
     /** The sphere zvalues. */
     private int sphereZ[] = null;
 
-    /** Maximum number of sphere cache entries. */
-    private static final int MaxCache = 32;
+    /** The sphere bitmaps we have already made. */
+    private SphereCache sphereCache = new SphereCache();
+
+    /** The number of spheres this frame whose bitmap was in the cache. */
+    public int getSphereCacheHits(){
+ return sphereCache.hits;
+    }
 
-    private int szCache[][] = new int[MaxCache][];
-    private int scCache[][] = new int[MaxCache][];
-    private int sradius[] = new int[MaxCache];
-    private int scolor[] = new int[MaxCache];
+    /** The number of spheres this frame whose bitmap had to be made. */
+    public int getSphereCacheMisses(){
+ return sphereCache.misses;
+    }
 
-    private int cacheCount = 0;
+    /** Clear the sphere cache hit and miss counts. */
+    public void resetSphereCacheStatistics(){
+ sphereCache.hits = 0;
+ sphereCache.misses = 0;
+    }
 
     /** Generate the sphere bitmap for this radius. */
     private void generateSphereBitmap(double rorig, double rsd, int rgb){
@@ -6706,24 +7112,7 @@ for (int y = ymin ; y < ymax ; y++) {
      }
  }
 
- // if there is a cache slot add it
- int slot = 0;
-
- if(cacheCount < MaxCache){
-     slot = cacheCount;
- }else{
-     // random slot on basis of radius
-     slot = rs % MaxCache;
- }
-
- szCache[slot] = sphereZ;
- scCache[slot] = sphereColor;
- sradius[slot] = rs;
- scolor[slot] = rgb;
-
- if(cacheCount < MaxCache){
-     cacheCount++;
- }
+ sphereCache.add(rs, rgb, sphereZ, sphereColor);
     }
 
     /** Draw a sphere. */
@@ -6737,6 +7126,14 @@ for (int y = ymin ; y < ymax ; y++) {
 
     public void drawSphere(double x, double y, double z, double r, int rgb, int transp){
  if(transp == 255){
+     if(recordingTiles){
+  DoubleArray d = tileRenderer.dargs;
+  tileRenderer.ops.add(RenderTiles.DrawSphere);
+  d.add(x); d.add(y); d.add(z); d.add(r);
+  tileRenderer.iargs.add(rgb);
+  return;
+     }
+
      actuallyDrawSphere(x, y, z, r, rgb, transp);
  }else{
      cacheTransparentSphere(x, y, z, r, rgb, transp);
@@ -6802,12 +7199,11 @@ for (int y = ymin ; y < ymax ; y++) {
  //}
 
  // look for this size/colour sphere in the sphere cache.
- for(int i = 0; i < cacheCount; i++){
-     if(sradius[i] == rs && scolor[i] == rgb){
-  sz = szCache[i];
-  sc = scCache[i];
-  break;
-     }
+ int entry = sphereCache.find(rs, rgb);
+
+ if(entry != -1){
+     sz = sphereCache.getDepths(entry);
+     sc = sphereCache.getColors(entry);
  }
 
  // wasn't there so make it.
@@ -6817,10 +7213,10 @@ for (int y = ymin ; y < ymax ; y++) {
      sc = sphereColor;
  }
 
- if(ys < rs) ymin = -ys;
- if(xs < rs) xmin = -xs;
- if(pixelHeight - ys < rs) ymax = pixelHeight - ys;
- if(pixelWidth - xs < rs) xmax = pixelWidth - xs;
+ if(ys - clipTop < rs) ymin = clipTop - ys;
+ if(xs - clipLeft < rs) xmin = clipLeft - xs;
+ if(clipBottom - ys < rs) ymax = clipBottom - ys;
+ if(clipRight - xs < rs) xmax = clipRight - xs;
 
  boolean back = false;
 
@@ -6940,6 +7336,15 @@ for (int y = ymin ; y < ymax ; y++) {
     /** Draw accurate sphere. */
     protected void drawAccurateSphere(double x, double y, double z,
                                       double r, int rgb, int transp){
+ if(recordingTiles){
+     DoubleArray d = tileRenderer.dargs;
+     tileRenderer.ops.add(RenderTiles.DrawAccurateSphere);
+     d.add(x); d.add(y); d.add(z); d.add(r);
+     tileRenderer.iargs.add(rgb);
+     tileRenderer.iargs.add(transp);
+     return;
+ }
+
  double overallScale = getOverallScale();
  double overallScale1 = 1./getOverallScale();
  double rt = overallScale * r;
@@ -6969,10 +7374,10 @@ for (int y = ymin ; y < ymax ; y++) {
  // we will be shadowing intersection points
  // from the transformed spheres
  if(shadowMode == ShadowsAccumulate){
-     ShadowCache.addSphereToCacheList(tx, ty, tz, rt);
+     shadowCache.addSphereToCacheList(tx, ty, tz, rt);
      return;
  }else if(shadowMode == ShadowsOn){
-     ShadowCache.prepareSphereCacheList(tx, ty, tz, rt, false);
+     shadowCache.prepareSphereCacheList(tx, ty, tz, rt, false);
 
             if(false){
                 int occluded = 0;
@@ -6980,12 +7385,12 @@ for (int y = ymin ; y < ymax ; y++) {
                 double rt22 = 4.0 * rt;
                 rt22 *= rt22;
 
-                int ns = ShadowCache.scachex.size();
+                int ns = shadowCache.scachex.size();
 
                 for(int s = 0; s < ns; s++){
-                    double dx = tx - ShadowCache.scachex.get(s);
-                    double dy = ty - ShadowCache.scachey.get(s);
-                    double dz = tz - ShadowCache.scachez.get(s);
+                    double dx = tx - shadowCache.scachex.get(s);
+                    double dy = ty - shadowCache.scachey.get(s);
+                    double dz = tz - shadowCache.scachez.get(s);
 
                     double d2 = dx*dx + dy*dy + dz*dz;
 
@@ -7019,14 +7424,15 @@ for (int y = ymin ; y < ymax ; y++) {
  int pymin = (int)(ty - rt - 3);
  int pymax = (int)(ty + rt + 3);
 
- if(pxmin > pixelWidth || pymin > pixelHeight || pxmax < 0 || pymax < 0){
+ if(pxmin > clipRight || pymin > clipBottom ||
+    pxmax < clipLeft || pymax < clipTop){
      return;
  }
 
- if(pxmin < 0) pxmin = 0;
- if(pymin < 0) pymin = 0;
- if(pxmax > pixelWidth) pxmax = pixelWidth;
- if(pymax > pixelHeight) pymax = pixelHeight;
+ if(pxmin < clipLeft) pxmin = clipLeft;
+ if(pymin < clipTop) pymin = clipTop;
+ if(pxmax > clipRight) pxmax = clipRight;
+ if(pymax > clipBottom) pymax = clipBottom;
 
  int pb[] = pbuffer;
  int zb[] = zbuffer;
@@ -7072,7 +7478,7 @@ for (int y = ymin ; y < ymax ; y++) {
       izpos < frontClip){
 
        if(true || shadowMode == ShadowsOff ||
-          ShadowCache.pointInSphere(i, j, zp) == false){
+          shadowCache.pointInSphere(i, j, zp) == false){
     double sn0 = dx * r1;
     int inx = (int)(NormalSamples + sn0 * NormalSamples);
     int lutID = inx + iny;
@@ -7094,7 +7500,7 @@ for (int y = ymin ; y < ymax ; y++) {
 
     if(shadowMode == ShadowsOn){
        if(sol == -1 ||
-          ShadowCache.pointShadowed(i, j, zp) == true){
+          shadowCache.pointShadowed(i, j, zp) == true){
 
            c = Color32.multiply(rgb, shadowMap[lutID]);
        }else{
@@ -7151,6 +7557,13 @@ for (int y = ymin ; y < ymax ; y++) {
 
     /** Draw a box in transformed screen coords. */
     public void drawBox(int xt, int yt, int zt, int width, int c){
+ if(recordingTiles){
+     IntArray a = tileRenderer.iargs;
+     tileRenderer.ops.add(RenderTiles.DrawBox);
+     a.add(xt); a.add(yt); a.add(zt); a.add(width); a.add(c);
+     return;
+ }
+
  if(antialias){
      width *= 2;
  }
@@ -7175,6 +7588,21 @@ for (int y = ymin ; y < ymax ; y++) {
     public void drawPixels(double x, double y, double z,
                            int w, int h, int pix[],
                            int hints){
+        // antialiased images go straight to the output buffer
+        if(recordingTiles && !antialias){
+            int copy[] = new int[w * h];
+            System.arraycopy(pix, 0, copy, 0, w * h);
+            tileRenderer.ops.add(RenderTiles.DrawPixels);
+            tileRenderer.dargs.add(x);
+            tileRenderer.dargs.add(y);
+            tileRenderer.dargs.add(z);
+            tileRenderer.iargs.add(w);
+            tileRenderer.iargs.add(h);
+            tileRenderer.iargs.add(hints);
+            tileRenderer.oargs.add(copy);
+            return;
+        }
+
         applyTransform(x, y, z, tix);
 
         int p = 0;
@@ -7186,7 +7614,8 @@ for (int y = ymin ; y < ymax ; y++) {
                 int xs = (int)tix[0] + i;
                 int ys = (int)tix[1] + j - h;
 
-                if(xs >= 0 && ys >= 0 && xs < pixelWidth && ys < pixelHeight){
+                if(xs >= clipLeft && ys >= clipTop &&
+                   xs < clipRight && ys < clipBottom){
                     int zs = (int)(tix[2] * ZFixedBits);
 
                     int alpha = (pixel >> 24)& 0xff;
@@ -7210,6 +7639,14 @@ for (int y = ymin ; y < ymax ; y++) {
 
     /** Draw a string at the specified point. */
     public void drawDirectString(int x, int y, int color, String string){
+ if(recordingTiles){
+     IntArray a = tileRenderer.iargs;
+     tileRenderer.ops.add(RenderTiles.DrawDirectString);
+     a.add(x); a.add(y); a.add(color);
+     tileRenderer.oargs.add(string);
+     return;
+ }
+
  int stringLength = string.length();
 
  if(antialias){
@@ -7291,6 +7728,15 @@ for (int y = ymin ; y < ymax ; y++) {
      */
     public void drawString(double x, double y, double z, double zoff,
       int color, String string){
+ if(recordingTiles){
+     DoubleArray d = tileRenderer.dargs;
+     tileRenderer.ops.add(RenderTiles.DrawString);
+     d.add(x); d.add(y); d.add(z); d.add(zoff);
+     tileRenderer.iargs.add(color);
+     tileRenderer.oargs.add(string);
+     return;
+ }
+
  setupString(string, charOffsets);
 
  if(colorDefined == false){
@@ -7955,6 +8401,13 @@ for (int y = ymin ; y < ymax ; y++) {
 
     /** Draw a dot. */
     public void drawDot(int xt, int yt, int zt, int c){
+ if(recordingTiles){
+     IntArray a = tileRenderer.iargs;
+     tileRenderer.ops.add(RenderTiles.DrawDot);
+     a.add(xt); a.add(yt); a.add(zt); a.add(c);
+     return;
+ }
+
  if(((zt) >= backClip && (zt) <= frontClip)){
      int shade = depthCueColor(c, zt);
      xt >>= FixedBits;
@@ -7969,7 +8422,14 @@ for (int y = ymin ; y < ymax ; y++) {
 
     /** Set a pixel checking for on screen and z-buffer. */
     public void setPixel(int x, int y, int z, int c){
- if(x >= 0 && x < pixelWidth && y >= 0 && y < pixelHeight){
+ if(recordingTiles){
+     IntArray a = tileRenderer.iargs;
+     tileRenderer.ops.add(RenderTiles.DrawZPixel);
+     a.add(x); a.add(y); a.add(z); a.add(c);
+     return;
+ }
+
+ if(x >= clipLeft && x < clipRight && y >= clipTop && y < clipBottom){
      int pos = INDEX(x, y);
 
      if(zbuffer[pos] < z){
@@ -7981,7 +8441,14 @@ for (int y = ymin ; y < ymax ; y++) {
 
     /** Set a pixel checking for on screen. */
     public void setPixel(int x, int y, int c){
- if(x >= 0 && x < pixelWidth && y >= 0 && y < pixelHeight){
+ if(recordingTiles){
+     IntArray a = tileRenderer.iargs;
+     tileRenderer.ops.add(RenderTiles.DrawPixel);
+     a.add(x); a.add(y); a.add(c);
+     return;
+ }
+
+ if(x >= clipLeft && x < clipRight && y >= clipTop && y < clipBottom){
      int pos = INDEX(x, y);
      pbuffer[pos] = c;
  }
@@ -8068,7 +8535,7 @@ for (int y = ymin ; y < ymax ; y++) {
      rgb2shade = rgb2;
  }
 
- if(outCode1 == 0 && outCode2 == 0){
+ if(outCode1 == 0 && outCode2 == 0 && !leavesClip(x1, y1, x2, y2)){
      // completely on screen
 
      if(rgb1 == rgb2){
@@ -8149,6 +8616,16 @@ for (int y = ymin ; y < ymax ; y++) {
    rgb1, rgb2, pixelWidth);
     }
 
+    /**
+     * Does the line leave the pixels we may draw.
+     * Only lines that don't can use the unchecked line drawing.
+     */
+    private boolean leavesClip(int x1, int y1, int x2, int y2){
+ return
+     x1 < clipLeft || x1 >= clipRight || y1 < clipTop || y1 >= clipBottom ||
+     x2 < clipLeft || x2 >= clipRight || y2 < clipTop || y2 >= clipBottom;
+    }
+
     /**
      * Main entry point for drawing lines.
      *
@@ -8158,6 +8635,15 @@ for (int y = ymin ; y < ymax ; y++) {
     public void drawLine(int x1, int y1, int z1,
     int x2, int y2, int z2,
     int rgb1, int rgb2, int lineWidth){
+ if(recordingTiles){
+     IntArray a = tileRenderer.iargs;
+     tileRenderer.ops.add(RenderTiles.DrawLine);
+     a.add(x1); a.add(y1); a.add(z1);
+     a.add(x2); a.add(y2); a.add(z2);
+     a.add(rgb1); a.add(rgb2); a.add(lineWidth);
+     return;
+ }
+
 
 
 
@@ -8209,7 +8695,7 @@ for (int y = ymin ; y < ymax ; y++) {
      rgb2shade = rgb2;
  }
 
- if(outCode1 == 0 && outCode2 == 0){
+ if(outCode1 == 0 && outCode2 == 0 && !leavesClip(x1, y1, x2, y2)){
      // completely on screen
 
      if(rgb1 == rgb2){
@@ -8429,7 +8915,7 @@ for (int y = ymin ; y < ymax ; y++) {
 
     /** Merge pixel color with background and transparency. */
     protected void blendPixel(int x, int y, int z, int c, int transp){
- if(x < 0 || y < 0 || x >= pixelWidth || y >= pixelHeight) return;
+ if(x < clipLeft || y < clipTop || x >= clipRight || y >= clipBottom) return;
 
         int p = INDEX(x, y);
         if(((z) >= backClip && (z) <= frontClip) && z > zbuffer[p]){
@@ -8646,7 +9132,7 @@ if(dy == 0 && dx == 0){
     y = y1;
     pixelIndex = y * pixelWidth + x;
     z = z1 > z2 ? z1 : z2;
-    if(x >= 0 && y >= 0 && x < pixelWidth && y < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
+    if(x >= clipLeft && y >= clipTop && x < clipRight && y < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
     return;
 }
 
@@ -8672,7 +9158,7 @@ if (dy <= dx) {
 
     pixelIndex = y * pixelWidth + x;
 
-    if(x >= 0 && y >= 0 && x < pixelWidth && y < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
+    if(x >= clipLeft && y >= clipTop && x < clipRight && y < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
 
     if (((y2 - y1) * ydirflag) > 0) {
  while (x < xend) {
@@ -8688,7 +9174,7 @@ if (dy <= dx) {
 
      pixelIndex++;
 
-     if(x >= 0 && y >= 0 && x < pixelWidth && y < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
+     if(x >= clipLeft && y >= clipTop && x < clipRight && y < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
  }
     } else {
  while (x < xend) {
@@ -8704,7 +9190,7 @@ if (dy <= dx) {
 
      pixelIndex++;
 
-     if(x >= 0 && y >= 0 && x < pixelWidth && y < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
+     if(x >= clipLeft && y >= clipTop && x < clipRight && y < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
  }
     }
 } else {
@@ -8728,7 +9214,7 @@ if (dy <= dx) {
     }
 
     pixelIndex = y * pixelWidth + x;
-    if(x >= 0 && y >= 0 && x < pixelWidth && y < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
+    if(x >= clipLeft && y >= clipTop && x < clipRight && y < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
 
     if (((x2 - x1) * xdirflag) > 0) {
  while (y < yend) {
@@ -8743,7 +9229,7 @@ if (dy <= dx) {
      }
 
      pixelIndex += pixelWidth;
-     if(x >= 0 && y >= 0 && x < pixelWidth && y < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
+     if(x >= clipLeft && y >= clipTop && x < clipRight && y < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
  }
     } else {
  while (y < yend) {
@@ -8760,7 +9246,7 @@ if (dy <= dx) {
 
      pixelIndex += pixelWidth;
 
-     if(x >= 0 && y >= 0 && x < pixelWidth && y < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
+     if(x >= clipLeft && y >= clipTop && x < clipRight && y < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;};
  }
     }
 }
@@ -8793,7 +9279,7 @@ if(dy == 0 && dx == 0){
     y = y1;
     pixelIndex = y * pixelWidth + x;
     z = z1 > z2 ? z1 : z2;
-    pixelIndex = pixelWidth*(y) + (x); if((x) >= 0 && (y) >= 0 && (x) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= 0 && (y) >= 0 && (x+1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= 0 && (y+1) >= 0 && (x) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= 0 && (y) >= 0 && (x-1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= 0 && (y-1) >= 0 && (x) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= 0 && (y+1) >= 0 && (x+1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= 0 && (y+1) >= 0 && (x-1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= 0 && (y-1) >= 0 && (x-1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= 0 && (y-1) >= 0 && (x+1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
+    pixelIndex = pixelWidth*(y) + (x); if((x) >= clipLeft && (y) >= clipTop && (x) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= clipLeft && (y) >= clipTop && (x+1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= clipLeft && (y+1) >= clipTop && (x) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= clipLeft && (y) >= clipTop && (x-1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= clipLeft && (y-1) >= clipTop && (x) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= clipLeft && (y+1) >= clipTop && (x+1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= clipLeft && (y+1) >= clipTop && (x-1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= clipLeft && (y-1) >= clipTop && (x-1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= clipLeft && (y-1) >= clipTop && (x+1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
     return;
 }
 
@@ -8819,7 +9305,7 @@ if (dy <= dx) {
 
     pixelIndex = y * pixelWidth + x;
 
-    pixelIndex = pixelWidth*(y) + (x); if((x) >= 0 && (y) >= 0 && (x) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= 0 && (y) >= 0 && (x+1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= 0 && (y+1) >= 0 && (x) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= 0 && (y) >= 0 && (x-1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= 0 && (y-1) >= 0 && (x) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= 0 && (y+1) >= 0 && (x+1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= 0 && (y+1) >= 0 && (x-1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= 0 && (y-1) >= 0 && (x-1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= 0 && (y-1) >= 0 && (x+1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
+    pixelIndex = pixelWidth*(y) + (x); if((x) >= clipLeft && (y) >= clipTop && (x) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= clipLeft && (y) >= clipTop && (x+1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= clipLeft && (y+1) >= clipTop && (x) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= clipLeft && (y) >= clipTop && (x-1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= clipLeft && (y-1) >= clipTop && (x) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= clipLeft && (y+1) >= clipTop && (x+1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= clipLeft && (y+1) >= clipTop && (x-1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= clipLeft && (y-1) >= clipTop && (x-1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= clipLeft && (y-1) >= clipTop && (x+1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
 
     if (((y2 - y1) * ydirflag) > 0) {
  while (x < xend) {
@@ -8835,7 +9321,7 @@ if (dy <= dx) {
 
      pixelIndex++;
 
-     pixelIndex = pixelWidth*(y) + (x); if((x) >= 0 && (y) >= 0 && (x) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= 0 && (y) >= 0 && (x+1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= 0 && (y+1) >= 0 && (x) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= 0 && (y) >= 0 && (x-1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= 0 && (y-1) >= 0 && (x) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= 0 && (y+1) >= 0 && (x+1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= 0 && (y+1) >= 0 && (x-1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= 0 && (y-1) >= 0 && (x-1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= 0 && (y-1) >= 0 && (x+1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
+     pixelIndex = pixelWidth*(y) + (x); if((x) >= clipLeft && (y) >= clipTop && (x) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= clipLeft && (y) >= clipTop && (x+1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= clipLeft && (y+1) >= clipTop && (x) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= clipLeft && (y) >= clipTop && (x-1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= clipLeft && (y-1) >= clipTop && (x) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= clipLeft && (y+1) >= clipTop && (x+1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= clipLeft && (y+1) >= clipTop && (x-1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= clipLeft && (y-1) >= clipTop && (x-1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= clipLeft && (y-1) >= clipTop && (x+1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
  }
     } else {
  while (x < xend) {
@@ -8851,7 +9337,7 @@ if (dy <= dx) {
 
      pixelIndex++;
 
-     pixelIndex = pixelWidth*(y) + (x); if((x) >= 0 && (y) >= 0 && (x) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= 0 && (y) >= 0 && (x+1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= 0 && (y+1) >= 0 && (x) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= 0 && (y) >= 0 && (x-1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= 0 && (y-1) >= 0 && (x) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= 0 && (y+1) >= 0 && (x+1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= 0 && (y+1) >= 0 && (x-1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= 0 && (y-1) >= 0 && (x-1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= 0 && (y-1) >= 0 && (x+1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
+     pixelIndex = pixelWidth*(y) + (x); if((x) >= clipLeft && (y) >= clipTop && (x) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= clipLeft && (y) >= clipTop && (x+1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= clipLeft && (y+1) >= clipTop && (x) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= clipLeft && (y) >= clipTop && (x-1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= clipLeft && (y-1) >= clipTop && (x) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= clipLeft && (y+1) >= clipTop && (x+1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= clipLeft && (y+1) >= clipTop && (x-1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= clipLeft && (y-1) >= clipTop && (x-1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= clipLeft && (y-1) >= clipTop && (x+1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
  }
     }
 } else {
@@ -8875,7 +9361,7 @@ if (dy <= dx) {
     }
 
     pixelIndex = y * pixelWidth + x;
-    pixelIndex = pixelWidth*(y) + (x); if((x) >= 0 && (y) >= 0 && (x) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= 0 && (y) >= 0 && (x+1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= 0 && (y+1) >= 0 && (x) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= 0 && (y) >= 0 && (x-1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= 0 && (y-1) >= 0 && (x) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= 0 && (y+1) >= 0 && (x+1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= 0 && (y+1) >= 0 && (x-1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= 0 && (y-1) >= 0 && (x-1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= 0 && (y-1) >= 0 && (x+1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
+    pixelIndex = pixelWidth*(y) + (x); if((x) >= clipLeft && (y) >= clipTop && (x) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= clipLeft && (y) >= clipTop && (x+1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= clipLeft && (y+1) >= clipTop && (x) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= clipLeft && (y) >= clipTop && (x-1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= clipLeft && (y-1) >= clipTop && (x) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= clipLeft && (y+1) >= clipTop && (x+1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= clipLeft && (y+1) >= clipTop && (x-1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= clipLeft && (y-1) >= clipTop && (x-1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= clipLeft && (y-1) >= clipTop && (x+1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
 
     if (((x2 - x1) * xdirflag) > 0) {
  while (y < yend) {
@@ -8890,7 +9376,7 @@ if (dy <= dx) {
      }
 
      pixelIndex += pixelWidth;
-     pixelIndex = pixelWidth*(y) + (x); if((x) >= 0 && (y) >= 0 && (x) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= 0 && (y) >= 0 && (x+1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= 0 && (y+1) >= 0 && (x) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= 0 && (y) >= 0 && (x-1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= 0 && (y-1) >= 0 && (x) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= 0 && (y+1) >= 0 && (x+1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= 0 && (y+1) >= 0 && (x-1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= 0 && (y-1) >= 0 && (x-1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= 0 && (y-1) >= 0 && (x+1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
+     pixelIndex = pixelWidth*(y) + (x); if((x) >= clipLeft && (y) >= clipTop && (x) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= clipLeft && (y) >= clipTop && (x+1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= clipLeft && (y+1) >= clipTop && (x) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= clipLeft && (y) >= clipTop && (x-1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= clipLeft && (y-1) >= clipTop && (x) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= clipLeft && (y+1) >= clipTop && (x+1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= clipLeft && (y+1) >= clipTop && (x-1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= clipLeft && (y-1) >= clipTop && (x-1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= clipLeft && (y-1) >= clipTop && (x+1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
  }
     } else {
  while (y < yend) {
@@ -8907,7 +9393,7 @@ if (dy <= dx) {
 
      pixelIndex += pixelWidth;
 
-     pixelIndex = pixelWidth*(y) + (x); if((x) >= 0 && (y) >= 0 && (x) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= 0 && (y) >= 0 && (x+1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= 0 && (y+1) >= 0 && (x) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= 0 && (y) >= 0 && (x-1) < pixelWidth && (y) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= 0 && (y-1) >= 0 && (x) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= 0 && (y+1) >= 0 && (x+1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= 0 && (y+1) >= 0 && (x-1) < pixelWidth && (y+1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= 0 && (y-1) >= 0 && (x-1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= 0 && (y-1) >= 0 && (x+1) < pixelWidth && (y-1) < pixelHeight && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
+     pixelIndex = pixelWidth*(y) + (x); if((x) >= clipLeft && (y) >= clipTop && (x) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x+1); if((x+1) >= clipLeft && (y) >= clipTop && (x+1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x); if((x) >= clipLeft && (y+1) >= clipTop && (x) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y) + (x-1); if((x-1) >= clipLeft && (y) >= clipTop && (x-1) < clipRight && (y) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x); if((x) >= clipLeft && (y-1) >= clipTop && (x) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; if(width == 3){ pixelIndex = pixelWidth*(y+1) + (x+1); if((x+1) >= clipLeft && (y+1) >= clipTop && (x+1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y+1) + (x-1); if((x-1) >= clipLeft && (y+1) >= clipTop && (x-1) < clipRight && (y+1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x-1); if((x-1) >= clipLeft && (y-1) >= clipTop && (x-1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; pixelIndex = pixelWidth*(y-1) + (x+1); if((x+1) >= clipLeft && (y-1) >= clipTop && (x+1) < clipRight && (y-1) < clipBottom && z > zb[pixelIndex] && z < frontClip && z > backClip){ zb[pixelIndex] = z; pb[pixelIndex] = rgb;}; };
  }
     }
 }
@@ -8976,8 +9462,8 @@ if (dy <= dx) {
      int y = yt[i] >> FixedBits;
      int z = zt[i] >> FixedBits;
 
-     if(x >= 0 && x < pixelWidth &&
-        y >= 0 && y < pixelHeight){
+     if(x >= clipLeft && x < clipRight &&
+        y >= clipTop && y < clipBottom){
   int pos = INDEX(x, y);
   pbuffer[pos] = Color32.white;
      }
@@ -9059,8 +9545,10 @@ if (dy <= dx) {
   pixelCount = pixelWidth * pixelHeight;
 
   if(apbuffer == null || apbuffer.length < pixelCount){
-      apbuffer = new int[pixelCount];
-      azbuffer = new int[pixelCount];
+      PixelBufferPool.release(apbuffer);
+      PixelBufferPool.release(azbuffer);
+      apbuffer = PixelBufferPool.acquire(pixelCount);
+      azbuffer = PixelBufferPool.acquire(pixelCount);
   }
 
   opbuffer = pbuffer;
@@ -9079,11 +9567,27 @@ if (dy <= dx) {
 
       opbuffer = null;
       ozbuffer = null;
+
+      // let other renderers have the big buffers
+      PixelBufferPool.release(apbuffer);
+      PixelBufferPool.release(azbuffer);
+      apbuffer = null;
+      azbuffer = null;
   }
      }
 
      antialiasModeChanged = false;
  }
+
+ resetClip();
+    }
+
+    /** Let the renderer draw anywhere on the screen. */
+    private void resetClip(){
+ clipLeft = 0;
+ clipTop = 0;
+ clipRight = pixelWidth;
+ clipBottom = pixelHeight;
     }
 
     /** Redraw the image. */
@@ -9092,10 +9596,12 @@ if (dy <= dx) {
  triangleRaysIntersected = 0;
  triangleRaysCast = 0;
 
+ resetSphereCacheStatistics();
+
  if(shadowMode == ShadowsAccumulate){
-     ShadowCache.clearShadowCaches();
+     shadowCache.clearShadowCaches();
  }else if(shadowMode == ShadowsOn){
-     ShadowCache.setupShadowCaches((Light)lights.get(0),
+     shadowCache.setupShadowCaches((Light)lights.get(0),
        getOverallScale());
  }
 
@@ -9107,6 +9613,19 @@ if (dy <= dx) {
 
  privateRedraw();
 
+ // primitives from here until postProcess() are
+ // recorded and then rasterized in parallel tiles,
+ // the shadow casters are still gathered serially
+ if(tileThreads > 0 && shadowMode != ShadowsAccumulate){
+     if(tileRenderer == null){
+  tileRenderer = new RenderTiles();
+     }
+
+     tileRenderer.begin(tileThreads, tileSize,
+          pixelWidth, pixelHeight);
+     recordingTiles = true;
+ }
+
  //drawObjects();
 
  publicRedraw();
@@ -9116,6 +9635,256 @@ if (dy <= dx) {
  frameCount++;
     }
 
+    /** Rasterize the primitives recorded since redraw(). */
+    private void rasterizeTiles(){
+ // set up the shared tables before the workers need them
+ if(!lightMapCalculated){
+     calculateLightMap();
+ }
+
+ if(colorMap == null){
+     initialiseColorMaps();
+ }
+
+ initialiseGammaTable();
+
+ tileRenderer.rasterize(this);
+    }
+
+    /**
+     * Transform one of the frame's objects for the tile workers.
+     * The object keeps the transform buffers from frame to frame.
+     */
+    void transformTileObject(TileObject o){
+ Tmesh tmesh = o.tmesh;
+
+ useTransform(o);
+
+ // transformObject() clips with these
+ texture = tmesh.texture;
+ frontFaceOnly = !tmesh.backface;
+
+ // the workers share the fragment lists of the pixels
+ if(tmesh.transparency != 0xff){
+     ensureFragmentBuffer();
+ }
+
+ transformObject(tmesh);
+
+ o.xt = xt; o.yt = yt; o.zt = zt;
+ o.nxt = nxt; o.nyt = nyt; o.nzt = nzt;
+ o.ut = ut; o.vt = vt;
+ o.clipped = clipped;
+    }
+
+    /** Draw with the transform of one of the frame's objects. */
+    private void useTransform(TileObject o){
+ xt = o.xt; yt = o.yt; zt = o.zt;
+ nxt = o.nxt; nyt = o.nyt; nzt = o.nzt;
+ ut = o.ut; vt = o.vt;
+ clipped = o.clipped;
+    }
+
+    /**
+     * Create a copy of this renderer that draws tiles.
+     * It draws straight into our pixel and z-buffers.
+     */
+    Renderer createTileWorker(int worker, FragmentBuffer fb){
+ Renderer r = null;
+
+ try {
+     r = (Renderer)clone();
+ }catch(CloneNotSupportedException e){
+     // can't happen, we are Cloneable
+     throw new RuntimeException(e.toString());
+ }
+
+ r.recordingTiles = false;
+ r.tileWorker     = worker;
+
+ // everything that gets written while drawing
+ // must belong to the worker
+ r.overallMatrix  = new Matrix(overallMatrix);
+ r.rotationMatrix = new Matrix(rotationMatrix);
+
+ r.xt = r.yt = r.zt = null;
+ r.nxt = r.nyt = r.nzt = null;
+ r.ut = r.vt = null;
+ r.clipped = null;
+ r.displayOrder = null;
+ r.textureMap = null;
+
+ r.fragments = fb;
+
+ r.vertexA = new Vertex();
+ r.vertexB = new Vertex();
+ r.vertexC = new Vertex();
+ r.vertexD = new Vertex();
+ r.spans = new int[spans.length];
+
+ r.tuv = new double[3];
+ r.eye = new double[3];
+ r.eyedir = new double[3];
+ r.rp_drgb = new int[3];
+ r.rp_srgb = new int[3];
+ r.rp_shadowrgb = new int[3];
+
+ r.cylinder = new Tmesh();
+ r.capsule = new Geometry();
+ r.cx0 = new double[3]; r.cx1 = new double[3]; r.cx2 = new double[3];
+ r.nx0 = new double[3]; r.nx1 = new double[3]; r.nx2 = new double[3];
+ r.ray1 = new double[3]; r.ray2 = new double[3];
+ r.i1 = new double[3]; r.i2 = new double[3];
+ r.scx1 = new int[3]; r.scx2 = new int[3];
+ r.afT = new double[2];
+ r.cylPoint = new double[3];
+ r.cylNormal = new double[3];
+
+ r.shadowCache = shadowCache.copy();
+ r.sphereOverlaps = new IntArray();
+ r.sphereCandidates = new IntArray();
+ r.sphereCache = sphereCache.copy();
+ r.colorMapCache = (int[][])colorMapCache.clone();
+ r.colorMapCacheColor = (int[])colorMapCacheColor.clone();
+
+ r.charOffsets = new double[3];
+ r.fontMin = new double[3];
+ r.fontMax = new double[3];
+ r.tix = new double[3];
+ r.pixMin = new int[3];
+ r.pixMax = new int[3];
+ r.xd = new Point3d();
+ r.yd = new Point3d();
+ r.zd = new Point3d();
+ r.vx1 = new double[3];
+ r.vx2 = new double[3];
+
+ return r;
+    }
+
+    /** Pick up the results of a tile worker. */
+    void finishTileWorker(Renderer r, boolean keepCaches){
+ // the copies count their own hits and misses
+ int hits = sphereCache.hits + r.sphereCache.hits;
+ int misses = sphereCache.misses + r.sphereCache.misses;
+
+ // hang on to the sphere and color caches for the next frame
+ if(keepCaches){
+     sphereCache = r.sphereCache;
+     colorMapCache = r.colorMapCache;
+     colorMapCacheColor = r.colorMapCacheColor;
+     colorMapCacheCount = r.colorMapCacheCount;
+ }
+
+ sphereCache.hits = hits;
+ sphereCache.misses = misses;
+    }
+
+    /** Draw tiles until there are none left. */
+    void replayTiles(){
+ int tile;
+
+ while((tile = tileRenderer.nextTile()) != -1){
+     replayTile(tile);
+ }
+
+ resetClip();
+    }
+
+    /** Draw the recorded primitives that touch a tile. */
+    private void replayTile(int tile){
+ RenderTiles tiles = tileRenderer;
+ int size = tiles.tileSize;
+
+ clipLeft = (tile % tiles.tileColumns) * size;
+ clipTop = (tile / tiles.tileColumns) * size;
+ clipRight = Math.min(clipLeft + size, pixelWidth);
+ clipBottom = Math.min(clipTop + size, pixelHeight);
+
+ int entryCount = tiles.bins[tile].size();
+ int entries[] = tiles.bins[tile].getArray();
+ int op[] = tiles.ops.getArray();
+ int iofs[] = tiles.intOffsets.getArray();
+ int dofs[] = tiles.doubleOffsets.getArray();
+ int oofs[] = tiles.objectOffsets.getArray();
+ int ia[] = tiles.iargs.getArray();
+ double da[] = tiles.dargs.getArray();
+ Object oa[] = tiles.oargs.getArray();
+
+ for(int e = 0; e < entryCount; e++){
+     int i = entries[e];
+     int ii = iofs[i], di = dofs[i], oi = oofs[i];
+
+     switch(op[i]){
+     case RenderTiles.DrawSphere:
+  actuallyDrawSphere(da[di], da[di+1], da[di+2], da[di+3],
+       ia[ii], 255);
+  break;
+     case RenderTiles.DrawAccurateSphere:
+  drawAccurateSphere(da[di], da[di+1], da[di+2], da[di+3],
+       ia[ii], ia[ii+1]);
+  break;
+     case RenderTiles.DrawCylinder:
+  drawCylinder(da[di], da[di+1], da[di+2],
+        da[di+3], da[di+4], da[di+5],
+        ia[ii], ia[ii+1], da[di+6]);
+  break;
+     case RenderTiles.DrawLine:
+  drawLine(ia[ii], ia[ii+1], ia[ii+2],
+    ia[ii+3], ia[ii+4], ia[ii+5],
+    ia[ii+6], ia[ii+7], ia[ii+8]);
+  break;
+     case RenderTiles.DrawString:
+  drawString(da[di], da[di+1], da[di+2], da[di+3],
+      ia[ii], (String)oa[oi]);
+  break;
+     case RenderTiles.DrawDirectString:
+  drawDirectString(ia[ii], ia[ii+1], ia[ii+2], (String)oa[oi]);
+  break;
+     case RenderTiles.DrawBox:
+  drawBox(ia[ii], ia[ii+1], ia[ii+2], ia[ii+3], ia[ii+4]);
+  break;
+     case RenderTiles.DrawPixels:
+  drawPixels(da[di], da[di+1], da[di+2],
+      ia[ii], ia[ii+1], (int[])oa[oi], ia[ii+2]);
+  break;
+     case RenderTiles.DrawDot:
+  drawDot(ia[ii], ia[ii+1], ia[ii+2], ia[ii+3]);
+  break;
+     case RenderTiles.DrawZPixel:
+  setPixel(ia[ii], ia[ii+1], ia[ii+2], ia[ii+3]);
+  break;
+     case RenderTiles.DrawPixel:
+  setPixel(ia[ii], ia[ii+1], ia[ii+2]);
+  break;
+     case RenderTiles.DrawObject:
+  // followed by the triangles in the tile
+  TileObject o = (TileObject)oa[oi];
+  int count = entries[++e];
+  if(count >= 0){
+      tileTriangles = entries;
+      tileTriangleFirst = e + 1;
+      tileTriangleCount = count;
+      e += count;
+  }
+  useTransform(o);
+  renderTmeshObject(o.tmesh);
+  tileTriangles = null;
+  break;
+     case RenderTiles.DrawTransparentSpheres:
+  int order[] = (int[])oa[oi];
+  drawTransparentSpheres(order, order.length);
+  break;
+     case RenderTiles.ResolveFragments:
+  resolveFragments();
+  break;
+     default:
+  Log.error("unknown tile operation " + op[i]);
+  return;
+     }
+ }
+    }
+
     /** Draw the logo if there is one displayed. */
     private void drawLogo(){
  if(logo != null){
@@ -9164,24 +9933,77 @@ if (dy <= dx) {
     /**
      * Resize the renderer.
      * Only reallocate the buffers if the window
-     * gets bigger.
+     * gets bigger. The buffers come from and go
+     * back to the PixelBufferPool.
      */
     public void setSize(int width, int height){
  pixelWidth = width;
  pixelHeight = height;
  pixelCount = pixelWidth * pixelHeight;
 
+ resetClip();
+
  if(pbuffer == null ||
     pbuffer.length < pixelCount ||
     antialias){
-     pbuffer = new int[pixelCount];
-     zbuffer = new int[pixelCount];
+     // when antialiasing the current buffers may be
+     // the antialias buffers, which we keep
+     if(pbuffer != apbuffer){
+  PixelBufferPool.release(pbuffer);
+  PixelBufferPool.release(zbuffer);
+     }
+
+     if(opbuffer != null && opbuffer != pbuffer){
+  PixelBufferPool.release(opbuffer);
+  PixelBufferPool.release(ozbuffer);
+     }
+
+     opbuffer = null;
+     ozbuffer = null;
+
+     pbuffer = PixelBufferPool.acquire(pixelCount);
+     zbuffer = PixelBufferPool.acquire(pixelCount);
      //apbuffer = null;
      //azbuffer = null;
      antialiasModeChanged = true;
  }
     }
 
+    /**
+     * Give the pixel and z-buffers back to the PixelBufferPool.
+     * The renderer needs setSize() again before it is used.
+     */
+    public void releaseBuffers(){
+ if(opbuffer != null && opbuffer != pbuffer){
+     PixelBufferPool.release(opbuffer);
+     PixelBufferPool.release(ozbuffer);
+ }
+
+ if(apbuffer != null && apbuffer != pbuffer){
+     PixelBufferPool.release(apbuffer);
+     PixelBufferPool.release(azbuffer);
+ }
+
+ PixelBufferPool.release(pbuffer);
+ PixelBufferPool.release(zbuffer);
+
+ pbuffer = null;
+ zbuffer = null;
+ opbuffer = null;
+ ozbuffer = null;
+ apbuffer = null;
+ azbuffer = null;
+
+ fragmentHead = null;
+ fragments.release();
+
+ if(tileRenderer != null){
+     tileRenderer.release();
+ }
+
+ antialiasModeChanged = true;
+    }
+
     /** The numbe of samples along each axis. */
     private int samples = 1;
 
@@ -9313,10 +10135,12 @@ if (dy <= dx) {
     private static final double fastSqrt(double d){
  try {
      if(sqrtTable == null){
-  sqrtTable = new double[10000];
+  // fill before publishing, tile workers may get here together
+  double table[] = new double[10000];
   for(int i = 0; i < 10000; i++){
-      sqrtTable[i] = Math.sqrt(i);
+      table[i] = Math.sqrt(i);
   }
+  sqrtTable = table;
      }
 
      return sqrtTable[(int)d];
@@ -9337,15 +10161,12 @@ if (dy <= dx) {
  }
 
  // clear out any sphere bit map caches.
- for(int i = 0; i < MaxCache; i++){
-     szCache[i] = null;
-     scCache[i] = null;
- }
+ sphereCache.clear();
+
  for(int i = 0; i < colorMapCacheSize; i++){
      colorMapCache[i] = null;
  }
 
- cacheCount = 0;
  colorMapCacheCount = 0;
  color = 0;
 
@@ -9409,7 +10230,7 @@ if (dy <= dx) {
     public void setPowFactor(double d){
         powFactor = d;
         lightMapCalculated = false;
-        cacheCount = 0;
+        sphereCache.clear();
     }
 
     public double powFactor = 1.0;
@@ -9418,7 +10239,7 @@ if (dy <= dx) {
         wrapAngle = d;
         cosWrapAngle = Math.cos(wrapAngle);
         lightMapCalculated = false;
-        cacheCount = 0;
+        sphereCache.clear();
     }
 
     public double wrapAngle = -1.0;
@@ -9563,6 +10384,64 @@ if (dy <= dx) {
     private static int VMinClip = 256;
     private static int VMaxClip = 512;
     private static int NormalClip = 1024;
+
+    /**
+     * Benchmark for transparent spheres.
+     *
+     * Draws frames of randomly placed transparent spheres packed
+     * as densely as the atoms in a protein and reports the time
+     * per frame for each number of spheres. A transparency of 255
+     * draws opaque spheres, which use the sphere cache.
+     *
+     * java astex.Renderer [maxSpheres [transparency]]
+     */
+    public static void main(String args[]){
+ int maxSpheres = 20000;
+ int transparency = 128;
+
+ if(args.length > 0){
+     maxSpheres = FILE.readInteger(args[0]);
+ }
+
+ if(args.length > 1){
+     transparency = FILE.readInteger(args[1]);
+ }
+
+ Renderer r = new Renderer();
+ r.setSize(600, 600);
+
+ java.util.Random rnd = new java.util.Random(1);
+
+ for(int n = 1250; n <= maxSpheres; n *= 2){
+     // about 11A^3 per atom
+     double edge = Math.pow(11.0 * n, 1.0/3.0);
+
+     r.setRadius(0.6 * edge);
+     r.setClip(edge);
+
+     long then = System.currentTimeMillis();
+
+     r.redraw();
+
+     for(int i = 0; i < n; i++){
+  r.drawSphere(edge * (rnd.nextDouble() - 0.5),
+        edge * (rnd.nextDouble() - 0.5),
+        edge * (rnd.nextDouble() - 0.5),
+        1.5 + 0.4 * rnd.nextDouble(),
+        Color32.white, transparency);
+     }
+
+     r.drawObjects();
+     r.postProcess();
+
+     long now = System.currentTimeMillis();
+
+     FILE.out.print("%6d spheres ", n);
+     FILE.out.print("%6d ms ", (int)(now - then));
+     FILE.out.print("sphere cache %d hits ", r.getSphereCacheHits());
+     FILE.out.print("%d misses\n", r.getSphereCacheMisses());
+ }
+    }
 }
 
 /**
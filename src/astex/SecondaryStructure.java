@@ -19,8 +19,22 @@ package astex;
 
 /**
  * Class for assigning secondary structure to a protein molecule.
+ *
+ * Each SecondaryStructure object holds the working space for one
+ * molecule, so several molecules can be assigned at once. The
+ * mainchain hydrogen bond energies are the slow part for big
+ * molecules. The donor residues are shared out between threads,
+ * each thread only recording the hydrogen bonds of its own
+ * residues.
  */
-public class SecondaryStructure {
+public class SecondaryStructure implements Runnable {
+    /** Default number of threads used to find the hydrogen bonds. */
+    public static int defaultThreads =
+	Settings.getInteger("config", "secstruc.threads", 1);
+
+    /** Molecules with fewer residues than this use one thread. */
+    private static final int MinimumThreadedResidues = 512;
+
     /** Cut off for NH...O distance. */
     private static double MaxHBondDistance = 5.5;
 
@@ -40,49 +54,90 @@ public class SecondaryStructure {
 	return tm;
     }
 
-    // static workspace for secondary structure assignment
-    private static final int MaxResidues = 10000;
+    /** Assign secondary structure for this molecule. */
+    public static void assignMolecule(Molecule mol){
+	int types[] = new SecondaryStructure().getTypes(mol);
+	int nres = 0;
 
-    private static Residue residues[]  = new Residue[MaxResidues];
-    private static Point3d hpos[]      = new Point3d[MaxResidues];
-    private static Atom opos[]         = new Atom[MaxResidues];
-    private static int types[]         = new int[MaxResidues];
-    private static int mapping[]       = new int[MaxResidues];
-    private static IntArray hbond_no[] = new IntArray[MaxResidues];
-    private static IntArray hbond_on[] = new IntArray[MaxResidues];
+	for(int c = 0; c < mol.getChainCount(); c++){
+	    Chain chain = mol.getChain(c);
+	    int residueCount = chain.getResidueCount();
+
+	    for(int r = 0; r < residueCount; r++){
+		Residue res = (Residue)chain.getResidue(r);
+		res.setSecondaryStructure(types[nres++]);
+	    }
+	}
+    }
+
+    // workspace for secondary structure assignment
+    private Residue residues[]  = null;
+    private Point3d hpos[]      = null;
+    private Atom opos[]         = null;
+    private int types[]         = null;
+    private int mapping[]       = null;
+    private IntArray hbond_no[] = null;
+    private IntArray hbond_on[] = null;
 
     // number of residues including gaps in molecule.
-    private static int nres = 0;
+    private int nres = 0;
+
+    /** The lattice of the amide oxygens. */
+    private Lattice ol = null;
+
+    /** The hydrogen bond energy parameters. */
+    private double hbondConstant = 0.0;
+    private double hbondCutoff = 0.0;
+
+    /** The donor residues a thread looks at. */
+    private int firstResidue = 0;
+    private int lastResidue = 0;
 
     public static boolean debug = false;
 
-    /** Assign secondary structure for this molecule. */
-    public static void assignMolecule(Molecule mol){
+    /**
+     * Return the secondary structure types of the residues of the
+     * molecule, chain by chain. The residues are not changed.
+     */
+    public int[] getTypes(Molecule mol){
 	Arguments args        = new Arguments();
-	double hbondConstant  = args.getDouble("hbond.constant", -999.0);
-	double hbondCutoff    = args.getDouble("hbond.cutoff", -999.0);
+	hbondConstant         = args.getDouble("hbond.constant", -999.0);
+	hbondCutoff           = args.getDouble("hbond.cutoff", -999.0);
 
 	//System.out.println("hbondCutoff " + hbondCutoff);
 
+	int chainCount = mol.getChainCount();
+	int realResidues = 0;
+
+	for(int c = 0; c < chainCount; c++){
+	    realResidues += mol.getChain(c).getResidueCount();
+	}
+
+	// 4 residue gaps after each chain
+	int maxResidues = realResidues + 4 * chainCount;
+
+	residues = new Residue[maxResidues];
+	hpos     = new Point3d[maxResidues];
+	opos     = new Atom[maxResidues];
+	types    = new int[maxResidues];
+	mapping  = new int[realResidues];
+	hbond_no = new IntArray[maxResidues];
+	hbond_on = new IntArray[maxResidues];
+
 	nres = 0;
 	int realRes = 0;
 
-	int chainCount = mol.getChainCount();
-
 	for(int c = 0; c < chainCount; c++){
 	    Chain chain = mol.getChain(c);
 	    int residueCount = chain.getResidueCount();
 	    for(int r = 0; r < residueCount; r++){
 		Residue res = (Residue)chain.getResidue(r);
 
-		//assignInitialType(res);
-		res.setSecondaryStructure(Residue.Coil);
-
 		// need to assign gaps here to 
 		// stop helix hbonds being fooled by gaps
 
 		residues[nres] = res;
-		types[nres] = res.getSecondaryStructure();
+		types[nres] = Residue.Coil;
 		hbond_no[nres] = new IntArray();
 		hbond_on[nres] = new IntArray();
 		hpos[nres] = null;
@@ -116,9 +171,7 @@ public class SecondaryStructure {
 
 	//Util.startTimer(0);
 
-	IntArray neighbours = new IntArray();
-
-	Lattice ol = new Lattice(MaxHBondDistance * 1.05);
+	ol = new Lattice(MaxHBondDistance * 1.05);
 
 	for(int r2 = 0; r2 < nres; r2++){
 	    if(opos[r2] != null){
@@ -129,52 +182,7 @@ public class SecondaryStructure {
 
 	//System.out.println("lattice created");
 
-	// assign mainchain hydrogen bonds.
-	for(int r1 = 0; r1 < nres; r1++){
-	    // NH...O
-	    Point3d h = hpos[r1];
-	    if(h != null){
-		Atom n = residues[r1].getAtom("N");
-
-		neighbours.removeAllElements();
-
-		ol.getPossibleNeighbours(r1, n.x, n.y, n.z,
-					 neighbours, true);
-
-		int neighbourCount = neighbours.size();
-
-		for(int i = 0; i < neighbourCount; i++){
-		    int oid = neighbours.get(i);
-		    Atom o = opos[oid];
-		    
-		    if(o != null){
-			Atom c = o.getBondedAtom("C");
-
-			double e = MoleculeRenderer.hbondEnergy(n, h, o, c, hbondConstant);
-
-			if(e < hbondCutoff){
-			    
-			    hbond_no[r1].add(oid);
-			    hbond_on[oid].add(r1);
-			    
-			    if(debug){
-				int rid1 = residues[r1].getNumber();
-				int rid2 = residues[oid].getNumber();
-				System.out.println("adding NH..O " +
-						   residues[r1] + " to " +
-						   residues[oid] + " d=" + o.distance(h));
-				
-				//tm.addCylinder(h.x, h.y, h.z,
-				//	       opos[oid].x, opos[oid].y, opos[oid].z,
-				//	       0.1, Color32.white, Color32.white);
-			    }
-			}
-		    }else{
-			Log.error("shouldn't be a null reference in o lattice");
-		    }
-		}
-	    }
-	}
+	findHBonds();
 
 	//Util.stopTimer("hydrogen bond calculation %5dms\n", 0);
 
@@ -315,23 +323,116 @@ public class SecondaryStructure {
 	// regularise the assignments
 	regulariseSS(types, nres);
 
-	nres = 0;
-	    
-	// gather the initial assignments.
-	for(int c = 0; c < chainCount; c++){
-	    Chain chain = mol.getChain(c);
-	    int residueCount = chain.getResidueCount();
+	int result[] = new int[realResidues];
 
-	    // copy them back
-	    for(int r = 0; r < residueCount; r++){
-		Residue res = (Residue)chain.getResidue(r);
-		//System.out.println(types[mapping[nres]] + " "+ res);
-		res.setSecondaryStructure(types[mapping[nres++]]);
+	for(int r = 0; r < realResidues; r++){
+	    result[r] = types[mapping[r]];
+	}
+
+	return result;
+    }
+
+    /**
+     * Find the mainchain hydrogen bonds, sharing the
+     * donor residues out between threads.
+     */
+    private void findHBonds(){
+	int threads = defaultThreads;
+
+	if(nres < MinimumThreadedResidues || threads < 1){
+	    threads = 1;
+	}
+
+	SecondaryStructure searches[] = new SecondaryStructure[threads];
+	Thread searchThreads[] = new Thread[threads];
+	int residuesPerThread = (nres + threads - 1) / threads;
+
+	for(int i = 0; i < threads; i++){
+	    SecondaryStructure s = new SecondaryStructure();
+	    s.residues = residues;
+	    s.hpos = hpos;
+	    s.opos = opos;
+	    s.hbond_no = hbond_no;
+	    s.nres = nres;
+	    s.ol = ol;
+	    s.hbondConstant = hbondConstant;
+	    s.hbondCutoff = hbondCutoff;
+	    s.firstResidue = Math.min(i * residuesPerThread, nres);
+	    s.lastResidue = Math.min((i + 1) * residuesPerThread, nres);
+	    searches[i] = s;
+	}
+
+	// this thread does the first share itself
+	for(int i = 1; i < threads; i++){
+	    searchThreads[i] = new Thread(searches[i]);
+	    searchThreads[i].start();
+	}
+
+	searches[0].run();
+
+	for(int i = 1; i < threads; i++){
+	    try {
+		searchThreads[i].join();
+	    }catch(InterruptedException e){
+		Log.error("interrupted waiting for hbond search " + i);
+	    }
+	}
+
+	// the reverse lists in the same order as one thread
+	for(int r1 = 0; r1 < nres; r1++){
+	    int hbondCount = hbond_no[r1].size();
+
+	    for(int hb = 0; hb < hbondCount; hb++){
+		hbond_on[hbond_no[r1].get(hb)].add(r1);
+	    }
+	}
+    }
+
+    /** Assign mainchain hydrogen bonds for our donor residues. */
+    public void run(){
+	IntArray neighbours = new IntArray();
+
+	for(int r1 = firstResidue; r1 < lastResidue; r1++){
+	    // NH...O
+	    Point3d h = hpos[r1];
+	    if(h != null){
+		Atom n = residues[r1].getAtom("N");
+
+		neighbours.removeAllElements();
+
+		ol.getPossibleNeighbours(r1, n.x, n.y, n.z,
+					 neighbours, true);
+
+		int neighbourCount = neighbours.size();
+
+		for(int i = 0; i < neighbourCount; i++){
+		    int oid = neighbours.get(i);
+		    Atom o = opos[oid];
+		    
+		    if(o != null){
+			Atom c = o.getBondedAtom("C");
+
+			double e = MoleculeRenderer.hbondEnergy(n, h, o, c, hbondConstant);
+
+			if(e < hbondCutoff){
+			    
+			    hbond_no[r1].add(oid);
+			    
+			    if(debug){
+				System.out.println("adding NH..O " +
+						   residues[r1] + " to " +
+						   residues[oid] + " d=" + o.distance(h));
+			    }
+			}
+		    }else{
+			Log.error("shouldn't be a null reference in o lattice");
+		    }
+		}
 	    }
 	}
     }
 
-    private static void assignSheetType(int r){
+    private void assignSheetType(int r){
 	if(r >= 0 && r < nres &&
 	   (types[r] == Residue.Coil || types[r] == Residue.Sheet)){
 	    types[r] = Residue.Sheet;
@@ -339,7 +440,7 @@ public class SecondaryStructure {
     }
 
     /** Is there a mainchain h-bond from O to N of the two residues. */
-    private static boolean hbonded(int ri, int rj){
+    private boolean hbonded(int ri, int rj){
 	if(ri < 0 || ri >= nres || rj < 0 || rj >= nres){
 	    return false;
 	}
@@ -391,7 +492,7 @@ public class SecondaryStructure {
 	return hpos;
     }
 
-    private static void regulariseSS(int types[], int n){
+    private void regulariseSS(int types[], int n){
 	// single residue gaps in sheets/helix
 	for(int r = 1; r < n - 1; r++){
 	    if(types[r] == Residue.Coil &&
@@ -20,6 +20,10 @@ package astex;
 /* Copyright Astex Technology Ltd. 1999 */
 
 /*
+ * 18-10-26
+ *	selection masks are SelectionMask bitsets that come
+ *	from a pool kept by each MoleculeRenderer. and() and
+ *	or() give their second mask back to the pool.
  * 25-04-01 mjh
  *	created
  */
@@ -72,35 +76,47 @@ public class Selection {
         }
     }
 
-    private static DynamicArray selectionMaskCache = new DynamicArray(10);
+    /** Most idle masks kept in the pool of each renderer. */
+    private static final int MaximumPooledMasks = 16;
 
-    /** Generate a new selection mask. */
-    private static byte[] generateSelectionMask(MoleculeRenderer r){
+    /** Get a clear selection mask from the renderer's pool. */
+    private static SelectionMask generateSelectionMask(MoleculeRenderer r){
 	int atomCount = r.getAtomCount();
+	DynamicArray pool = r.selectionMaskPool;
+	SelectionMask mask = null;
 
-	int cacheCount = selectionMaskCache.size();
+	synchronized(pool){
+	    int poolCount = pool.size();
 
-	//System.out.println("selectionMaskCache size " + cacheCount);
-
-	if(false){
-	    if(cacheCount > 0){
-		byte mask[] = (byte [])selectionMaskCache.get(cacheCount - 1);
-		selectionMaskCache.removeElement(cacheCount - 1);
-		
-		if(mask.length >= atomCount){
-		    System.out.println("reusing cached mask");
-		    for(int i = 0; i < atomCount; i++){
-			mask[i] = 0;
-		    }
-		    return mask;
-		}
+	    if(poolCount > 0){
+		mask = (SelectionMask)pool.get(poolCount - 1);
+		pool.removeElement(poolCount - 1);
 	    }
 	}
 
-	// otherwise allocate one that is big enough
-	// for a molecule twice as big.
-	//return new byte[atomCount * 2];
-	return new byte[atomCount];
+	if(mask == null){
+	    mask = new SelectionMask();
+	    mask.pool = pool;
+	}
+
+	mask.setSize(atomCount);
+
+	return mask;
+    }
+
+    /** Give a selection mask that is no longer needed back to its pool. */
+    public static void release(SelectionMask mask){
+	DynamicArray pool = mask.pool;
+
+	if(pool == null){
+	    return;
+	}
+
+	synchronized(pool){
+	    if(pool.size() < MaximumPooledMasks && !pool.contains(mask)){
+		pool.add(mask);
+	    }
+	}
     }
 
     /** Greater than attribute. */
@@ -121,8 +137,6 @@ public class Selection {
     /** Not equal attribute. */
     public static final int NE = 5;
 
-    private static Atom atomArray[] = null;
-
     /** Cache for DynamicArray that will return selected atoms. */
     public static DynamicArray dynamicArrayCache =
 	new DynamicArray();
@@ -141,83 +155,39 @@ public class Selection {
     }
 
     /** Return a DynamicArray from a selection mask. */
-    public static synchronized DynamicArray maskToArray(MoleculeRenderer r,
-							byte mask[]){
-	int atomCount = r.getAtomCount();
-
-	// figure out how many atoms are needed in the DynamicArray
-	// so they can all be allocated in one go.
-	if(atomArray == null || atomArray.length < atomCount){
-	    atomArray = new Atom[atomCount];
-	}
-
-	AtomIterator iterator = r.getAtomIterator();
-	int count = 0;
-	int atomArrayCount = 0;
-
-	while(iterator.hasMoreElements()){
-	    Atom atom = iterator.getNextAtom();
-	    if(mask[count++] > 0){
-		atomArray[atomArrayCount++] = atom;
-	    }
-	}
-
-	if(count != atomCount){
-	    System.out.println("Selection.maskToArray() count != atomCount");
-	}
-
-	int arrayCacheCount = dynamicArrayCache.size();
-
-	DynamicArray selected = null;
-
-	//System.out.println("dynamicArrayCache.size() " + arrayCacheCount);
-
-	//System.out.println("searching for array of size " + atomArrayCount);
+    public static DynamicArray maskToArray(MoleculeRenderer r,
+					   SelectionMask mask){
+	DynamicArray selected = new DynamicArray(mask.cardinality() + 1);
+	int moleculeCount = r.getMoleculeCount();
+	int first = 0;
 
-	if(false){
-	    //for(int i = arrayCacheCount - 1; i >= 0; i--){
-	    for(int i = 0; i < arrayCacheCount; i++){
-		DynamicArray da = (DynamicArray)dynamicArrayCache.get(i);
-		Object daArray[] = da.getArray();
-	    
-		//if(daArray != null){
-		//System.out.println(i + " daArray.length " + daArray.length);
-		//}
+	// step over the set bits molecule by molecule
+	for(int m = 0; m < moleculeCount; m++){
+	    Molecule mol = r.getMolecule(m);
+	    Object atoms[] = mol.getAtomArray();
+	    int last = first + mol.getAtomCount();
 
-		if(daArray != null && daArray.length >= atomArrayCount){
-		    da.removeAllElements();
-		    dynamicArrayCache.removeElement(i);
-		    selected = da;
-		    //System.out.println("reusing dynamicArrayCache " + i);
-		    break;
-		}
+	    for(int i = mask.nextSetBit(first);
+		i != -1 && i < last; i = mask.nextSetBit(i + 1)){
+		selected.add(atoms[i - first]);
 	    }
-	}
-
-	if(selected == null){
-	    selected = new DynamicArray(atomArrayCount*2);
-	    //dynamicArrayCache.add(selected);
-	}
 
-	if(selected.size() != 0){
-	    System.out.println("Selection.maskToArray() initial size != 0");
+	    first = last;
 	}
 
-	for(int i = 0; i < atomArrayCount; i++){
-	    selected.add(atomArray[i]);
+	if(first != mask.size()){
+	    System.out.println("Selection.maskToArray() count != atomCount");
 	}
 
-	//selectionMaskCache.add(mask);
-
 	return selected;
     }
 
     /** Return a mask from a DynamicArray. */
-    public static byte[] arrayToMask(MoleculeRenderer r,
+    public static SelectionMask arrayToMask(MoleculeRenderer r,
 				     DynamicArray selectedAtoms){
 	int count = 0;
 	AtomIterator iterator = r.getAtomIterator();
-	byte mask[] = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	int selectedAtomCount = selectedAtoms.size();
 
 	while(iterator.hasMoreElements()){
@@ -235,9 +205,7 @@ public class Selection {
 	while(iterator.hasMoreElements()){
 	    Atom atom = iterator.getNextAtom();
 	    if(atom.isTemporarilySelected()){
-		mask[count] = 1;
-	    }else{
-		mask[count] = 0;
+		mask.set(count);
 	    }
 
 	    count++;
@@ -252,33 +220,23 @@ public class Selection {
     }
 
     /** Select all the atoms. */
-    public static byte[] all(MoleculeRenderer r){
-	byte mask[] = generateSelectionMask(r);
-	int atomCount = mask.length;
+    public static SelectionMask all(MoleculeRenderer r){
+	SelectionMask mask = generateSelectionMask(r);
 
-	for(int i = 0; i < atomCount; i++){
-	    mask[i] = 1;
-	}
+	mask.setAll();
 
 	return mask;
     }
 
     /** Select all the atoms. */
-    public static byte[] none(MoleculeRenderer r){
-	byte mask[] = generateSelectionMask(r);
-	int atomCount = mask.length;
-
-	for(int i = 0; i < atomCount; i++){
-	    mask[i] = 0;
-	}
-
-	return mask;
+    public static SelectionMask none(MoleculeRenderer r){
+	return generateSelectionMask(r);
     }
 
     /** Select on the basis of an attribute. */
-    public static byte[] attribute(MoleculeRenderer r, int attribute, int operator,
+    public static SelectionMask attribute(MoleculeRenderer r, int attribute, int operator,
 				   double value){
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	AtomIterator iterator = r.getAtomIterator();
 	int count = 0;
 
@@ -287,12 +245,12 @@ public class Selection {
 	    double d = atom.getAttribute(attribute);
 
 	    switch(operator){
-	    case GT: mask[count] = (byte)((d > value) ? 1 : 0); break;
-	    case GE: mask[count] = (byte)((d >= value) ? 1 : 0); break;
-	    case LT: mask[count] = (byte)((d < value) ? 1 : 0); break;
-	    case LE: mask[count] = (byte)((d <= value) ? 1 : 0); break;
-	    case EQ: mask[count] = (byte)((d == value) ? 1 : 0); break;
-	    case NE: mask[count] = (byte)((d != value) ? 1 : 0); break;
+	    case GT: mask.set(count, d > value); break;
+	    case GE: mask.set(count, d >= value); break;
+	    case LT: mask.set(count, d < value); break;
+	    case LE: mask.set(count, d <= value); break;
+	    case EQ: mask.set(count, d == value); break;
+	    case NE: mask.set(count, d != value); break;
 	    default:
 		System.out.println("attribute: unknown operator " + operator);
 		break;
@@ -304,7 +262,7 @@ public class Selection {
     }
 
     /** Select a set of atoms on the basis of ids. */
-    public static byte[] residue2(MoleculeRenderer r, Vector ids){
+    public static SelectionMask residue2(MoleculeRenderer r, Vector ids){
 	int minId = 1000000;
 	int maxId = -1000000;
 	int idCount = ids.size();
@@ -319,7 +277,7 @@ public class Selection {
 	    }
 	}
 
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	AtomIterator iterator = r.getAtomIterator();
 	int count = 0;
 
@@ -335,7 +293,7 @@ public class Selection {
 		    int range[] = (int[])ids.elementAt(i);
 		    if(number >= range[0] &&
 		       number <= range[1]){
-			mask[count] = 1;
+			mask.set(count);
 			break;
 		    }
 		}
@@ -348,7 +306,7 @@ public class Selection {
     }
 
     /** Select a set of atoms on the basis of ids. */
-    public static byte[] residue(MoleculeRenderer r, Vector ids){
+    public static SelectionMask residue(MoleculeRenderer r, Vector ids){
 	int minId = 1000000;
 	int maxId = -1000000;
 	int idCount = ids.size();
@@ -363,7 +321,7 @@ public class Selection {
 	    }
 	}
 
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	int count = 0;
 
 	// this can be done much more efficiently
@@ -404,13 +362,10 @@ public class Selection {
 		    int residueAtomCount = res.getAtomCount();
 
 		    if(match == 1){
-			for(int a = 0; a < residueAtomCount; a++){
-			    mask[count] = (byte)match;
-			    count++;
-			}
-		    }else{
-			count += residueAtomCount;
+			mask.set(count, count + residueAtomCount);
 		    }
+
+		    count += residueAtomCount;
 		}
 	    }
 	}
@@ -419,8 +374,8 @@ public class Selection {
     }
 
     /** Select a set of atoms on the basis of ids. */
-    public static byte[] modulo(MoleculeRenderer r, int n){
-	byte[] mask = generateSelectionMask(r);
+    public static SelectionMask modulo(MoleculeRenderer r, int n){
+	SelectionMask mask = generateSelectionMask(r);
 	int count = 0;
 
 	// this can be done much more efficiently
@@ -450,13 +405,10 @@ public class Selection {
 		    int residueAtomCount = res.getAtomCount();
 
 		    if(match == 1){
-			for(int a = 0; a < residueAtomCount; a++){
-			    mask[count] = (byte)match;
-			    count++;
-			}
-		    }else{
-			count += residueAtomCount;
+			mask.set(count, count + residueAtomCount);
 		    }
+
+		    count += residueAtomCount;
 		}
 	    }
 	}
@@ -466,10 +418,10 @@ public class Selection {
 
     /** Select a set of atoms on the basis of hierarchy like PyMol. */
     /*
-    public static byte[] hierarchy(MoleculeRenderer r, Vector ids){
+    public static SelectionMask hierarchy(MoleculeRenderer r, Vector ids){
 	int idCount = ids.size();
 
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	int count = 0;
 
 	Stack selectionStack = new Stack();
@@ -480,10 +432,10 @@ public class Selection {
     */
 
     /** Select a set of atoms on the basis of ids. */
-    public static byte[] composite(MoleculeRenderer r, Vector ids){
+    public static SelectionMask composite(MoleculeRenderer r, Vector ids){
 	int idCount = ids.size();
 
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	int count = 0;
 
 	Stack selectionStack = new Stack();
@@ -527,9 +479,9 @@ public class Selection {
 		return mask;
 	    }
 
-	    byte chainMask[] = null;
-	    byte residueMask[] = null;
-	    byte insertionMask[] = null;
+	    SelectionMask chainMask = null;
+	    SelectionMask residueMask = null;
+	    SelectionMask insertionMask = null;
 	    Vector v = new Vector();
 
 	    if(chainBuffer.length() > 0){
@@ -551,7 +503,7 @@ public class Selection {
 		insertionMask = insertion(r, insertionBuffer.toString());
 	    }
 
-	    byte comp[] = null;
+	    SelectionMask comp = null;
 
 	    if(chainMask != null){
 		comp = and(chainMask, residueMask);
@@ -565,6 +517,8 @@ public class Selection {
 		comp = and(comp, insertionMask);
 	    }
 
+	    release(mask);
+
 	    return comp;
 	}
 	
@@ -572,7 +526,7 @@ public class Selection {
     }
 
     /** Select a set of atoms on the basis of ids. */
-    public static byte[] sequential(MoleculeRenderer r, Vector ids){
+    public static SelectionMask sequential(MoleculeRenderer r, Vector ids){
 	int minId = 1000000;
 	int maxId = -1000000;
 	int idCount = ids.size();
@@ -587,7 +541,7 @@ public class Selection {
 	    }
 	}
 
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	int count = 0;
 
 	// this can be done much more efficiently
@@ -617,13 +571,10 @@ public class Selection {
 		    int residueAtomCount = res.getAtomCount();
 
 		    if(match == 1){
-			for(int a = 0; a < residueAtomCount; a++){
-			    mask[count] = (byte)match;
-			    count++;
-			}
-		    }else{
-			count += residueAtomCount;
+			mask.set(count, count + residueAtomCount);
 		    }
+
+		    count += residueAtomCount;
 		}
 	    }
 	}
@@ -632,10 +583,10 @@ public class Selection {
     }
 
     /** Select a set of atoms on the basis of insertion code. */
-    public static byte[] insertion(MoleculeRenderer r, String insertionCode){
+    public static SelectionMask insertion(MoleculeRenderer r, String insertionCode){
 	char icode = insertionCode.charAt(0);
 
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	int count = 0;
 
 	// this can be done much more efficiently
@@ -657,14 +608,11 @@ public class Selection {
 		    int residueAtomCount = res.getAtomCount();
 
 		    if(match == 1){
-			// array should be cleared to 0's
-			for(int a = 0; a < residueAtomCount; a++){
-			    mask[count] = (byte)match;
-			    count++;
-			}
-		    }else{
-			count += residueAtomCount;
+			// mask starts cleared
+			mask.set(count, count + residueAtomCount);
 		    }
+
+		    count += residueAtomCount;
 		}
 	    }
 	}
@@ -673,10 +621,10 @@ public class Selection {
     }
 
     /** Select a set of atoms on the basis of molecule name. */
-    public static byte[] molecule(MoleculeRenderer r, Vector ids){
+    public static SelectionMask molecule(MoleculeRenderer r, Vector ids){
 	int idCount = ids.size();
 
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	int count = 0;
 
 	// this can be done much more efficiently
@@ -702,22 +650,20 @@ public class Selection {
 	    int atomCount = mol.getAtomCount();
 
 	    if(matched == 1){
-		for(int a = 0; a < atomCount; a++){
-		    mask[count++] = 1;
-		}
-	    }else{
-		count += atomCount;
+		mask.set(count, count + atomCount);
 	    }
+
+	    count += atomCount;
 	}
 
 	return mask;
     }
 
     /** Select a set of atoms on the basis of molecule name. */
-    public static byte[] moleculeExact(MoleculeRenderer r, Vector ids){
+    public static SelectionMask moleculeExact(MoleculeRenderer r, Vector ids){
 	int idCount = ids.size();
 
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	int count = 0;
 
 	// this can be done much more efficiently
@@ -735,37 +681,22 @@ public class Selection {
 	    int atomCount = mol.getAtomCount();
 
 	    if(matched == 1){
-		for(int a = 0; a < atomCount; a++){
-		    mask[count++] = 1;
-		}
-	    }else{
-		count += atomCount;
+		mask.set(count, count + atomCount);
 	    }
+
+	    count += atomCount;
 	}
 
 	return mask;
     }
 
     /** Select a set of atoms on the basis of residue names. */
-    public static byte[] byresidue(MoleculeRenderer r, byte mask[]){
-
-	AtomIterator iterator = r.getAtomIterator();
+    public static SelectionMask byresidue(MoleculeRenderer r,
+					  SelectionMask mask){
 	int count = 0;
-
-	while(iterator.hasMoreElements()){
-	    Atom atom = iterator.getNextAtom();
-	    if(mask[count] == 0){
-		atom.setTemporarilySelected(false);
-	    }else{
-		atom.setTemporarilySelected(true);
-	    }
-
-	    count++;
-	}
-
-	count = 0;
 	int moleculeCount = r.getMoleculeCount();
 
+	// the atoms of a residue are a run of bits in the mask
 	for(int m = 0; m < moleculeCount; m++){
 	    Molecule mol = r.getMolecule(m);
 	    int chainCount = mol.getChainCount();
@@ -776,21 +707,14 @@ public class Selection {
 
 		for(int rr = 0; rr < residueCount; rr++){
 		    Residue residue = chain.getResidue(rr);
-		    int atomCount = residue.getAtomCount();
-		    int residueSelected = 0;
+		    int last = count + residue.getAtomCount();
+		    int selected = mask.nextSetBit(count);
 
-		    for(int a = 0; a < atomCount; a++){
-			Atom atom = residue.getAtom(a);
-			if(atom.isTemporarilySelected()){
-			    residueSelected = 1;
-			    break;
-			}
+		    if(selected != -1 && selected < last){
+			mask.set(count, last);
 		    }
 
-		    for(int a = 0; a < atomCount; a++){
-			Atom atom = residue.getAtom(a);
-			mask[count++] = (byte)residueSelected;
-		    }
+		    count = last;
 		}
 	    }
 	}
@@ -799,7 +723,7 @@ public class Selection {
     }
 
     /** Select a set of atoms on the basis of residue names. */
-    public static byte[] bonded(MoleculeRenderer r, byte mask[]){
+    public static SelectionMask bonded(MoleculeRenderer r, SelectionMask mask){
 
         AtomIterator iterator = r.getAtomIterator();
 
@@ -816,7 +740,7 @@ public class Selection {
 
 	while(iterator.hasMoreElements()){
 	    Atom atom = iterator.getNextAtom();
-            if(mask[count] > 0){
+            if(mask.get(count)){
                 int bondCount = atom.getBondCount();
 
                 for(int b = 0; b < bondCount; b++){
@@ -836,7 +760,7 @@ public class Selection {
 	    Atom atom = iterator.getNextAtom();
 
             if(atom.isTemporarilySelected()){
-                mask[count] = 1;
+                mask.set(count);
             }
 
             count++;
@@ -846,10 +770,10 @@ public class Selection {
     }
 
     /** Select a set of atoms on the basis of residue names. */
-    public static byte[] name(MoleculeRenderer r, Vector ids){
+    public static SelectionMask name(MoleculeRenderer r, Vector ids){
 	int idCount = ids.size();
 
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	AtomIterator iterator = r.getAtomIterator();
 	int count = 0;
 
@@ -877,7 +801,7 @@ public class Selection {
 
 		    if(matched == 1){
 			for(int a = 0; a < residueAtomCount; a++){
-			    mask[count] = 1;
+			    mask.set(count);
 			    count++;
 			}
 		    }else{
@@ -891,10 +815,10 @@ public class Selection {
     }
 
     /** Select a set of atoms on the basis of residue names. */
-    public static byte[] chain(MoleculeRenderer r, Vector ids){
+    public static SelectionMask chain(MoleculeRenderer r, Vector ids){
 	int idCount = ids.size();
 
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	AtomIterator iterator = r.getAtomIterator();
 	int count = 0;
 
@@ -911,7 +835,7 @@ public class Selection {
 		    chainId = " ";
 		}
 		if(match.matches(chainId, name)){
-		    mask[count] = 1;
+		    mask.set(count);
 		    break;
 		}
 	    }
@@ -922,10 +846,10 @@ public class Selection {
     }
 
     /** Select a set of atoms on the basis of atom ids. */
-    public static byte[] atom(MoleculeRenderer r, Vector ids){
+    public static SelectionMask atom(MoleculeRenderer r, Vector ids){
 	int idCount = ids.size();
 
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	AtomIterator iterator = r.getAtomIterator();
 	int count = 0;
 
@@ -936,7 +860,7 @@ public class Selection {
 	    String name = atom.getAtomLabel();
 	    for(int i = 0; i < idCount; i++){
 		if(match.matches((String)ids.elementAt(i), name)){
-		    mask[count] = 1;
+		    mask.set(count);
 		    break;
 		}
 	    }
@@ -947,8 +871,8 @@ public class Selection {
     }
 
     /** Select a set of atoms in a group. */
-    public static byte[] group(MoleculeRenderer r, Hashtable group){
-	byte[] mask = generateSelectionMask(r);
+    public static SelectionMask group(MoleculeRenderer r, Hashtable group){
+	SelectionMask mask = generateSelectionMask(r);
 
 	AtomIterator iterator = r.getAtomIterator();
 
@@ -973,9 +897,9 @@ public class Selection {
 	while(iterator.hasMoreElements()){
 	    Atom atom = iterator.getNextAtom();
             if(atom.isTemporarilySelected()){
-                mask[count] = 1;
+                mask.set(count);
             }else{
-                mask[count] = 0;
+                mask.clear(count);
 	    }
 	    count++;
 	}
@@ -984,7 +908,7 @@ public class Selection {
     }
 
     /** Select a set of atoms on the basis of ids. */
-    public static byte[] id(MoleculeRenderer r, Vector ids){
+    public static SelectionMask id(MoleculeRenderer r, Vector ids){
 	int minId = 1000000;
 	int maxId = -1000000;
 	int idCount = ids.size();
@@ -999,7 +923,7 @@ public class Selection {
 	    }
 	}
 
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	AtomIterator iterator = r.getAtomIterator();
 	int count = 0;
 
@@ -1012,7 +936,7 @@ public class Selection {
 		    int range[] = (int[])ids.elementAt(i);
 		    if(number >= range[0] &&
 		       number <= range[1]){
-			mask[count] = 1;
+			mask.set(count);
 			break;
 		    }
 		}
@@ -1025,7 +949,7 @@ public class Selection {
     }
 
     /** Select a set of atoms on the basis of elements. */
-    public static byte[] element(MoleculeRenderer r, Vector ids){
+    public static SelectionMask element(MoleculeRenderer r, Vector ids){
 	int minId = 1000000;
 	int maxId = -1000000;
 	int idCount = ids.size();
@@ -1040,7 +964,7 @@ public class Selection {
 	    }
 	}
 
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	AtomIterator iterator = r.getAtomIterator();
 	int count = 0;
 
@@ -1053,7 +977,7 @@ public class Selection {
 		    int range[] = (int[])ids.elementAt(i);
 		    if(number >= range[0] &&
 		       number <= range[1]){
-			mask[count] = 1;
+			mask.set(count);
 			break;
 		    }
 		}
@@ -1066,8 +990,8 @@ public class Selection {
     }
 
     /** Return the current selection. */
-    public static byte[] current(MoleculeRenderer r){
-	byte[] mask = generateSelectionMask(r);
+    public static SelectionMask current(MoleculeRenderer r){
+	SelectionMask mask = generateSelectionMask(r);
 	AtomIterator iterator = r.getAtomIterator();
 	int count = 0;
 
@@ -1075,9 +999,9 @@ public class Selection {
 	    Atom atom = iterator.getNextAtom();
 	    //System.out.println("atom.attributes " + (atom.attributes & Atom.Selected));
 	    if(atom.isSelected()){
-		mask[count] = 1;
+		mask.set(count);
 	    }else{
-		mask[count] = 0;
+		mask.clear(count);
 	    }
 	    count++;
 	}
@@ -1086,8 +1010,8 @@ public class Selection {
     }
 
     /** Return atoms that have the specified property. */
-    public static byte[] property(MoleculeRenderer r, int property){
-	byte[] mask = generateSelectionMask(r);
+    public static SelectionMask property(MoleculeRenderer r, int property){
+	SelectionMask mask = generateSelectionMask(r);
 	AtomIterator iterator = r.getAtomIterator();
 	int count = 0;
 
@@ -1096,9 +1020,9 @@ public class Selection {
 	while(iterator.hasMoreElements()){
 	    Atom atom = iterator.getNextAtom();
 	    if((atom.attributes & property) != 0){
-		mask[count] = 1;
+		mask.set(count);
 	    }else{
-		mask[count] = 0;
+		mask.clear(count);
 	    }
 	    count++;
 	}
@@ -1116,8 +1040,8 @@ public class Selection {
      * could result in atoms in turned off molecueles
      * getting changed unexpectedly.
      */
-    public static byte[] displayed(MoleculeRenderer r){
-	byte[] mask = generateSelectionMask(r);
+    public static SelectionMask displayed(MoleculeRenderer r){
+	SelectionMask mask = generateSelectionMask(r);
 	AtomIterator iterator = r.getAtomIterator();
 	int count = 0;
 
@@ -1129,12 +1053,12 @@ public class Selection {
 
 	    //if(mol.getDisplayed()){
 		if(atom.isDisplayed()){
-		    mask[count] = 1;
+		    mask.set(count);
 		}else{
-		    mask[count] = 0;
+		    mask.clear(count);
 		}
 		//}else{
-		//mask[count] = 0;
+		//mask.clear(count);
 		//}
 
 	    count++;
@@ -1144,8 +1068,8 @@ public class Selection {
     }
 
     /** Return the current selection. */
-    public static byte[] labelled(MoleculeRenderer r){
-	byte[] mask = generateSelectionMask(r);
+    public static SelectionMask labelled(MoleculeRenderer r){
+	SelectionMask mask = generateSelectionMask(r);
 	AtomIterator iterator = r.getAtomIterator();
 	int count = 0;
 
@@ -1154,9 +1078,9 @@ public class Selection {
 	while(iterator.hasMoreElements()){
 	    Atom atom = iterator.getNextAtom();
 	    if(atom.isLabelled()){
-		mask[count] = 1;
+		mask.set(count);
 	    }else{
-		mask[count] = 0;
+		mask.clear(count);
 	    }
 	    count++;
 	}
@@ -1169,8 +1093,8 @@ public class Selection {
      * If any atoms are selected they are returned,
      * otherwise all atoms are returned.
      */
-    public static byte[] defaultSelection(MoleculeRenderer r){
-	byte[] mask = generateSelectionMask(r);
+    public static SelectionMask defaultSelection(MoleculeRenderer r){
+	SelectionMask mask = generateSelectionMask(r);
 	AtomIterator iterator = r.getAtomIterator();
 	int count = 0;
 	int selected = 0;
@@ -1181,27 +1105,24 @@ public class Selection {
 	    Atom atom = iterator.getNextAtom();
 	    if(atom.isSelected()){
 		selected++;
-		mask[count] = 1;
+		mask.set(count);
 	    }else{
-		mask[count] = 0;
+		mask.clear(count);
 	    }
 	    count++;
 	}
 
 	if(selected == 0){
 	    // nothing selected so return all.
-	    int maskCount = mask.length;
-	    for(int i = 0; i < maskCount; i++){
-		mask[i] = 1;
-	    }
+	    mask.setAll();
 	}
 
 	return mask;
     }
 
     /** Return the current selection. */
-    public static byte[] wide(MoleculeRenderer r){
-	byte[] mask = generateSelectionMask(r);
+    public static SelectionMask wide(MoleculeRenderer r){
+	SelectionMask mask = generateSelectionMask(r);
 	AtomIterator iterator = r.getAtomIterator();
 	int count = 0;
 
@@ -1210,9 +1131,9 @@ public class Selection {
 	while(iterator.hasMoreElements()){
 	    Atom atom = iterator.getNextAtom();
 	    if(atom.isWide()){
-		mask[count] = 1;
+		mask.set(count);
 	    }else{
-		mask[count] = 0;
+		mask.clear(count);
 	    }
 	    count++;
 	}
@@ -1221,105 +1142,91 @@ public class Selection {
     }
 
     /** Return a set of atoms withinin a sphere. */
-    public static byte[] sphere(MoleculeRenderer r, double rad,
+    public static SelectionMask sphere(MoleculeRenderer r, double rad,
 				double x, double y, double z){
-	byte[] mask = generateSelectionMask(r);
-	AtomIterator iterator = r.getAtomIterator();
+	SelectionMask mask = generateSelectionMask(r);
+	int moleculeCount = r.getMoleculeCount();
 	int count = 0;
 	double radSq = rad * rad;
-	Point3d p = new Point3d(x, y, z);
 
-	while(iterator.hasMoreElements()){
-	    Atom atom = iterator.getNextAtom();
-	    if(atom.distanceSq(p) < radSq){
-		mask[count] = 1;
-	    }else{
-		mask[count] = 0;
+	for(int m = 0; m < moleculeCount; m++){
+	    AtomStore store = r.getMolecule(m).getAtomStore();
+	    double ax[] = store.x, ay[] = store.y, az[] = store.z;
+	    int atomCount = store.atomCount;
+
+	    for(int a = 0; a < atomCount; a++){
+		double dx = x - ax[a];
+		double dy = y - ay[a];
+		double dz = z - az[a];
+
+		if(dx*dx + dy*dy + dz*dz < radSq){
+		    mask.set(count);
+		}else{
+		    mask.clear(count);
+		}
+		count++;
 	    }
-	    count++;
 	}
 
 	return mask;
     }
 
     /** Return a set of atoms withinin a sphere. */
-    public static byte[] sphere(MoleculeRenderer r, double rad, byte sphereMask[]){
-	DynamicArray sphereSelection = maskToArray(r, sphereMask);
-	int sphereSelectionCount = sphereSelection.size();
-	byte[] mask = generateSelectionMask(r);
-	AtomIterator iterator = r.getAtomIterator();
-	int count = 0;
-	double radSq = rad * rad;
-
-	while(iterator.hasMoreElements()){
-	    Atom atom = iterator.getNextAtom();
-	    int inside = 0;
-	    for(int i = 0; i < sphereSelectionCount; i++){
-		Atom sphereAtom = (Atom)sphereSelection.get(i);
-		if(atom.distanceSq(sphereAtom) < radSq){
-		    inside = 1;
-		    break;
-		}
-	    }
-
-	    if(inside > 0){
-		mask[count] = 1;
-	    }else{
-		mask[count] = 0;
-	    }
-	    
-	    count++;
-	}
-	 
-	return mask;
+    public static SelectionMask sphere(MoleculeRenderer r, double rad,
+				       SelectionMask sphereMask){
+	return sphereOrContact(r, rad, sphereMask, false);
     }
 
     /** Return a set of atoms withinin a tolerance of sum of vdw radii. */
-    public static byte[] contact(MoleculeRenderer r, double rad, byte sphereMask[]){
+    public static SelectionMask contact(MoleculeRenderer r, double rad,
+					SelectionMask sphereMask){
+	return sphereOrContact(r, rad, sphereMask, true);
+    }
+
+    /**
+     * Select the atoms within rad of the atoms in sphereMask,
+     * or within rad of their vdw surfaces if contact is true.
+     */
+    private static SelectionMask sphereOrContact(MoleculeRenderer r,
+						 double rad,
+						 SelectionMask sphereMask,
+						 boolean contact){
 	DynamicArray sphereSelection = maskToArray(r, sphereMask);
+	release(sphereMask);
 	int sphereSelectionCount = sphereSelection.size();
-	byte[] mask = generateSelectionMask(r);
-	AtomIterator iterator = r.getAtomIterator();
-	int count = 0;
-
-	while(iterator.hasMoreElements()){
-	    Atom atom = iterator.getNextAtom();
-	    double arad = atom.getVDWRadius() + rad;
-
-	    int inside = 0;
-
-	    for(int i = 0; i < sphereSelectionCount; i++){
-		Atom sphereAtom = (Atom)sphereSelection.get(i);
-		double srad = sphereAtom.getVDWRadius();
-		double radSq = arad + srad;
-		radSq *= radSq;
+	SelectionMask mask = generateSelectionMask(r);
+
+	// pack the central atoms too
+	double sx[] = new double[sphereSelectionCount];
+	double sy[] = new double[sphereSelectionCount];
+	double sz[] = new double[sphereSelectionCount];
+	double sr[] = new double[sphereSelectionCount];
+
+	for(int i = 0; i < sphereSelectionCount; i++){
+	    Atom sphereAtom = (Atom)sphereSelection.get(i);
+	    sx[i] = sphereAtom.x;
+	    sy[i] = sphereAtom.y;
+	    sz[i] = sphereAtom.z;
+	    sr[i] = contact ? sphereAtom.getVDWRadius() : 0.0;
+	}
 
-		if(atom.distanceSq(sphereAtom) < radSq){
-		    inside = 1;
-		    break;
-		}
-	    }
+	// only look at the atoms in the lattice cells
+	// around each of the central atoms
+	AtomLattice lattice = r.getAtomLattice();
 
-	    if(inside > 0){
-		mask[count] = 1;
-	    }else{
-		mask[count] = 0;
-	    }
-	    
-	    count++;
-	}
-	 
-	// save the mask
-	//selectionMaskCache.add(sphereMask);
+	lattice.markNeighbours(sx, sy, sz, sr, sphereSelectionCount,
+			       rad, contact, mask);
 
 	return mask;
     }
 
     /** Return a set of atoms in a connected graph. */
-    public static byte[] graph(MoleculeRenderer r, byte graphMask[]){
+    public static SelectionMask graph(MoleculeRenderer r,
+				      SelectionMask graphMask){
 	DynamicArray graphSelection = maskToArray(r, graphMask);
+	release(graphMask);
 	int graphSelectionCount = graphSelection.size();
-	byte[] mask = generateSelectionMask(r);
+	SelectionMask mask = generateSelectionMask(r);
 	int count = 0;
 
 	AtomIterator iterator = r.getAtomIterator();
@@ -1340,18 +1247,13 @@ public class Selection {
 	while(iterator.hasMoreElements()){
 	    Atom atom = iterator.getNextAtom();
 	    if(atom.isTemporarilySelected()){
-		mask[count] = 1;
-	    }else{
-		mask[count] = 0;
+		mask.set(count);
 	    }
 
 	    count++;
 	    
 	    atom.setTemporarilySelected(false);
 	}
-	 
-	// save the mask
-	selectionMaskCache.add(graphMask);
 
 	return mask;
     }
@@ -1370,11 +1272,11 @@ public class Selection {
     }
 
     /** Composite specification. */
-    public static byte[]
+    public static SelectionMask
 	compositeSelection(MoleculeRenderer r, Vector molecules,
 			   Vector chains, Vector residues, Vector atoms){
-	byte mask1[] = molecule(r, molecules);
-	byte mask2[] = chain(r, molecules);
+	SelectionMask mask1 = molecule(r, molecules);
+	SelectionMask mask2 = chain(r, molecules);
 	mask1 = and(mask1, mask2);
 	mask2 = residue(r, residues);
 	mask1 = and(mask1, mask2);
@@ -1382,61 +1284,33 @@ public class Selection {
 	return and(mask1, mask2);
     }
 
-    /** And two selection masks together. */
-    public static byte[] and(byte mask1[], byte mask2[]){
-	int count = Math.min(mask1.length, mask2.length);
-
-	for(int i = 0; i < count; i++){
-	    if(mask1[i] > 0 && mask2[i] > 0){
-		mask1[i] = 1;
-	    }else{
-		mask1[i] = 0;
-	    }
-	}
+    /** And two selection masks together, mask2 goes back to the pool. */
+    public static SelectionMask and(SelectionMask mask1, SelectionMask mask2){
+	mask1.and(mask2);
 
-	// save the mask
-	//selectionMaskCache.add(mask2);
+	release(mask2);
 
-	// mask2 can just be garbage collected
 	return mask1;
     }
 
-    /** Or two selection masks together. */
-    public static byte[] or(byte mask1[], byte mask2[]){
-	int count = Math.min(mask1.length, mask2.length);
-
-	for(int i = 0; i < count; i++){
-	    if(mask1[i] > 0 || mask2[i] > 0){
-		mask1[i] = 1;
-	    }else{
-		mask1[i] = 0;
-	    }
-	}
+    /** Or two selection masks together, mask2 goes back to the pool. */
+    public static SelectionMask or(SelectionMask mask1, SelectionMask mask2){
+	mask1.or(mask2);
 
-	// save the mask
-	selectionMaskCache.add(mask2);
+	release(mask2);
 
-	// mask2 can just be garbage collected
 	return mask1;
     }
 
     /** Not a selection mask. */
-    public static byte[] not(byte mask1[]){
-	int count = mask1.length;
-
-	for(int i = 0; i < count; i++){
-	    if(mask1[i] == 0){
-		mask1[i] = 1;
-	    }else{
-		mask1[i] = 0;
-	    }
-	}
+    public static SelectionMask not(SelectionMask mask1){
+	mask1.not();
 
 	return mask1;
     }
 
     /** Evaluate a builtin expression against residue names. */
-    public static byte[] builtin(MoleculeRenderer r, DynamicArray names){
+    public static SelectionMask builtin(MoleculeRenderer r, DynamicArray names){
 	Vector ids = new Vector(names.size());
 	for(int i = 0; i < names.size(); i++){
 	    ids.addElement(names.get(i));
@@ -1446,7 +1320,7 @@ public class Selection {
     }
 
     /** Evaluate a builtin expression atom names. */
-    public static byte[] builtin2(MoleculeRenderer r, DynamicArray names){
+    public static SelectionMask builtin2(MoleculeRenderer r, DynamicArray names){
 	Vector ids = new Vector(names.size());
 	for(int i = 0; i < names.size(); i++){
 	    ids.addElement(names.get(i));
@@ -1456,7 +1330,7 @@ public class Selection {
     }
 
     /** Evaluate a builtin expression atom names. */
-    public static byte[] builtin3(MoleculeRenderer r, DynamicArray names){
+    public static SelectionMask builtin3(MoleculeRenderer r, DynamicArray names){
 	Vector ids = new Vector(names.size());
 	for(int i = 0; i < names.size(); i++){
 	    ids.addElement(names.get(i));
@@ -1466,22 +1340,22 @@ public class Selection {
     }
 
     /** Aminoacid expression. */
-    public static byte[] aminoacid(MoleculeRenderer r){
+    public static SelectionMask aminoacid(MoleculeRenderer r){
 	return builtin(r, aminoacidNames);
     }
 
     /** Solvent expression. */
-    public static byte[] solvent(MoleculeRenderer r){
+    public static SelectionMask solvent(MoleculeRenderer r){
 	return builtin(r, solventNames);
     }
 
     /** DNA expression. */
-    public static byte[] dna(MoleculeRenderer r){
+    public static SelectionMask dna(MoleculeRenderer r){
 	return builtin(r, dnaNames);
     }
 
     /** Ions expression. */
-    public static byte[] ions(MoleculeRenderer r){
+    public static SelectionMask ions(MoleculeRenderer r){
 	return builtin3(r, ionNames);
     }
 }
@@ -0,0 +1,222 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+/**
+ * Selection mask with one bit per atom.
+ *
+ * The bits are packed 64 to a long, so and, or and not work on
+ * a whole word at a time and the selected atoms can be found by
+ * skipping over the empty words. Bits beyond the size of the
+ * mask are always kept clear.
+ *
+ * Selection hands masks out from a pool that belongs to each
+ * MoleculeRenderer, so evaluating a selection expression doesn't
+ * need a new array for every term.
+ */
+public class SelectionMask {
+    /** The bits. */
+    private long words[] = null;
+
+    /** The number of bits in use. */
+    private int size = 0;
+
+    /** The number of words in use. */
+    private int wordCount = 0;
+
+    /** The pool that the mask goes back to. */
+    DynamicArray pool = null;
+
+    /** Create an empty mask. */
+    public SelectionMask(){
+	this(0);
+    }
+
+    /** Create a mask with size clear bits. */
+    public SelectionMask(int n){
+	setSize(n);
+    }
+
+    /** Set the number of bits and clear them all. */
+    public void setSize(int n){
+	size = n;
+	wordCount = (n + 63) >> 6;
+
+	if(words == null || words.length < wordCount){
+	    words = new long[wordCount];
+	}else{
+	    clearAll();
+	}
+    }
+
+    /** Make this mask a copy of the other one. */
+    public void copy(SelectionMask mask){
+	setSize(mask.size);
+	System.arraycopy(mask.words, 0, words, 0, wordCount);
+    }
+
+    /** Return the number of bits. */
+    public int size(){
+	return size;
+    }
+
+    /** Is bit i set. */
+    public final boolean get(int i){
+	return (words[i >> 6] & (1L << (i & 63))) != 0;
+    }
+
+    /** Set bit i. */
+    public final void set(int i){
+	words[i >> 6] |= (1L << (i & 63));
+    }
+
+    /** Clear bit i. */
+    public final void clear(int i){
+	words[i >> 6] &= ~(1L << (i & 63));
+    }
+
+    /** Set or clear bit i. */
+    public final void set(int i, boolean value){
+	if(value){
+	    words[i >> 6] |= (1L << (i & 63));
+	}else{
+	    words[i >> 6] &= ~(1L << (i & 63));
+	}
+    }
+
+    /** Set the bits from first up to last. */
+    public void set(int first, int last){
+	for(int i = first; i < last; i++){
+	    words[i >> 6] |= (1L << (i & 63));
+	}
+    }
+
+    /** Set all of the bits. */
+    public void setAll(){
+	for(int w = 0; w < wordCount; w++){
+	    words[w] = -1L;
+	}
+
+	clearTail();
+    }
+
+    /** Clear all of the bits. */
+    public void clearAll(){
+	for(int w = 0; w < wordCount; w++){
+	    words[w] = 0L;
+	}
+    }
+
+    /** Clear the unused bits of the last word. */
+    private void clearTail(){
+	int tail = size & 63;
+
+	if(tail != 0){
+	    words[wordCount - 1] &= (1L << tail) - 1;
+	}
+    }
+
+    /** And the other mask into this one. */
+    public void and(SelectionMask mask){
+	int count = Math.min(wordCount, mask.wordCount);
+	long w2[] = mask.words;
+
+	for(int w = 0; w < count; w++){
+	    words[w] &= w2[w];
+	}
+    }
+
+    /** Or the other mask into this one. */
+    public void or(SelectionMask mask){
+	int count = Math.min(wordCount, mask.wordCount);
+	long w2[] = mask.words;
+
+	for(int w = 0; w < count; w++){
+	    words[w] |= w2[w];
+	}
+
+	clearTail();
+    }
+
+    /** Invert all of the bits. */
+    public void not(){
+	for(int w = 0; w < wordCount; w++){
+	    words[w] = ~words[w];
+	}
+
+	clearTail();
+    }
+
+    /** Return the number of set bits. */
+    public int cardinality(){
+	int count = 0;
+
+	for(int w = 0; w < wordCount; w++){
+	    long word = words[w];
+
+	    // clear the lowest set bit each time round
+	    while(word != 0){
+		word &= word - 1;
+		count++;
+	    }
+	}
+
+	return count;
+    }
+
+    /**
+     * Return the first set bit at or after from,
+     * or -1 if there are no more.
+     */
+    public int nextSetBit(int from){
+	if(from < 0){
+	    from = 0;
+	}
+
+	if(from >= size){
+	    return -1;
+	}
+
+	int w = from >> 6;
+	long word = words[w] & (-1L << (from & 63));
+
+	while(word == 0){
+	    if(++w >= wordCount){
+		return -1;
+	    }
+
+	    word = words[w];
+	}
+
+	return (w << 6) + lowestBit(word);
+    }
+
+    /** Return the position of the lowest set bit of a non zero word. */
+    private static int lowestBit(long word){
+	int n = 0;
+
+	if((word & 0xffffffffL) == 0){ n += 32; word >>>= 32; }
+	if((word & 0xffffL) == 0){ n += 16; word >>>= 16; }
+	if((word & 0xffL) == 0){ n += 8; word >>>= 8; }
+	if((word & 0xfL) == 0){ n += 4; word >>>= 4; }
+	if((word & 0x3L) == 0){ n += 2; word >>>= 2; }
+	if((word & 0x1L) == 0){ n += 1; }
+
+	return n;
+    }
+}
@@ -0,0 +1,700 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+import java.util.*;
+
+/**
+ * Compiled form of a selection expression.
+ *
+ * The parser builds a tree of plans rather than evaluating each
+ * term as it is reduced. Terms that only look at an atom and the
+ * residue, chain and molecule it belongs to are fused, along with
+ * any and, or and not that combine them, into a single pass over
+ * the atoms. Terms that don't look at the atom at all are decided
+ * once for each residue. Everything else is handed to Selection.
+ *
+ * Terms that only depend on the molecules and their coordinates
+ * are remembered by the MoleculeRenderer against the text of the
+ * term, so an expression that is evaluated again, for example on
+ * every frame of an animation script, just copies the old mask
+ * until a molecule is added, removed, renamed or moved.
+ */
+public class SelectionPlan {
+    /** Operations that are decided by looking at each atom. */
+    private static final int ALL        = 0;
+    private static final int NONE       = 1;
+    private static final int AND        = 2;
+    private static final int OR         = 3;
+    private static final int NOT        = 4;
+    private static final int ID         = 5;
+    private static final int ATOM       = 6;
+    private static final int ELEMENT    = 7;
+    private static final int RESIDUE    = 8;
+    private static final int MODULO     = 9;
+    private static final int SEQUENTIAL = 10;
+    private static final int INSERTION  = 11;
+    private static final int NAME       = 12;
+    private static final int CHAIN      = 13;
+    private static final int MOLECULE   = 14;
+    private static final int MOLEXACT   = 15;
+    private static final int ATTRIBUTE  = 16;
+    private static final int PROPERTY   = 17;
+    private static final int CURRENT    = 18;
+    private static final int LABELLED   = 19;
+    private static final int WIDE       = 20;
+    private static final int DISPLAYED  = 21;
+    private static final int GROUP      = 22;
+    private static final int POINT      = 23;
+
+    /** Operations that need more than one atom, done by Selection. */
+    private static final int BYRESIDUE  = 24;
+    private static final int BONDED     = 25;
+    private static final int SPHERE     = 26;
+    private static final int CONTACT    = 27;
+    private static final int GRAPH      = 28;
+    private static final int COMPOSITE  = 29;
+    private static final int DEFAULT    = 30;
+    private static final int ATOMS      = 31;
+
+    /** Plans that must look at every atom. */
+    private static final int AtomLevel = 0;
+
+    /** Plans that only look at the residue, chain and molecule. */
+    private static final int ResidueLevel = 1;
+
+    /** Plans that can't be decided one atom at a time. */
+    private static final int GlobalLevel = 2;
+
+    /** Most results remembered by each renderer. */
+    private static final int MaximumCachedSelections = 64;
+
+    /** The operation. */
+    private int op;
+
+    /** How finely the plan must be evaluated. */
+    private int level;
+
+    /**
+     * Does the result only depend on the molecules and what
+     * AtomStore.version follows, the atoms, bonds, elements
+     * and coordinates.
+     */
+    private boolean cacheable;
+
+    /** The text of the plan, used to remember its result. */
+    private String key;
+
+    /** The operands of and, or, not and the whole structure ops. */
+    private SelectionPlan left = null;
+    private SelectionPlan right = null;
+
+    /** Pairs of low and high values for id, residue and element. */
+    private int ranges[] = null;
+
+    /** Name patterns, with the ones that have no wildcards flagged. */
+    private String patterns[] = null;
+    private boolean exact[] = null;
+
+    /** The other arguments. */
+    private int intValue = 0;
+    private int operator = 0;
+    private double value = 0.0;
+    private double x = 0.0, y = 0.0, z = 0.0;
+    private Vector ids = null;
+    private Hashtable group = null;
+    private DynamicArray atoms = null;
+
+    /** Private constructor, plans come from the static methods. */
+    private SelectionPlan(int op, int level, boolean cacheable, String key){
+	this.op = op;
+	this.level = level;
+	this.cacheable = cacheable;
+	this.key = key;
+    }
+
+    /** Combine two plans. */
+    private static SelectionPlan combine(int op, SelectionPlan a,
+					 SelectionPlan b, String key){
+	int level = GlobalLevel;
+
+	if(a.level != GlobalLevel && (b == null || b.level != GlobalLevel)){
+	    level = (b == null) ? a.level : Math.min(a.level, b.level);
+	}
+
+	boolean cacheable = a.cacheable && (b == null || b.cacheable);
+	SelectionPlan plan = new SelectionPlan(op, level, cacheable, key);
+	plan.left = a;
+	plan.right = b;
+
+	return plan;
+    }
+
+    /** Apply an operation that needs the whole of another plan. */
+    private static SelectionPlan global(int op, SelectionPlan a, String key){
+	SelectionPlan plan = new SelectionPlan(op, GlobalLevel, a.cacheable, key);
+	plan.left = a;
+
+	return plan;
+    }
+
+    /** A plan with a list of id ranges. */
+    private static SelectionPlan ranges(int op, int level, Vector v,
+					String name){
+	int count = v.size();
+	StringBuffer sb = new StringBuffer(name);
+	SelectionPlan plan = new SelectionPlan(op, level, true, null);
+	plan.ranges = new int[2 * count];
+
+	for(int i = 0; i < count; i++){
+	    int range[] = (int[])v.elementAt(i);
+	    plan.ranges[2*i] = range[0];
+	    plan.ranges[2*i+1] = range[1];
+	    sb.append(" " + range[0] + ":" + range[1]);
+	}
+
+	plan.key = sb.toString();
+
+	return plan;
+    }
+
+    /** A plan with a list of name patterns. */
+    private static SelectionPlan patterns(int op, int level, Vector v,
+					  String name){
+	int count = v.size();
+	StringBuffer sb = new StringBuffer(name);
+	SelectionPlan plan = new SelectionPlan(op, level, true, null);
+	plan.patterns = new String[count];
+	plan.exact = new boolean[count];
+
+	for(int i = 0; i < count; i++){
+	    String pattern = (String)v.elementAt(i);
+
+	    if(op == CHAIN && pattern.equals("_")){
+		pattern = " ";
+	    }
+
+	    plan.patterns[i] = pattern;
+	    plan.exact[i] = op == MOLEXACT || isExact(pattern);
+	    sb.append(" '" + pattern + "'");
+	}
+
+	plan.key = sb.toString();
+
+	return plan;
+    }
+
+    /** A plan with a list of names from the settings. */
+    private static SelectionPlan patterns(int op, DynamicArray names,
+					  String name){
+	Vector v = new Vector(names.size());
+
+	for(int i = 0; i < names.size(); i++){
+	    v.addElement(names.get(i));
+	}
+
+	return patterns(op, ResidueLevel, v, name);
+    }
+
+    /** Does the pattern match nothing but itself. */
+    private static boolean isExact(String pattern){
+	return pattern.indexOf('*') == -1 && pattern.indexOf('?') == -1 &&
+	    pattern.indexOf('[') == -1 && pattern.indexOf('\\') == -1;
+    }
+
+    /** Select atoms by id. */
+    public static SelectionPlan id(Vector v){
+	return ranges(ID, AtomLevel, v, "id");
+    }
+
+    /** Select atoms by atom name. */
+    public static SelectionPlan atom(Vector v){
+	return patterns(ATOM, AtomLevel, v, "atom");
+    }
+
+    /** Select atoms by element. */
+    public static SelectionPlan element(Vector v){
+	return ranges(ELEMENT, AtomLevel, v, "element");
+    }
+
+    /** Select residues by number. */
+    public static SelectionPlan residue(Vector v){
+	return ranges(RESIDUE, ResidueLevel, v, "residue");
+    }
+
+    /** Select residues whose number is a multiple of n. */
+    public static SelectionPlan modulo(int n){
+	SelectionPlan plan =
+	    new SelectionPlan(MODULO, ResidueLevel, true, "modulo " + n);
+	plan.intValue = n;
+
+	return plan;
+    }
+
+    /** Select residues by sequential number. */
+    public static SelectionPlan sequential(Vector v){
+	return ranges(SEQUENTIAL, ResidueLevel, v, "sequential");
+    }
+
+    /** Select residues by insertion code. */
+    public static SelectionPlan insertion(String s){
+	SelectionPlan plan =
+	    new SelectionPlan(INSERTION, ResidueLevel, true,
+			      "insertion '" + s + "'");
+	plan.intValue = s.charAt(0);
+
+	return plan;
+    }
+
+    /** Select everything. */
+    public static SelectionPlan all(){
+	return new SelectionPlan(ALL, ResidueLevel, true, "all");
+    }
+
+    /** Select nothing. */
+    public static SelectionPlan none(){
+	return new SelectionPlan(NONE, ResidueLevel, true, "none");
+    }
+
+    /** Select aminoacids. */
+    public static SelectionPlan aminoacid(){
+	return patterns(NAME, Selection.aminoacidNames, "aminoacid");
+    }
+
+    /** Select solvent. */
+    public static SelectionPlan solvent(){
+	return patterns(NAME, Selection.solventNames, "solvent");
+    }
+
+    /** Select dna. */
+    public static SelectionPlan dna(){
+	return patterns(NAME, Selection.dnaNames, "dna");
+    }
+
+    /** Select ions. */
+    public static SelectionPlan ions(){
+	return patterns(NAME, Selection.ionNames, "ions");
+    }
+
+    /** Select the currently selected atoms. */
+    public static SelectionPlan current(){
+	return new SelectionPlan(CURRENT, AtomLevel, false, "current");
+    }
+
+    /** Select atoms with the property. */
+    public static SelectionPlan property(int property){
+	SelectionPlan plan =
+	    new SelectionPlan(PROPERTY, AtomLevel, false,
+			      "property " + property);
+	plan.intValue = property;
+
+	return plan;
+    }
+
+    /** Select labelled atoms. */
+    public static SelectionPlan labelled(){
+	return new SelectionPlan(LABELLED, AtomLevel, false, "labelled");
+    }
+
+    /** Select atoms with wide bonds. */
+    public static SelectionPlan wide(){
+	return new SelectionPlan(WIDE, AtomLevel, false, "wide");
+    }
+
+    /** Select displayed atoms. */
+    public static SelectionPlan displayed(){
+	return new SelectionPlan(DISPLAYED, AtomLevel, false, "displayed");
+    }
+
+    /** Select the current selection or everything. */
+    public static SelectionPlan defaultSelection(){
+	return new SelectionPlan(DEFAULT, GlobalLevel, false, "default");
+    }
+
+    /** Select residues by name. */
+    public static SelectionPlan name(Vector v){
+	return patterns(NAME, ResidueLevel, v, "name");
+    }
+
+    /** Select chains by name. */
+    public static SelectionPlan chain(Vector v){
+	return patterns(CHAIN, ResidueLevel, v, "chain");
+    }
+
+    /** Select molecules by name or #number. */
+    public static SelectionPlan molecule(Vector v){
+	return patterns(MOLECULE, ResidueLevel, v, "molecule");
+    }
+
+    /** Select molecules by exact name. */
+    public static SelectionPlan moleculeExact(Vector v){
+	return patterns(MOLEXACT, ResidueLevel, v, "molexact");
+    }
+
+    /**
+     * Select atoms on the basis of an attribute. Attributes
+     * can be edited so the result is never remembered.
+     */
+    public static SelectionPlan attribute(int attribute, int operator,
+					  double value){
+	SelectionPlan plan =
+	    new SelectionPlan(ATTRIBUTE, AtomLevel, false, "attribute");
+	plan.intValue = attribute;
+	plan.operator = operator;
+	plan.value = value;
+
+	return plan;
+    }
+
+    /** Select residues by chain, number and insertion code. */
+    public static SelectionPlan composite(Vector v){
+	SelectionPlan plan = patterns(COMPOSITE, GlobalLevel, v, "composite");
+	plan.ids = v;
+
+	return plan;
+    }
+
+    /** Select the atoms in a group. */
+    public static SelectionPlan group(Hashtable group){
+	SelectionPlan plan =
+	    new SelectionPlan(GROUP, AtomLevel, false, "group");
+	plan.group = group;
+
+	return plan;
+    }
+
+    /** Select a list of atoms. */
+    public static SelectionPlan atoms(DynamicArray selectedAtoms){
+	SelectionPlan plan =
+	    new SelectionPlan(ATOMS, GlobalLevel, false, "atoms");
+	plan.atoms = selectedAtoms;
+
+	return plan;
+    }
+
+    /** And two plans together. */
+    public static SelectionPlan and(SelectionPlan a, SelectionPlan b){
+	return combine(AND, a, b, "(" + a.key + " and " + b.key + ")");
+    }
+
+    /** Or two plans together. */
+    public static SelectionPlan or(SelectionPlan a, SelectionPlan b){
+	return combine(OR, a, b, "(" + a.key + " or " + b.key + ")");
+    }
+
+    /** Not a plan. */
+    public static SelectionPlan not(SelectionPlan a){
+	return combine(NOT, a, null, "not (" + a.key + ")");
+    }
+
+    /** Extend a plan to whole residues. */
+    public static SelectionPlan byresidue(SelectionPlan a){
+	return global(BYRESIDUE, a, "byresidue (" + a.key + ")");
+    }
+
+    /** Add the atoms bonded to a plan. */
+    public static SelectionPlan bonded(SelectionPlan a){
+	return global(BONDED, a, "bonded (" + a.key + ")");
+    }
+
+    /** Select atoms within rad of a plan. */
+    public static SelectionPlan sphere(double rad, SelectionPlan a){
+	SelectionPlan plan =
+	    global(SPHERE, a, "sphere " + rad + " around (" + a.key + ")");
+	plan.value = rad;
+
+	return plan;
+    }
+
+    /** Select atoms within rad of the vdw surface of a plan. */
+    public static SelectionPlan contact(double rad, SelectionPlan a){
+	SelectionPlan plan =
+	    global(CONTACT, a, "contact " + rad + " (" + a.key + ")");
+	plan.value = rad;
+
+	return plan;
+    }
+
+    /** Select the bonded graphs that a plan touches. */
+    public static SelectionPlan graph(SelectionPlan a){
+	return global(GRAPH, a, "graph (" + a.key + ")");
+    }
+
+    /** Select atoms within rad of a point. */
+    public static SelectionPlan sphere(double rad,
+				       double x, double y, double z){
+	SelectionPlan plan =
+	    new SelectionPlan(POINT, AtomLevel, true,
+			      "sphere " + rad + " around " +
+			      x + " " + y + " " + z);
+	plan.value = rad;
+	plan.x = x;
+	plan.y = y;
+	plan.z = z;
+
+	return plan;
+    }
+
+    /** Return the text of the plan. */
+    public String toString(){
+	return key;
+    }
+
+    /**
+     * Evaluate the plan and return the selected atoms.
+     * The result is remembered if it only depends on the
+     * molecules and their coordinates.
+     */
+    public DynamicArray select(MoleculeRenderer r){
+	Hashtable cache = r.getSelectionCache();
+	SelectionMask mask = evaluate(r, cache, true);
+	DynamicArray selectedAtoms = Selection.maskToArray(r, mask);
+
+	Selection.release(mask);
+
+	return selectedAtoms;
+    }
+
+    /** Evaluate the plan into a mask from the renderer's pool. */
+    public SelectionMask evaluate(MoleculeRenderer r){
+	return evaluate(r, r.getSelectionCache(), true);
+    }
+
+    /**
+     * Evaluate the plan. The whole expression and the terms
+     * that need more than one atom are looked for in the cache.
+     */
+    private SelectionMask evaluate(MoleculeRenderer r, Hashtable cache,
+				   boolean top){
+	boolean remember = cacheable && (top || level == GlobalLevel);
+
+	if(remember){
+	    SelectionMask cached = null;
+
+	    synchronized(cache){
+		cached = (SelectionMask)cache.get(key);
+	    }
+
+	    if(cached != null){
+		SelectionMask mask = Selection.none(r);
+		mask.copy(cached);
+
+		return mask;
+	    }
+	}
+
+	SelectionMask mask = null;
+
+	if(level != GlobalLevel){
+	    mask = evaluateAtoms(r);
+	}else{
+	    switch(op){
+	    case AND:
+		mask = Selection.and(left.evaluate(r, cache, false),
+				     right.evaluate(r, cache, false));
+		break;
+	    case OR:
+		mask = Selection.or(left.evaluate(r, cache, false),
+				    right.evaluate(r, cache, false));
+		break;
+	    case NOT:
+		mask = Selection.not(left.evaluate(r, cache, false));
+		break;
+	    case BYRESIDUE:
+		mask = Selection.byresidue(r, left.evaluate(r, cache, false));
+		break;
+	    case BONDED:
+		mask = Selection.bonded(r, left.evaluate(r, cache, false));
+		break;
+	    case SPHERE:
+		mask = Selection.sphere(r, value, left.evaluate(r, cache, false));
+		break;
+	    case CONTACT:
+		mask = Selection.contact(r, value, left.evaluate(r, cache, false));
+		break;
+	    case GRAPH:
+		mask = Selection.graph(r, left.evaluate(r, cache, false));
+		break;
+	    case COMPOSITE:
+		mask = Selection.composite(r, ids);
+		break;
+	    case DEFAULT:
+		mask = Selection.defaultSelection(r);
+		break;
+	    case ATOMS:
+		mask = Selection.arrayToMask(r, atoms);
+		break;
+	    default:
+		System.out.println("SelectionPlan: unknown operation " + op);
+		mask = Selection.none(r);
+		break;
+	    }
+	}
+
+	if(remember){
+	    SelectionMask copy = new SelectionMask();
+	    copy.copy(mask);
+
+	    synchronized(cache){
+		if(cache.size() >= MaximumCachedSelections){
+		    cache.clear();
+		}
+
+		cache.put(key, copy);
+	    }
+	}
+
+	return mask;
+    }
+
+    /** Evaluate the plan in one pass over the atoms. */
+    private SelectionMask evaluateAtoms(MoleculeRenderer r){
+	SelectionMask mask = Selection.none(r);
+	int moleculeCount = r.getMoleculeCount();
+	int count = 0;
+
+	for(int m = 0; m < moleculeCount; m++){
+	    Molecule mol = r.getMolecule(m);
+	    int chainCount = mol.getChainCount();
+
+	    for(int c = 0; c < chainCount; c++){
+		Chain chain = mol.getChain(c);
+		int residueCount = chain.getResidueCount();
+
+		for(int rr = 0; rr < residueCount; rr++){
+		    Residue res = chain.getResidue(rr);
+		    int atomCount = res.getAtomCount();
+
+		    if(level == ResidueLevel){
+			if(matches(m, mol, chain, res, null)){
+			    mask.set(count, count + atomCount);
+			}
+		    }else{
+			for(int a = 0; a < atomCount; a++){
+			    if(matches(m, mol, chain, res, res.getAtom(a))){
+				mask.set(count + a);
+			    }
+			}
+		    }
+
+		    count += atomCount;
+		}
+	    }
+	}
+
+	return mask;
+    }
+
+    /**
+     * Does the atom match the plan. The atom is null when
+     * the plan only looks at the residue and above.
+     */
+    private boolean matches(int m, Molecule mol, Chain chain,
+			    Residue res, Atom atom){
+	switch(op){
+	case ALL: return true;
+	case NONE: return false;
+	case AND:
+	    return left.matches(m, mol, chain, res, atom) &&
+		right.matches(m, mol, chain, res, atom);
+	case OR:
+	    return left.matches(m, mol, chain, res, atom) ||
+		right.matches(m, mol, chain, res, atom);
+	case NOT: return !left.matches(m, mol, chain, res, atom);
+	case ID: return inRange(atom.getId());
+	case ATOM: return matchesName(atom.getAtomLabel());
+	case ELEMENT: return inRange(atom.getElement());
+	case RESIDUE: return inRange(res.getNumber());
+	case MODULO: return res.getNumber() % intValue == 0;
+	case SEQUENTIAL: return inRange(res.getSequentialNumber());
+	case INSERTION: return res.getInsertionCode() == (char)intValue;
+	case NAME: return matchesName(res.getName());
+	case CHAIN: return matchesName(chain.getName());
+	case MOLEXACT: return matchesName(mol.getName());
+	case MOLECULE:
+	    for(int i = 0; i < patterns.length; i++){
+		String id = patterns[i];
+
+		if(id.startsWith("#")){
+		    if(Integer.parseInt(id.substring(1)) == m){
+			return true;
+		    }
+		}else if(match.matches(id, mol.getName())){
+		    return true;
+		}
+	    }
+	    return false;
+	case ATTRIBUTE: {
+	    double d = atom.getAttribute(intValue);
+
+	    switch(operator){
+	    case Selection.GT: return d > value;
+	    case Selection.GE: return d >= value;
+	    case Selection.LT: return d < value;
+	    case Selection.LE: return d <= value;
+	    case Selection.EQ: return d == value;
+	    case Selection.NE: return d != value;
+	    default:
+		System.out.println("attribute: unknown operator " + operator);
+		return false;
+	    }
+	}
+	case PROPERTY: return (atom.attributes & intValue) != 0;
+	case CURRENT: return atom.isSelected();
+	case LABELLED: return atom.isLabelled();
+	case WIDE: return atom.isWide();
+	case DISPLAYED: return atom.isDisplayed();
+	case GROUP: return group.containsKey(atom);
+	case POINT: {
+	    double dx = x - atom.x;
+	    double dy = y - atom.y;
+	    double dz = z - atom.z;
+
+	    return dx*dx + dy*dy + dz*dz < value * value;
+	}
+	default:
+	    System.out.println("SelectionPlan: unknown operation " + op);
+	    return false;
+	}
+    }
+
+    /** Is the number in one of the ranges. */
+    private boolean inRange(int number){
+	int r[] = ranges;
+
+	for(int i = 0; i < r.length; i += 2){
+	    if(number >= r[i] && number <= r[i+1]){
+		return true;
+	    }
+	}
+
+	return false;
+    }
+
+    /** Does the name match one of the patterns. */
+    private boolean matchesName(String name){
+	for(int i = 0; i < patterns.length; i++){
+	    if(exact[i] ? patterns[i].equals(name) :
+	       match.matches(patterns[i], name)){
+		return true;
+	    }
+	}
+
+	return false;
+    }
+}
@@ -17,81 +17,142 @@
 
 package astex;
 
-public class ShadowCache {
+/**
+ * The objects that can cast shadows in a frame.
+ *
+ * The shadow casting spheres, cylinders and triangles are gathered
+ * in the first render pass. setupShadowCaches() then puts their
+ * outlines, as seen from the light, into bounding volume
+ * hierarchies that are searched while the second pass is drawn.
+ *
+ * Each renderer has its own shadow cache. After setupShadowCaches()
+ * the occluders are only read, so copy() can make caches with
+ * their own working space for other threads to draw with.
+ */
+public class ShadowCache implements Cloneable {
     /** Sphere cache for shadows. */
-    public static FloatArray scachex = new FloatArray();
-    public static FloatArray scachey = new FloatArray();
-    public static FloatArray scachez = new FloatArray();
-    public static FloatArray scacher = new FloatArray();
+    public FloatArray scachex = new FloatArray();
+    public FloatArray scachey = new FloatArray();
+    public FloatArray scachez = new FloatArray();
+    public FloatArray scacher = new FloatArray();
 
     /** Cylinder cache for shadows. */
-    public static FloatArray ccachex0 = new FloatArray();
-    public static FloatArray ccachey0 = new FloatArray();
-    public static FloatArray ccachez0 = new FloatArray();
-    public static FloatArray ccachex1 = new FloatArray();
-    public static FloatArray ccachey1 = new FloatArray();
-    public static FloatArray ccachez1 = new FloatArray();
-    public static FloatArray ccacher  = new FloatArray();
+    public FloatArray ccachex0 = new FloatArray();
+    public FloatArray ccachey0 = new FloatArray();
+    public FloatArray ccachez0 = new FloatArray();
+    public FloatArray ccachex1 = new FloatArray();
+    public FloatArray ccachey1 = new FloatArray();
+    public FloatArray ccachez1 = new FloatArray();
+    public FloatArray ccacher  = new FloatArray();
 
     /** Triangle cache for shadows. */
-    public static FloatArray tcachex0 = new FloatArray();
-    public static FloatArray tcachey0 = new FloatArray();
-    public static FloatArray tcachez0 = new FloatArray();
-    public static FloatArray tcachex1 = new FloatArray();
-    public static FloatArray tcachey1 = new FloatArray();
-    public static FloatArray tcachez1 = new FloatArray();
-    public static FloatArray tcachex2 = new FloatArray();
-    public static FloatArray tcachey2 = new FloatArray();
-    public static FloatArray tcachez2 = new FloatArray();
+    public FloatArray tcachex0 = new FloatArray();
+    public FloatArray tcachey0 = new FloatArray();
+    public FloatArray tcachez0 = new FloatArray();
+    public FloatArray tcachex1 = new FloatArray();
+    public FloatArray tcachey1 = new FloatArray();
+    public FloatArray tcachez1 = new FloatArray();
+    public FloatArray tcachex2 = new FloatArray();
+    public FloatArray tcachey2 = new FloatArray();
+    public FloatArray tcachez2 = new FloatArray();
     //public static IntArray   ttransp  = new IntArray();
 
-    public static FloatArray tcen2dx  = new FloatArray();
-    public static FloatArray tcen2dy  = new FloatArray();
-    public static FloatArray tcenx    = new FloatArray();
-    public static FloatArray tceny    = new FloatArray();
-    public static FloatArray tcenz    = new FloatArray();
-    public static FloatArray tcenr    = new FloatArray();
+    public FloatArray tcen2dx  = new FloatArray();
+    public FloatArray tcen2dy  = new FloatArray();
+    public FloatArray tcenx    = new FloatArray();
+    public FloatArray tceny    = new FloatArray();
+    public FloatArray tcenz    = new FloatArray();
+    public FloatArray tcenr    = new FloatArray();
 
     /** References to the triangle array contents. */
-    public static float tx0[] = null;
-    public static float ty0[] = null;
-    public static float tz0[] = null;
-    public static float tx1[] = null;
-    public static float ty1[] = null;
-    public static float tz1[] = null;
-    public static float tx2[] = null;
-    public static float ty2[] = null;
-    public static float tz2[] = null;
+    public float tx0[] = null;
+    public float ty0[] = null;
+    public float tz0[] = null;
+    public float tx1[] = null;
+    public float ty1[] = null;
+    public float tz1[] = null;
+    public float tx2[] = null;
+    public float ty2[] = null;
+    public float tz2[] = null;
 
     /** References to the triangle bounding sphere info. */
-    public static float tc2x[] = null;
-    public static float tc2y[] = null;
-    public static float tcx[] = null;
-    public static float tcy[] = null;
-    public static float tcz[] = null;
-    public static float tcr[] = null;
+    public float tc2x[] = null;
+    public float tc2y[] = null;
+    public float tcx[] = null;
+    public float tcy[] = null;
+    public float tcz[] = null;
+    public float tcr[] = null;
 
     /** References for sphere centers. */
-    public static float scx[] = null;
-    public static float scy[] = null;
-    public static float scz[] = null;
-    public static float scr[] = null;
-
-    /** Cache and occlusion lists. */
-    public static IntArray sphereShadowCacheList    = new IntArray();
-    public static IntArray sphereOcclusionCacheList = new IntArray();
-    public static IntArray cylinderShadowCacheList  = new IntArray();
-    public static IntArray triangleShadowCacheList  = new IntArray();
-    public static IntArray initialList              = new IntArray();
+    public float scx[] = null;
+    public float scy[] = null;
+    public float scz[] = null;
+    public float scr[] = null;
+
+    /** Cache and occlusion lists, these belong to each copy. */
+    public IntArray sphereShadowCacheList    = new IntArray();
+    public IntArray sphereOcclusionCacheList = new IntArray();
+    public IntArray cylinderShadowCacheList  = new IntArray();
+    public IntArray triangleShadowCacheList  = new IntArray();
+    public IntArray initialList              = new IntArray();
 
     /** Overall scale factor in the renderer. */
-    public static double overallScale = 1.0;
+    public double overallScale = 1.0;
+
+    /** Allowance for rounding in the hierarchy searches. */
+    private static final double SearchTolerance = 0.01;
+
+    /**
+     * Return a copy that shares the occluders with this cache
+     * but has its own working space, so that it can be used by
+     * another thread once setupShadowCaches() has been called.
+     */
+    public ShadowCache copy(){
+	ShadowCache sc = null;
+
+	try {
+	    sc = (ShadowCache)clone();
+	}catch(CloneNotSupportedException e){
+	    // can't happen, we are Cloneable
+	    throw new RuntimeException(e.toString());
+	}
+
+	sc.sphereShadowCacheList    = new IntArray();
+	sc.sphereOcclusionCacheList = new IntArray();
+	sc.cylinderShadowCacheList  = new IntArray();
+	sc.triangleShadowCacheList  = new IntArray();
+	sc.initialList              = new IntArray();
+
+	sc.cbs = new double[4];
+	sc.c0 = new double[3];
+	sc.c1 = new double[3];
+	sc.c2 = new double[3];
+	sc.ray0 = new double[3];
+	sc.ray1 = new double[3];
+	sc.rint = new double[3];
+	sc.nint = new double[3];
+	sc.tuv = new double[3];
+	sc.eye = new double[3];
+	sc.eyedir = new double[3];
+	sc.cent = new double[3];
+	sc.edge1 = new double[3];
+	sc.edge2 = new double[3];
+	sc.tvec = new double[3];
+	sc.pvec = new double[3];
+	sc.qvec = new double[3];
+
+	sc.lastObscuringSphere   = -1;
+	sc.lastObscuringCylinder = -1;
+	sc.lastObscuringTriangle = -1;
+
+	return sc;
+    }
 
     /**
      * Prepare shadow cache list for triangle, by making bounding
      * volume a sphere that encloses the whole triangle.
      */
-    public static void prepareTriangleCacheList(double x0, double y0, double z0,
+    public void prepareTriangleCacheList(double x0, double y0, double z0,
 						double x1, double y1, double z1,
 						double x2, double y2, double z2,
 						boolean targetIsTransparent){
@@ -101,13 +162,13 @@ public class ShadowCache {
     }
 
     /** Bounding sphere. */
-    private static double cbs[] = new double[4];
+    private double cbs[] = new double[4];
 
     /**
      * Prepare shadow cache list for cylinder, by making bounding
      * volume a sphere that encloses the whole cylinder.
      */
-    public static void prepareCylinderCacheList(double c0x, double c0y, double c0z,
+    public void prepareCylinderCacheList(double c0x, double c0y, double c0z,
 						double c1x, double c1y, double c1z,
 						double r){
 	boundingSphereCylinder(c0x, c0y, c0z,
@@ -162,7 +223,7 @@ public class ShadowCache {
      * As we have scan line coherence, the cache list can be reused many
      * times for a given sphere.
      */
-    public static void prepareSphereCacheList(double sx, double sy, double sz, double sr,
+    public void prepareSphereCacheList(double sx, double sy, double sz, double sr,
 					      boolean transparent){
 	int sphereCount = scachex.size();
 
@@ -174,9 +235,8 @@ public class ShadowCache {
 	    sphereShadowCacheList.removeAllElements();
 	    initialList.removeAllElements();
 
-	    sphereGrid.getPossibleNeighbours(-1, x, y,
-					     sr + sphereGrid.getSpacing(),
-					     initialList, true);
+	    sphereTree.getPossibleNeighbours(x, y, sr + SearchTolerance,
+					     initialList);
 	    
 	    int initialSize = initialList.size();
 
@@ -224,8 +284,8 @@ public class ShadowCache {
 
 	    initialList.removeAllElements();
 
-	    cylinderGrid.getPossibleNeighbours(-1, x, y,
-					       sr + cylinderGrid.getSpacing(), initialList, true);
+	    cylinderTree.getPossibleNeighbours(x, y, sr + SearchTolerance,
+					       initialList);
 	    
 	    int initialSize = initialList.size();
 
@@ -271,7 +331,8 @@ public class ShadowCache {
 	    triangleShadowCacheList.removeAllElements();
 	    initialList.removeAllElements();
 
-	    triangleGrid.getPossibleNeighbours(-1, x, y, sr + triangleGrid.getSpacing(), initialList, true);
+	    triangleTree.getPossibleNeighbours(x, y, sr + SearchTolerance,
+					       initialList);
 	    
 	    int initialSize = initialList.size();
 
@@ -323,7 +384,7 @@ public class ShadowCache {
     }
 
     /** Add a sphere to the cache list. */
-    public static void addSphereToCacheList(double x, double y, double z, double r){
+    public void addSphereToCacheList(double x, double y, double z, double r){
 	scachex.add((float)x);
 	scachey.add((float)y);
 	scachez.add((float)z);
@@ -331,7 +392,7 @@ public class ShadowCache {
     }
 
     /** Add a cylinder to the cache list. */
-    public static void addCylinderToCacheList(double x0, double y0, double z0,
+    public void addCylinderToCacheList(double x0, double y0, double z0,
 					      double x1, double y1, double z1,
 					      double r){
 	ccachex0.add((float)x0);
@@ -344,7 +405,7 @@ public class ShadowCache {
     }
 
     /** Add a cylinder to the cache list. */
-    public static void addTriangleToCacheList(double x0, double y0, double z0,
+    public void addTriangleToCacheList(double x0, double y0, double z0,
 					      double x1, double y1, double z1,
 					      double x2, double y2, double z2,
 					      int transparency){
@@ -374,31 +435,31 @@ public class ShadowCache {
     }
 
     /** Cylinder endpoints */
-    private static double c0[] = new double[3];
-    private static double c1[] = new double[3];
-    private static double c2[] = new double[3];
+    private double c0[] = new double[3];
+    private double c1[] = new double[3];
+    private double c2[] = new double[3];
 
     /** ray endpoints */
-    private static double ray0[] = new double[3];
-    private static double ray1[] = new double[3];
+    private double ray0[] = new double[3];
+    private double ray1[] = new double[3];
 
     /** Intersection points. */
-    private static double rint[] = new double[3];
-    private static double nint[] = new double[3];
+    private double rint[] = new double[3];
+    private double nint[] = new double[3];
 
     /** Intersection parameters for triangle. */
-    private static double tuv[] = new double[3];
+    private double tuv[] = new double[3];
 
-    private static double eye[] = new double[3];
-    private static double eyedir[]  = new double[3];
+    private double eye[] = new double[3];
+    private double eyedir[]  = new double[3];
 
-    private static double cent[] = new double[3];
+    private double cent[] = new double[3];
 
     /**
      * Is the surface at this point self shadowing.
      * i.e. does the normal point away from the light.
      */
-    public static boolean selfShadowed(double nx, double ny, double nz, double tol){
+    public boolean selfShadowed(double nx, double ny, double nz, double tol){
 	//if(nx*light.x + ny*light.y + nz*light.z < 0.0){
 	if(nx*light.x + ny*light.y + nz*light.z < tol){
 	    return true;
@@ -408,11 +469,11 @@ public class ShadowCache {
     }
 
     /** project surface point. */
-    private static double px = 0.0;
-    private static double py = 0.0;
+    private double px = 0.0;
+    private double py = 0.0;
 
     /** Is this point shadowed by stuff in the shadow cache. */
-    public static boolean pointShadowed(double x, double y, double z){
+    public boolean pointShadowed(double x, double y, double z){
 	int sphereCacheCount = sphereShadowCacheList.size();
 
 	// shift point towards light to handle
@@ -470,8 +531,6 @@ public class ShadowCache {
 	    }
 	}
 
-	light.normalise();
-
 	//reform ray1 as the direction to the light
 
 	// offset ray further to try and reduce self
@@ -511,9 +570,9 @@ public class ShadowCache {
 	return false;
     }
 
-    private static int lastObscuringTriangle = -1;
+    private int lastObscuringTriangle = -1;
 
-    private static boolean obscuredByTriangle(int i){
+    private boolean obscuredByTriangle(int i){
 	double dx = px - tc2x[i];
 	double dy = py - tc2y[i];
 	double r  = tcr[i];
@@ -551,9 +610,9 @@ public class ShadowCache {
 	return false;
     }
 
-    private static int lastObscuringSphere = -1;
+    private int lastObscuringSphere = -1;
 
-    public static boolean obscuredBySphere(int i, double x, double y, double z){
+    public boolean obscuredBySphere(int i, double x, double y, double z){
 	double s2px = x - scx[i];
 	double s2py = y - scy[i];
 	double s2pz = z - scz[i];
@@ -574,9 +633,9 @@ public class ShadowCache {
 	return false;
     }
 
-    private static int lastObscuringCylinder = -1;
+    private int lastObscuringCylinder = -1;
 
-    private static boolean obscuredByCylinder(int i){
+    private boolean obscuredByCylinder(int i){
 	c0[0] = ccachex0.get(i);
 	c0[1] = ccachey0.get(i);
 	c0[2] = ccachez0.get(i);
@@ -593,7 +652,7 @@ public class ShadowCache {
 
 
     /** Is this point in another sphere. */
-    public static boolean pointInSphere(double x, double y, double z){
+    public boolean pointInSphere(double x, double y, double z){
 	int sphereCount = sphereOcclusionCacheList.size();
 
 	for(int i = 0; i < sphereCount; i++){
@@ -612,7 +671,7 @@ public class ShadowCache {
     }
 
     /** Clear out the shadow data structures. */
-    public static void clearShadowCaches(){
+    public void clearShadowCaches(){
 	//Log.info("%d spheres cleared from cache", ShadowCache.scachex.size());
 	scachex.removeAllElements();
 	scachey.removeAllElements();
@@ -646,12 +705,12 @@ public class ShadowCache {
 	tcenr.removeAllElements();
     }
 
-    private static Point3d light = new Point3d();
-    private static Point3d lightx = null;
-    private static Point3d lighty = null;
+    private Point3d light = new Point3d();
+    private Point3d lightx = null;
+    private Point3d lighty = null;
 
     /** Set up the shadow cache data structures for renderering. */
-    public static void setupShadowCaches(Light l0, double ovs){
+    public void setupShadowCaches(Light l0, double ovs){
 	//Log.info("%d spheres in cache", ShadowCache.scachex.size());
 	light.x = l0.pos[0];
 	// light y needs to be negative to correct for 
@@ -675,9 +734,9 @@ public class ShadowCache {
 	ty2 = tcachey2.getArray();
 	tz2 = tcachez2.getArray();
 
-	prepareTriangleGrid();
-	prepareSphereGrid();
-	prepareCylinderGrid();
+	prepareTriangleTree();
+	prepareSphereTree();
+	prepareCylinderTree();
 
 	lastObscuringSphere   = -1;
 	lastObscuringCylinder = -1;
@@ -701,21 +760,18 @@ public class ShadowCache {
 	//System.out.println("lighty.light " + lighty.dot(light));
     }
 
-    private static NeighbourGrid2D triangleGrid = new NeighbourGrid2D();
-    private static NeighbourGrid2D sphereGrid   = new NeighbourGrid2D();
-    private static NeighbourGrid2D cylinderGrid = new NeighbourGrid2D();
+    /** Hierarchies of the occluders as seen from the light. */
+    private BoundingHierarchy2D triangleTree = new BoundingHierarchy2D();
+    private BoundingHierarchy2D sphereTree   = new BoundingHierarchy2D();
+    private BoundingHierarchy2D cylinderTree = new BoundingHierarchy2D();
 
-    private static void prepareTriangleGrid(){
+    private void prepareTriangleTree(){
 	int triangleCount = tcachex0.size();
 
+	triangleTree.reset();
+
 	if(triangleCount == 0) return;
 
-	double xmin =  1.e10;
-	double ymin =  1.e10;
-	double xmax = -1.e10;
-	double ymax = -1.e10;
-	double rmax = 0.0;
-	
 	for(int i = 0; i < triangleCount; i++){
 	    boundingSphereTriangle(tx0[i], ty0[i], tz0[i],
 				   tx1[i], ty1[i], tz1[i],
@@ -735,46 +791,25 @@ public class ShadowCache {
 	    // capture projected centre
 	    tcen2dx.add((float)x);
 	    tcen2dy.add((float)y);
-
-	    // can do this as we add triangles in principle
-	    // gather extents
-	    if(x < xmin) xmin = x;
-	    if(x > xmax) xmax = x;
-	    if(y < ymin) ymin = y;
-	    if(y > ymax) ymax = y;
-	    if(cbs[3] > rmax) rmax = cbs[3];
-	}
-
-	if(false){
-	    FILE.out.print("xmin %6.1f ", xmin);
-	    FILE.out.print("xmax %6.1f\n", xmax);
-	    FILE.out.print("ymin %6.1f ", ymin);
-	    FILE.out.print("ymax %6.1f\n", ymax);
-	    FILE.out.print("rmax %6.1f\n", rmax);
 	}
 
-	// make the bounding box for the grid.
-	triangleGrid.reset(xmin - 0.1, ymin - 0.1,
-			   xmax + 0.1, ymax + 0.1, 1.01 * rmax);
-
-	tcx = tcen2dx.getArray();
-	tcy = tcen2dy.getArray();
+	float cx[] = tcen2dx.getArray();
+	float cy[] = tcen2dy.getArray();
+	float cr[] = tcenr.getArray();
 
 	for(int i = 0; i < triangleCount; i++){
-	    triangleGrid.add(i, tcx[i], tcy[i]);
+	    triangleTree.add(cx[i], cy[i], cr[i]);
 	}
+
+	triangleTree.build();
     }
 
-    private static void prepareSphereGrid(){
+    private void prepareSphereTree(){
 	int sphereCount = scachex.size();
 
-	if(sphereCount == 0) return;
+	sphereTree.reset();
 
-	double xmin =  1.e10;
-	double ymin =  1.e10;
-	double xmax = -1.e10;
-	double ymax = -1.e10;
-	double rmax = 0.0;
+	if(sphereCount == 0) return;
 
 	scx = scachex.getArray();
 	scy = scachey.getArray();
@@ -782,88 +817,36 @@ public class ShadowCache {
 	scr = scacher.getArray();
 	
 	for(int i = 0; i < sphereCount; i++){
-
-	    // project tri center onto light orthonormal set
+	    // project sphere center onto light orthonormal set
 	    double x = scx[i] * lightx.x + scy[i] * lightx.y + scz[i] * lightx.z;
 	    double y = scx[i] * lighty.x + scy[i] * lighty.y + scz[i] * lighty.z;
 
-	    // can do this as we add triangles in principle
-	    // gather extents
-	    if(x < xmin) xmin = x;
-	    if(x > xmax) xmax = x;
-	    if(y < ymin) ymin = y;
-	    if(y > ymax) ymax = y;
-	    if(scr[i] > rmax) rmax = scr[i];
+	    sphereTree.add(x, y, scr[i]);
 	}
 
-	if(false){
-	    FILE.out.print("xmin %6.1f ", xmin);
-	    FILE.out.print("xmax %6.1f\n", xmax);
-	    FILE.out.print("ymin %6.1f ", ymin);
-	    FILE.out.print("ymax %6.1f\n", ymax);
-	    FILE.out.print("rmax %6.1f\n", rmax);
-	}
-
-	// make the bounding box for the grid.
-	sphereGrid.reset(xmin - 0.1, ymin - 0.1,
-			 xmax + 0.1, ymax + 0.1, 1.01 * rmax);
-
-	for(int i = 0; i < sphereCount; i++){
-	    // project tri center onto light orthonormal set
-	    double x = scx[i] * lightx.x + scy[i] * lightx.y + scz[i] * lightx.z;
-	    double y = scx[i] * lighty.x + scy[i] * lighty.y + scz[i] * lighty.z;
-
-	    sphereGrid.add(i, x, y);
-	}
+	sphereTree.build();
     }
 
-    private static void prepareCylinderGrid(){
+    private void prepareCylinderTree(){
 	int cylinderCount = ccachex0.size();
 
+	cylinderTree.reset();
+
 	if(cylinderCount == 0) return;
 
-	double xmin =  1.e10;
-	double ymin =  1.e10;
-	double xmax = -1.e10;
-	double ymax = -1.e10;
-	double rmax = 0.0;
-	
 	for(int i = 0; i < cylinderCount; i++){
 	    boundingSphereCylinder(ccachex0.get(i), ccachey0.get(i), ccachez0.get(i),
 				   ccachex1.get(i), ccachey1.get(i), ccachez1.get(i),
 				   ccacher.get(i),
 				   cbs);
-	    // project tri center onto light orthonormal set
+	    // project cylinder center onto light orthonormal set
 	    double x = cbs[0] * lightx.x + cbs[1] * lightx.y + cbs[2] * lightx.z;
 	    double y = cbs[0] * lighty.x + cbs[1] * lighty.y + cbs[2] * lighty.z;
 
-	    // can do this as we add cylinders in principle
-	    // gather extents
-	    if(x < xmin) xmin = x;
-	    if(x > xmax) xmax = x;
-	    if(y < ymin) ymin = y;
-	    if(y > ymax) ymax = y;
-	    if(cbs[3] > rmax) rmax = cbs[3];
+	    cylinderTree.add(x, y, cbs[3]);
 	}
 
-	// make the bounding box for the grid.
-	cylinderGrid.reset(xmin - 0.1, ymin - 0.1,
-			   xmax + 0.1, ymax + 0.1, 1.01 * rmax);
-
-	tcx = tcen2dx.getArray();
-	tcy = tcen2dy.getArray();
-
-	for(int i = 0; i < cylinderCount; i++){
-	    boundingSphereCylinder(ccachex0.get(i), ccachey0.get(i), ccachez0.get(i),
-				   ccachex1.get(i), ccachey1.get(i), ccachez1.get(i),
-				   ccacher.get(i),
-				   cbs);
-	    // project tri center onto light orthonormal set
-	    double x = cbs[0] * lightx.x + cbs[1] * lightx.y + cbs[2] * lightx.z;
-	    double y = cbs[0] * lighty.x + cbs[1] * lighty.y + cbs[2] * lighty.z;
-
-	    cylinderGrid.add(i, x, y);
-	}
+	cylinderTree.build();
     }
 
     // Ray-triangle intersection
@@ -891,13 +874,13 @@ public class ShadowCache {
 	dest[2]=v1[2]-v2[2];
     }
 
-    private static double edge1[] = new double[3];
-    private static double edge2[] = new double[3];
-    private static double tvec[] = new double[3];
-    private static double pvec[] = new double[3];
-    private static double qvec[] = new double[3];
+    private double edge1[] = new double[3];
+    private double edge2[] = new double[3];
+    private double tvec[] = new double[3];
+    private double pvec[] = new double[3];
+    private double qvec[] = new double[3];
 
-    public static int intersect_triangle(double orig[], double dir[],
+    public int intersect_triangle(double orig[], double dir[],
 					 double vert0[], double vert1[], double vert2[],
 					 double tuv[]){
 	double det, inv_det;
@@ -966,6 +949,7 @@ public class ShadowCache {
     }
 
     public static void main(String args[]){
+	ShadowCache shadowCache = new ShadowCache();
 	double a[] = { 0., 0., 0. };
 	double b[] = { 1., 0., 0. };
 	double c[] = { 0., 1., 0. };
@@ -975,7 +959,7 @@ public class ShadowCache {
 	double o[] = { 0.2, 0.2, 1. };
 	double d[] = { 0., 0., 1. };
 
-	int i = intersect_triangle(o, d, a, b, c, tuv);
+	int i = shadowCache.intersect_triangle(o, d, a, b, c, tuv);
 
 	if(i == 1){
 	    FILE.out.print("t %f\n", tuv[0]);
@@ -0,0 +1,299 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+/**
+ * Cache of the shaded sphere bitmaps drawn by the renderer.
+ *
+ * A bitmap depends on the radius of the sphere in pixels, its
+ * color and the lights. The entries are found by hashing the
+ * radius and color, and the renderer clears the cache whenever
+ * the lighting changes. The entries are kept in order of use, and
+ * once the bitmaps hold more pixels than the budget the least
+ * recently used ones are dropped.
+ *
+ * The bitmaps are never changed once they are made, so a copy of
+ * the cache can share them and each tile worker has its own copy.
+ */
+class SphereCache {
+    /** Most bitmap pixels kept in the cache. */
+    static int maximumPixels =
+	Settings.getInteger("config", "render.spherecache.pixels", 1024 * 1024);
+
+    /** The radius and color of each entry. */
+    private int radius[] = null;
+    private int color[] = null;
+
+    /** The depth and color bitmaps of each entry. */
+    private int depths[][] = null;
+    private int colors[][] = null;
+
+    /** The next entry in the same hash bucket, or -1. */
+    private int hashNext[] = null;
+
+    /** The entries used before and after each one, or -1. */
+    private int previous[] = null;
+    private int next[] = null;
+
+    /** The first entry in each hash bucket, or -1. */
+    private int table[] = null;
+
+    /** The most and least recently used entries. */
+    private int first = -1;
+    private int last = -1;
+
+    /** The free entries, chained through next. */
+    private int free = -1;
+
+    /** The number of pixels in the bitmaps. */
+    private int pixels = 0;
+
+    /** The number of lookups that found a bitmap. */
+    int hits = 0;
+
+    /** The number of lookups that didn't. */
+    int misses = 0;
+
+    /** Create an empty cache. */
+    SphereCache(){
+	allocate(64);
+    }
+
+    /** Make room for n entries, all of them free. */
+    private void allocate(int n){
+	radius = new int[n];
+	color = new int[n];
+	depths = new int[n][];
+	colors = new int[n][];
+	hashNext = new int[n];
+	previous = new int[n];
+	next = new int[n];
+	table = new int[n];
+
+	clear();
+    }
+
+    /** Drop all of the bitmaps. */
+    void clear(){
+	int n = table.length;
+
+	for(int e = 0; e < n; e++){
+	    table[e] = -1;
+	    depths[e] = null;
+	    colors[e] = null;
+	    next[e] = e + 1 < n ? e + 1 : -1;
+	}
+
+	first = last = -1;
+	free = 0;
+	pixels = 0;
+    }
+
+    /** The hash bucket of a sphere. */
+    private int bucket(int r, int rgb){
+	int h = rgb * 31 + r;
+
+	h ^= (h >>> 16);
+
+	return h & (table.length - 1);
+    }
+
+    /** Return the entry for a sphere, or -1 if it isn't cached. */
+    int find(int r, int rgb){
+	for(int e = table[bucket(r, rgb)]; e != -1; e = hashNext[e]){
+	    if(radius[e] == r && color[e] == rgb){
+		hits++;
+
+		if(e != first){
+		    unlink(e);
+		    linkFirst(e);
+		}
+
+		return e;
+	    }
+	}
+
+	misses++;
+
+	return -1;
+    }
+
+    /** The depth bitmap of an entry. */
+    int[] getDepths(int e){
+	return depths[e];
+    }
+
+    /** The color bitmap of an entry. */
+    int[] getColors(int e){
+	return colors[e];
+    }
+
+    /** Add the bitmaps of a sphere, dropping old ones to make room. */
+    void add(int r, int rgb, int z[], int c[]){
+	int size = z.length;
+
+	if(size > maximumPixels){
+	    return;
+	}
+
+	while(last != -1 && pixels + size > maximumPixels){
+	    remove(last);
+	}
+
+	if(free == -1){
+	    grow();
+	}
+
+	int e = free;
+	free = next[e];
+
+	radius[e] = r;
+	color[e] = rgb;
+	depths[e] = z;
+	colors[e] = c;
+	pixels += size;
+
+	int b = bucket(r, rgb);
+	hashNext[e] = table[b];
+	table[b] = e;
+
+	linkFirst(e);
+    }
+
+    /** Drop an entry. */
+    private void remove(int e){
+	unlink(e);
+
+	int b = bucket(radius[e], color[e]);
+
+	if(table[b] == e){
+	    table[b] = hashNext[e];
+	}else{
+	    int p = table[b];
+
+	    while(hashNext[p] != e){
+		p = hashNext[p];
+	    }
+
+	    hashNext[p] = hashNext[e];
+	}
+
+	pixels -= depths[e].length;
+	depths[e] = null;
+	colors[e] = null;
+
+	next[e] = free;
+	free = e;
+    }
+
+    /** Take an entry out of the order of use. */
+    private void unlink(int e){
+	if(previous[e] == -1){
+	    first = next[e];
+	}else{
+	    next[previous[e]] = next[e];
+	}
+
+	if(next[e] == -1){
+	    last = previous[e];
+	}else{
+	    previous[next[e]] = previous[e];
+	}
+    }
+
+    /** Make an entry the most recently used. */
+    private void linkFirst(int e){
+	previous[e] = -1;
+	next[e] = first;
+
+	if(first == -1){
+	    last = e;
+	}else{
+	    previous[first] = e;
+	}
+
+	first = e;
+    }
+
+    /** Double the number of entries, keeping the ones in use. */
+    private void grow(){
+	int n = table.length;
+
+	radius = grow(radius, 2 * n);
+	color = grow(color, 2 * n);
+	previous = grow(previous, 2 * n);
+	next = grow(next, 2 * n);
+
+	int newDepths[][] = new int[2 * n][];
+	int newColors[][] = new int[2 * n][];
+	System.arraycopy(depths, 0, newDepths, 0, n);
+	System.arraycopy(colors, 0, newColors, 0, n);
+	depths = newDepths;
+	colors = newColors;
+
+	hashNext = new int[2 * n];
+	table = new int[2 * n];
+
+	for(int b = 0; b < 2 * n; b++){
+	    table[b] = -1;
+	}
+
+	// the buckets change with the size of the table
+	for(int e = first; e != -1; e = next[e]){
+	    int b = bucket(radius[e], color[e]);
+	    hashNext[e] = table[b];
+	    table[b] = e;
+	}
+
+	for(int e = n; e < 2 * n; e++){
+	    next[e] = e + 1 < 2 * n ? e + 1 : -1;
+	}
+
+	free = n;
+    }
+
+    /** Copy an array into a bigger one. */
+    private static int[] grow(int a[], int n){
+	int b[] = new int[n];
+	System.arraycopy(a, 0, b, 0, a.length);
+	return b;
+    }
+
+    /**
+     * Return a copy that shares the bitmaps,
+     * with its hit and miss counts cleared.
+     */
+    SphereCache copy(){
+	SphereCache c = new SphereCache();
+
+	c.radius = (int[])radius.clone();
+	c.color = (int[])color.clone();
+	c.depths = (int[][])depths.clone();
+	c.colors = (int[][])colors.clone();
+	c.hashNext = (int[])hashNext.clone();
+	c.previous = (int[])previous.clone();
+	c.next = (int[])next.clone();
+	c.table = (int[])table.clone();
+	c.first = first;
+	c.last = last;
+	c.free = free;
+	c.pixels = pixels;
+
+	return c;
+    }
+}
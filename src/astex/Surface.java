@@ -20,6 +20,11 @@ package astex;
 /* Copyright Astex Technology Ltd. 1999-2001 */
 
 /*
+ * 18-10-26
+ *	update() rebuilds only the part of the surface round moved atoms
+ * 18-10-26
+ *	surfaces are built by Surface objects with their own state,
+ *	the grid is filled in by slabs in several threads
  * 17-05-01 mjh
  *	created
  */
@@ -27,51 +32,88 @@ package astex;
 /**
  * A class for generating three dimensional surfaces.
  *
+ * Each Surface object holds the state of one surface, so
+ * several surfaces can be generated at once. The grid is split
+ * into slabs of layers along z which are filled in at the same
+ * time, each slab only writing its own grid points, and then
+ * handed to March to contour.
+ *
+ * The grid is kept with the surface. When atoms move, update()
+ * fills in the grid round them again and replaces the triangles
+ * from those grid cells.
+ *
  * @author Mike Hartshorn
  */
-public class Surface {
+public class Surface implements Runnable {
     /** The default spacing for soft object grid. */
-    private static double minimumSpacing = 0.25;
+    private static double defaultMinimumSpacing = 0.25;
+
+    /** The default maximum size of the grid. */
+    private static int defaultMaximumGridSize = 100;
+
+    /** The default probe radius. */
+    private static double defaultProbeRadius = 1.5;
+
+    /** Default number of threads used to fill in the grid. */
+    public static int defaultThreads =
+	Settings.getInteger("config", "surface.threads", 1);
+
+    /** Smallest number of layers worth giving to a thread. */
+    private static final int MinimumSlabLayers = 8;
+
+    /** Number of threads used to fill in the grid. */
+    private int threads = defaultThreads;
+
+    /** The first and last (exclusive) layer of this slab. */
+    private int firstLayer = 0;
+    private int lastLayer = 0;
+
+    /** The first and last (exclusive) grid points in x and y. */
+    private int minX = 0, maxX = 0;
+    private int minY = 0, maxY = 0;
+
+    /** The spacing for soft object grid. */
+    private double minimumSpacing = defaultMinimumSpacing;
 
     /** The actual spacing of the grid. */
-    private static double spacing = 0.0;
+    private double spacing = 0.0;
 
     /** The desired grid spacing. */
-    private static double desiredGridSpacing = 0.5;
+    private double desiredGridSpacing = 0.5;
 
     /** The maximum size of the grid. */
-    private static int maximumGridSize = 100;
+    private int maximumGridSize = defaultMaximumGridSize;
 
     /** The actual size of the grid. */
-    private static int gx, gy, gz;
+    private int gx, gy, gz;
 
     /** The actual grid. */
-    private static float grid[] = null;
+    private float grid[] = null;
 
     /** The extent of the grid. */
-    private static double gminx, gminy, gminz;
+    private double gminx, gminy, gminz;
 
     /** The extent of the grid. */
-    private static double gmaxx, gmaxy, gmaxz;
+    private double gmaxx, gmaxy, gmaxz;
 
     /** The coordinates of the grid points. */
-    private static double gridx[] = null;
-    private static double gridy[] = null;
-    private static double gridz[] = null;
+    private double gridx[] = null;
+    private double gridy[] = null;
+    private double gridz[] = null;
 
-    private static int visible[] = null;
+    private int visible[] = null;
 
     /** Reordered vertex list. */
-    private static int reordered[] = null;
+    private int reordered[] = null;
 
     /** The probe radius. */
-    private static double rp = 1.5;
+    private double rp = defaultProbeRadius;
 
     /** The maximum radius we saw. */
-    private static double maxRadius = 0.0;
+    private double maxRadius = 0.0;
 
     /** The number of probe positions. */
-    private static int np = 40;
+    private static final int np = 40;
 
     /** Should we produce debug info? */
     private static boolean debugFlag = false;
@@ -88,57 +130,103 @@ public class Surface {
 	debugFlag = d;
     }
 
-    /** Set the probe radius. */
+    /** Set the default probe radius. */
     public static void setProbeRadius(double radius){
-	rp = radius;
+	defaultProbeRadius = radius;
     }
 
-    /** Set the minimum grid spacing. */
+    /** Set the default minimum grid spacing. */
     public static void setMinimumSpacing(double s){
-	minimumSpacing = s;
+	defaultMinimumSpacing = s;
     }
 
-    /** Set the maximum grid size. */
+    /** Set the default maximum grid size. */
     public static void setMaximumGridsize(int gs){
-	maximumGridSize = gs;
+	defaultMaximumGridSize = gs;
+    }
+
+    /** Create a surface with the default settings. */
+    public Surface(){
+    }
+
+    /** Create a surface with this probe radius. */
+    public Surface(double probeRadius){
+	rp = probeRadius;
+    }
+
+    /** Set the number of threads used to fill in the grid. */
+    public void setThreads(int n){
+	threads = n;
+    }
+
+    /** Get the number of threads used to fill in the grid. */
+    public int getThreads(){
+	return threads;
     }
 
     /** The x-coordinate of the atoms. */
-    private static double ax[] = null;
+    private double ax[] = null;
 
     /** The y-coordinate of the atoms. */
-    private static double ay[] = null;
+    private double ay[] = null;
 
     /** The z-coordinate of the atoms. */
-    private static double az[] = null;
+    private double az[] = null;
 
     /** The radii of the atoms. */
-    private static double ar[] = null;
+    private double ar[] = null;
 
     /** The radii of the atoms squared. */
-    private static double ar2[] = null;
+    private double ar2[] = null;
 
     /** The list of selectd atoms. */
-    private static int selected[] = null;
+    private int selected[] = null;
 
     /** The number of atoms. */
-    private static int atomCount = 0;
+    private int atomCount = 0;
 
     /** The number of neighbour atoms. */
-    private static int neighbourCount = 0;
+    private int neighbourCount = 0;
 
     /** The list of neighbour atoms. */
-    private static int neighbours[] = null;
+    private int neighbours[] = null;
 
     /** The total number of torus points that were used. */
-    private static int torusPoints = 0;
+    private int torusPoints = 0;
 
     /** The lattice object for neighbour calculations. */
-    private static Lattice l = null;
+    private Lattice l = null;
 
-    /** Create a soft object surface. */
+    /** Were only some of the atoms selected. */
+    private boolean partial = false;
+
+    /** The atoms the surface was generated from. */
+    private DynamicArray surfaceAtoms = null;
+
+    /** The surface we generated. */
+    private Tmesh surface = null;
+
+    /** Is the surface made of triangles. */
+    private boolean solid = true;
+
+    /**
+     * The grid cell that made each triangle of the surface.
+     * A moved atom only changes the grid points within reach
+     * of it, so these give the triangles that need rebuilding.
+     */
+    private int triangleCells[] = null;
+
+    /** Create a soft object surface with the default settings. */
     public static Tmesh connolly(DynamicArray atoms,
 				 double gridSpacing, boolean solid){
+	Surface surface = new Surface();
+
+	return surface.generate(atoms, gridSpacing, solid);
+    }
+
+    /** Create a soft object surface. */
+    public Tmesh generate(DynamicArray atoms,
+			  double gridSpacing, boolean solid){
 	desiredGridSpacing = gridSpacing;
 
 	atomCount = atoms.size();
@@ -198,20 +286,10 @@ public class Surface {
 	// now we need to grow the atoms that we surface
 	// out by one layer to prevent strange artefacts
 	// at the surface boundary.
-	if(selectionCount != atomCount){
-	    for(int a = 0; a < atomCount; a++){
-		if(selected[a] == 0){
-		    for(int b = 0; b < atomCount; b++){
-			if(selected[b] == 1 &&
-			   distance2(ax[a], ay[a], az[a],
-				     ax[b], ay[b], az[b]) <
-			   (ar[a]+ar[b])*(ar[a]+ar[b])){
-			    selected[a] = 2;
-			    break;
-			}
-		    }
-		}
-	    }
+	partial = selectionCount != atomCount;
+
+	if(partial){
+	    growSelection();
 	}
 
 	initialiseGrid(solid ? minimumSpacing : minimumSpacing * 2.5);
@@ -220,30 +298,9 @@ public class Surface {
 
 	then = System.currentTimeMillis();
 
-	projectPoints();
-
-	debug("Point projection " + (System.currentTimeMillis() - then));
-
-	then = System.currentTimeMillis();
-
-	//torusPoints = 0;
-
-	projectTorii();
-
-	debug("Torus projection " + (System.currentTimeMillis() - then));
+	projectBox(0, gx, 0, gy, 0, gz);
 
-	//debug("Torus points " + torusPoints);
-
-	// fix up the grid points that were outside
-	// the solvent accessible surface
-	int gridPointCount = gx * gy * gz;
-	float gr[] = grid;
-
-	for(int i = 0; i < gridPointCount; i++){
-	    if(gr[i] < 0.0){
-		gr[i] = (float)0.0;
-	    }
-	}
+	debug("Grid projection " + (System.currentTimeMillis() - then));
 
 	// fix
 	//GraphicalObject surface = GraphicalObject.create();
@@ -260,11 +317,13 @@ public class Surface {
 	// we are defining a surface at this distance from
 	// the solvent extended surface.
 
-	March.generateTriangles = solid;
-	March.surface(grid, gx, gy, gz, (float)rp, false, surface);
+	March march = new March(solid);
+	march.surface(grid, gx, gy, gz, (float)rp, false, surface);
 
 	debug("Contour         " + (System.currentTimeMillis() - then));
 
+	triangleCells = getTriangleCells(surface, 0, 0, 0);
+
 	// fix
 	//int pointCount = surface.pointCount;
 	int pointCount = surface.np;
@@ -275,8 +334,8 @@ public class Surface {
 	    surface.z[i] *= spacing; surface.z[i] += gminz;
 	}
 
-	if(selectionCount != atomCount){
-	    clipSurface(surface, solid);
+	if(partial){
+	    clipSurface(surface, solid, triangleCells);
 	}
 
 	if(!solid){
@@ -298,11 +357,395 @@ public class Surface {
 	// fix
 	//debug("surface has " + surface.lineCount + " lines");
 
+	surfaceAtoms = atoms;
+	this.solid = solid;
+	this.surface = surface;
+
 	return surface;
     }
 
+    /** Return the surface we generated. */
+    public Tmesh getSurface(){
+	return surface;
+    }
+
+    /**
+     * Mark the unselected atoms that touch a selected atom with 2.
+     * Returns true if any of the marks changed.
+     */
+    private boolean growSelection(){
+	IntArray possibleNeighbours = new IntArray();
+	boolean changed = false;
+
+	for(int a = 0; a < atomCount; a++){
+	    if(selected[a] != 1){
+		int mark = 0;
+
+		possibleNeighbours.removeAllElements();
+
+		l.getPossibleNeighbours(a, ax[a], ay[a], az[a],
+					possibleNeighbours, true);
+
+		int possibleNeighbourCount = possibleNeighbours.size();
+
+		for(int p = 0; p < possibleNeighbourCount; p++){
+		    int b = possibleNeighbours.get(p);
+		    if(selected[b] == 1 &&
+		       distance2(ax[a], ay[a], az[a],
+				 ax[b], ay[b], az[b]) <
+		       (ar[a]+ar[b])*(ar[a]+ar[b])){
+			mark = 2;
+			break;
+		    }
+		}
+
+		if(selected[a] != mark){
+		    selected[a] = mark;
+		    changed = true;
+		}
+	    }
+	}
+
+	return changed;
+    }
+
+    /**
+     * Bring the surface up to date after some of its atoms
+     * have moved, for example by a Manipulator.
+     *
+     * Only the grid points within reach of the moved atoms are
+     * filled in again. The grid cells around them are contoured
+     * again and their triangles replace the old ones from the
+     * same cells, so the rest of the surface is left alone.
+     * The whole surface is regenerated if a selected atom moves
+     * out of the grid, or the atoms around a partial selection
+     * change.
+     *
+     * Returns false if none of the atoms moved.
+     */
+    public boolean update(){
+	if(surface == null){
+	    return false;
+	}
+
+	int ng = 4 + (int)((rp / spacing));
+	double minx = 1.e10, miny = 1.e10, minz = 1.e10;
+	double maxx = -1.e10, maxy = -1.e10, maxz = -1.e10;
+	boolean moved = false;
+	boolean outside = false;
+
+	for(int a = 0; a < atomCount; a++){
+	    Atom atom = (Atom)surfaceAtoms.get(a);
+	    double x = atom.getX();
+	    double y = atom.getY();
+	    double z = atom.getZ();
+
+	    if(x != ax[a] || y != ay[a] || z != az[a]){
+		// grid points depend on an atom through its own
+		// sphere and torii and by clipping the spheres and
+		// torii of its neighbours
+		double reach = ar[a] +
+		    Math.max(maxRadius, (ng + 1) * spacing * Math.sqrt(3.0));
+
+		minx = Math.min(minx, Math.min(x, ax[a]) - reach);
+		miny = Math.min(miny, Math.min(y, ay[a]) - reach);
+		minz = Math.min(minz, Math.min(z, az[a]) - reach);
+		maxx = Math.max(maxx, Math.max(x, ax[a]) + reach);
+		maxy = Math.max(maxy, Math.max(y, ay[a]) + reach);
+		maxz = Math.max(maxz, Math.max(z, az[a]) + reach);
+
+		if(selected[a] == 1 &&
+		   (x - ar[a] < gminx || y - ar[a] < gminy ||
+		    z - ar[a] < gminz || x + ar[a] > gmaxx ||
+		    y + ar[a] > gmaxy || z + ar[a] > gmaxz)){
+		    outside = true;
+		}
+
+		ax[a] = x;
+		ay[a] = y;
+		az[a] = z;
+
+		moved = true;
+	    }
+	}
+
+	if(!moved){
+	    return false;
+	}
+
+	l = new Lattice(2.01 * maxRadius);
+
+	for(int a = 0; a < atomCount; a++){
+	    l.add(a, ax[a], ay[a], az[a]);
+	}
+
+	if(outside || (partial && growSelection())){
+	    Tmesh target = surface;
+
+	    generate(surfaceAtoms, desiredGridSpacing, solid);
+
+	    replace(target, surface);
+
+	    surface = target;
+
+	    return true;
+	}
+
+	long then = System.currentTimeMillis();
+
+	// the grid points that can change
+	int x0 = (int)((minx - gminx) / spacing); if(x0 < 0) x0 = 0;
+	int y0 = (int)((miny - gminy) / spacing); if(y0 < 0) y0 = 0;
+	int z0 = (int)((minz - gminz) / spacing); if(z0 < 0) z0 = 0;
+	int x1 = 2 + (int)((maxx - gminx) / spacing); if(x1 > gx) x1 = gx;
+	int y1 = 2 + (int)((maxy - gminy) / spacing); if(y1 > gy) y1 = gy;
+	int z1 = 2 + (int)((maxz - gminz) / spacing); if(z1 > gz) z1 = gz;
+
+	if(x0 >= x1 || y0 >= y1 || z0 >= z1){
+	    return true;
+	}
+
+	projectBox(x0, x1, y0, y1, z0, z1);
+
+	// the cells with a corner in the box
+	int cx0 = x0 - 1; if(cx0 < 0) cx0 = 0;
+	int cy0 = y0 - 1; if(cy0 < 0) cy0 = 0;
+	int cz0 = z0 - 1; if(cz0 < 0) cz0 = 0;
+
+	// and one more layer of points for the normals
+	int px0 = cx0 - 1; if(px0 < 0) px0 = 0;
+	int py0 = cy0 - 1; if(py0 < 0) py0 = 0;
+	int pz0 = cz0 - 1; if(pz0 < 0) pz0 = 0;
+	int px1 = x1 + 2; if(px1 > gx) px1 = gx;
+	int py1 = y1 + 2; if(py1 > gy) py1 = gy;
+	int pz1 = z1 + 2; if(pz1 > gz) pz1 = gz;
+
+	int sx = px1 - px0;
+	int sy = py1 - py0;
+	int sz = pz1 - pz0;
+	float patchGrid[] = new float[sx * sy * sz];
+
+	for(int iz = 0; iz < sz; iz++){
+	    for(int iy = 0; iy < sy; iy++){
+		System.arraycopy(grid, px0 + gx*(py0 + iy) + gx*gy*(pz0 + iz),
+				 patchGrid, sx*iy + sx*sy*iz, sx);
+	    }
+	}
+
+	Tmesh patch = new Tmesh();
+
+	March march = new March(solid);
+	march.surface(patchGrid, sx, sy, sz, (float)rp, false, patch);
+
+	int patchCells[] = getTriangleCells(patch, px0, py0, pz0);
+	int patchTriangles = 0;
+
+	// only keep the triangles from the cells we replace,
+	// the others are the same as the ones we have
+	for(int i = 0; i < patch.nt; i++){
+	    if(inCells(patchCells[i], cx0, x1, cy0, y1, cz0, z1)){
+		patch.t0[patchTriangles] = patch.t0[i];
+		patch.t1[patchTriangles] = patch.t1[i];
+		patch.t2[patchTriangles] = patch.t2[i];
+		patch.tcolor[patchTriangles] = patch.tcolor[i];
+		patchCells[patchTriangles] = patchCells[i];
+		patchTriangles++;
+	    }
+	}
+
+	patch.nt = patchTriangles;
+
+	for(int i = 0; i < patch.np; i++){
+	    patch.x[i] += px0; patch.x[i] *= spacing; patch.x[i] += gminx;
+	    patch.y[i] += py0; patch.y[i] *= spacing; patch.y[i] += gminy;
+	    patch.z[i] += pz0; patch.z[i] *= spacing; patch.z[i] += gminz;
+	}
+
+	if(partial){
+	    clipSurface(patch, solid, patchCells);
+	}
+
+	splice(patch, patchCells, cx0, x1, cy0, y1, cz0, z1);
+
+	debug("Surface update " + (System.currentTimeMillis() - then));
+
+	return true;
+    }
+
+    /**
+     * Return the grid cell that made each triangle, from points
+     * that are still in grid units offset by x0, y0 and z0.
+     * A triangle lies inside the cell that made it, so its
+     * lowest point gives the cell.
+     */
+    private int[] getTriangleCells(Tmesh tm, int x0, int y0, int z0){
+	int cells[] = new int[tm.nt];
+
+	for(int i = 0; i < tm.nt; i++){
+	    int v0 = tm.t0[i];
+	    int v1 = tm.t1[i];
+	    int v2 = tm.t2[i];
+
+	    // lines only have two points
+	    if(v2 == -1){
+		v2 = v1;
+	    }
+
+	    int cx = x0 + (int)Math.min(tm.x[v0], Math.min(tm.x[v1], tm.x[v2]));
+	    int cy = y0 + (int)Math.min(tm.y[v0], Math.min(tm.y[v1], tm.y[v2]));
+	    int cz = z0 + (int)Math.min(tm.z[v0], Math.min(tm.z[v1], tm.z[v2]));
+
+	    cells[i] = cx + gx * (cy + gy * cz);
+	}
+
+	return cells;
+    }
+
+    /** Is the cell in the range of cells. */
+    private boolean inCells(int cell, int cx0, int cx1,
+			    int cy0, int cy1, int cz0, int cz1){
+	int cx = cell % gx;
+	int cy = (cell / gx) % gy;
+	int cz = cell / (gx * gy);
+
+	return cx >= cx0 && cx < cx1 &&
+	    cy >= cy0 && cy < cy1 &&
+	    cz >= cz0 && cz < cz1;
+    }
+
+    /**
+     * Replace the triangles from the range of cells in our
+     * surface with the triangles of the patch. The points that
+     * are no longer used are removed.
+     */
+    private void splice(Tmesh patch, int patchCells[],
+			int cx0, int cx1, int cy0, int cy1,
+			int cz0, int cz1){
+	Tmesh tm = surface;
+	int remap[] = new int[tm.np];
+	int patchRemap[] = new int[patch.np];
+	int triangleCount = 0;
+	int pointCount = 0;
+
+	for(int i = 0; i < tm.nt; i++){
+	    if(!inCells(triangleCells[i], cx0, cx1, cy0, cy1, cz0, cz1)){
+		remap[tm.t0[i]] = 1;
+		remap[tm.t1[i]] = 1;
+		if(tm.t2[i] != -1){
+		    remap[tm.t2[i]] = 1;
+		}
+		triangleCount++;
+	    }
+	}
+
+	for(int i = 0; i < patch.nt; i++){
+	    patchRemap[patch.t0[i]] = 1;
+	    patchRemap[patch.t1[i]] = 1;
+	    if(patch.t2[i] != -1){
+		patchRemap[patch.t2[i]] = 1;
+	    }
+	    triangleCount++;
+	}
+
+	for(int i = 0; i < tm.np; i++){
+	    remap[i] = (remap[i] == 1) ? pointCount++ : -1;
+	}
+
+	for(int i = 0; i < patch.np; i++){
+	    patchRemap[i] = (patchRemap[i] == 1) ? pointCount++ : -1;
+	}
+
+	Tmesh result = new Tmesh();
+	result.setPointCapacity(pointCount);
+	result.setTriangleCapacity(triangleCount);
+
+	copyPoints(tm, remap, result);
+	copyPoints(patch, patchRemap, result);
+
+	result.np = pointCount;
+
+	int cells[] = new int[triangleCount];
+
+	for(int i = 0; i < tm.nt; i++){
+	    if(!inCells(triangleCells[i], cx0, cx1, cy0, cy1, cz0, cz1)){
+		cells[result.nt] = triangleCells[i];
+		copyTriangle(tm, i, remap, result);
+	    }
+	}
+
+	for(int i = 0; i < patch.nt; i++){
+	    cells[result.nt] = patchCells[i];
+	    copyTriangle(patch, i, patchRemap, result);
+	}
+
+	if(!solid){
+	    result.nx = null;
+	    result.ny = null;
+	    result.nz = null;
+	    result.u = null;
+	    result.v = null;
+	}
+
+	replace(tm, result);
+
+	triangleCells = cells;
+    }
+
+    /** Copy the points that have a new index. */
+    private void copyPoints(Tmesh from, int remap[], Tmesh to){
+	for(int i = 0; i < from.np; i++){
+	    int p = remap[i];
+
+	    if(p != -1){
+		to.x[p] = from.x[i];
+		to.y[p] = from.y[i];
+		to.z[p] = from.z[i];
+		if(solid){
+		    to.nx[p] = from.nx[i];
+		    to.ny[p] = from.ny[i];
+		    to.nz[p] = from.nz[i];
+		    to.u[p] = from.u[i];
+		    to.v[p] = from.v[i];
+		}
+		to.vcolor[p] = from.vcolor[i];
+	    }
+	}
+    }
+
+    /** Copy a triangle using the new point indices. */
+    private void copyTriangle(Tmesh from, int i, int remap[], Tmesh to){
+	int t = to.nt++;
+
+	to.t0[t] = remap[from.t0[i]];
+	to.t1[t] = remap[from.t1[i]];
+	to.t2[t] = from.t2[i] == -1 ? -1 : remap[from.t2[i]];
+	to.tcolor[t] = from.tcolor[i];
+    }
+
+    /** Make target hold the points and triangles of source. */
+    private static void replace(Tmesh target, Tmesh source){
+	target.np = source.np;
+	target.npalloc = source.npalloc;
+	target.x = source.x;
+	target.y = source.y;
+	target.z = source.z;
+	target.nx = source.nx;
+	target.ny = source.ny;
+	target.nz = source.nz;
+	target.u = source.u;
+	target.v = source.v;
+	target.vcolor = source.vcolor;
+
+	target.nt = source.nt;
+	target.ntalloc = source.ntalloc;
+	target.t0 = source.t0;
+	target.t1 = source.t1;
+	target.t2 = source.t2;
+	target.tcolor = source.tcolor;
+    }
+
     /** Make better normals for the surface. */
-    public static void fixNormals(Tmesh surface){
+    public void fixNormals(Tmesh surface){
 	l = new Lattice((maxRadius - rp) * 1.05);
 
 	for(int a = 0; a < atomCount; a++){
@@ -351,7 +794,15 @@ public class Surface {
 	}
     }
 
-    public static void clipSurface(Tmesh surface, boolean solid){
+    public void clipSurface(Tmesh surface, boolean solid){
+	clipSurface(surface, solid, null);
+    }
+
+    /**
+     * Clip the surface to the selected atoms, moving the cells
+     * of the triangles along with them if cells isn't null.
+     */
+    private void clipSurface(Tmesh surface, boolean solid, int cells[]){
 	int pointCount = surface.np;
 	long then = System.currentTimeMillis();
 
@@ -442,6 +893,9 @@ public class Surface {
 		    surface.t1[newLines] = v1;
 		    surface.t2[newLines] = v2;
 		    surface.tcolor[newLines] = surface.tcolor[i];
+		    if(cells != null){
+			cells[newLines] = cells[i];
+		    }
 		    newLines++;
 		}
 	    }
@@ -454,6 +908,9 @@ public class Surface {
 		    surface.t0[newLines] = v0;
 		    surface.t1[newLines] = v1;
 		    surface.tcolor[newLines] = surface.tcolor[i];
+		    if(cells != null){
+			cells[newLines] = cells[i];
+		    }
 		    newLines++;
 		}
 	    }
@@ -506,8 +963,120 @@ public class Surface {
 	
     }
 
+    /**
+     * Fill in a box of grid points, in slabs of layers along z.
+     *
+     * Every grid point ends up with the smallest distance from
+     * any atom or torus, so the slabs can be done in any order.
+     * Each slab only writes its own part of the box.
+     */
+    private void projectBox(int x0, int x1, int y0, int y1,
+			    int z0, int z1){
+	int slabCount = threads;
+
+	if(slabCount > (z1 - z0) / MinimumSlabLayers){
+	    slabCount = (z1 - z0) / MinimumSlabLayers;
+	}
+
+	if(slabCount < 1){
+	    slabCount = 1;
+	}
+
+	// build sin,cos lookup tables
+	double step = 2. * Math.PI / np;
+	double theta = 0.0;
+
+	cosTable = new double[np];
+	sinTable = new double[np];
+
+	for(int j = 0; j < np; j++){
+	    cosTable[j] = Math.cos(theta);
+	    sinTable[j] = Math.sin(theta);
+	    theta += step;
+	}
+
+	Surface slabs[] = new Surface[slabCount];
+	Thread slabThreads[] = new Thread[slabCount];
+
+	for(int s = 0; s < slabCount; s++){
+	    Surface slab = new Surface(rp);
+	    slab.spacing = spacing;
+	    slab.gx = gx; slab.gy = gy; slab.gz = gz;
+	    slab.grid = grid;
+	    slab.gminx = gminx; slab.gminy = gminy; slab.gminz = gminz;
+	    slab.gridx = gridx; slab.gridy = gridy; slab.gridz = gridz;
+	    slab.ax = ax; slab.ay = ay; slab.az = az;
+	    slab.ar = ar; slab.ar2 = ar2;
+	    slab.selected = selected;
+	    slab.atomCount = atomCount;
+	    slab.neighbours = new int[atomCount];
+	    slab.l = l;
+	    slab.cosTable = cosTable;
+	    slab.sinTable = sinTable;
+	    slab.minX = x0; slab.maxX = x1;
+	    slab.minY = y0; slab.maxY = y1;
+	    slab.firstLayer = z0 + (s * (z1 - z0)) / slabCount;
+	    slab.lastLayer = z0 + ((s + 1) * (z1 - z0)) / slabCount;
+	    slabs[s] = slab;
+	}
+
+	// this thread does the first slab itself
+	for(int s = 1; s < slabCount; s++){
+	    slabThreads[s] = new Thread(slabs[s]);
+	    slabThreads[s].start();
+	}
+
+	slabs[0].run();
+
+	for(int s = 1; s < slabCount; s++){
+	    try {
+		slabThreads[s].join();
+	    }catch(InterruptedException e){
+		Log.error("interrupted waiting for surface slab " + s);
+	    }
+	}
+    }
+
+    /** Fill in the part of the box this object was set up with. */
+    public void run(){
+	float gr[] = grid;
+
+	// start from outside all of the atoms
+	for(int iz = firstLayer; iz < lastLayer; iz++){
+	    for(int iy = minY; iy < maxY; iy++){
+		int yzoffset = gx*gy*iz + gx*iy;
+
+		for(int ix = minX; ix < maxX; ix++){
+		    gr[ix + yzoffset] = (float)-1001.0;
+		}
+	    }
+	}
+
+	projectPoints();
+
+	//torusPoints = 0;
+
+	projectTorii();
+
+	//debug("Torus points " + torusPoints);
+
+	// fix up the grid points that were outside
+	// the solvent accessible surface
+	for(int iz = firstLayer; iz < lastLayer; iz++){
+	    for(int iy = minY; iy < maxY; iy++){
+		int yzoffset = gx*gy*iz + gx*iy;
+
+		for(int ix = minX; ix < maxX; ix++){
+		    if(gr[ix + yzoffset] < 0.0){
+			gr[ix + yzoffset] = (float)0.0;
+		    }
+		}
+	    }
+	}
+    }
+
     /** Project the points inside the atoms onto the surface. */
-    public static void projectPoints(){
+    public void projectPoints(){
 	float gr[] = grid;
 
 	IntArray possibleNeighbours = new IntArray();
@@ -522,6 +1091,26 @@ public class Surface {
 	    neighbourCount = 0;
 
 	    if(selected[a] > 0){
+		// number of grid points covered by atom.
+		int ng = 1 + (int)(ra / spacing);
+
+		// grid point of atom center.
+		int iax = (int)(0.5 + ((aax - gminx) / spacing));
+		int iay = (int)(0.5 + ((aay - gminy) / spacing));
+		int iaz = (int)(0.5 + ((aaz - gminz) / spacing));
+
+		// force grid point ranges to lie in our slab.
+		int minx = iax - ng; if(minx < minX) minx = minX;
+		int maxx = iax + ng; if(maxx > maxX) maxx = maxX;
+		int miny = iay - ng; if(miny < minY) miny = minY;
+		int maxy = iay + ng; if(maxy > maxY) maxy = maxY;
+		int minz = iaz - ng; if(minz < firstLayer) minz = firstLayer;
+		int maxz = iaz + ng; if(maxz > lastLayer) maxz = lastLayer;
+
+		if(minx >= maxx || miny >= maxy || minz >= maxz){
+		    continue;
+		}
+
 		possibleNeighbours.removeAllElements();
 
 		l.getPossibleNeighbours(a, aax, aay, aaz, possibleNeighbours, true);
@@ -540,22 +1129,6 @@ public class Surface {
 		    }
 		}
 
-		// number of grid points covered by atom.
-		int ng = 1 + (int)(ra / spacing);
-
-		// grid point of atom center.
-		int iax = (int)(0.5 + ((aax - gminx) / spacing));
-		int iay = (int)(0.5 + ((aay - gminy) / spacing));
-		int iaz = (int)(0.5 + ((aaz - gminz) / spacing));
-
-		// force grid point ranges to lie in grid.
-		int minx = iax - ng; if(minx < 0) minx = 0;
-		int maxx = iax + ng; if(maxx > gx) maxx = gx;
-		int miny = iay - ng; if(miny < 0) miny = 0;
-		int maxy = iay + ng; if(maxy > gy) maxy = gy;
-		int minz = iaz - ng; if(minz < 0) minz = 0;
-		int maxz = iaz + ng; if(maxz > gz) maxz = gz;
-
 		lastClip = -1;
 
 		for(int iz = minz; iz < maxz; iz++){
@@ -613,7 +1186,7 @@ public class Surface {
     }
 
     /** Project the points inside the atoms onto the surface. */
-    public static void projectTorii(){
+    public void projectTorii(){
 
 	IntArray possibleNeighbours = new IntArray();
 
@@ -625,6 +1198,19 @@ public class Surface {
 	    neighbourCount = 0;
 
 	    if(selected[a] > 0){
+		// the torus points are on the surface of the atom
+		// and change the grid for ng points around them
+		int iax = (int)(0.5 + ((aax - gminx) / spacing));
+		int iay = (int)(0.5 + ((aay - gminy) / spacing));
+		int iaz = (int)(0.5 + ((aaz - gminz) / spacing));
+		int ng = 8 + (int)((r1 + rp) / spacing);
+
+		if(iax + ng < minX || iax - ng >= maxX ||
+		   iay + ng < minY || iay - ng >= maxY ||
+		   iaz + ng < firstLayer || iaz - ng >= lastLayer){
+		    continue;
+		}
+
 		possibleNeighbours.removeAllElements();
 
 		l.getPossibleNeighbours(a, aax, aay, aaz, possibleNeighbours, true);
@@ -658,17 +1244,17 @@ public class Surface {
 	}
     }
 
-    private static Point3d atom1 = new Point3d();
-    private static Point3d atom2 = new Point3d();
-    private static Point3d mid   = new Point3d();
-    private static Point3d n1    = new Point3d();
-    private static Point3d n2    = new Point3d();
+    private Point3d atom1 = new Point3d();
+    private Point3d atom2 = new Point3d();
+    private Point3d mid   = new Point3d();
+    private Point3d n1    = new Point3d();
+    private Point3d n2    = new Point3d();
 
-    private static double cosTable[] = null;
-    private static double sinTable[] = null;
+    private double cosTable[] = null;
+    private double sinTable[] = null;
 
     /** Project the points of a torus onto the grid. */
-    public static void projectTorus(int a, int b){
+    public void projectTorus(int a, int b){
 	double r1 = ar[a];
 	double r2 = ar[b];
 	double dx = ax[b] - ax[a];
@@ -698,21 +1284,6 @@ public class Surface {
 	mid.scale(dmp);
 	mid.add(atom1);
 
-	double step = 2. * Math.PI / np;
-	double theta = 0.0;
-
-	// build sin,cos lookup tables
-	if(cosTable == null){
-	    cosTable = new double[np];
-	    sinTable = new double[np];
-	    for(int j = 0; j < np; j++){
-		cosTable[j] = Math.cos(theta);
-		sinTable[j] = Math.sin(theta);
-		theta += step;
-	    }
-
-	}
-
 	lastClip = -1;
 
 	for(int i = 0; i < np; i++){
@@ -724,21 +1295,26 @@ public class Surface {
 	    double py = mid.y + cost*n1.y + sint*n2.y;
 	    double pz = mid.z + cost*n1.z + sint*n2.z;
 
+	    int ng = 4 + (int)((rp / spacing));
+
+	    int iax = (int)(0.5 + ((px - gminx) / spacing));
+	    int iay = (int)(0.5 + ((py - gminy) / spacing));
+	    int iaz = (int)(0.5 + ((pz - gminz) / spacing));
+
+	    int minx = iax - ng; if(minx < minX) minx = minX;
+	    int maxx = iax + ng; if(maxx > maxX) maxx = maxX;
+	    int miny = iay - ng; if(miny < minY) miny = minY;
+	    int maxy = iay + ng; if(maxy > maxY) maxy = maxY;
+	    int minz = iaz - ng; if(minz < firstLayer) minz = firstLayer;
+	    int maxz = iaz + ng; if(maxz > lastLayer) maxz = lastLayer;
+
+	    // doesn't reach our slab
+	    if(minx >= maxx || miny >= maxy || minz >= maxz){
+		continue;
+	    }
+
 	    if(obscured(px, py, pz, a, b) == -1){
 		//torusPoints++;
-
-		int ng = 4 + (int)((rp / spacing));
-	    
-		int iax = (int)(0.5 + ((px - gminx) / spacing));
-		int iay = (int)(0.5 + ((py - gminy) / spacing));
-		int iaz = (int)(0.5 + ((pz - gminz) / spacing));
-
-		int minx = iax - ng; if(minx < 0) minx = 0;
-		int maxx = iax + ng; if(maxx > gx) maxx = gx;
-		int miny = iay - ng; if(miny < 0) miny = 0;
-		int maxy = iay + ng; if(maxy > gy) maxy = gy;
-		int minz = iaz - ng; if(minz < 0) minz = 0;
-		int maxz = iaz + ng; if(maxz > gz) maxz = gz;
 		
 		for(int iz = minz; iz < maxz; iz++){
 		    int zoffset = gx*gy*iz;
@@ -791,7 +1367,7 @@ public class Surface {
     }
 
     /** The last atom that clipped a point. */
-    public static int lastClip = -1;
+    private int lastClip = -1;
 
     /**
      * Is the point within one of the atoms in the list.
@@ -802,8 +1378,8 @@ public class Surface {
      * Return value of -1 indicates that the point
      * was not obscured by any atom in the neighbour list.
      */
-    public static int obscured(double x, double y, double z,
-			       int a, int b){
+    public int obscured(double x, double y, double z,
+			int a, int b){
 	if(lastClip != -1){
 	    double r = ar[lastClip];
 	    double dx = ax[lastClip] - x;
@@ -837,7 +1413,7 @@ public class Surface {
     }
 
     /** Find the size of the atoms that we will surface. */
-    public static void initialiseGrid(double minSpacing){
+    public void initialiseGrid(double minSpacing){
 
 	// figure out the size of the box containing
 	// the selected atoms.
@@ -899,14 +1475,9 @@ public class Surface {
 	
 	int gridPointCount = gx*gy*gz;
 
+	// the slabs set the grid points as they fill it in
 	grid = new float[gridPointCount];
 
-	float gr[] = grid;
-
-	for(int i = 0; i < gridPointCount; i++){
-	    gr[i] = (float)-1001.0;
-	}
-
 	gridx = new double[gx];
 	gridy = new double[gy];
 	gridz = new double[gz];
@@ -1015,14 +1586,14 @@ public class Surface {
 	ds.style = Tmesh.DOTS;
 
 	int atomCount = selectedAtoms.size();
-	neighbours = new int[atomCount];
+	int neighbours[] = new int[atomCount];
 
 	for(int a = 0; a < atomCount; a++){
 	    Atom atom = (Atom)selectedAtoms.get(a);
 	    double ra = atom.getVDWRadius();
 	    int atomColor = atom.getColor();
 
-	    neighbourCount = 0;
+	    int neighbourCount = 0;
 
 	    for(int b = 0; b < atomCount; b++){
 		// XXX can reduce the number of torii we generate here
@@ -700,116 +700,54 @@ public class Tmesh {
 	}
     }
 
-    /** Read a ply file. */
+    /** Read an ascii or binary ply file. */
     public static Tmesh readPly(FILE f){
 	System.out.println("reading ply file");
-	
-	Tmesh tmesh = new Tmesh();
-
-	int vcount = 0;
-	int fcount = 0;
-
-	while(f.nextLine()){
-	    int fieldCount = f.getFieldCount();
-	    if(fieldCount == 3 &&
-	       f.getField(0).equals("element")){
-		if(f.getField(1).equals("vertex")){
-		    vcount = f.getInteger(2);
-		    tmesh.setPointCapacity(vcount);
-		    System.out.println("vertex count " + vcount);
-		}else if(f.getField(1).equals("face")){
-		    fcount = f.getInteger(2);
-		    tmesh.setTriangleCapacity(fcount);
-		    System.out.println("face count " + fcount);
-		}
-	    }else if(fieldCount == 1 && f.getField(0).equals("end_header")){
-		System.out.println("seen end of header");
-		break;
-	    }
-	}
-
-	for(int i = 0; i < vcount; i++){
-	    f.nextLine();
-	    int fieldCount = f.getFieldCount();
-	    float x, y, z;
-	    float u = 0.0f, v = 0.0f;
-	    x = f.getFloat(0);
-	    y = f.getFloat(1);
-	    z = f.getFloat(2);
-
-	    if(fieldCount == 5){
-		u = v = f.getFloat(4);
-	    }
-	    
-	    tmesh.addPoint((float)f.getDouble(0),
-			   (float)f.getDouble(1),
-			   (float)f.getDouble(2),
-			   0.0, 0.0, 0.0, u, v);
 
-	    if(i != 0 && i % 100000 == 0){
-		System.out.println("vertex " + i);
-	    }
-	}
-
-	for(int i = 0; i < fcount; i++){
-	    f.nextLine();
-	    int fieldCount = f.getFieldCount();
-	    
-	    if(fieldCount == 4){
-		tmesh.addTriangle(f.getInteger(1),
-				  f.getInteger(2),
-				  f.getInteger(3));
-	    }else{
-		System.out.println("more than 4 fields on face record.");
-		break;
-	    }
-
-	    if(i != 0 && i % 100000 == 0){
-		System.out.println("face " + i);
-	    }
-	}
+	return new PLYReader(f).read();
+    }
 
+    /** Set the normals of the points from the triangles around them. */
+    void calculateNormals(){
 	double a[] = new double[3];
 	double b[] = new double[3];
 	double n[] = new double[3];
 
-	for(int i = 0;i < tmesh.nt; i++){
-	    int ti = tmesh.t0[i];
-	    int tj = tmesh.t1[i];
-	    int tk = tmesh.t2[i];
+	for(int i = 0;i < nt; i++){
+	    int ti = t0[i];
+	    int tj = t1[i];
+	    int tk = t2[i];
 
-	    a[0] = tmesh.x[ti] - tmesh.x[tj];
-	    a[1] = tmesh.y[ti] - tmesh.y[tj];
-	    a[2] = tmesh.z[ti] - tmesh.z[tj];
-	    b[0] = tmesh.x[tk] - tmesh.x[tj];
-	    b[1] = tmesh.y[tk] - tmesh.y[tj];
-	    b[2] = tmesh.z[tk] - tmesh.z[tj];
+	    a[0] = x[ti] - x[tj];
+	    a[1] = y[ti] - y[tj];
+	    a[2] = z[ti] - z[tj];
+	    b[0] = x[tk] - x[tj];
+	    b[1] = y[tk] - y[tj];
+	    b[2] = z[tk] - z[tj];
 
 	    Point3d.cross(n, b, a);
 
-	    tmesh.nx[ti] += n[0];
-	    tmesh.ny[ti] += n[1];
-	    tmesh.nz[ti] += n[2];
-	    tmesh.nx[tj] += n[0];
-	    tmesh.ny[tj] += n[1];
-	    tmesh.nz[tj] += n[2];
-	    tmesh.nx[tk] += n[0];
-	    tmesh.ny[tk] += n[1];
-	    tmesh.nz[tk] += n[2];
-	}
-
-	for(int i = 0;i < tmesh.np; i++){
-	    double dx = tmesh.nx[i];
-	    double dy = tmesh.ny[i];
-	    double dz = tmesh.nz[i];
+	    nx[ti] += n[0];
+	    ny[ti] += n[1];
+	    nz[ti] += n[2];
+	    nx[tj] += n[0];
+	    ny[tj] += n[1];
+	    nz[tj] += n[2];
+	    nx[tk] += n[0];
+	    ny[tk] += n[1];
+	    nz[tk] += n[2];
+	}
+
+	for(int i = 0;i < np; i++){
+	    double dx = nx[i];
+	    double dy = ny[i];
+	    double dz = nz[i];
 	    double len = Math.sqrt(dx*dx+dy*dy+dz*dz);
 	    
-	    tmesh.nx[i] /= len;
-	    tmesh.ny[i] /= len;
-	    tmesh.nz[i] /= len;
+	    nx[i] /= len;
+	    ny[i] /= len;
+	    nz[i] /= len;
 	}
-
-	return tmesh;
     }
 
     /** Create a tmesh from a file. */
@@ -821,7 +759,17 @@ public class Tmesh {
 	    return null;
 	}
 
-	if(file.indexOf(".ply") != -1){
+	if(file.indexOf(BinaryExtension) != -1){
+	    Tmesh tmesh = readBinary(f);
+
+	    f.close();
+
+	    if(tmesh != null){
+		tmesh.name = file;
+	    }
+
+	    return tmesh;
+	}else if(file.indexOf(".ply") != -1){
 	    return readPly(f);
 	}else if(file.indexOf(".gro") != -1){
 	    //return GraphicalObject.readGraphicalObject(f);
@@ -892,6 +840,309 @@ public class Tmesh {
 	return tmesh;
     }
 
+    /** The extension of binary tmesh files. */
+    public static final String BinaryExtension = ".tmb";
+
+    /** The first bytes of a binary tmesh file. */
+    private static final byte BinaryMagic[] = { 'T', 'M', 'B', '\n' };
+
+    /** The version of binary tmesh file that we write. */
+    private static final int BinaryVersion = 1;
+
+    /** Flags for the blocks that are in a binary tmesh file. */
+    private static final int BinaryNormals = 1;
+    private static final int BinaryTexture = 2;
+    private static final int BinaryVertexColors = 4;
+
+    /** The size of the buffer for binary blocks. */
+    private static final int BinaryBufferSize = 65536;
+
+    /** The most points or triangles we allocate for a binary file. */
+    private static final int BinaryMaximumCount = 1 << 24;
+
+    /**
+     * Read a binary tmesh file.
+     *
+     * The file is little endian. After the 4 magic bytes come the
+     * integers version, flags, style, colorStyle, color, np and
+     * nt. The points follow as blocks of np values, x, y and z
+     * then nx, ny, nz, u, v and vcolor if the flags say they are
+     * there. The triangles are blocks of nt values, t0, t1, t2
+     * and tcolor. Lines have -1 for t2.
+     */
+    public static Tmesh readBinary(FILE f){
+	byte b[] = new byte[BinaryBufferSize];
+
+	if(!readFully(f, b, 32)){
+	    System.out.println("tmesh file is too short");
+	    return null;
+	}
+
+	for(int i = 0; i < BinaryMagic.length; i++){
+	    if(b[i] != BinaryMagic[i]){
+		System.out.println("not a binary tmesh file");
+		return null;
+	    }
+	}
+
+	int version = getInt(b, 4, true);
+
+	if(version > BinaryVersion){
+	    System.out.println("can't read binary tmesh version " + version);
+	    return null;
+	}
+
+	int flags = getInt(b, 8, true);
+
+	Tmesh tmesh = new Tmesh();
+	tmesh.style = getInt(b, 12, true);
+	tmesh.colorStyle = getInt(b, 16, true);
+	tmesh.color = getInt(b, 20, true);
+	int np = getInt(b, 24, true);
+	int nt = getInt(b, 28, true);
+
+	if(np < 0 || np > BinaryMaximumCount ||
+	   nt < 0 || nt > BinaryMaximumCount){
+	    System.out.println("bad binary tmesh size " + np + " points " +
+			       nt + " triangles");
+	    return null;
+	}
+
+	tmesh.setPointCapacity(np);
+	tmesh.setTriangleCapacity(nt);
+
+	boolean ok =
+	    readFloats(f, b, tmesh.x, np) &&
+	    readFloats(f, b, tmesh.y, np) &&
+	    readFloats(f, b, tmesh.z, np);
+
+	if((flags & BinaryNormals) != 0){
+	    ok = ok &&
+		readFloats(f, b, tmesh.nx, np) &&
+		readFloats(f, b, tmesh.ny, np) &&
+		readFloats(f, b, tmesh.nz, np);
+	}else{
+	    tmesh.nx = tmesh.ny = tmesh.nz = null;
+	}
+
+	if((flags & BinaryTexture) != 0){
+	    ok = ok &&
+		readFloats(f, b, tmesh.u, np) &&
+		readFloats(f, b, tmesh.v, np);
+	}else{
+	    tmesh.u = tmesh.v = null;
+	}
+
+	if((flags & BinaryVertexColors) != 0){
+	    ok = ok && readInts(f, b, tmesh.vcolor, np);
+	}
+
+	ok = ok &&
+	    readInts(f, b, tmesh.t0, nt) &&
+	    readInts(f, b, tmesh.t1, nt) &&
+	    readInts(f, b, tmesh.t2, nt) &&
+	    readInts(f, b, tmesh.tcolor, nt);
+
+	if(!ok){
+	    System.out.println("binary tmesh file is truncated");
+	    return null;
+	}
+
+	for(int i = 0; i < nt; i++){
+	    int v0 = tmesh.t0[i], v1 = tmesh.t1[i], v2 = tmesh.t2[i];
+
+	    if(v0 < 0 || v0 >= np || v1 < 0 || v1 >= np ||
+	       v2 < -1 || v2 >= np){
+		System.out.println("binary tmesh triangle " + i +
+				   " has a bad point");
+		return null;
+	    }
+	}
+
+	tmesh.np = np;
+	tmesh.nt = nt;
+
+	return tmesh;
+    }
+
+    /** Read length bytes into b, returning false at end of file. */
+    static boolean readFully(FILE f, byte b[], int length){
+	int offset = 0;
+
+	while(offset < length){
+	    int bytesRead = f.readBytes(b, offset, length - offset);
+
+	    if(bytesRead == FILE.EOF){
+		return false;
+	    }
+
+	    offset += bytesRead;
+	}
+
+	return true;
+    }
+
+    /** Read n little endian floats into a, using b for the bytes. */
+    private static boolean readFloats(FILE f, byte b[], float a[], int n){
+	int chunk = b.length / 4;
+
+	for(int start = 0; start < n; start += chunk){
+	    int count = Math.min(chunk, n - start);
+
+	    if(!readFully(f, b, 4 * count)){
+		return false;
+	    }
+
+	    for(int i = 0; i < count; i++){
+		a[start + i] = Float.intBitsToFloat(getInt(b, 4 * i, true));
+	    }
+	}
+
+	return true;
+    }
+
+    /** Read n little endian ints into a, using b for the bytes. */
+    private static boolean readInts(FILE f, byte b[], int a[], int n){
+	int chunk = b.length / 4;
+
+	for(int start = 0; start < n; start += chunk){
+	    int count = Math.min(chunk, n - start);
+
+	    if(!readFully(f, b, 4 * count)){
+		return false;
+	    }
+
+	    for(int i = 0; i < count; i++){
+		a[start + i] = getInt(b, 4 * i, true);
+	    }
+	}
+
+	return true;
+    }
+
+    /** Decode the 4 byte integer at offset i. */
+    static int getInt(byte b[], int i, boolean littleEndian){
+	if(littleEndian){
+	    return (b[i] & 0xff) | ((b[i+1] & 0xff) << 8) |
+		((b[i+2] & 0xff) << 16) | (b[i+3] << 24);
+	}else{
+	    return (b[i] << 24) | ((b[i+1] & 0xff) << 16) |
+		((b[i+2] & 0xff) << 8) | (b[i+3] & 0xff);
+	}
+    }
+
+    /** Encode a little endian 4 byte integer at offset i. */
+    private static void putInt(byte b[], int i, int value){
+	b[i]   = (byte)value;
+	b[i+1] = (byte)(value >> 8);
+	b[i+2] = (byte)(value >> 16);
+	b[i+3] = (byte)(value >> 24);
+    }
+
+    /** Write the tmesh as a binary tmesh file, see readBinary(). */
+    public void outputBinary(String filename){
+	OutputStream output = null;
+
+	try {
+	    output = new FileOutputStream(filename);
+
+	    byte b[] = new byte[BinaryBufferSize];
+	    int flags = 0;
+
+	    if(nx != null && ny != null && nz != null){
+		flags |= BinaryNormals;
+	    }
+	    if(u != null && v != null){
+		flags |= BinaryTexture;
+	    }
+	    if(vcolor != null){
+		flags |= BinaryVertexColors;
+	    }
+
+	    for(int i = 0; i < BinaryMagic.length; i++){
+		b[i] = BinaryMagic[i];
+	    }
+
+	    putInt(b, 4, BinaryVersion);
+	    putInt(b, 8, flags);
+	    putInt(b, 12, style);
+	    putInt(b, 16, colorStyle);
+	    putInt(b, 20, color);
+	    putInt(b, 24, np);
+	    putInt(b, 28, nt);
+
+	    output.write(b, 0, 32);
+
+	    writeFloats(output, b, x, np);
+	    writeFloats(output, b, y, np);
+	    writeFloats(output, b, z, np);
+
+	    if((flags & BinaryNormals) != 0){
+		writeFloats(output, b, nx, np);
+		writeFloats(output, b, ny, np);
+		writeFloats(output, b, nz, np);
+	    }
+
+	    if((flags & BinaryTexture) != 0){
+		writeFloats(output, b, u, np);
+		writeFloats(output, b, v, np);
+	    }
+
+	    if((flags & BinaryVertexColors) != 0){
+		writeInts(output, b, vcolor, np);
+	    }
+
+	    writeInts(output, b, t0, nt);
+	    writeInts(output, b, t1, nt);
+	    writeInts(output, b, t2, nt);
+	    writeInts(output, b, tcolor, nt);
+	}catch(IOException e){
+	    System.err.println("tmesh.outputBinary() couldn't write " +
+			       filename + " " + e);
+	}finally{
+	    if(output != null){
+		try {
+		    output.close();
+		}catch(IOException e){
+		    System.err.println("tmesh.outputBinary() couldn't close " +
+				       filename);
+		}
+	    }
+	}
+    }
+
+    /** Write n floats from a as little endian, using b for the bytes. */
+    private static void writeFloats(OutputStream output, byte b[],
+				    float a[], int n) throws IOException {
+	int chunk = b.length / 4;
+
+	for(int start = 0; start < n; start += chunk){
+	    int count = Math.min(chunk, n - start);
+
+	    for(int i = 0; i < count; i++){
+		putInt(b, 4 * i, Float.floatToIntBits(a[start + i]));
+	    }
+
+	    output.write(b, 0, 4 * count);
+	}
+    }
+
+    /** Write n ints from a as little endian, using b for the bytes. */
+    private static void writeInts(OutputStream output, byte b[],
+				  int a[], int n) throws IOException {
+	int chunk = b.length / 4;
+
+	for(int start = 0; start < n; start += chunk){
+	    int count = Math.min(chunk, n - start);
+
+	    for(int i = 0; i < count; i++){
+		putInt(b, 4 * i, a[start + i]);
+	    }
+
+	    output.write(b, 0, 4 * count);
+	}
+    }
+
     /** Distance between two points. */
     public double distance(int v0, int v1){
 	double dx = x[v0] - x[v1];
@@ -917,10 +1168,18 @@ public class Tmesh {
 	v[2] = 0.5 * (z[v0] + z[v1]);
     }
 
-    /** Prints the tmesh to a file. */
+    /**
+     * Prints the tmesh to a file.
+     * Files ending in .tmb are written in the binary format.
+     */
     public void output(String filename){
 	int i;
 
+	if(filename.endsWith(BinaryExtension)){
+	    outputBinary(filename);
+	    return;
+	}
+
 	FILE output = FILE.write(filename);
 
 	if(output == null){
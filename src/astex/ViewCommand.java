@@ -227,6 +227,14 @@ public class ViewCommand {
 	    mr.renderer.depthcue = f;
 	}
 
+	if(args.get("-tiles") != null){
+	    mr.renderer.setTileThreads(args.getInteger("-tiles", 0));
+	}
+
+	if(args.get("-tilesize") != null){
+	    mr.renderer.setTileSize(args.getInteger("-tilesize", 64));
+	}
+
 	mv.dirtyRepaint();
     }
 
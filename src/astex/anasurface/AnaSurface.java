@@ -50,6 +50,10 @@ public class AnaSurface {
     /** The default quality setting for the surface. */
     public static int defaultQuality = 1;
 
+    /** Default number of threads used to place the probes. */
+    public static int defaultThreads =
+ Settings.getInteger("config", "surface.threads", 1);
+
     /** The probe radius for the surface. */
     public double probeRadius = 1.5;
 
@@ -159,12 +163,27 @@ public class AnaSurface {
 
  currentColor = backgroundColor;
 
+ then = System.currentTimeMillis();
+
  processTorii();
 
+ print("# torus processing time (ms)",
+       (int)(System.currentTimeMillis() - then));
+
+ then = System.currentTimeMillis();
+
  triangulate();
 
+ print("# probe triangulation time (ms)",
+       (int)(System.currentTimeMillis() - then));
+
+ then = System.currentTimeMillis();
+
  triangulateAtoms();
 
+ print("# atom triangulation time (ms)",
+       (int)(System.currentTimeMillis() - then));
+
  int surfaceAtoms = 0;
  int maximumVertices = 0;
  for(int i = 0; i < nxyz; i++){
@@ -203,9 +222,12 @@ public class AnaSurface {
        (float)(System.currentTimeMillis() - startTime)*0.001);
 
 
- System.out.println("starting decusp");
+ then = System.currentTimeMillis();
+
  deCuspSurface(tmesh);
- System.out.println("done");
+
+ print("# decusp time (ms)",
+       (int)(System.currentTimeMillis() - then));
 
  tmesh.setColorStyle(Tmesh.VertexColor);
 
@@ -322,7 +344,7 @@ public class AnaSurface {
  }
     }
 
-    private static double meshp[] = new double[3];
+    private double meshp[] = new double[3];
 
     /** Find distance from the point to nerest point on torus radius. */
     private double torusRadiusDistance(Torus torus,
@@ -1136,45 +1158,43 @@ public class AnaSurface {
 
     private static double EPS = 1.e-8;
 
-    private static double u[] = new double[3];
-    private static double v[] = new double[3];
-    private static double w[] = new double[3];
-
     public static double intersect(double p1[], double p2[],
        double p3[], double p4[],
        double pa[], double pb[]){
- vector(u, p1, p2);
- vector(v, p3, p4);
- vector(w, p3, p1);
- double a = dot(u,u); // always >= 0
- double b = dot(u,v);
- double c = dot(v,v); // always >= 0
- double d = dot(u,w);
- double e = dot(v,w);
- double D = a*c - b*b; // always >= 0
- double sc, sN, sD = D; // sc = sN / sD, default sD = D >= 0
- double tc, tN, tD = D; // tc = tN / tD, default tD = D >= 0
+ // no shared working space so that shadow rays
+ // can be tested from more than one thread
+ double    u0 = p2[0] - p1[0], u1 = p2[1] - p1[1], u2 = p2[2] - p1[2];
+ double    v0 = p4[0] - p3[0], v1 = p4[1] - p3[1], v2 = p4[2] - p3[2];
+ double    w0 = p1[0] - p3[0], w1 = p1[1] - p3[1], w2 = p1[2] - p3[2];
+ double    a = u0*u0 + u1*u1 + u2*u2;        // always >= 0
+ double    b = u0*v0 + u1*v1 + u2*v2;
+ double    c = v0*v0 + v1*v1 + v2*v2;        // always >= 0
+ double    d = u0*w0 + u1*w1 + u2*w2;
+ double    e = v0*w0 + v1*w1 + v2*w2;
+ double    D = a*c - b*b;       // always >= 0
+ double    sc, sN, sD = D;      // sc = sN / sD, default sD = D >= 0
+ double    tc, tN, tD = D;      // tc = tN / tD, default tD = D >= 0
 
  // compute the line parameters of the two closest points
  if (D < EPS) { // the lines are almost parallel
      sN = 0.0;
      tN = e;
      tD = c;
- } else { // get the closest points on the infinite lines
+ } else {                // get the closest points on the infinite lines
      sN = (b*e - c*d);
      tN = (a*e - b*d);
-     if (sN < 0) { // sc < 0 => the s=0 edge is visible
+     if (sN < 0) {       // sc < 0 => the s=0 edge is visible
   sN = 0.0;
   tN = e;
   tD = c;
-     } else if (sN > sD) { // sc > 1 => the s=1 edge is visible
+     } else if (sN > sD) {  // sc > 1 => the s=1 edge is visible
   sN = sD;
   tN = e + b;
   tD = c;
      }
  }
 
- if (tN < 0) { // tc < 0 => the t=0 edge is visible
+ if (tN < 0) {           // tc < 0 => the t=0 edge is visible
      tN = 0.0;
      // recompute sc for this edge
      if (-d < 0)
@@ -1185,7 +1205,7 @@ public class AnaSurface {
   sN = -d;
   sD = a;
      }
- } else if (tN > tD) { // tc > 1 => the t=1 edge is visible
+ } else if (tN > tD) {      // tc > 1 => the t=1 edge is visible
      tN = tD;
      // recompute sc for this edge
      if ((-d + b) < 0)
@@ -1203,12 +1223,11 @@ public class AnaSurface {
  tc = tN / tD;
 
  // get the difference of the two closest points
- double dist = 0.0;
- double di = 0.0;
- for(int i = 0; i < 3; i++){
-     di = w[i] + (sc * u[i]) - (tc * v[i]); // = S1(sc) - S2(tc)
-     dist += di * di;
- }
+ // = S1(sc) - S2(tc)
+ double d0 = w0 + (sc * u0) - (tc * v0);
+ double d1 = w1 + (sc * u1) - (tc * v1);
+ double d2 = w2 + (sc * u2) - (tc * v2);
+ double dist = d0 * d0 + d1 * d1 + d2 * d2;
 
  return Math.sqrt(dist);
     }
@@ -2022,159 +2041,103 @@ public class AnaSurface {
  }
     }
 
+    /** Atoms below this number place their probes in one thread. */
+    private static final int MinimumThreadedAtoms = 1024;
+
     /** Working space for probe placements. */
     private double probe0[] = new double[3];
-    private double probe1[] = new double[3];
 
-    /** Construct probe placements from triplets of atoms. */
+    /**
+     * Construct probe placements from triplets of atoms.
+     *
+     * The triplets are searched by several threads, and the
+     * placements they find are then added to the surface in
+     * the order of the atoms.
+     */
     private void constructProbePlacements(){
+ int threads = defaultThreads;
 
- int tripletCount = 0;
-
- for(int i = 0; i < nxyz; i++){
-
-     for(int a = 0; a < count[i]; a++){
-  int j = nn[first[i] + a];
-  if(j > i){
-      commonCount = commonElements(nn, first[i], count[i],
-       nn, first[j], count[j],
-       commonNeighbours);
-
-      for(int b = 0; b < commonCount; b++){
-   int k = commonNeighbours[b];
-
-   if(k > j){
-       tripletCount++;
-
-       /*
-			    double trij = torusRadius(radius[i], radius[j], distance(xyz[i], xyz[j]), probeRadius);
-			    double trjk = torusRadius(radius[j], radius[j], distance(xyz[j], xyz[k]), probeRadius);
-			    double trki = torusRadius(radius[k], radius[i], distance(xyz[k], xyz[i]), probeRadius);
-			    
-			    if(trij < probeRadius || trjk < probeRadius || trki < probeRadius) continue;
-			    */
-
-       if(constructProbePlacement(xyz[i], radius[i],
-             xyz[j], radius[j],
-             xyz[k], radius[k],
-             probeRadius,
-             probe0, probe1)){
-    int probeCount = 0;
-    if(!obscured(probe0, i, j, k)){
-        processPlacement(probe0, i, j, k);
-
-        probeCount++;
-    }
-
-    if(!obscured(probe1, i, j, k)){
-        processPlacement(probe1, i, j, k);
-
-        probeCount++;
-    }
-
-    // placed both probes
-    if(probeCount == 2){
-        double rp2 = (2.0*probeRadius)*(2.0*probeRadius);
-        if(distance2(probe0, probe1) < rp2){
-     // they intersect one another.
-     selfIntersectingProbes++;
+ if(nxyz < MinimumThreadedAtoms || threads < 1){
+     threads = 1;
+ }
 
-     // get the last two probes
-     // and add as intersecting pair
-     Probe p1 = (Probe)probes.getReverse(0);
-     Probe p2 = (Probe)probes.getReverse(1);
+ ProbePlacement searches[] = new ProbePlacement[threads];
+ Thread searchThreads[] = new Thread[threads];
 
-     p1.addClippingProbe(p2);
-     p2.addClippingProbe(p1);
+ for(int i = 0; i < threads; i++){
+     searches[i] = new ProbePlacement(this, commonNeighbours.length,
+          i, threads);
+ }
 
-     Face f1 = (Face)faces.getReverse(0);
-     Face f2 = (Face)faces.getReverse(1);
+ // this thread does the first share itself
+ for(int i = 1; i < threads; i++){
+     searchThreads[i] = new Thread(searches[i]);
+     searchThreads[i].start();
+ }
 
-     //f1.skip = true;
-     //f2.skip = true;
+ searches[0].run();
 
-     f1.intersection = Face.ProbeIntersection;
-     f2.intersection = Face.ProbeIntersection;
-        }
-    }
-       }
-   }
-      }
-  }
+ for(int i = 1; i < threads; i++){
+     try {
+  searchThreads[i].join();
+     }catch(InterruptedException e){
+  Log.error("interrupted waiting for probe placement " + i);
      }
  }
 
- print("triplets", tripletCount);
-    }
-
-    /** The last sphere that occluded a probe placement. */
-    int cacheSphere = -1;
-
-    /**
-     * Is p obscured by any of the neigbhours of i, j or k.
-     * But not by i, j or k itself as these were used to
-     * construct the point.
-     */
-    private boolean obscured(double p[], int i, int j, int k){
-
-        // this order seems slightly more effective - k, i, j
-        if(obscured2(p, k, i, j)){
-            return true;
-        }
-        if(obscured2(p, i, j, k)){
-            return true;
-        }
-        if(obscured2(p, j, i, k)){
-            return true;
-        }
-
-        //cacheSphere = -1;
-
-        return false;
-    }
-
-    /** Is p obscured by a neighbour of i, except for j or k. */
-    private boolean obscured2(double p[], int i, int j, int k){
-        double localrsq[] = rsq;
-
-        // check the last sphere that clipped
-        // can often be the same one
-        if(cacheSphere != -1){
-            if(cacheSphere != j && cacheSphere != k && cacheSphere != i){
-                distanceComparisons++;
-
-                if(distance2(xyz[cacheSphere], p) < localrsq[cacheSphere]){
-                    return true;
-                }
-
-                cacheSphere = -1;
-            }
-        }
-
-        int lastn = first[i] + count[i];
-
-        for(int a = first[i]; a < lastn; a++){
-            int neighbour = nn[a];
-
-            distanceComparisons++;
+ int tripletCount = 0;
+ int next[] = new int[threads];
+ int chunkCount =
+     (nxyz + ProbePlacement.ChunkSize - 1) / ProbePlacement.ChunkSize;
+
+ for(int c = 0; c < chunkCount; c++){
+     int s = c % threads;
+     int last = Math.min((c + 1) * ProbePlacement.ChunkSize, nxyz);
+     int atoms[] = searches[s].atoms.getArray();
+     int flags[] = searches[s].flags.getArray();
+     double positions[] = searches[s].positions.getArray();
+     int placementCount = searches[s].flags.size();
+     int p = next[s];
+
+     while(p < placementCount && atoms[3*p] < last){
+  probe0[0] = positions[3*p];
+  probe0[1] = positions[3*p+1];
+  probe0[2] = positions[3*p+2];
+
+  processPlacement(probe0, atoms[3*p], atoms[3*p+1], atoms[3*p+2],
+     (flags[p] & ProbePlacement.Above) != 0);
+
+  if((flags[p] & ProbePlacement.Intersects) != 0){
+      // they intersect one another.
+      selfIntersectingProbes++;
+
+      // get the last two probes
+      // and add as intersecting pair
+      Probe p1 = (Probe)probes.getReverse(0);
+      Probe p2 = (Probe)probes.getReverse(1);
+
+      p1.addClippingProbe(p2);
+      p2.addClippingProbe(p1);
+
+      Face f1 = (Face)faces.getReverse(0);
+      Face f2 = (Face)faces.getReverse(1);
+
+      f1.intersection = Face.ProbeIntersection;
+      f2.intersection = Face.ProbeIntersection;
+  }
 
-            double dx = p[0] - xyz[neighbour][0];
-            double dy = p[1] - xyz[neighbour][1];
-            double dz = p[2] - xyz[neighbour][2];
+  p++;
+     }
 
-            if(dx*dx+dy*dy+dz*dz < localrsq[neighbour]){
-            //if(distance2(p, xyz[neighbour]) < rsq[neighbour]){
-                // measurably faster to check after
-                // satisfying the distance
-                if(neighbour != j && neighbour != k){
-                    cacheSphere = neighbour;
+     next[s] = p;
+ }
 
-                    return true;
-                }
-            }
-        }
+ for(int i = 0; i < threads; i++){
+     tripletCount += searches[i].tripletCount;
+     distanceComparisons += searches[i].distanceComparisons;
+ }
 
-        return false;
+ print("triplets", tripletCount);
     }
 
     /** Add a probe placement for the surface. */
@@ -2280,24 +2243,16 @@ public class AnaSurface {
     }
 
     /* Vectors for the atom positions. */
-    private static double uij[] = new double[3];
-    private static double uik[] = new double[3];
-    private static double tij[] = new double[3];
-    private static double tji[] = new double[3];
-    private static double tik[] = new double[3];
-    private static double uijk[] = new double[3];
-    private static double utb[] = new double[3];
-    private static double bijk[] = new double[3];
-    private static double pijk[] = new double[3];
-
-    private static double cij[] = new double[3];
-    private static double cji[] = new double[3];
-
-    private static double api[] = new double[3];
-    private static double apj[] = new double[3];
-    private static double apk[] = new double[3];
+    private double uij[] =  new double[3];
+    private double tij[] =  new double[3];
+    private double cij[] =  new double[3];
 
+    private double api[] =  new double[3];
+    private double apj[] =  new double[3];
+    private double apk[] =  new double[3];
 
+    /** Working space for constructProbePlacement(). */
+    private static ProbePlacement placement = new ProbePlacement();
 
     /**
      * Construct the two probe placements for a single triplet.
@@ -2310,47 +2265,14 @@ public class AnaSurface {
         double xk[], double rk,
         double rp,
         double p0[], double p1[]){
-
- torusAxisUnitVector(uij, xi, xj);
- torusAxisUnitVector(uik, xi, xk);
-
- double rij = torusCenter(tij, xi, ri, xj, rj, rp);
- double rik = torusCenter(tik, xi, ri, xk, rk, rp);
-
- // rejig in terms of 1-cos2
- //double wijk = baseTriangleAngle(uij, uik);
- //double swijk = Math.sin(wijk);
- double swijk = baseTriangleAngle(uij, uik);
-
- basePlaneNormalVector(uijk, uij, uik, swijk);
-
- torusBasepointUnitVector(utb, uijk, uij);
-
- basePoint(bijk, tij, utb, uik, tik, swijk);
-
- double hijk = probeHeight(ri + rp, bijk, xi);
-
- // special case for certain combinations of
- // sphere radii and positions.
- // i dont think it is an error
- if(hijk < 0.0){
-     return false;
+ synchronized(placement){
+     return placement.construct(xi, ri, xj, rj, xk, rk, rp, p0, p1);
  }
-
- int probeCount = 0;
-
- // + the probe height
- probePosition(p0, bijk, hijk, uijk);
-
- probePosition(p1, bijk, -hijk, uijk);
-
- return true;
     }
 
-    private double pdir[] = new double[3];
-
     /** Process the probe placement. */
-    private void processPlacement(double pijk[], int i, int j, int k){
+    private void processPlacement(double pijk[], int i, int j, int k,
+      boolean above){
  Probe p = addProbePlacement(pijk, i, j, k);
 
  // add the vertices
@@ -2361,13 +2283,11 @@ public class AnaSurface {
  constructVertex(apk, pijk, xyz[k], radius[k]);
  Vertex v2 = addVertex(apk, k, p.x);
 
- // get direction of probe placement
- vector(pdir, bijk, pijk);
-
  Edge edge0 = null, edge1 = null, edge2 = null;
 
- // assign edges depending on orientation
- if(dot(pdir, uijk) > 0.0){
+ // assign edges depending on which side of
+ // the base plane the probe is
+ if(above){
      edge0 = constructProbeEdge(v0, api, v1, apj, apk, pijk, probeRadius);
      edge1 = constructProbeEdge(v1, apj, v2, apk, api, pijk, probeRadius);
      edge2 = constructProbeEdge(v2, apk, v0, api, apj, pijk, probeRadius);
@@ -2849,9 +2769,9 @@ public class AnaSurface {
     }
 
     /* Sphere neighbours. */
-    private int first[] = null;
-    private int count[] = null;
-    private int nn[] = null;
+    int first[] = null;
+    int count[] = null;
+    int nn[] = null;
     private int neighbourCount = 0;
 
     private int commonNeighbours[] = null;
@@ -2863,6 +2783,11 @@ public class AnaSurface {
      * Build a list of each spheres neighbours.
      *
      * A neighbour is any sphere within ri + rj + 2 * rp
+     *
+     * The spheres are put in a lattice so only the cells that
+     * come within ri + rmax + rp of a sphere need searching.
+     * Each list is sorted as commonElements() and mergeElements()
+     * expect.
      */
     public void buildNeighbourList(){
  first = new int[nxyz];
@@ -2872,25 +2797,48 @@ public class AnaSurface {
  IntArray nList = new IntArray(nxyz*60);
 
  int maxNeighbours = 0;
+ double maxRadius = 0.0;
+
+ for(int i = 0; i < nxyz; i++){
+     if(radius2[i] > maxRadius){
+  maxRadius = radius2[i];
+     }
+ }
+
+ Lattice l = new Lattice(maxRadius);
+
+ for(int i = 0; i < nxyz; i++){
+     l.add(i, xyz[i][0], xyz[i][1], xyz[i][2]);
+ }
+
+ IntArray candidates = new IntArray();
 
- // replace with more sophisticated algorithm later
  for(int i = 0; i < nxyz; i++){
      double ri = radius2[i];
      first[i] = neighbourCount;
-     for(int j = 0; j < nxyz; j++){
+
+     candidates.removeAllElements();
+     l.getPossibleNeighbours(xyz[i][0], xyz[i][1], xyz[i][2],
+        ri + maxRadius, candidates);
+
+     int c[] = candidates.getArray();
+     int candidateCount = candidates.size();
+
+     for(int n = 0; n < candidateCount; n++){
+  int j = c[n];
   double dij2 = distance2(xyz[i], xyz[j]);
   double rirj = ri + radius2[j];
-  //double trad = torusRadius(radius[i], radius[j], Math.sqrt(dij2), probeRadius);
-  if(dij2 < rirj*rirj /*  && trad > probeRadius*/ ){
-      if(i != j){
-   count[i]++;
-   nList.add(j);
-   //nn[neighbourCount] = j;
-   neighbourCount++;
-      }
+
+  if(dij2 < rirj*rirj && i != j){
+      count[i]++;
+      nList.add(j);
+      neighbourCount++;
   }
      }
 
+     // the lattice returns them in cell order
+     sortNeighbours(nList.getArray(), first[i], neighbourCount);
+
      // record the maximum number of neighbours
      if(count[i] > maxNeighbours){
   maxNeighbours = count[i];
@@ -2910,6 +2858,29 @@ public class AnaSurface {
  mergeNeighbours = new int[maxNeighbours * 3];
     }
 
+    /** Shell sort the sphere ids from first up to last. */
+    public static void sortNeighbours(int a[], int first, int last){
+ int gap = 1;
+
+ while(gap < (last - first) / 3){
+     gap = 3 * gap + 1;
+ }
+
+ for(/* nothing */; gap > 0; gap /= 3){
+     for(int i = first + gap; i < last; i++){
+  int v = a[i];
+  int j = i - gap;
+
+  while(j >= first && a[j] > v){
+      a[j + gap] = a[j];
+      j -= gap;
+  }
+
+  a[j + gap] = v;
+     }
+ }
+    }
+
     /**
      * Return common elements of sorted arrays a and b.
      * c is assumed long enough to receive all the elements.
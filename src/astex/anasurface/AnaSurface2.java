@@ -20,6 +20,10 @@ package astex.anasurface;
 /*
  * Implementation of analytical molecular surface algorithm.
  *
+ * This version keeps its state in static fields, so only one
+ * surface can be built at a time, and it runs in one thread.
+ * The viewer's anasurface command and user interface use
+ * AnaSurface, which places the probes in several threads.
  */
 
 import astex.*;
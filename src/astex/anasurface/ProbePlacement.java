@@ -0,0 +1,299 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex.anasurface;
+
+import astex.*;
+
+/**
+ * Search for the probe placements of a range of atom triplets.
+ *
+ * Each search has its own working space, so several of them can
+ * run at once over the same atoms. The atoms are shared out in
+ * chunks, every threads'th chunk going to the same search. The
+ * placements that aren't obscured are recorded in the order
+ * they were found, so AnaSurface can add them to the surface in
+ * the same order as a single search would.
+ */
+public class ProbePlacement implements Runnable {
+    /** The number of atoms in a chunk. */
+    static final int ChunkSize = 32;
+
+    /** Flag for a placement above the base plane. */
+    static final int Above = 1;
+
+    /** Flag for a placement that overlaps the one before. */
+    static final int Intersects = 2;
+
+    /** The atoms, radii and neighbour lists of the surface. */
+    private double xyz[][] = null;
+    private double radius[] = null;
+    private double rsq[] = null;
+    private int nn[] = null;
+    private int first[] = null;
+    private int count[] = null;
+    private int nxyz = 0;
+    private double probeRadius = 0.0;
+
+    /** The chunks this search does. */
+    private int firstChunk = 0;
+    private int chunkStep = 1;
+
+    /** The atoms of the placements. */
+    IntArray atoms = new IntArray();
+
+    /** The flags of the placements. */
+    IntArray flags = new IntArray();
+
+    /** The coordinates of the placements. */
+    DoubleArray positions = new DoubleArray();
+
+    /** The number of triplets we looked at. */
+    int tripletCount = 0;
+
+    /** The number of distance comparisons made. */
+    int distanceComparisons = 0;
+
+    /** The last sphere that occluded a probe placement. */
+    private int cacheSphere = -1;
+
+    /** Working space for the common neighbours of i and j. */
+    private int commonNeighbours[] = null;
+
+    /** Working space for probe placements. */
+    private double probe0[] = new double[3];
+    private double probe1[] = new double[3];
+    private double pdir[] = new double[3];
+
+    /* Vectors for the atom positions. */
+    private double uij[] =  new double[3];
+    private double uik[] =  new double[3];
+    private double tij[] =  new double[3];
+    private double tik[] =  new double[3];
+    private double uijk[] = new double[3];
+    private double utb[] =  new double[3];
+    private double bijk[] = new double[3];
+
+    /** Create a search with no atoms, for single placements. */
+    public ProbePlacement(){
+    }
+
+    /** Create a search over the atoms of the surface. */
+    ProbePlacement(AnaSurface s, int maxNeighbours,
+		   int firstChunk, int chunkStep){
+	xyz = s.xyz;
+	radius = s.radius;
+	rsq = s.rsq;
+	nn = s.nn;
+	first = s.first;
+	count = s.count;
+	nxyz = s.nxyz;
+	probeRadius = s.probeRadius;
+
+	commonNeighbours = new int[maxNeighbours];
+
+	this.firstChunk = firstChunk;
+	this.chunkStep = chunkStep;
+    }
+
+    /** Find the placements for our chunks of atoms. */
+    public void run(){
+	int chunkCount = (nxyz + ChunkSize - 1) / ChunkSize;
+
+	for(int c = firstChunk; c < chunkCount; c += chunkStep){
+	    int last = Math.min((c + 1) * ChunkSize, nxyz);
+
+	    for(int i = c * ChunkSize; i < last; i++){
+		search(i);
+	    }
+	}
+    }
+
+    /** Find the placements of the triplets with i as the lowest atom. */
+    private void search(int i){
+	double rp2 = (2.0*probeRadius)*(2.0*probeRadius);
+
+	for(int a = 0; a < count[i]; a++){
+	    int j = nn[first[i] + a];
+
+	    if(j > i){
+		int commonCount =
+		    AnaSurface.commonElements(nn, first[i], count[i],
+					      nn, first[j], count[j],
+					      commonNeighbours);
+
+		for(int b = 0; b < commonCount; b++){
+		    int k = commonNeighbours[b];
+
+		    if(k > j){
+			tripletCount++;
+
+			if(construct(xyz[i], radius[i],
+				     xyz[j], radius[j],
+				     xyz[k], radius[k],
+				     probeRadius, probe0, probe1)){
+			    int probeCount = 0;
+
+			    if(!obscured(probe0, i, j, k)){
+				add(probe0, i, j, k, 0);
+				probeCount++;
+			    }
+
+			    if(!obscured(probe1, i, j, k)){
+				int flag = 0;
+
+				// placed both probes and they
+				// intersect one another
+				if(probeCount == 1 &&
+				   AnaSurface.distance2(probe0, probe1) < rp2){
+				    flag = Intersects;
+				}
+
+				add(probe1, i, j, k, flag);
+			    }
+			}
+		    }
+		}
+	    }
+	}
+    }
+
+    /** Record a placement that wasn't obscured. */
+    private void add(double p[], int i, int j, int k, int flag){
+	// which way the probe is from the base point
+	AnaSurface.vector(pdir, bijk, p);
+
+	if(AnaSurface.dot(pdir, uijk) > 0.0){
+	    flag |= Above;
+	}
+
+	atoms.add(i);
+	atoms.add(j);
+	atoms.add(k);
+	flags.add(flag);
+	positions.add(p[0]);
+	positions.add(p[1]);
+	positions.add(p[2]);
+    }
+
+    /**
+     * Is p obscured by any of the neigbhours of i, j or k.
+     * But not by i, j or k itself as these were used to
+     * construct the point.
+     */
+    private boolean obscured(double p[], int i, int j, int k){
+	// this order seems slightly more effective - k, i, j
+	if(obscured2(p, k, i, j)){
+	    return true;
+	}
+	if(obscured2(p, i, j, k)){
+	    return true;
+	}
+	if(obscured2(p, j, i, k)){
+	    return true;
+	}
+
+	return false;
+    }
+
+    /** Is p obscured by a neighbour of i, except for j or k. */
+    private boolean obscured2(double p[], int i, int j, int k){
+	double localrsq[] = rsq;
+
+	// check the last sphere that clipped
+	// can often be the same one
+	if(cacheSphere != -1){
+	    if(cacheSphere != j && cacheSphere != k && cacheSphere != i){
+		distanceComparisons++;
+
+		if(AnaSurface.distance2(xyz[cacheSphere], p) < localrsq[cacheSphere]){
+		    return true;
+		}
+
+		cacheSphere = -1;
+	    }
+	}
+
+	int lastn = first[i] + count[i];
+
+	for(int a = first[i]; a < lastn; a++){
+	    int neighbour = nn[a];
+
+	    distanceComparisons++;
+
+	    double dx = p[0] - xyz[neighbour][0];
+	    double dy = p[1] - xyz[neighbour][1];
+	    double dz = p[2] - xyz[neighbour][2];
+
+	    if(dx*dx+dy*dy+dz*dz < localrsq[neighbour]){
+		// measurably faster to check after
+		// satisfying the distance
+		if(neighbour != j && neighbour != k){
+		    cacheSphere = neighbour;
+
+		    return true;
+		}
+	    }
+	}
+
+	return false;
+    }
+
+    /**
+     * Construct the two probe placements for a single triplet.
+     *
+     * Follows the terminology of
+     * Connolly M., J.Appl.Cryst. (1983), 16, 548-558.
+     */
+    public boolean construct(double xi[], double ri,
+			     double xj[], double rj,
+			     double xk[], double rk,
+			     double rp,
+			     double p0[], double p1[]){
+
+	AnaSurface.torusAxisUnitVector(uij, xi, xj);
+	AnaSurface.torusAxisUnitVector(uik, xi, xk);
+
+	double rij = AnaSurface.torusCenter(tij, xi, ri, xj, rj, rp);
+	double rik = AnaSurface.torusCenter(tik, xi, ri, xk, rk, rp);
+
+	// rejig in terms of 1-cos2
+	double swijk = AnaSurface.baseTriangleAngle(uij, uik);
+
+	AnaSurface.basePlaneNormalVector(uijk, uij, uik, swijk);
+
+	AnaSurface.torusBasepointUnitVector(utb, uijk, uij);
+
+	AnaSurface.basePoint(bijk, tij, utb, uik, tik, swijk);
+
+	double hijk = AnaSurface.probeHeight(ri + rp, bijk, xi);
+
+	// special case for certain combinations of
+	// sphere radii and positions.
+	// i dont think it is an error
+	if(hijk < 0.0){
+	    return false;
+	}
+
+	// + the probe height
+	AnaSurface.probePosition(p0, bijk,  hijk, uijk);
+
+	AnaSurface.probePosition(p1, bijk, -hijk, uijk);
+
+	return true;
+    }
+}
@@ -20,7 +20,7 @@ package astex.design;
 import astex.*;
 import java.util.*;
 
-public class ActiveSite {
+public class ActiveSite implements Runnable {
     /**
      * Handle an active site command.
      */
@@ -175,6 +175,12 @@ public class ActiveSite {
 
 	scatterPlotCount = 0;
 
+	fitAtoms    = new DynamicArray();
+	fitMatrices = new DynamicArray();
+	fitProbes   = new DynamicArray();
+	fitPlots    = new DynamicArray();
+	fitScales   = new DoubleArray();
+
 	for(int groups = 0; groups < 1000; groups++){
 	    String groupLabel = "group." + groups;
 
@@ -196,6 +202,8 @@ public class ActiveSite {
 	    }
 	}
 
+	mapSuperstarFits(map);
+
 	finaliseMap(mv, args, mapName, map);
 
         if(newMap){
@@ -206,11 +214,13 @@ public class ActiveSite {
 	exclusion      = null;
 	mappings       = null;
 	lattice        = null;
+	fitAtoms       = null;
+	fitMatrices    = null;
+	fitProbes      = null;
+	fitPlots       = null;
+	fitScales      = null;
     }
 
-    /** The space in which we contribute the small map. */
-    private static float scatterPlot[] = null;
-
     //private static final double gridBorder = 5.0;
 
     /** Set up the map. */
@@ -293,8 +303,6 @@ public class ActiveSite {
 
 	map.data = new float[gridPoints];
 
-	scatterPlot = new float[gridPoints];
-
 	// the map will accumulate probabilities and
 	// so needs setting to 1.0 initially
 	for(int i = 0; i < gridPoints; i++){
@@ -562,7 +570,7 @@ public class ActiveSite {
     }
 
     /** Multiply in the partial scatter plot. */
-    private static void multiplyScatterPlot(astex.Map map,
+    private static void multiplyScatterPlot(astex.Map map, float data[],
 					    float scatterPlot[],
 					    int gmin[], int gmax[]){
 	double spmin =  1.e10;
@@ -595,10 +603,10 @@ public class ActiveSite {
 		    if(v < spmin) spmin = v;
 		    if(v > spmax) spmax = v;
 
-		    map.data[index] *= v;
+		    data[index] *= v;
 
-		    if(map.data[index] > mmax) mmax = map.data[index];
-		    if(map.data[index] < mmin) mmin = map.data[index];
+		    if(data[index] > mmax) mmax = data[index];
+		    if(data[index] < mmin) mmin = data[index];
 		}
 	    }
 	}
@@ -613,19 +621,41 @@ public class ActiveSite {
     /** The number of grid points. */
     private static int gridOffset = 2;
 
-    private static int gmin[] = new int[3];
-    private static int gmax[] = new int[3];
+    /** The map that the fits are multiplied into. */
+    private astex.Map map = null;
+
+    /** The grid that this worker multiplies its fits into. */
+    private float partial[] = null;
+
+    /** The space in which we contribute the small map. */
+    private float scatterPlot[] = null;
+
+    /** The fits that this worker maps. */
+    private int firstFit = 0;
+    private int lastFit = 0;
+
+    /** The probe positions and densities of the current fit. */
+    private DoubleArray px = new DoubleArray();
+    private DoubleArray py = new DoubleArray();
+    private DoubleArray pz = new DoubleArray();
+    private DoubleArray pb = new DoubleArray();
+
+    /** The probes that are kept in the scatter plot molecules. */
+    private DynamicArray keptPlots  = new DynamicArray();
+    private IntArray keptElements   = new IntArray();
+    private DoubleArray keptPoints  = new DoubleArray();
+
+    private IntArray neighbours  = new IntArray();
 
-    private static int    included[] = new int[1000];
-    private static double contrib[]  = new double[1000];
+    private int gmin[] = new int[3];
+    private int gmax[] = new int[3];
+
+    private int    included[] = new int[1000];
+    private double contrib[]  = new double[1000];
 
     /** Trim the atoms that are in the superstar molecule. */
-    private static void mapSuperstarMolecule(MoleculeViewer mv,
-					     Arguments args,
-					     DynamicArray centralAtoms,
-					     DynamicArray scatterPlotAtoms,
-					     double probeRadius,
-					     astex.Map map){
+    private void mapSuperstarMolecule(DynamicArray centralAtoms,
+				      double probeRadius){
 	int ninc = 0;
 
 	double expConst = 2.*0.5*0.5;
@@ -637,19 +667,22 @@ public class ActiveSite {
 				 probeRadius, centralAtoms,
 				 gmin, gmax);
 	
-	int atomCount = scatterPlotAtoms.size();
+	int atomCount = px.size();
+	double x[] = px.getArray();
+	double y[] = py.getArray();
+	double z[] = pz.getArray();
+	double b[] = pb.getArray();
 
 	Point3d pp = new Point3d();
 
 	for(int a = 0; a < atomCount; a++){
-	    Atom atom = (Atom)scatterPlotAtoms.get(a);
-	    double d = 1.0 / (atom.getBFactor() * volume);
+	    double d = 1.0 / (b[a] * volume);
 
 	    //Log.info("contribution %f", d);
 
-	    int xp = (int)(0.5 + (atom.x - map.origin.x)/map.spacing.x);
-	    int yp = (int)(0.5 + (atom.y - map.origin.y)/map.spacing.y);
-	    int zp = (int)(0.5 + (atom.z - map.origin.z)/map.spacing.z);
+	    int xp = (int)(0.5 + (x[a] - map.origin.x)/map.spacing.x);
+	    int yp = (int)(0.5 + (y[a] - map.origin.y)/map.spacing.y);
+	    int zp = (int)(0.5 + (z[a] - map.origin.z)/map.spacing.z);
 
 	    if(xp < gmin[0] || xp >= gmax[0] ||
 	       yp < gmin[1] || yp >= gmax[1] ||
@@ -675,7 +708,10 @@ public class ActiveSite {
 		    for(int j = bymin; j < bymax; j++){
 			for(int k = bzmin; k < bzmax; k++){
 			    gridPoint(map, i, j, k, pp);
-			    double r2 = pp.distanceSq(atom);
+			    double dx = x[a] - pp.x;
+			    double dy = y[a] - pp.y;
+			    double dz = z[a] - pp.z;
+			    double r2 = dx*dx + dy*dy + dz*dz;
 			    if(r2 < 1.0){
 				int index = gridIndex(map, i, j, k);
 				double v = Math.exp(-r2/expConst);
@@ -711,7 +747,7 @@ public class ActiveSite {
 	    }
 	}
 	
-	multiplyScatterPlot(map, scatterPlot, gmin, gmax);
+	multiplyScatterPlot(map, partial, scatterPlot, gmin, gmax);
     }
 
     /** Handle a superstar group definition. */
@@ -860,8 +896,8 @@ public class ActiveSite {
 		}
 
 		if(pdbAtoms.size() == pdbMap.size()){
-		    fitSuperstarGroup(mv, args, pdbAtoms, istrAtoms,
-				      superstarMol, istrMol, plotScale, map);
+		    fitSuperstarGroup(pdbAtoms, istrAtoms,
+				      superstarMol, istrMol, plotScale);
 		}
 	    }
 	}
@@ -904,68 +940,67 @@ public class ActiveSite {
 
     private static int scatterPlotCount = 0;
 
-    private static DoubleArray x = new DoubleArray();
-    private static DoubleArray y = new DoubleArray();
-    private static DoubleArray z = new DoubleArray();
-    private static DoubleArray xp = new DoubleArray();
-    private static DoubleArray yp = new DoubleArray();
-    private static DoubleArray zp = new DoubleArray();
+    /** Default number of threads used to build superstar maps. */
+    public static int defaultThreads =
+	Settings.getInteger("config", "superstar.threads", 1);
 
-    private static IntArray neighbours  = new IntArray();
+    /** Maps with fewer fits than this per thread use one thread. */
+    private static final int MinimumThreadedFits = 16;
 
-    private static DynamicArray atomCache = new DynamicArray();
+    /** The fitted central groups of the current map. */
+    private static DynamicArray fitAtoms    = null;
+    private static DynamicArray fitMatrices = null;
+    private static DynamicArray fitProbes   = null;
+    private static DynamicArray fitPlots    = null;
+    private static DoubleArray  fitScales   = null;
 
-    private static void fitSuperstarGroup(MoleculeViewer mv,
-					  Arguments args,
-					  DynamicArray pdbAtoms,
+    /**
+     * Fit the istr central group onto the pdb atoms.
+     *
+     * The fit is recorded so that its scatter plot can be
+     * mapped later by one of the superstar threads.
+     */
+    private static void fitSuperstarGroup(DynamicArray pdbAtoms,
 					  DynamicArray istrAtoms,
 					  Molecule superstarMol,
 					  Molecule istrMol,
-					  double plotScale,
-					  astex.Map map){
-
-	//Integer scatterHash = null;
-	//DynamicArray scatterAtoms = null;
-
-	DynamicArray scatterPlotAtoms = new DynamicArray();
-
+					  double plotScale){
 	int nfit = pdbAtoms.size();
 
-	x.removeAllElements();
-	y.removeAllElements();
-	z.removeAllElements();
-	xp.removeAllElements();
-	yp.removeAllElements();
-	zp.removeAllElements();
+	double x[] = new double[nfit];
+	double y[] = new double[nfit];
+	double z[] = new double[nfit];
+	double xp[] = new double[nfit];
+	double yp[] = new double[nfit];
+	double zp[] = new double[nfit];
+
+	DynamicArray centralAtoms = new DynamicArray(nfit);
 
 	for(int i = 0; i < nfit; i++){
 
 	    //System.out.println("atom " + i);
 	    Atom a = (Atom)pdbAtoms.get(i);
 	    //System.out.println("pdbAtom " + a);
-	    x.add(a.x);
-	    y.add(a.y);
-	    z.add(a.z);
+	    x[i] = a.x;
+	    y[i] = a.y;
+	    z[i] = a.z;
 
 	    // mark the pdb atom as having been in a central group
 	    a.setTemporarilySelected(true);
 
+	    centralAtoms.add(a);
+
 	    a = (Atom)istrAtoms.get(i);
 	    //System.out.println("istrAtom " + a);
-	    xp.add(a.x);
-	    yp.add(a.y);
-	    zp.add(a.z);
+	    xp[i] = a.x;
+	    yp[i] = a.y;
+	    zp[i] = a.z;
 
 	}
 
 	Matrix rot = new Matrix();
 
-	double rmsd = astex.Fit.fit(x.getArray(),
-				    y.getArray(),
-				    z.getArray(),
-				    xp.getArray(),
-				    yp.getArray(),
-				    zp.getArray(), nfit, rot);
+	double rmsd = astex.Fit.fit(x, y, z, xp, yp, zp, nfit, rot);
 
 	if(rmsd > rmsdWarningLevel){
 	    Atom baseAtom = (Atom)pdbAtoms.get(0);
@@ -979,6 +1014,108 @@ public class ActiveSite {
 	    }
 	}
 
+	fitAtoms.add(centralAtoms);
+	fitMatrices.add(rot);
+	fitProbes.add(istrMol);
+	fitPlots.add(superstarMol);
+	fitScales.add(plotScale);
+    }
+
+    /**
+     * Multiply the scatter plots of the fits into the map.
+     *
+     * The fits are shared out in runs between the threads.
+     * The first thread multiplies its scatter plots straight
+     * into the map, the others into grids of their own that
+     * are multiplied into the map once they are all done.
+     */
+    private static void mapSuperstarFits(astex.Map map){
+	int fitCount   = fitMatrices.size();
+	int gridPoints = map.ngrid[0] * map.ngrid[1] * map.ngrid[2];
+
+	int threads = Math.min(defaultThreads, fitCount / MinimumThreadedFits);
+
+	if(threads < 1){
+	    threads = 1;
+	}
+
+	ActiveSite workers[] = new ActiveSite[threads];
+
+	for(int i = 0; i < threads; i++){
+	    ActiveSite worker = new ActiveSite();
+	    worker.map = map;
+	    worker.firstFit = (i * fitCount) / threads;
+	    worker.lastFit = ((i + 1) * fitCount) / threads;
+	    worker.scatterPlot = new float[gridPoints];
+
+	    if(i == 0){
+		worker.partial = map.data;
+	    }else{
+		worker.partial = new float[gridPoints];
+
+		for(int j = 0; j < gridPoints; j++){
+		    worker.partial[j] = 1.0f;
+		}
+	    }
+
+	    workers[i] = worker;
+	}
+
+	Thread fitThreads[] = new Thread[threads];
+
+	for(int i = 1; i < threads; i++){
+	    fitThreads[i] = new Thread(workers[i]);
+	    fitThreads[i].start();
+	}
+
+	workers[0].run();
+
+	for(int i = 1; i < threads; i++){
+	    try {
+		fitThreads[i].join();
+	    }catch(InterruptedException e){
+		Log.error("interrupted waiting for superstar fits " + i);
+	    }
+	}
+
+	for(int i = 1; i < threads; i++){
+	    float partial[] = workers[i].partial;
+
+	    for(int j = 0; j < gridPoints; j++){
+		map.data[j] *= partial[j];
+	    }
+	}
+
+	// the workers took the fits in order, so the
+	// scatter plot molecules come out as before
+	for(int i = 0; i < threads; i++){
+	    workers[i].addKeptAtoms();
+	}
+
+	Log.info("superstar fits %d", fitCount);
+    }
+
+    /** Map the scatter plots of our fits. */
+    public void run(){
+	for(int f = firstFit; f < lastFit; f++){
+	    mapSuperstarFit(f);
+	}
+    }
+
+    /** Clip the scatter plot of a fit and multiply it in. */
+    private void mapSuperstarFit(int f){
+	DynamicArray pdbAtoms = (DynamicArray)fitAtoms.get(f);
+	Matrix rot            = (Matrix)fitMatrices.get(f);
+	Molecule istrMol      = (Molecule)fitProbes.get(f);
+	Molecule superstarMol = (Molecule)fitPlots.get(f);
+	double plotScale      = fitScales.get(f);
+	int nfit              = pdbAtoms.size();
+
+	px.removeAllElements();
+	py.removeAllElements();
+	pz.removeAllElements();
+	pb.removeAllElements();
+
 	Point3d p            = new Point3d();
 	int centralAtomCount = istrMol.getCentralAtomCount();
 	int istrCount        = istrMol.getAtomCount();
@@ -1099,25 +1236,23 @@ public class ActiveSite {
 
 		    // this should only be non-null if
 		    // we are keeping scatterplots
+		    // multiply in the plot scale
+		    // at this point
+		    double b = a.getBFactor() / plotScale;
+
 		    if(superstarMol != null){
-			//System.out.println("adding atom");
-			Atom newAtom = superstarMol.addAtom();
-			newAtom.setElement(a.getElement());
-			newAtom.set(p);
-			// multiply in the plot scale
-			// at this point
-			newAtom.setBFactor(a.getBFactor() / plotScale);
-			newAtom.setCharge(scatterPlotCount);
+			keptPlots.add(superstarMol);
+			keptElements.add(a.getElement());
+			keptPoints.add(p.x);
+			keptPoints.add(p.y);
+			keptPoints.add(p.z);
+			keptPoints.add(b);
 		    }
 
-		    // hmm, duplicate atom creation here
-		    Atom atom = Atom.create();
-		    atom.setElement(a.getElement());
-		    atom.set(p);
-		    atom.setBFactor(a.getBFactor() / plotScale);
-		    atom.setCharge(scatterPlotCount);
-
-		    scatterPlotAtoms.add(atom);
+		    px.add(p.x);
+		    py.add(p.y);
+		    pz.add(p.z);
+		    pb.add(b);
 		}
 	    }
 	}
@@ -1126,23 +1261,25 @@ public class ActiveSite {
 	//Log.info("latticeCache %5d", latticeCache);
 	//Log.info("latticeMiss  %5d", latticeMiss);
 
-	//Log.info("atoms in scatterplot %d", scatterPlotAtoms.size());
+	//Log.info("atoms in scatterplot %d", px.size());
 
-	mapSuperstarMolecule(mv, args, pdbAtoms,
-			     scatterPlotAtoms, probeRadius, map);
-
-	// push the atoms from the scatter plot back
-	// into the central atom cache
-	int scatterPlotCount = scatterPlotAtoms.size();
+	mapSuperstarMolecule(pdbAtoms, probeRadius);
+    }
 
-	for(int i = 0; i < scatterPlotCount; i++){
-	    Atom a = (Atom)scatterPlotAtoms.get(i);
-	    a.release();
+    /** Add the kept probes to their scatter plot molecules. */
+    private void addKeptAtoms(){
+	int keptCount = keptPlots.size();
+	double points[] = keptPoints.getArray();
+
+	for(int i = 0; i < keptCount; i++){
+	    Molecule superstarMol = (Molecule)keptPlots.get(i);
+	    //System.out.println("adding atom");
+	    Atom newAtom = superstarMol.addAtom();
+	    newAtom.setElement(keptElements.get(i));
+	    newAtom.set(points[4*i], points[4*i+1], points[4*i+2]);
+	    newAtom.setBFactor(points[4*i+3]);
+	    newAtom.setCharge(scatterPlotCount);
 	}
-
-	scatterPlotAtoms = null;
-
-	scatterPlotCount++;
     }
 
     private static double xs[][] = {{0.0, 0.0, 0.0, 0.0},
@@ -1172,6 +1309,7 @@ public class ActiveSite {
 	int quadCount = 0;
 	int sphereCount = 0;
 	Point3d p = new Point3d();
+	IntArray neighbours = new IntArray();
 		
 	Molecule sphereMol = new Molecule();
 	sphereMol.setName(molName);
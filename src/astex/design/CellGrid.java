@@ -0,0 +1,148 @@
+/*
+ * This file is part of OpenAstexViewer.
+ *
+ * OpenAstexViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenAstexViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with OpenAstexViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex.design;
+
+import astex.*;
+
+/**
+ * A regular 3d grid of cells holding numbered points.
+ *
+ * The points of a cell are chained through the next array, so
+ * adding one is constant time and a point can be moved from one
+ * cell to another. Points outside the box go in the nearest edge
+ * cell, so queries stay correct wherever the points are.
+ */
+class CellGrid {
+    /** The low corner of the box. */
+    private double xmin = 0.0, ymin = 0.0, zmin = 0.0;
+
+    /** The size of a cell. */
+    private double spacing = 1.0;
+
+    /** The number of cells along each axis. */
+    private int nx = 1, ny = 1, nz = 1;
+
+    /** The first point in each cell, or -1. */
+    private int head[] = null;
+
+    /** The next point in the same cell, or -1. */
+    private IntArray next = new IntArray();
+
+    /** The cell each point is in. */
+    private IntArray cells = new IntArray();
+
+    /** Create a grid covering the box from min to max. */
+    CellGrid(double min[], double max[], double spacing){
+	this.spacing = spacing;
+
+	xmin = min[0];
+	ymin = min[1];
+	zmin = min[2];
+
+	nx = 1 + (int)((max[0] - min[0]) / spacing);
+	ny = 1 + (int)((max[1] - min[1]) / spacing);
+	nz = 1 + (int)((max[2] - min[2]) / spacing);
+
+	head = new int[nx * ny * nz];
+
+	for(int c = 0; c < head.length; c++){
+	    head[c] = -1;
+	}
+    }
+
+    /** The cell along one axis, clamped to the box. */
+    private int cell(double x, double min, int n){
+	int i = (int)((x - min) / spacing);
+
+	if(i < 0) return 0;
+	if(i >= n) return n - 1;
+
+	return i;
+    }
+
+    /** The cell that contains the point. */
+    private int cell(double p[]){
+	int i = cell(p[0], xmin, nx);
+	int j = cell(p[1], ymin, ny);
+	int k = cell(p[2], zmin, nz);
+
+	return i + nx * (j + ny * k);
+    }
+
+    /** Add point id at p. Points must be added in order from 0. */
+    void add(int id, double p[]){
+	int c = cell(p);
+
+	next.add(head[c]);
+	cells.add(c);
+	head[c] = id;
+    }
+
+    /** Move point id to p. */
+    void move(int id, double p[]){
+	int c = cell(p);
+	int old = cells.get(id);
+
+	if(c == old){
+	    return;
+	}
+
+	int nextArray[] = next.getArray();
+
+	// unlink it from the old cell
+	if(head[old] == id){
+	    head[old] = nextArray[id];
+	}else{
+	    int prev = head[old];
+
+	    while(nextArray[prev] != id){
+		prev = nextArray[prev];
+	    }
+
+	    nextArray[prev] = nextArray[id];
+	}
+
+	nextArray[id] = head[c];
+	head[c] = id;
+	cells.set(id, c);
+    }
+
+    /**
+     * Add the points in the cells within d of p to neighbours.
+     * The points come in no particular order.
+     */
+    void getNeighbours(double p[], double d, IntArray neighbours){
+	int imin = cell(p[0] - d, xmin, nx), imax = cell(p[0] + d, xmin, nx);
+	int jmin = cell(p[1] - d, ymin, ny), jmax = cell(p[1] + d, ymin, ny);
+	int kmin = cell(p[2] - d, zmin, nz), kmax = cell(p[2] + d, zmin, nz);
+
+	int nextArray[] = next.getArray();
+
+	for(int k = kmin; k <= kmax; k++){
+	    for(int j = jmin; j <= jmax; j++){
+		int c = nx * (j + ny * k);
+
+		for(int i = imin; i <= imax; i++){
+		    for(int id = head[c + i]; id != -1; id = nextArray[id]){
+			neighbours.add(id);
+		    }
+		}
+	    }
+	}
+    }
+}
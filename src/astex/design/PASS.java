@@ -23,31 +23,52 @@ import astex.*;
 import astex.anasurface.*;
 
 
-public class PASS {
+public class PASS implements Runnable {
+    /** Default number of threads used by PASS. */
+    public static int defaultThreads =
+	Settings.getInteger("config", "pass.threads", 1);
+
+    /** Layers with fewer spheres than this use one thread. */
+    private static final int MinimumThreadedSpheres = 256;
+
+    /** The number of spheres in a chunk of a layer. */
+    private static final int ChunkSize = 32;
+
     /** Radius of the probe. */
-    private static double Rprobe      = -1.0;
+    private double Rprobe      = -1.0;
 
     /** Number of atoms within RBC for acceptance. */
-    private static int    BCthreshold = -1;
+    private int    BCthreshold = -1;
 
     /** Radius for acceptance sphere. */
-    private static double Rbc         = -1.0;
+    private double Rbc         = -1.0;
 
     /** Weeding out separation. */
-    private static double Rweed       = -1.0;
+    private double Rweed       = -1.0;
 
     /** Accretion radius. */
-    private static double Raccretion  = -1.0;
+    private double Raccretion  = -1.0;
 
     /** R0. */
-    private static double R0          = -1.0;
+    private double R0          = -1.0;
 
     /** D0. */
-    private static double D0          = -1.0;
+    private double D0          = -1.0;
+
+    /** The atoms as spheres. */
+    private DynamicArray probes = null;
+
+    /** The probes that have been accepted. */
+    private DynamicArray newProbes = null;
+
+    /** Cell grid of the atoms. */
+    private CellGrid atomGrid = null;
 
-    /** The coordinates as an array. */
-    private static DynamicArray probes = new DynamicArray();
-    private static DynamicArray newProbes = new DynamicArray();
+    /** Cell grid of the accepted probes. */
+    private CellGrid probeGrid = null;
+
+    /** Maximum radius of an atom. */
+    private double maxRad = 0.0;
 
     /**
      * Generate a PASS description of a set of atoms.
@@ -63,8 +84,6 @@ public class PASS {
      */
     public static Molecule generatePASS(Arguments args,
 					DynamicArray atoms){
-	setup(args);
-
 	Molecule mol = new Molecule();
 	mol.setName(args.getString("-name", "PASS"));
 	mol.setMoleculeType(Molecule.FeatureMolecule);
@@ -74,21 +93,34 @@ public class PASS {
 	return mol;
     }
 
-    /** Neighbour grid object. */
-    private static Lattice l = null;
-
-    /** Maximum radius of an atom. */
-    private static double maxRad = 0.0;
-
     /** Actually generate the PASS atoms. */
     public static void generatePASSMolecule(Molecule mol,
 					    Arguments args,
 					    DynamicArray atoms){
+	PASS pass = new PASS();
+
+	pass.setup(args);
+
+	pass.generate(mol, atoms);
+    }
+
+    /** Create an empty PASS calculation. */
+    private PASS(){
+    }
+
+    /** Generate the PASS atoms for this calculation. */
+    private void generate(Molecule mol, DynamicArray atoms){
 	int atomCount = atoms.size();
 
-	// find maximum radius
+	probes = new DynamicArray(atomCount);
+	newProbes = new DynamicArray();
+
+	// find maximum radius and the extent of the atoms
 	maxRad = 0.0;
 
+	double min[] = { 1.e10,  1.e10,  1.e10};
+	double max[] = {-1.e10, -1.e10, -1.e10};
+
 	for(int a = 0; a < atomCount; a++){
 	    Atom atom = (Atom)atoms.get(a);
 
@@ -102,227 +134,102 @@ public class PASS {
 		maxRad = p.r;
 	    }
 
+	    for(int i = 0; i < 3; i++){
+		if(p.x[i] < min[i]) min[i] = p.x[i];
+		if(p.x[i] > max[i]) max[i] = p.x[i];
+	    }
+
 	    probes.add(p);
 	}
 
-	// build the lattice
-	double spacing = 2.0 * maxRad + 2.0 * Rprobe;
+	if(atomCount == 0){
+	    return;
+	}
+
+	// accepted probes are buried, so they
+	// can't be much further out than Rbc
+	double border = Rbc + 2.0 * Rprobe + maxRad;
+
+	for(int i = 0; i < 3; i++){
+	    min[i] -= border;
+	    max[i] += border;
+	}
+
+	// burial counts are the widest atom queries
+	double spacing = 0.5 * Rbc;
 
-	// make sure we can use it for burial counts
-	if(spacing < Rbc){
-	    spacing = Rbc;
+	if(spacing < maxRad + Rprobe){
+	    spacing = maxRad + Rprobe;
 	}
 
-	FILE.out.print("lattice spacing %.1f\n", spacing);
+	FILE.out.print("cell grid spacing %.1f\n", spacing);
 
-	l = new Lattice(spacing + 0.1);
+	atomGrid = new CellGrid(min, max, spacing);
 
 	for(int a = 0; a < atomCount; a++){
 	    Probe p = (Probe)probes.get(a);
-	    l.add(a, p.x[0], p.x[1], p.x[2]);
+	    atomGrid.add(a, p.x);
 	}
 
+	probeGrid = new CellGrid(min, max, 2.5);
+
 	// build the neighbour lists.
-	buildNeighbourList(probes);
+	buildNeighbourList(probes, atomGrid, atomCount,
+			   2.0 * Rprobe, maxRad);
+
+	FILE.out.print("total neighbours   %7d\n", neighbourCount);
+	FILE.out.print("maximum neighbours %7d\n", commonNeighbours.length);
 
 	// build the initial probe placements.
-	constructProbePlacements(mol, probes);
+	constructProbePlacements(mol);
     }
 
-    /** Working space for probe placements. */
-    private static double p0[] = new double[3];
-    private static double p1[] = new double[3];
+    /** Working space for the weeding of probes. */
+    private IntArray weedNeighbours = new IntArray();
 
-    /** Construct probe placements from triplets of atoms. */
-    private static void constructProbePlacements(Molecule mol, DynamicArray probes){
+    /**
+     * Construct probe placements from triplets of atoms.
+     *
+     * Each layer of probes is built from triplets of the
+     * spheres of the layer before, the atoms themselves for
+     * the first layer. The triplets are searched by several
+     * threads, and the placements they find are then weeded
+     * in the order that one search would have found them.
+     */
+    private void constructProbePlacements(Molecule mol){
 	int n = probes.size();
+
+	PASS searches[] = searchLayer(n, false);
+
 	int tripletCount = 0;
 
-	for(int i = 0; i < n; i++){
-	    Probe pi = (Probe)probes.get(i);
-	    for(int a = 0; a < count[i]; a++){
-		int j = nn[first[i] + a];
-		if(j > i){
-		    Probe pj = (Probe)probes.get(j);
-		    commonCount =
-			AnaSurface.commonElements(nn, first[i], count[i],
-						  nn, first[j], count[j],
-						  commonNeighbours);
-
-		    for(int b = 0; b < commonCount; b++){
-			int k = commonNeighbours[b];
-			
-			if(k > j){
-			    Probe pk = (Probe)probes.get(k);
-			    tripletCount++;
-			    
-			    boolean retCode =
-				AnaSurface.constructProbePlacement(pi.x, pi.r,
-								   pj.x, pj.r,
-								   pk.x, pk.r,
-								   Rprobe,
-								   p0, p1);
-
-			    if(retCode){
-				// placement was succesful.
-				
-				for(int p = 0; p < 2; p++){
-				    double ppp[] = p0;
-				    if(p == 1){
-					ppp = p1;
-				    }
-				    
-				    if(!obscured(ppp, Rprobe, i, j, k)){
-					int bc = burialCount(ppp);
-					if(bc >= BCthreshold){
-                                            int np = newProbes.size();
-                                            Probe weedProbe = null;
-
-                                            for(int op = 0; op < np; op++){
-                                                Probe old = (Probe)newProbes.get(op);
-                                                if(AnaSurface.distance2(old.x, ppp) < 1.0){
-                                                    if(weedProbe == null ||
-                                                       old.bc < weedProbe.bc){
-                                                        weedProbe = old;
-                                                    }
-                                                }
-                                            }
-
-                                            if(weedProbe == null){
-                                                Probe probe = new Probe();
-                                                probe.x[0] = ppp[0];
-                                                probe.x[1] = ppp[1];
-                                                probe.x[2] = ppp[2];
-                                                probe.r = Rprobe;
-                                                probe.bc = bc;
-                                                newProbes.add(probe);
-                                            }else if(bc > weedProbe.bc){
-                                                weedProbe.x[0] = ppp[0];
-                                                weedProbe.x[1] = ppp[1];
-                                                weedProbe.x[2] = ppp[2];
-                                                weedProbe.r = Rprobe;
-                                                weedProbe.bc = bc;
-                                            }
-					}
-				    }
-				}
-			    }
-			}
-		    }
-		}
-	    }
+	for(int i = 0; i < searches.length; i++){
+	    tripletCount += searches[i].tripletCount;
 	}
 
+	addPlacements(searches, n, 0, Rprobe);
+
 	FILE.out.print("triplets %7d\n", tripletCount);
 
 	int secondLayer = 0;
 
 	do {
-	    secondLayer = 0;
 	    n = newProbes.size();
 
 	    FILE.out.print("first layer %5d\n", n);
 
-	    tripletCount = 0;
-
 	    //Rprobe = Raccretion;
 
-	    for(int i = 0; i < n; i++){
-		Probe pi = (Probe)newProbes.get(i);
-		for(int j = i+1; j < n; j++){
-		    Probe pj = (Probe)newProbes.get(j);
-		    double dsq = AnaSurface.distance2(pi.x, pj.x);
-		    double r = pi.r + pj.r + 2.*Raccretion;
-		    if(dsq < r*r){
-			for(int k = j+1; k < n; k++){
-			    Probe pk = (Probe)newProbes.get(k);
-			    dsq = AnaSurface.distance2(pi.x, pk.x);
-			    r = pi.r + pk.r + 2.*Raccretion;
-			    if(dsq < r*r){
-				dsq = AnaSurface.distance2(pj.x, pk.x);
-				r = pj.r + pk.r + 2.*Raccretion;
-				if(dsq < r*r){
-				    tripletCount++;
-				    
-				    boolean retCode =
-					AnaSurface.constructProbePlacement(pi.x, Raccretion,
-									   pj.x, Raccretion,
-									   pk.x, Raccretion,
-									   Raccretion,
-									   p0, p1);
-                                    //AnaSurface.constructProbePlacement(pi.x, pi.r,
-                                    //				   pj.x, pj.r,
-                                    //				   pk.x, pk.r,
-                                    //				   Raccretion,
-                                    //				   p0, p1);
-
-				    if(retCode){
-					// placement was succesful.
-					
-					for(int p = 0; p < 2; p++){
-					    double ppp[] = p0;
-					    if(p == 1){
-						ppp = p1;
-					    }
-					    
-					    if(!clashed(ppp, Rprobe)){
-						int bc = burialCount(ppp);
-                                                if(bc >= BCthreshold){
-                                                    boolean probeClashed = false;
-                                                    for(int l = 0; l < n; l++){
-                                                        Probe pl = (Probe)newProbes.get(l);
-                                                        dsq = AnaSurface.distance2(pl.x, ppp);
-                                                        //r = pl.r + Raccretion;
-                                                        r = 2.0 * Raccretion;
-                                                        if(dsq < r * r){
-                                                            if(l != i && l != j && l != k){
-                                                                probeClashed = true;
-                                                                break;
-                                                            }
-                                                        }
-                                                    }
-						
-                                                    if(probeClashed == false){
-                                                        int np = newProbes.size();
-                                                        Probe weedProbe = null;
-
-                                                        for(int op = n; op < np; op++){
-                                                            Probe old = (Probe)newProbes.get(op);
-                                                            if(AnaSurface.distance2(old.x, ppp) < 1.0){
-                                                                if(weedProbe == null ||
-                                                                   old.bc < weedProbe.bc){
-                                                                    weedProbe = old;
-                                                                }
-                                                            }
-                                                        }
-
-                                                        if(weedProbe == null){
-                                                            Probe probe = new Probe();
-                                                            probe.x[0] = ppp[0];
-                                                            probe.x[1] = ppp[1];
-                                                            probe.x[2] = ppp[2];
-                                                            probe.r = Raccretion;
-                                                            probe.bc = bc;
-                                                            newProbes.add(probe);
-                                                            secondLayer++;
-                                                        }else if(bc > weedProbe.bc){
-                                                            weedProbe.x[0] = ppp[0];
-                                                            weedProbe.x[1] = ppp[1];
-                                                            weedProbe.x[2] = ppp[2];
-                                                            weedProbe.r = Raccretion;
-                                                            weedProbe.bc = bc;
-                                                        }
-						    }
-						}
-					    }
-					}
-				    }
-				}
-			    }
-			}
-		    }
-		}
-	    }
+	    // the neighbours of the probes in the layer
+	    double maxProbeRad = Math.max(Rprobe, Raccretion);
+
+	    buildNeighbourList(newProbes, probeGrid, n,
+			       2.*Raccretion, maxProbeRad);
+
+	    searches = searchLayer(n, true);
+
+	    secondLayer = addPlacements(searches, n, n, Raccretion);
+
 	    FILE.out.print("second layer %5d\n", secondLayer);
 	} while(secondLayer != 0);
 
@@ -334,11 +241,25 @@ public class PASS {
 
         double rcut = 2.5 * 2.5;
 
+        IntArray closeProbes = new IntArray();
+
         for(int iteration = 0; iteration < 2; iteration++){
             
             for(int i = 0; i < probeCount; i++){
                 Probe pi = (Probe)newProbes.get(i);
-                for(int j = i + 1; j < probeCount; j++){
+
+                closeProbes.removeAllElements();
+                probeGrid.getNeighbours(pi.x, 2.5, closeProbes);
+
+                int closeCount = closeProbes.size();
+
+                for(int c = 0; c < closeCount; c++){
+                    int j = closeProbes.get(c);
+
+                    if(j <= i){
+                        continue;
+                    }
+
                     Probe pj = (Probe)newProbes.get(j);
          
                     if(iteration == 0){
@@ -371,12 +292,293 @@ public class PASS {
 	}
     }
 
+    /**
+     * Search the triplets of the first n spheres of a layer.
+     * The atoms are the spheres of the first layer.
+     */
+    private PASS[] searchLayer(int n, boolean accretion){
+	int threads = defaultThreads;
+
+	if(n < MinimumThreadedSpheres || threads < 1){
+	    threads = 1;
+	}
+
+	PASS searches[] = new PASS[threads];
+	Thread searchThreads[] = new Thread[threads];
+
+	for(int i = 0; i < threads; i++){
+	    searches[i] = new PASS(this, n, accretion, i, threads);
+	}
+
+	// this thread does the first share itself
+	for(int i = 1; i < threads; i++){
+	    searchThreads[i] = new Thread(searches[i]);
+	    searchThreads[i].start();
+	}
+
+	searches[0].run();
+
+	for(int i = 1; i < threads; i++){
+	    try {
+		searchThreads[i].join();
+	    }catch(InterruptedException e){
+		Log.error("interrupted waiting for PASS search " + i);
+	    }
+	}
+
+	return searches;
+    }
+
+    /**
+     * Weed the placements of the searches into the probes,
+     * in the order of the spheres they came from. Only the
+     * probes from firstProbe on are weeded against.
+     * Returns the number of probes that were added.
+     */
+    private int addPlacements(PASS searches[], int n,
+			      int firstProbe, double r){
+	int threads = searches.length;
+	int next[] = new int[threads];
+	int chunkCount = (n + ChunkSize - 1) / ChunkSize;
+	int added = 0;
+
+	for(int c = 0; c < chunkCount; c++){
+	    int s = c % threads;
+	    int last = Math.min((c + 1) * ChunkSize, n);
+	    int spheres[] = searches[s].spheres.getArray();
+	    int burials[] = searches[s].burials.getArray();
+	    double positions[] = searches[s].positions.getArray();
+	    int placementCount = searches[s].burials.size();
+	    int p = next[s];
+
+	    while(p < placementCount && spheres[p] < last){
+		if(weed(positions, 3*p, burials[p], firstProbe, r)){
+		    added++;
+		}
+
+		p++;
+	    }
+
+	    next[s] = p;
+	}
+
+	return added;
+    }
+
+    /** Working space for one placement. */
+    private double ppp[] = new double[3];
+
+    /**
+     * Add the placement at offset in positions, unless there is
+     * already a probe within 1A. If there is, the one with the
+     * lowest burial count moves to the placement if that is more
+     * buried. Returns true if a new probe was added.
+     */
+    private boolean weed(double positions[], int offset, int bc,
+			 int firstProbe, double r){
+	ppp[0] = positions[offset];
+	ppp[1] = positions[offset+1];
+	ppp[2] = positions[offset+2];
+
+	weedNeighbours.removeAllElements();
+	probeGrid.getNeighbours(ppp, 1.0, weedNeighbours);
+
+	int neighbourCount = weedNeighbours.size();
+	Probe weedProbe = null;
+	int weedId = -1;
+
+	for(int i = 0; i < neighbourCount; i++){
+	    int op = weedNeighbours.get(i);
+
+	    if(op >= firstProbe){
+		Probe old = (Probe)newProbes.get(op);
+
+		if(AnaSurface.distance2(old.x, ppp) < 1.0){
+		    // the first of the least buried ones
+		    if(weedProbe == null ||
+		       old.bc < weedProbe.bc ||
+		       (old.bc == weedProbe.bc && op < weedId)){
+			weedProbe = old;
+			weedId = op;
+		    }
+		}
+	    }
+	}
+
+	if(weedProbe == null){
+	    Probe probe = new Probe();
+	    probe.x[0] = ppp[0];
+	    probe.x[1] = ppp[1];
+	    probe.x[2] = ppp[2];
+	    probe.r = r;
+	    probe.bc = bc;
+	    probeGrid.add(newProbes.size(), probe.x);
+	    newProbes.add(probe);
+
+	    return true;
+	}else if(bc > weedProbe.bc){
+	    weedProbe.x[0] = ppp[0];
+	    weedProbe.x[1] = ppp[1];
+	    weedProbe.x[2] = ppp[2];
+	    weedProbe.r = r;
+	    weedProbe.bc = bc;
+	    probeGrid.move(weedId, weedProbe.x);
+	}
+
+	return false;
+    }
+
+    /** The number of spheres in the layer being searched. */
+    private int layerCount = 0;
+
+    /** Is the search building an accretion layer. */
+    private boolean accretion = false;
+
+    /** The chunks of spheres this search does. */
+    private int firstChunk = 0;
+    private int chunkStep = 1;
+
+    /** The spheres of the placements this search found. */
+    IntArray spheres = new IntArray();
+
+    /** The burial counts of the placements. */
+    IntArray burials = new IntArray();
+
+    /** The coordinates of the placements. */
+    DoubleArray positions = new DoubleArray();
+
+    /** The number of triplets this search looked at. */
+    int tripletCount = 0;
+
+    /** Working space for probe placements. */
+    private double p0[] = new double[3];
+    private double p1[] = new double[3];
+    private ProbePlacement placement = null;
+
+    /** Working space for neighbour queries. */
+    private IntArray neighbours = new IntArray();
+
+    /** Create a search of the layer for the PASS calculation. */
+    private PASS(PASS pass, int n, boolean accretion,
+		 int firstChunk, int chunkStep){
+	Rprobe = pass.Rprobe;
+	BCthreshold = pass.BCthreshold;
+	Rbc = pass.Rbc;
+	Raccretion = pass.Raccretion;
+	maxRad = pass.maxRad;
+	probes = pass.probes;
+	newProbes = pass.newProbes;
+	atomGrid = pass.atomGrid;
+	probeGrid = pass.probeGrid;
+	first = pass.first;
+	count = pass.count;
+	nn = pass.nn;
+
+	layerCount = n;
+	this.accretion = accretion;
+	this.firstChunk = firstChunk;
+	this.chunkStep = chunkStep;
+
+	commonNeighbours = new int[pass.commonNeighbours.length];
+	placement = new ProbePlacement();
+    }
+
+    /** Search the triplets of our chunks of spheres. */
+    public void run(){
+	int chunkCount = (layerCount + ChunkSize - 1) / ChunkSize;
+
+	for(int c = firstChunk; c < chunkCount; c += chunkStep){
+	    int last = Math.min((c + 1) * ChunkSize, layerCount);
+
+	    for(int i = c * ChunkSize; i < last; i++){
+		search(i);
+	    }
+	}
+    }
+
+    /** Search the triplets with sphere i as the lowest. */
+    private void search(int i){
+	DynamicArray layer = accretion ? newProbes : probes;
+	Probe pi = (Probe)layer.get(i);
+
+	for(int a = 0; a < count[i]; a++){
+	    int j = nn[first[i] + a];
+	    if(j > i){
+		Probe pj = (Probe)layer.get(j);
+		int commonCount =
+		    AnaSurface.commonElements(nn, first[i], count[i],
+					      nn, first[j], count[j],
+					      commonNeighbours);
+
+		for(int b = 0; b < commonCount; b++){
+		    int k = commonNeighbours[b];
+			
+		    if(k > j){
+			Probe pk = (Probe)layer.get(k);
+			tripletCount++;
+
+			boolean retCode = false;
+
+			if(accretion){
+			    retCode =
+				placement.construct(pi.x, Raccretion,
+						    pj.x, Raccretion,
+						    pk.x, Raccretion,
+						    Raccretion,
+						    p0, p1);
+			}else{
+			    retCode =
+				placement.construct(pi.x, pi.r,
+						    pj.x, pj.r,
+						    pk.x, pk.r,
+						    Rprobe,
+						    p0, p1);
+			}
+
+			if(retCode){
+			    // placement was succesful.
+			    checkPlacement(p0, i, j, k);
+			    checkPlacement(p1, i, j, k);
+			}
+		    }
+		}
+	    }
+	}
+    }
+
+    /** Record the placement if it is free and buried enough. */
+    private void checkPlacement(double p[], int i, int j, int k){
+	if(accretion){
+	    if(clashed(p, Rprobe)){
+		return;
+	    }
+	}else if(obscured(p, Rprobe, i, j, k)){
+	    return;
+	}
+
+	int bc = burialCount(p);
+
+	if(bc < BCthreshold){
+	    return;
+	}
+
+	if(accretion && probeClashed(p, i, j, k)){
+	    return;
+	}
+
+	spheres.add(i);
+	burials.add(bc);
+	positions.add(p[0]);
+	positions.add(p[1]);
+	positions.add(p[2]);
+    }
+
     /**
      * Is p obscured by any of the neigbhours of i, j or k.
      * But not by i, j or k itself as these were used to
      * construct the point.
      */
-    private static boolean obscured(double p[], double r, int i, int j, int k){
+    private boolean obscured(double p[], double r, int i, int j, int k){
 
 	// this order seems slightly more effective - k, i, j
 	if(obscured2(p, r, k, i, j)){
@@ -393,7 +595,7 @@ public class PASS {
     }
 
     /** Is p obscured by a neighbour of i, except for j or k. */
-    private static boolean obscured2(double p[], double r, int i, int j, int k){
+    private boolean obscured2(double p[], double r, int i, int j, int k){
 
 	int lastn = first[i] + count[i];
 
@@ -421,25 +623,50 @@ public class PASS {
 	return false;
     }
 
-    /** neighbours of the point for burial calculations. */
-    private static IntArray burialNeighbours = new IntArray();
+    /**
+     * Is p within 2 * Raccretion of a probe of the layer
+     * other than i, j or k.
+     */
+    private boolean probeClashed(double p[], int i, int j, int k){
+	neighbours.removeAllElements();
+
+	double r = 2.0 * Raccretion;
+
+	probeGrid.getNeighbours(p, r, neighbours);
+
+	int neighbourCount = neighbours.size();
+
+	for(int n = 0; n < neighbourCount; n++){
+	    int l = neighbours.get(n);
+
+	    if(l < layerCount && l != i && l != j && l != k){
+		Probe pl = (Probe)newProbes.get(l);
+
+		if(AnaSurface.distance2(pl.x, p) < r * r){
+		    return true;
+		}
+	    }
+	}
+
+	return false;
+    }
 
     /** 
      * Return the number of atoms within Rbc of the point.
      */
-    private static int burialCount(double p[]){
-	burialNeighbours.removeAllElements();
+    private int burialCount(double p[]){
+	neighbours.removeAllElements();
 
-	l.getPossibleNeighbours(-1, p[0], p[1], p[2], burialNeighbours, true);
+	atomGrid.getNeighbours(p, Rbc, neighbours);
 
-	int neighbourCount = burialNeighbours.size();
+	int neighbourCount = neighbours.size();
 
 	double Rbc2 = Rbc * Rbc;
 
 	int bc = 0;
 
 	for(int i = 0; i < neighbourCount; i++){
-	    int neighbour = burialNeighbours.get(i);
+	    int neighbour = neighbours.get(i);
 	    Probe probe = (Probe)probes.get(neighbour);
 	    if(AnaSurface.distance2(p, probe.x) < Rbc2){
 		bc++;
@@ -450,17 +677,17 @@ public class PASS {
     }
 
     /** 
-     * Return the number of atoms within Rbc of the point.
+     * Is p inside any of the atoms, grown by rp.
      */
-    private static boolean clashed(double p[], double rp){
-	burialNeighbours.removeAllElements();
+    private boolean clashed(double p[], double rp){
+	neighbours.removeAllElements();
 
-	l.getPossibleNeighbours(-1, p[0], p[1], p[2], burialNeighbours, true);
+	atomGrid.getNeighbours(p, maxRad + rp, neighbours);
 
-	int neighbourCount = burialNeighbours.size();
+	int neighbourCount = neighbours.size();
 
 	for(int i = 0; i < neighbourCount; i++){
-	    int neighbour = burialNeighbours.get(i);
+	    int neighbour = neighbours.get(i);
 	    Probe probe = (Probe)probes.get(neighbour);
 	    double r = probe.r + rp;
 	    if(AnaSurface.distance2(p, probe.x) < r*r){
@@ -472,51 +699,60 @@ public class PASS {
     }
 
     /* Sphere neighbours. */
-    private static int first[] = null;
-    private static int count[] = null;
-    private static int nn[] = null;
-    private static int neighbourCount = 0;
+    private int first[] = null;
+    private int count[] = null;
+    private int nn[] = null;
+    private int neighbourCount = 0;
 
-    private static int commonNeighbours[] = null;
-    private static int commonCount = 0;
-    private static int mergeNeighbours[] = null;
-    private static int mergeCount = 0;
+    private int commonNeighbours[] = null;
 
     /**
-     * Build a list of each spheres neighbours.
+     * Build a list of each spheres neighbours, for the
+     * first n spheres in the grid.
      *
-     * A neighbour is any sphere within ri + rj + 2 * rp
+     * A neighbour is any sphere within ri + rj + gap,
+     * where maxr is the largest radius of the spheres.
      */
-    public static void buildNeighbourList(DynamicArray atoms){
-	int n = atoms.size();
-
+    private void buildNeighbourList(DynamicArray spheres, CellGrid grid,
+				    int n, double gap, double maxr){
 	first = new int[n];
 	count = new int[n];
+	neighbourCount = 0;
 	// use IntArray to dynamically grow the 
 	// neighbour list
 	IntArray nList = new IntArray(n*60);
+	IntArray cellNeighbours = new IntArray();
 
 	int maxNeighbours = 0;
 
-	// replace with more sophisticated algorithm later
 	for(int i = 0; i < n; i++){
-	    Probe pi = (Probe)probes.get(i);
-	    double ri = pi.r + 2.0 * Rprobe;
+	    Probe pi = (Probe)spheres.get(i);
 	    first[i] = neighbourCount;
-	    for(int j = 0; j < n; j++){
-		Probe pj = (Probe)probes.get(j);
-		double dij2 = AnaSurface.distance2(pi.x, pj.x);
-		double rirj = ri + pj.r;
-		if(dij2 < rirj*rirj){
-		    if(i != j){
+
+	    cellNeighbours.removeAllElements();
+	    grid.getNeighbours(pi.x, pi.r + maxr + gap, cellNeighbours);
+
+	    int cellCount = cellNeighbours.size();
+
+	    for(int c = 0; c < cellCount; c++){
+		int j = cellNeighbours.get(c);
+
+		if(j < n && i != j){
+		    Probe pj = (Probe)spheres.get(j);
+		    double dij2 = AnaSurface.distance2(pi.x, pj.x);
+		    double rirj = pi.r + pj.r + gap;
+		    if(dij2 < rirj*rirj){
 			count[i]++;
 			nList.add(j);
-			//nn[neighbourCount] = j;
 			neighbourCount++;
 		    }
 		}
 	    }
 
+	    // the triplet search needs them in order
+	    AnaSurface.sortNeighbours(nList.getArray(),
+				      first[i], neighbourCount);
+
 	    // record the maximum number of neighbours
 	    if(count[i] > maxNeighbours){
 		maxNeighbours = count[i];
@@ -526,36 +762,12 @@ public class PASS {
 	// grab the neighbour list for easy reference
 	nn = nList.getArray();
 
-	FILE.out.print("total neighbours   %7d\n", neighbourCount);
-	FILE.out.print("maximum neighbours %7d\n", maxNeighbours);
-
 	// allocate space for common neighbours.
 	commonNeighbours = new int[maxNeighbours];
-
-	// allocate space for merged neighbours.
-	mergeNeighbours = new int[maxNeighbours * 3];
     }
 
-    /* Vectors for the atom positions. */
-    private double uij[] =  new double[3];
-    private double uik[] =  new double[3];
-    private double tij[] =  new double[3];
-    private double tji[] =  new double[3];
-    private double tik[] =  new double[3];
-    private double uijk[] = new double[3];
-    private double utb[] =  new double[3];
-    private double bijk[] = new double[3];
-    private double pijk[] = new double[3];
-
-    private double cij[] =  new double[3];
-    private double cji[] =  new double[3];
-
-    private double api[] =  new double[3];
-    private double apj[] =  new double[3];
-    private double apk[] =  new double[3];
-
     /** Setup the parameters for the pass calculation. */
-    private static void setup(Arguments args){
+    private void setup(Arguments args){
 	Rprobe      = args.getDouble("-rprobe",
 				     Settings.getDouble("config",
 							"PASS.rprobe"));
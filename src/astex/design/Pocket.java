@@ -24,7 +24,7 @@ package astex.design;
 
 import astex.*;
 
-public class Pocket {
+public class Pocket implements Runnable {
     public static void handleCommand(MoleculeViewer mv,
                                      MoleculeRenderer mr,
                                      Arguments args){
@@ -168,12 +168,128 @@ public class Pocket {
         }
     }
 
-    /** Apply ligsite algorithm. */
+    /** Default number of threads used by ligsite. */
+    public static int defaultThreads =
+        Settings.getInteger("config", "pocket.threads", 1);
+
+    /** Maps with fewer layers than this use one thread. */
+    private static final int MinimumThreadedLayers = 8;
+
+    /** The scan directions of ligsite. */
+    private static final int dirs[][] = {
+        { 1, 0, 0},{ 0, 1, 0},{ 0, 0, 1},
+        { 1, 1, 1},{ 1, 1,-1},{ 1,-1, 1},{ 1,-1,-1}
+    };
+
+    /** The atoms and map of a ligsite slab. */
+    private DynamicArray atoms = null;
+    private Map map = null;
+
+    /** One byte per grid point, 1 inside the protein. */
+    private byte protein[] = null;
+
+    /** The layers of the slab. */
+    private int firstLayer = 0;
+    private int lastLayer = 0;
+
+    /** Is the slab scanning, rather than masking the protein. */
+    private boolean scanning = false;
+
+    /** The largest buriedness in the slab. */
+    private int max = 0;
+
+    /**
+     * Apply ligsite algorithm.
+     *
+     * The map is split into slabs of layers along z. Each slab
+     * first marks its grid points that are inside the atoms, and
+     * once all of them are marked, counts how many of the scan
+     * lines through each free grid point hit the protein at both
+     * ends. A slab only writes its own grid points.
+     */
     public static double ligsite(DynamicArray atoms, Map map){
         int nx = map.ngrid[0], ny = map.ngrid[1], nz = map.ngrid[2];
         int gridPoints = nx*ny*nz;
 
-        int mask[] = new int[gridPoints];
+        long then = System.currentTimeMillis();
+
+        byte protein[] = new byte[gridPoints];
+
+        int threads = Math.min(defaultThreads, nz / MinimumThreadedLayers);
+
+        if(threads < 1){
+            threads = 1;
+        }
+
+        Pocket slabs[] = new Pocket[threads];
+
+        for(int i = 0; i < threads; i++){
+            Pocket slab = new Pocket();
+            slab.atoms = atoms;
+            slab.map = map;
+            slab.protein = protein;
+            slab.firstLayer = (i * nz) / threads;
+            slab.lastLayer = ((i + 1) * nz) / threads;
+            slabs[i] = slab;
+        }
+
+        runSlabs(slabs);
+
+        for(int i = 0; i < threads; i++){
+            slabs[i].scanning = true;
+        }
+
+        runSlabs(slabs);
+
+        int max = 0;
+
+        for(int i = 0; i < threads; i++){
+            if(slabs[i].max > max) max = slabs[i].max;
+        }
+
+        long ms = System.currentTimeMillis() - then;
+
+        print.f("ligsite " + gridPoints + " grid points " + ms + "ms " +
+                (ms > 0 ? (gridPoints * 1000L) / ms : 0) + " grid points/s " +
+                threads + " threads");
+
+        print.f("max " + max);
+
+        return 6.0;
+    }
+
+    /** Run the slabs, the first one in this thread. */
+    private static void runSlabs(Pocket slabs[]){
+        Thread slabThreads[] = new Thread[slabs.length];
+
+        for(int i = 1; i < slabs.length; i++){
+            slabThreads[i] = new Thread(slabs[i]);
+            slabThreads[i].start();
+        }
+
+        slabs[0].run();
+
+        for(int i = 1; i < slabs.length; i++){
+            try {
+                slabThreads[i].join();
+            }catch(InterruptedException e){
+                Log.error("interrupted waiting for ligsite slab " + i);
+            }
+        }
+    }
+
+    /** Mask or scan our slab. */
+    public void run(){
+        if(scanning){
+            scanSlab();
+        }else{
+            maskSlab();
+        }
+    }
+
+    /** Mark the grid points of our slab that are inside the atoms. */
+    private void maskSlab(){
+        int nx = map.ngrid[0], ny = map.ngrid[1], nz = map.ngrid[2];
 
         int box = 15;
 
@@ -184,19 +300,24 @@ public class Pocket {
             double ax = atom.x;
             double ay = atom.y;
             double az = atom.z;
-            double r = atom.getVDWRadius() + 1.4;
-            r = r * r;
+            double rad = atom.getVDWRadius() + 1.4;
+            double r = rad * rad;
 
             int agx = (int)(0.5 + ((ax - map.origin.x)/map.spacing.x));
             int agy = (int)(0.5 + ((ay - map.origin.y)/map.spacing.y));
             int agz = (int)(0.5 + ((az - map.origin.z)/map.spacing.z));
 
-            int xstart = Math.max(0,            agx - box);
-            int xstop  = Math.min(map.ngrid[0], agx + box);
-            int ystart = Math.max(0,            agy - box);
-            int ystop  = Math.min(map.ngrid[1], agy + box);
-            int zstart = Math.max(0,            agz - box);
-            int zstop  = Math.min(map.ngrid[2], agz + box);
+            // grid points further out than this can't be inside
+            int bx = Math.min(box, 2 + (int)(rad/map.spacing.x));
+            int by = Math.min(box, 2 + (int)(rad/map.spacing.y));
+            int bz = Math.min(box, 2 + (int)(rad/map.spacing.z));
+
+            int xstart = Math.max(0,            agx - bx);
+            int xstop  = Math.min(map.ngrid[0], agx + bx);
+            int ystart = Math.max(0,            agy - by);
+            int ystop  = Math.min(map.ngrid[1], agy + by);
+            int zstart = Math.max(firstLayer,   agz - bz);
+            int zstop  = Math.min(lastLayer,    agz + bz);
 
             for(int k = zstart; k < zstop; k++){
                 double gz = map.origin.z + k * map.spacing.z;
@@ -205,7 +326,7 @@ public class Pocket {
                     for(int i = xstart; i < xstop; i++){
                         int v = index(i, j, k, nx, ny, nz);
 
-                        if(mask[v] >= 0){
+                        if(protein[v] == 0){
                             double gx = map.origin.x + i * map.spacing.x;
 
                             double dx = ax - gx;
@@ -213,128 +334,82 @@ public class Pocket {
                             double dz = az - gz;
                             double d2 = dx*dx + dy*dy + dz*dz;
                             if(d2 < r){
-                                mask[v] = -1;
+                                protein[v] = 1;
                             }
                         }
                     }
                 }
             }
         }
-        
-        if(true){
-            
-            int gp = 0;
-            
-            int dirs[][] = {
-                { 1, 0, 0},{ 0, 1, 0},{ 0, 0, 1},
-                { 1, 1, 1},{ 1, 1,-1},{ 1,-1, 1},{ 1,-1,-1}
-            };  
-            
-            for(int k = 0; k < nz; k++){
-                for(int j = 0; j < ny; j++){
-                    for(int i = 0; i < nx; i++){
-                        
-                        if(mask[gp] >= 0){
-                            for(int d = 0; d < 7; d++){
-                                int dx = dirs[d][0];
-                                int dy = dirs[d][1];
-                                int dz = dirs[d][2];
-                                if(psp_line(map, mask,
-                                            i, j, k,
-                                            dx, dy, dz) > 0){
-                                    mask[gp]++;
-                                }
+    }
+
+    /** Count the buried scan lines of the free points of our slab. */
+    private void scanSlab(){
+        int nx = map.ngrid[0], ny = map.ngrid[1], nz = map.ngrid[2];
+        float data[] = map.data;
+
+        for(int k = firstLayer; k < lastLayer; k++){
+            for(int j = 0; j < ny; j++){
+                int gp = index(0, j, k, nx, ny, nz);
+
+                for(int i = 0; i < nx; i++){
+                    int count = 0;
+
+                    if(protein[gp] == 0){
+                        for(int d = 0; d < 7; d++){
+                            if(psp_line(protein, nx, ny, nz, i, j, k,
+                                        dirs[d][0], dirs[d][1], dirs[d][2])){
+                                count++;
                             }
                         }
-                        
-                        gp++;
                     }
-                }
-            }
-        }
 
-        print.f("copying data");
+                    if(count > max) max = count;
 
-        int max = 0;
+                    data[gp] = (float)count;
 
-        for(int i = 0; i < gridPoints; i++){
-            if(mask[i] > max) max = mask[i];
-            if(mask[i] >= 0){
-                map.data[i] = (float)mask[i];
-            }else{
-                map.data[i] = 0.0f;
+                    gp++;
+                }
             }
         }
-
-        print.f("max " + max);
-
-        return 6.0;
     }
 
+    /** Does the line through the point hit the protein both ways. */
+    private static boolean psp_line(byte protein[], int nx, int ny, int nz,
+                                    int x, int y, int z,
+                                    int dx, int dy, int dz){
+        int step = index(dx, dy, dz, nx, ny, nz);
 
-    private static int psp_line(Map map, int mask[], int x,int y,int z, int dx, int dy, int dz){
-
-        int ix,iy,iz,bump_flag;
-        int incx,incy,incz;
-
-        incx = dx;
-        incy = dy;
-        incz = dz;
-  
         /* look in one direction */
 
-        ix = x;
-        iy = y;
-        iz = z;
-        bump_flag=0;
-        while (within_limits(map, ix,iy,iz)){
-
-            if (is_grid_point_set(map, mask, ix, iy, iz)) {
-                bump_flag = 1;
-                break;
-            }
-            ix += incx;
-            iy += incy;
-            iz += incz;
+        if(!bump(protein, nx, ny, nz, x, y, z, dx, dy, dz, step)){
+            return false;
         }
-        if (bump_flag == 0)
-            return 0;
-        
+
         /* look in the other direction */
-        
-        ix = x;
-        iy = y;
-        iz = z;
-        bump_flag=0;
-        while (within_limits(map, ix,iy,iz)){
-            if (is_grid_point_set(map, mask, ix,iy,iz)) {
-                bump_flag = 1;
-                break;
-            }
-            ix -= incx;
-            iy -= incy;
-            iz -= incz;
-        }
-        if (bump_flag == 0)
-            return 0;
-        return 1;
-    }
 
-    private static boolean is_grid_point_set(Map map, int mask[], int i, int j, int k){
-        int v = index(i, j, k, map.ngrid[0], map.ngrid[1], map.ngrid[2]);
-        if(mask[v] < 0){
-            return true;
-        }
-        return false;
+        return bump(protein, nx, ny, nz, x, y, z, -dx, -dy, -dz, -step);
     }
 
-    private static boolean within_limits(Map map, int i, int j, int k){
-        if(i < 0 || j < 0 || k < 0 ||
-           i >= map.ngrid[0] || j >= map.ngrid[1] || k >= map.ngrid[2]){
-            return false;
+    /** Does the line from the point hit the protein before the edge. */
+    private static boolean bump(byte protein[], int nx, int ny, int nz,
+                                int ix, int iy, int iz,
+                                int dx, int dy, int dz, int step){
+        int v = index(ix, iy, iz, nx, ny, nz);
+
+        while(ix >= 0 && iy >= 0 && iz >= 0 &&
+              ix < nx && iy < ny && iz < nz){
+            if(protein[v] != 0){
+                return true;
+            }
+
+            ix += dx;
+            iy += dy;
+            iz += dz;
+            v += step;
         }
 
-        return true;
+        return false;
     }
 
     /** Smooth the map. */
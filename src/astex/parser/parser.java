@@ -1261,14 +1261,14 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 206: // statement ::= PEEK INTEGER 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int ileft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int iright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Integer i = (Integer)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
 		
 			DynamicArray selectedAtoms = parser.renderer.peekSelection(i.intValue());
 
-			RESULT = Selection.arrayToMask(parser.renderer, selectedAtoms);
+			RESULT = SelectionPlan.atoms(selectedAtoms);
 		
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
@@ -1277,14 +1277,14 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 205: // statement ::= POP 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		
 			DynamicArray selectedAtoms = parser.renderer.popSelection();
 
 			if(selectedAtoms != null){
-				RESULT = Selection.arrayToMask(parser.renderer, selectedAtoms);
+				RESULT = SelectionPlan.atoms(selectedAtoms);
 			}else{
-				RESULT = Selection.none(parser.renderer);
+				RESULT = SelectionPlan.none();
 			}
 		
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
@@ -1294,7 +1294,7 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 204: // statement ::= GROUP STRING 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int definitionleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int definitionright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		String definition = (String)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
@@ -1303,9 +1303,9 @@ class CUP$parser$actions {
 				(Hashtable)parser.renderer.groups.get(definition);
 			if(group == null){
 				System.out.println("attempt to use undefined group " + definition);
-				RESULT = Selection.none(parser.renderer);
+				RESULT = SelectionPlan.none();
 			}else{
-				RESULT = Selection.group(parser.renderer, group);
+				RESULT = SelectionPlan.group(group);
 			}
 		
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
@@ -1315,11 +1315,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 203: // statement ::= COMPOSITE string_list 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int vleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int vright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Vector v = (Vector)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.composite(parser.renderer, v); 
+		 RESULT = SelectionPlan.composite(v); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1327,12 +1327,12 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 202: // statement ::= string_list 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int compositesleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int compositesright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Vector composites = (Vector)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
 		
-		   	//RESULT = Selection.hierarchy(parser.renderer, composites);
+		   	//RESULT = SelectionPlan.hierarchy(composites);
 		
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
@@ -1341,7 +1341,7 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 201: // statement ::= ID OPERATOR number 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int oleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left;
 		int oright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).right;
 		Integer o = (Integer)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-1)).value;
@@ -1349,8 +1349,7 @@ class CUP$parser$actions {
 		int dright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Double d = (Double)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
 		
-			RESULT = Selection.attribute(parser.renderer,
-		 					Atom.ID,
+			RESULT = SelectionPlan.attribute(Atom.ID,
 							o.intValue(),
 		 					d.doubleValue());
 		
@@ -1361,7 +1360,7 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 200: // statement ::= ATTRIBUTE OPERATOR number 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int aleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
 		int aright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).right;
 		Integer a = (Integer)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-2)).value;
@@ -1372,8 +1371,7 @@ class CUP$parser$actions {
 		int dright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Double d = (Double)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
 		
-			RESULT = Selection.attribute(parser.renderer,
-		 					a.intValue(),
+			RESULT = SelectionPlan.attribute(a.intValue(),
 							o.intValue(),
 		 					d.doubleValue());
 		
@@ -1384,11 +1382,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 199: // statement ::= MOLEXACT string_list 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int vleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int vright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Vector v = (Vector)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.moleculeExact(parser.renderer, v); 
+		 RESULT = SelectionPlan.moleculeExact(v); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1396,11 +1394,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 198: // statement ::= MOLECULE string_list 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int vleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int vright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Vector v = (Vector)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.molecule(parser.renderer, v); 
+		 RESULT = SelectionPlan.molecule(v); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1408,11 +1406,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 197: // statement ::= CHAIN string_list 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int vleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int vright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Vector v = (Vector)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.chain(parser.renderer, v); 
+		 RESULT = SelectionPlan.chain(v); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1420,11 +1418,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 196: // statement ::= NAME string_list 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int vleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int vright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Vector v = (Vector)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.name(parser.renderer, v); 
+		 RESULT = SelectionPlan.name(v); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1432,8 +1430,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 195: // statement ::= DEFAULT 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.defaultSelection(parser.renderer); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.defaultSelection(); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1441,8 +1439,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 194: // statement ::= DISPLAYED 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.displayed(parser.renderer); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.displayed(); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1450,8 +1448,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 193: // statement ::= WIDE 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.wide(parser.renderer); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.wide(); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1459,8 +1457,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 192: // statement ::= LABELLED 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.labelled(parser.renderer); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.labelled(); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1468,8 +1466,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 191: // statement ::= XRAY 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.property(parser.renderer, Atom.ModellingXray); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.property(Atom.ModellingXray); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1477,8 +1475,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 190: // statement ::= FIXED 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.property(parser.renderer, Atom.ModellingFixed); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.property(Atom.ModellingFixed); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1486,8 +1484,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 189: // statement ::= ENVIRONMENT 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.property(parser.renderer, Atom.ModellingEnvironment); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.property(Atom.ModellingEnvironment); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1495,8 +1493,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 188: // statement ::= ACTIVE 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.property(parser.renderer, Atom.ModellingActive); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.property(Atom.ModellingActive); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1504,8 +1502,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 187: // statement ::= PROPERTY 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.property(parser.renderer, Atom.Property); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.property(Atom.Property); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1513,8 +1511,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 186: // statement ::= CONTEXT 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.property(parser.renderer, Atom.SurfaceContext); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.property(Atom.SurfaceContext); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1522,8 +1520,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 185: // statement ::= SURFACE 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.property(parser.renderer, Atom.Surface); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.property(Atom.Surface); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1531,8 +1529,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 184: // statement ::= CURRENT 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.current(parser.renderer); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.current(); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1540,8 +1538,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 183: // statement ::= IONS 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.ions(parser.renderer); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.ions(); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1549,8 +1547,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 182: // statement ::= DNA 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.dna(parser.renderer); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.dna(); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1558,8 +1556,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 181: // statement ::= SOLVENT 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.solvent(parser.renderer); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.solvent(); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1567,8 +1565,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 180: // statement ::= AMINOACID 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.aminoacid(parser.renderer); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.aminoacid(); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1576,8 +1574,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 179: // statement ::= NONE 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.none(parser.renderer); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.none(); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1585,8 +1583,8 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 178: // statement ::= ALL 
             {
-              byte[] RESULT = null;
-		 RESULT = Selection.all(parser.renderer); 
+              SelectionPlan RESULT = null;
+		 RESULT = SelectionPlan.all(); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1594,11 +1592,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 177: // statement ::= INSERTION STRING 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int sleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int sright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		String s = (String)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.insertion(parser.renderer, s); 
+		 RESULT = SelectionPlan.insertion(s); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1606,11 +1604,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 176: // statement ::= SEQUENTIAL id_list 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int vleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int vright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Vector v = (Vector)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.sequential(parser.renderer, v); 
+		 RESULT = SelectionPlan.sequential(v); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1618,11 +1616,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 175: // statement ::= MODULO INTEGER 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int nleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int nright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Integer n = (Integer)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.modulo(parser.renderer, n.intValue()); 
+		 RESULT = SelectionPlan.modulo(n.intValue()); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1630,11 +1628,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 174: // statement ::= RESIDUE id_list 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int vleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int vright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Vector v = (Vector)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.residue(parser.renderer, v); 
+		 RESULT = SelectionPlan.residue(v); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1642,11 +1640,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 173: // statement ::= ELEMENT id_list 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int vleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int vright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Vector v = (Vector)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.element(parser.renderer, v); 
+		 RESULT = SelectionPlan.element(v); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1654,11 +1652,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 172: // statement ::= ATOM string_list 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int vleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int vright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Vector v = (Vector)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.atom(parser.renderer, v); 
+		 RESULT = SelectionPlan.atom(v); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1666,11 +1664,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 171: // statement ::= ID id_list 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int vleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
 		int vright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Vector v = (Vector)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.id(parser.renderer, v); 
+		 RESULT = SelectionPlan.id(v); 
               CUP$parser$result = new java_cup.runtime.Symbol(1/*statement*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1678,7 +1676,7 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 170: // selection_expression ::= SPHERE number AROUND number number number 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int rleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-4)).left;
 		int rright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-4)).right;
 		Double r = (Double)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-4)).value;
@@ -1692,8 +1690,7 @@ class CUP$parser$actions {
 		int zright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
 		Double z = (Double)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
 		 RESULT =
-			Selection.sphere(parser.renderer, 
-				r.doubleValue(),
+			SelectionPlan.sphere(r.doubleValue(),
 				x.doubleValue(),
 				y.doubleValue(),
 				z.doubleValue());
@@ -1705,12 +1702,12 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 169: // selection_expression ::= GRAPH selection_expression 
             {
-              byte[] RESULT = null;
-		int maskleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
-		int maskright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
-		byte[] mask = (byte[])((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+              SelectionPlan RESULT = null;
+		int planleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int planright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		SelectionPlan plan = (SelectionPlan)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
 		
-		  RESULT = Selection.graph(parser.renderer, mask);
+		  RESULT = SelectionPlan.graph(plan);
 		
               CUP$parser$result = new java_cup.runtime.Symbol(9/*selection_expression*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
@@ -1719,16 +1716,15 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 168: // selection_expression ::= CONTACT number selection_expression 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int rleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left;
 		int rright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).right;
 		Double r = (Double)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-1)).value;
-		int maskleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
-		int maskright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
-		byte[] mask = (byte[])((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+		int planleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int planright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		SelectionPlan plan = (SelectionPlan)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
 		 RESULT =
-			Selection.contact(parser.renderer,
-				r.doubleValue(), mask);
+			SelectionPlan.contact(r.doubleValue(), plan);
 		
               CUP$parser$result = new java_cup.runtime.Symbol(9/*selection_expression*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
@@ -1737,16 +1733,15 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 167: // selection_expression ::= SPHERE number AROUND selection_expression 
             {
-              byte[] RESULT = null;
+              SelectionPlan RESULT = null;
 		int rleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
 		int rright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).right;
 		Double r = (Double)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-2)).value;
-		int maskleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
-		int maskright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
-		byte[] mask = (byte[])((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+		int planleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int planright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		SelectionPlan plan = (SelectionPlan)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
 		 RESULT =
-			Selection.sphere(parser.renderer,
-				r.doubleValue(), mask);
+			SelectionPlan.sphere(r.doubleValue(), plan);
 		
               CUP$parser$result = new java_cup.runtime.Symbol(9/*selection_expression*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-3)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
@@ -1755,11 +1750,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 166: // selection_expression ::= BONDED selection_expression 
             {
-              byte[] RESULT = null;
-		int maskleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
-		int maskright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
-		byte[] mask = (byte[])((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.bonded(parser.renderer, mask); 
+              SelectionPlan RESULT = null;
+		int planleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int planright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		SelectionPlan plan = (SelectionPlan)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+		 RESULT = SelectionPlan.bonded(plan); 
               CUP$parser$result = new java_cup.runtime.Symbol(9/*selection_expression*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1767,11 +1762,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 165: // selection_expression ::= BYRESIDUE selection_expression 
             {
-              byte[] RESULT = null;
-		int maskleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
-		int maskright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
-		byte[] mask = (byte[])((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.byresidue(parser.renderer, mask); 
+              SelectionPlan RESULT = null;
+		int planleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int planright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		SelectionPlan plan = (SelectionPlan)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+		 RESULT = SelectionPlan.byresidue(plan); 
               CUP$parser$result = new java_cup.runtime.Symbol(9/*selection_expression*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1779,11 +1774,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 164: // selection_expression ::= NOT selection_expression 
             {
-              byte[] RESULT = null;
-		int maskleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
-		int maskright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
-		byte[] mask = (byte[])((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.not(mask); 
+              SelectionPlan RESULT = null;
+		int planleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int planright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		SelectionPlan plan = (SelectionPlan)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+		 RESULT = SelectionPlan.not(plan); 
               CUP$parser$result = new java_cup.runtime.Symbol(9/*selection_expression*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1791,14 +1786,14 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 163: // selection_expression ::= selection_expression OR selection_expression 
             {
-              byte[] RESULT = null;
-		int mask1left = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
-		int mask1right = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).right;
-		byte[] mask1 = (byte[])((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-2)).value;
-		int mask2left = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
-		int mask2right = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
-		byte[] mask2 = (byte[])((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.or(mask1, mask2); 
+              SelectionPlan RESULT = null;
+		int plan1left = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
+		int plan1right = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).right;
+		SelectionPlan plan1 = (SelectionPlan)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-2)).value;
+		int plan2left = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int plan2right = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		SelectionPlan plan2 = (SelectionPlan)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+		 RESULT = SelectionPlan.or(plan1, plan2); 
               CUP$parser$result = new java_cup.runtime.Symbol(9/*selection_expression*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1806,14 +1801,14 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 162: // selection_expression ::= selection_expression AND selection_expression 
             {
-              byte[] RESULT = null;
-		int mask1left = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
-		int mask1right = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).right;
-		byte[] mask1 = (byte[])((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-2)).value;
-		int mask2left = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
-		int mask2right = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
-		byte[] mask2 = (byte[])((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = Selection.and(mask1, mask2); 
+              SelectionPlan RESULT = null;
+		int plan1left = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left;
+		int plan1right = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).right;
+		SelectionPlan plan1 = (SelectionPlan)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-2)).value;
+		int plan2left = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int plan2right = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		SelectionPlan plan2 = (SelectionPlan)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+		 RESULT = SelectionPlan.and(plan1, plan2); 
               CUP$parser$result = new java_cup.runtime.Symbol(9/*selection_expression*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1821,11 +1816,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 161: // selection_expression ::= LPAREN selection_expression RPAREN 
             {
-              byte[] RESULT = null;
-		int maskleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left;
-		int maskright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).right;
-		byte[] mask = (byte[])((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-1)).value;
-		 RESULT = mask; 
+              SelectionPlan RESULT = null;
+		int planleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).left;
+		int planright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-1)).right;
+		SelectionPlan plan = (SelectionPlan)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-1)).value;
+		 RESULT = plan; 
               CUP$parser$result = new java_cup.runtime.Symbol(9/*selection_expression*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-2)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1833,11 +1828,11 @@ class CUP$parser$actions {
           /*. . . . . . . . . . . . . . . . . . . .*/
           case 160: // selection_expression ::= statement 
             {
-              byte[] RESULT = null;
-		int maskleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
-		int maskright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
-		byte[] mask = (byte[])((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
-		 RESULT = mask; 
+              SelectionPlan RESULT = null;
+		int planleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int planright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		SelectionPlan plan = (SelectionPlan)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+		 RESULT = plan; 
               CUP$parser$result = new java_cup.runtime.Symbol(9/*selection_expression*/, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left, ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right, RESULT);
             }
           return CUP$parser$result;
@@ -1846,12 +1841,11 @@ class CUP$parser$actions {
           case 159: // selection ::= selection_expression 
             {
               DynamicArray RESULT = null;
-		int maskleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
-		int maskright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
-		byte[] mask = (byte[])((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
+		int planleft = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).left;
+		int planright = ((java_cup.runtime.Symbol)CUP$parser$stack.elementAt(CUP$parser$top-0)).right;
+		SelectionPlan plan = (SelectionPlan)((java_cup.runtime.Symbol) CUP$parser$stack.elementAt(CUP$parser$top-0)).value;
 		
-			DynamicArray selectedAtoms =
-				Selection.maskToArray(parser.renderer, mask);
+			DynamicArray selectedAtoms = plan.select(parser.renderer);
 			if(parser.renderer.getSelectCount()){
 				System.out.println("[" + selectedAtoms.size() + "]");
 			}
@@ -3590,16 +3584,18 @@ class CUP$parser$actions {
 			if(args.getBoolean("-lazy", false) == false ||
                            parser.renderer.renderer.getGraphicalObject(name) == null){
 				parser.renderer.removeGraphicalObjects(name);
-				Surface.setProbeRadius(args.getDouble("probe", 1.5));
+				Surface connolly =
+					new Surface(args.getDouble("probe", 1.5));
 
 				MoleculeRenderer r = parser.renderer;
 				Tmesh surface =
-					Surface.connolly(selectedAtoms, 0.3,
+					connolly.generate(selectedAtoms, 0.3,
 						args.getBoolean("solid", false));
 				surface.setName(name);
 				int c = Color32.getColorFromName(colour);
 				surface.setColor(c);
 				r.addGraphicalObject(surface);
+				r.addSurface(name, connolly);
 			}
 			//Selection.dynamicArrayCache.add(selectedAtoms);
 		
@@ -3985,6 +3981,7 @@ class CUP$parser$actions {
 					}else{
 						atom.attributes &= displayBit;
 					}
+					atom.changed();
 				}
 			}else{
 				System.out.println("invalid display mode " + mode);
@@ -4016,6 +4013,7 @@ class CUP$parser$actions {
 	  		  	while(iterator.hasMoreElements()){
 					Atom atom = iterator.getNextAtom();
 					atom.attributes &= ~displayBit;
+					atom.changed();
 				}
 				
 				int atomCount = selectedAtoms.size();
@@ -4023,6 +4021,7 @@ class CUP$parser$actions {
 				for(int a = 0; a < atomCount; a++){
 					Atom atom = (Atom)selectedAtoms.get(a);
 					atom.attributes |= displayBit;
+					atom.changed();
 				}
 			}else{
 				System.out.println("invalid display mode " + mode);